@@ -26,16 +26,20 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.pm.PackageInfo;
 import android.os.Build;
+import android.os.Handler;
 import android.os.Looper;
 
 import org.qiyi.pluginlibrary.component.wraper.NeptuneInstrument;
 import org.qiyi.pluginlibrary.component.wraper.PluginInstrument;
 import org.qiyi.pluginlibrary.install.IInstallCallBack;
+import org.qiyi.pluginlibrary.install.IInstallProgressCallBack;
 import org.qiyi.pluginlibrary.install.IUninstallCallBack;
+import org.qiyi.pluginlibrary.install.PluginInstaller;
 import org.qiyi.pluginlibrary.pm.PluginLiteInfo;
 import org.qiyi.pluginlibrary.pm.PluginPackageManagerNative;
 import org.qiyi.pluginlibrary.runtime.PluginManager;
 import org.qiyi.pluginlibrary.utils.PluginDebugLog;
+import org.qiyi.pluginlibrary.utils.ProcessUtils;
 import org.qiyi.pluginlibrary.utils.ReflectionUtils;
 import org.qiyi.pluginlibrary.utils.RunUtil;
 import org.qiyi.pluginlibrary.utils.VersionUtils;
@@ -47,6 +51,8 @@ import java.io.File;
  */
 public class Neptune {
     private static final String TAG = "Neptune";
+    /* 宿主启动后延迟启动待命的安装进程 */
+    private static final long INSTALLER_WARM_UP_DELAY = 10 * 1000L;
 
     public static final boolean SEPARATED_CLASSLOADER = true;
     public static final boolean NEW_COMPONENT_PARSER = true;
@@ -90,8 +96,21 @@ public class Neptune {
                 hookInstrumentation();
             }
         }
+        if (sGlobalConfig.withReflectionWarmUp()) {
+            // 后台预先解析反射成员，插件首次启动时不再查找
+            PluginManager.warmUpReflection();
+        }
         // 调用getInstance()方法会初始化bindService
         PluginPackageManagerNative.getInstance(sHostContext).setPackageInfoManager(sGlobalConfig.getPluginInfoProvider());
+        if (sGlobalConfig.withInstallerWarmStandby() && ProcessUtils.isMainProcess(application)) {
+            // 延迟启动待命的安装进程，避免和宿主冷启动争抢资源
+            new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    PluginInstaller.warmUpInstallerProcess(sHostContext);
+                }
+            }, INSTALLER_WARM_UP_DELAY);
+        }
         // 注册卸载监听广播
         //PluginManager.registerUninstallReceiver(sHostContext);
     }
@@ -196,9 +215,22 @@ public class Neptune {
      * @param callBack 安装回调
      */
     public static void install(Context context, PluginLiteInfo info, IInstallCallBack callBack) {
+        install(context, info, callBack, null);
+    }
+
+    /**
+     * 安装一个插件，同时监听每个dex的dexopt进度
+     *
+     * @param context          宿主的Context
+     * @param info             插件的信息，包括包名，路径等
+     * @param callBack         安装回调
+     * @param progressCallBack 安装进度回调，可以为null
+     */
+    public static void install(Context context, PluginLiteInfo info, IInstallCallBack callBack,
+                               IInstallProgressCallBack progressCallBack) {
         // install
         Context mContext = ensureContext(context);
-        PluginPackageManagerNative.getInstance(mContext).install(info, callBack);
+        PluginPackageManagerNative.getInstance(mContext).install(info, callBack, progressCallBack);
     }
 
 
@@ -327,6 +359,17 @@ public class Neptune {
         PluginManager.launchPlugin(mHostContext, intent, sc, processName);
     }
 
+    /**
+     * 在主线程空闲时预热插件，降低首次启动插件的耗时
+     *
+     * @param mHostContext  宿主的Context
+     * @param pkgName  待预热插件的包名
+     * @param level  预热等级，见{@link PluginManager#PREWARM_PACKAGE_INFO}等
+     */
+    public static void prewarm(Context mHostContext, String pkgName, int level) {
+        PluginManager.prewarm(mHostContext, pkgName, level);
+    }
+
     /**
      * 判断插件是否安装
      *
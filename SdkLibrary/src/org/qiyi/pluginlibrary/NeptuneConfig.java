@@ -43,6 +43,14 @@ public final class NeptuneConfig {
     private boolean mSupportProvider;
     /* 是否使用独立进程安装插件 */
     private boolean mInstallerProcess;
+    /* 安装进程空闲多久之后退出，单位ms */
+    private long mInstallerIdleTimeout;
+    /* 安装进程是否常驻待命，避免每次安装都重新创建进程 */
+    private boolean mInstallerWarmStandby;
+    /* pluginapp目录的空间配额，超过时回收旧版本和已卸载插件的数据，0表示不限制 */
+    private long mStorageQuota;
+    /* 初始化时是否在后台线程提前解析插件运行需要的系统隐藏成员 */
+    private boolean mReflectionWarmUp;
     /* Debug调试日志是否打开 */
     private boolean mIsDebug;
 
@@ -52,6 +60,10 @@ public final class NeptuneConfig {
         this.mRecoveryCallback = builder.recoveryCallback;
         this.mIsDebug = builder.isDebug;
         this.mInstallerProcess = builder.installerProcess;
+        this.mInstallerIdleTimeout = builder.installerIdleTimeout;
+        this.mInstallerWarmStandby = builder.installerWarmStandby;
+        this.mStorageQuota = builder.storageQuota;
+        this.mReflectionWarmUp = builder.reflectionWarmUp;
         this.mSupportProvider = builder.supportProvider;
     }
 
@@ -72,6 +84,22 @@ public final class NeptuneConfig {
         return mInstallerProcess;
     }
 
+    public long getInstallerIdleTimeout() {
+        return mInstallerIdleTimeout;
+    }
+
+    public boolean withInstallerWarmStandby() {
+        return mInstallerWarmStandby;
+    }
+
+    public long getStorageQuota() {
+        return mStorageQuota;
+    }
+
+    public boolean withReflectionWarmUp() {
+        return mReflectionWarmUp;
+    }
+
     public boolean isSupportProvider() {
         return mSupportProvider;
     }
@@ -86,6 +114,10 @@ public final class NeptuneConfig {
         IRecoveryCallback recoveryCallback;
         boolean supportProvider;
         boolean installerProcess;
+        long installerIdleTimeout = 30 * 1000L;
+        boolean installerWarmStandby;
+        long storageQuota;
+        boolean reflectionWarmUp;
         boolean isDebug;
 
         public Builder configSdkMode(int sdkMode) {
@@ -118,6 +150,26 @@ public final class NeptuneConfig {
             return this;
         }
 
+        public Builder installerIdleTimeout(long timeoutMillis) {
+            this.installerIdleTimeout = timeoutMillis;
+            return this;
+        }
+
+        public Builder installerWarmStandby(boolean warmStandby) {
+            this.installerWarmStandby = warmStandby;
+            return this;
+        }
+
+        public Builder storageQuota(long quotaBytes) {
+            this.storageQuota = quotaBytes;
+            return this;
+        }
+
+        public Builder reflectionWarmUp(boolean warmUp) {
+            this.reflectionWarmUp = warmUp;
+            return this;
+        }
+
         public NeptuneConfig build() {
             return new NeptuneConfig(this);
         }
@@ -847,8 +847,7 @@ public class InstrActivityProxy1 extends Activity implements InterfaceToGetHost
         super.onActivityResult(requestCode, resultCode, data);
         PluginDebugLog.runtimeLog(TAG, "InstrActivityProxy1 onActivityResult");
         if (getController() != null) {
-            Class<?>[] paramTypes = new Class[]{int.class, int.class, Intent.class};
-            getController().getPluginRef().call("onActivityResult", PluginActivityControl.sMethods, paramTypes, requestCode, resultCode, data);
+            getController().callOnActivityResult(requestCode, resultCode, data);
         }
     }
 
@@ -973,8 +972,7 @@ public class InstrActivityProxy1 extends Activity implements InterfaceToGetHost
                 } catch (Exception e) {
                     // ignore
                 }
-                Class<?>[] paramTyps = new Class[]{int.class, String[].class, int[].class};
-                pluginRef.call("onRequestPermissionsResult", PluginActivityControl.sMethods, paramTyps, requestCode, permissions, grantResults);
+                getController().callOnRequestPermissionsResult(requestCode, permissions, grantResults);
             }
         }
     }
@@ -983,7 +981,7 @@ public class InstrActivityProxy1 extends Activity implements InterfaceToGetHost
     public void onStateNotSaved() {
         super.onStateNotSaved();
         if (getController() != null) {
-            getController().getPluginRef().call("onStateNotSaved", PluginActivityControl.sMethods, null);
+            getController().callOnStateNotSaved();
         }
     }
 
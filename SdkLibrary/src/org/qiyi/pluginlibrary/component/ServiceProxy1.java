@@ -38,11 +38,8 @@ import org.qiyi.pluginlibrary.utils.IntentUtils;
 import org.qiyi.pluginlibrary.utils.PluginDebugLog;
 import org.qiyi.pluginlibrary.utils.ReflectionUtils;
 
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 /**
@@ -51,7 +48,12 @@ import java.util.concurrent.ConcurrentMap;
 public class ServiceProxy1 extends Service {
     private static final String TAG = ServiceProxy1.class.getSimpleName();
 
-    private static ConcurrentMap<String, Vector<Method>> sMethods = new ConcurrentHashMap<String, Vector<Method>>(2);
+    /* 预解析的Service#attach和代理Service中传给插件Service的字段 */
+    private static final ReflectionUtils.MethodRef ATTACH = ReflectionUtils.resolveMethod(Service.class, "attach", 6);
+    private static final ReflectionUtils.FieldRef M_THREAD = ReflectionUtils.resolveField(Service.class, "mThread");
+    private static final ReflectionUtils.FieldRef M_TOKEN = ReflectionUtils.resolveField(Service.class, "mToken");
+    private static final ReflectionUtils.FieldRef M_ACTIVITY_MANAGER = ReflectionUtils.resolveField(Service.class,
+            "mActivityManager");
 
     private boolean mKillProcessOnDestroy = false;
 
@@ -103,10 +105,8 @@ public class ServiceProxy1 extends Service {
                         .loadClass(targetClassName).newInstance());
                 PluginContextWrapper actWrapper = new PluginContextWrapper(ServiceProxy1.this.getBaseContext(),
                         mLoadedApk, true);
-                ReflectionUtils.on(targetService).call("attach", sMethods, null, actWrapper,
-                        ReflectionUtils.getFieldValue(this, "mThread"), targetClassName,
-                        ReflectionUtils.getFieldValue(this, "mToken"), mLoadedApk.getPluginApplication(),
-                        ReflectionUtils.getFieldValue(this, "mActivityManager"));
+                ATTACH.invoke(targetService, actWrapper, M_THREAD.get(this), targetClassName,
+                        M_TOKEN.get(this), mLoadedApk.getPluginApplication(), M_ACTIVITY_MANAGER.get(this));
 
                 PluginDebugLog.log(TAG, "load targetService success, pkgName: " + targetPackageName
                         + ", clsName: " + targetClassName);
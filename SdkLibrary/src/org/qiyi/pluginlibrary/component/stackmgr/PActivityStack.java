@@ -21,20 +21,27 @@ import android.app.Activity;
 
 import org.qiyi.pluginlibrary.utils.ContextUtils;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * 插件的Activity栈抽象, 和系统的{@link com.android.server.am.ActivityStack}类似
+ * <p>
+ * 栈的内容保存在不可变的快照中，修改时复制一份新的快照再整体替换（copy-on-write），
+ * 生命周期回调和启动流程读取栈顶、按类名查找实例时不需要加锁，遍历时也不会和修改冲突；
+ * 涉及多个栈的修改由{@link PActivityStackSupervisor}加锁保证原子性
  */
 public class PActivityStack {
-    private final LinkedList<Activity> mActivities;
     // taskAffinity
     private String taskName;
+    /* 当前栈的快照，只能整体替换，不能修改 */
+    private volatile Snapshot mSnapshot = Snapshot.EMPTY;
 
     PActivityStack(String taskName) {
         this.taskName = taskName;
-        mActivities = new LinkedList<>();
     }
 
     /**
@@ -44,47 +51,154 @@ public class PActivityStack {
         return taskName;
     }
 
-    public LinkedList<Activity> getActivities() {
-        return mActivities;
+    /**
+     * 获取当前栈中Activity的快照，栈顶在前，返回的列表不可修改
+     */
+    public List<Activity> getActivities() {
+        return mSnapshot.activities;
     }
 
     public int size() {
-        return mActivities.size();
+        return mSnapshot.activities.size();
     }
 
-    public synchronized boolean isEmpty() {
-        return mActivities.isEmpty();
+    public boolean isEmpty() {
+        return mSnapshot.activities.isEmpty();
     }
 
-    // 放入链表的前面
-    public synchronized void push(Activity activity) {
-        mActivities.addFirst(activity);
+    /**
+     * 放入栈顶
+     *
+     * @param activity 插件Activity或者代理Activity
+     * @param key      对应的插件Activity类名，用于按类名查找
+     */
+    public synchronized void push(Activity activity, String key) {
+        List<Entry> entries = new ArrayList<>(mSnapshot.entries.size() + 1);
+        entries.add(new Entry(activity, key));
+        entries.addAll(mSnapshot.entries);
+        mSnapshot = new Snapshot(entries);
     }
 
-    public synchronized void insertFirst(Activity activity) {
-        mActivities.addLast(activity);
+    public synchronized boolean pop(Activity activity) {
+        List<Entry> entries = mSnapshot.entries;
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).activity == activity) {
+                List<Entry> remain = new ArrayList<>(entries);
+                remain.remove(i);
+                mSnapshot = remain.isEmpty() ? Snapshot.EMPTY : new Snapshot(remain);
+                return true;
+            }
+        }
+        return false;
     }
 
-    public synchronized boolean pop(Activity activity) {
-        return mActivities.remove(activity);
+    /**
+     * 把另一个栈中的Activity按原来的顺序整体移到当前栈的底部，并清空另一个栈，
+     * 两个栈各只替换一次快照
+     */
+    synchronized void moveToBottom(PActivityStack other) {
+        if (other == this) {
+            return;
+        }
+        List<Entry> moved;
+        synchronized (other) {
+            moved = other.mSnapshot.entries;
+            other.mSnapshot = Snapshot.EMPTY;
+        }
+        if (moved.isEmpty()) {
+            return;
+        }
+        List<Entry> entries = new ArrayList<>(mSnapshot.entries.size() + moved.size());
+        entries.addAll(mSnapshot.entries);
+        entries.addAll(moved);
+        mSnapshot = new Snapshot(entries);
     }
 
-    public synchronized Activity getTop() {
-        return mActivities.getFirst();
+    /**
+     * 获取栈顶的Activity，栈为空时返回null
+     */
+    public Activity getTop() {
+        List<Activity> activities = mSnapshot.activities;
+        return activities.isEmpty() ? null : activities.get(0);
+    }
+
+    /**
+     * 按插件Activity的类名查找栈中还没有销毁的实例，有多个时返回最靠近栈顶的
+     *
+     * @param className 插件Activity的类名
+     */
+    public Activity findActivity(String className) {
+        List<Activity> candidates = mSnapshot.classIndex.get(className);
+        if (candidates == null) {
+            return null;
+        }
+        for (Activity activity : candidates) {
+            if (!ContextUtils.isFinished(activity)) {
+                return activity;
+            }
+        }
+        return null;
     }
 
     /**
      * 清空当前任务栈里的Activity
      */
     public void clear(boolean needFinish) {
-        Iterator<Activity> iterator = mActivities.iterator();
-        while (iterator.hasNext()) {
-            Activity activity = iterator.next();
-            if (activity != null && needFinish
-                    && !ContextUtils.isFinished(activity)) {
-                activity.finish();
+        List<Activity> activities;
+        synchronized (this) {
+            activities = mSnapshot.activities;
+            mSnapshot = Snapshot.EMPTY;
+        }
+        if (needFinish) {
+            for (Activity activity : activities) {
+                if (activity != null && !ContextUtils.isFinished(activity)) {
+                    activity.finish();
+                }
+            }
+        }
+    }
+
+    /**
+     * 栈中的一项，入栈时记录对应的插件Activity类名
+     */
+    private static final class Entry {
+        final Activity activity;
+        final String key;
+
+        Entry(Activity activity, String key) {
+            this.activity = activity;
+            this.key = key;
+        }
+    }
+
+    /**
+     * 栈的不可变快照，同时按插件Activity的类名建立索引
+     */
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Collections.<Entry>emptyList());
+
+        /* 栈中的项，栈顶在前 */
+        final List<Entry> entries;
+        /* 栈中的Activity，栈顶在前 */
+        final List<Activity> activities;
+        /* 插件Activity类名 -> 栈中的实例，栈顶在前 */
+        final Map<String, List<Activity>> classIndex;
+
+        Snapshot(List<Entry> entries) {
+            this.entries = Collections.unmodifiableList(entries);
+            List<Activity> activities = new ArrayList<>(entries.size());
+            Map<String, List<Activity>> index = new HashMap<>();
+            for (Entry entry : entries) {
+                activities.add(entry.activity);
+                List<Activity> bucket = index.get(entry.key);
+                if (bucket == null) {
+                    bucket = new ArrayList<>(1);
+                    index.put(entry.key, bucket);
+                }
+                bucket.add(entry.activity);
             }
-            iterator.remove();
+            this.activities = Collections.unmodifiableList(activities);
+            this.classIndex = index;
         }
     }
 }
@@ -44,9 +44,14 @@ import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * 插件的管理栈，模拟系统的{@link com.android.server.am.ActivityStackSupervisor}
+ * <p>
+ * 全局栈由所有插件共享，入栈、出栈、合并和切换前后台栈以及启动模式的判断都在{@link #sStackLock}下进行，
+ * 单个栈的读取使用快照不需要加锁
  */
 public class PActivityStackSupervisor {
     private static final String TAG = "PActivityStackSupervisor";
+    /* 修改全局栈和插件栈的锁，保证涉及多个栈的操作和启动模式的检查-修改是原子的 */
+    private static final Object sStackLock = new Object();
 
     // 等在加载的intent请求
     private static ConcurrentMap<String, LinkedBlockingQueue<IntentRequest>> sIntentCacheMap = new ConcurrentHashMap<>();
@@ -58,10 +63,10 @@ public class PActivityStackSupervisor {
 
     // 插件的Activity栈集合，支持taskAffinity多任务栈，目前只额外配置了一个坑位
     private final ConcurrentHashMap<String, PActivityStack> mActivityStacks;
-    // 前台栈
-    private PActivityStack mFocusedStack;
+    // 前台栈，生命周期回调和启动流程会在不同线程读取
+    private volatile PActivityStack mFocusedStack;
     // 后台栈
-    private PActivityStack mLastFocusedStack = null;
+    private volatile PActivityStack mLastFocusedStack = null;
     // 插件实例
     private PluginLoadedApk mLoadedApk;
 
@@ -157,25 +162,6 @@ public class PActivityStackSupervisor {
         }
     }
 
-    /**
-     * 获取当前Activity对应的插件Activity的名称
-     * 如果是代理Activity，则搜索对应的插件Activity实例
-     * 如果本身就是插件Activity，直接返回即可
-     */
-    private static String getActivityStackKey(Activity activity) {
-        String key = "";
-        if (activity instanceof InstrActivityProxy1) {
-            InstrActivityProxy1 proxy = (InstrActivityProxy1) activity;
-            PluginActivityControl ctl = proxy.getController();
-            if (ctl != null && ctl.getPlugin() != null) {
-                key = ctl.getPlugin().getClass().getName();
-            }
-        } else {
-            key = activity.getClass().getName();
-        }
-        return key;
-    }
-
     /**
      * 把插件Activity压入堆栈
      * 旧的插件方案：压入的是代理的Activity
@@ -187,10 +173,15 @@ public class PActivityStackSupervisor {
                     + IntentUtils.dump(activity));
         }
 
-        PActivityStack sysStack = findAssociatedStack(mFocusedStack);
-        sysStack.push(activity);  // 插件Activity推入全局栈
-        removeLoadingIntent(mLoadedApk.getPluginPackageName(), activity.getIntent());
-        mFocusedStack.push(activity);  // 插件Activity推入插件自身管理的堆栈
+        String key = getActivityKey(activity);
+        synchronized (sStackLock) {
+            PActivityStack focusedStack = mFocusedStack;
+            PActivityStack sysStack = findAssociatedStack(focusedStack);
+            sysStack.push(activity, key);  // 插件Activity推入全局栈
+            focusedStack.push(activity, key);  // 插件Activity推入插件自身管理的堆栈
+            // 入栈之后再移除启动中的记录，启动模式的检查不会漏掉这个Activity
+            removeLoadingIntent(mLoadedApk.getPluginPackageName(), activity.getIntent());
+        }
     }
 
     /**
@@ -199,19 +190,24 @@ public class PActivityStackSupervisor {
      * hook Instr方案：弹出的是插件真实的Activity
      */
     public boolean popActivityFromStack(Activity activity) {
+        boolean result;
+        synchronized (sStackLock) {
+            PActivityStack focusedStack = mFocusedStack;
+            PActivityStack lastFocusedStack = mLastFocusedStack;
 
-        // 退出的时候，前后台栈都需要搜索一遍
-        PActivityStack sysStack = findAssociatedStack(mFocusedStack);
-        sysStack.pop(activity);
-        removeLoadingIntent(mLoadedApk.getPluginPackageName(), activity.getIntent());
-        if (mLastFocusedStack != null) {
-            sysStack = findAssociatedStack(mLastFocusedStack);
+            // 退出的时候，前后台栈都需要搜索一遍
+            PActivityStack sysStack = findAssociatedStack(focusedStack);
             sysStack.pop(activity);
-        }
+            removeLoadingIntent(mLoadedApk.getPluginPackageName(), activity.getIntent());
+            if (lastFocusedStack != null) {
+                sysStack = findAssociatedStack(lastFocusedStack);
+                sysStack.pop(activity);
+            }
 
-        boolean result = mFocusedStack.pop(activity);
-        if (mLastFocusedStack != null) {
-            result = mLastFocusedStack.pop(activity) || result;
+            result = focusedStack.pop(activity);
+            if (lastFocusedStack != null) {
+                result = lastFocusedStack.pop(activity) || result;
+            }
         }
 
         if (PluginDebugLog.isDebug()) {
@@ -237,60 +233,59 @@ public class PActivityStackSupervisor {
      * 获取对应插件可能位于栈顶的Activity
      */
     public Activity getTopActivity() {
-        if (!mFocusedStack.isEmpty()) {
-            return mFocusedStack.getTop();
-        }
-
-        return null;
+        return mFocusedStack.getTop();
     }
 
     /**
      * 获取对应插件可用的Activity，用于启动其他插件的Context
      */
     public Activity getAvailableActivity() {
-        if (!mFocusedStack.isEmpty()) {
-            return mFocusedStack.getTop();
-        }
-
-        if (mLastFocusedStack != null && !mLastFocusedStack.isEmpty()) {
-            return mLastFocusedStack.getTop();
+        Activity top = mFocusedStack.getTop();
+        if (top != null) {
+            return top;
         }
 
-        return null;
+        PActivityStack lastFocusedStack = mLastFocusedStack;
+        return lastFocusedStack != null ? lastFocusedStack.getTop() : null;
     }
 
     /**
      * 当前插件的栈里是否有Activity在执行
      */
     public boolean hasActivityRunning() {
+        PActivityStack lastFocusedStack = mLastFocusedStack;
         return !mFocusedStack.isEmpty() ||
-                (mLastFocusedStack != null && !mLastFocusedStack.isEmpty());
+                (lastFocusedStack != null && !lastFocusedStack.isEmpty());
     }
 
     /**
      * 当前插件的栈是否为空
      */
     public boolean isStackEmpty() {
+        PActivityStack lastFocusedStack = mLastFocusedStack;
         return mFocusedStack.isEmpty() &&
-                (mLastFocusedStack != null && mLastFocusedStack.isEmpty());
+                (lastFocusedStack != null && lastFocusedStack.isEmpty());
     }
 
     /**
      * dump当前插件堆栈的信息
      */
     public void dump(PrintWriter pw) {
+        List<Activity> activities = mFocusedStack.getActivities();
         pw.print("foreground stack: ");
-        pw.print(mFocusedStack.size() + " ");
-        for (Activity activity : mFocusedStack.getActivities()) {
+        pw.print(activities.size() + " ");
+        for (Activity activity : activities) {
             String info = IntentUtils.dump(activity);
             pw.print(info);
             pw.print("\n");
         }
 
-        if (mLastFocusedStack != null) {
+        PActivityStack lastFocusedStack = mLastFocusedStack;
+        if (lastFocusedStack != null) {
+            activities = lastFocusedStack.getActivities();
             pw.print("background stack: ");
-            pw.print(mLastFocusedStack.size() + " ");
-            for (Activity activity : mLastFocusedStack.getActivities()) {
+            pw.print(activities.size() + " ");
+            for (Activity activity : activities) {
                 String info = IntentUtils.dump(activity);
                 pw.print(info);
                 pw.print("\n");
@@ -317,7 +312,10 @@ public class PActivityStackSupervisor {
         PActivityStack sysStack = sAllActivityStacks.get(stackName);
         if (sysStack == null) {
             sysStack = new PActivityStack(stackName);
-            sAllActivityStacks.put(stackName, sysStack);
+            PActivityStack prev = sAllActivityStacks.putIfAbsent(stackName, sysStack);
+            if (prev != null) {
+                sysStack = prev;
+            }
         }
         return sysStack;
     }
@@ -357,183 +355,212 @@ public class PActivityStackSupervisor {
         }
         intent.setFlags(flag);
 
-        if (isSingleTop && !isClearTop) {
-            // 判断栈顶是否为需要启动的Activity, 只需要处理前台栈
-            Activity activity = null;
-            if (!mFocusedStack.isEmpty()) {
-                activity = mFocusedStack.getTop();
-            }
-            boolean hasSameActivity = false;
-            if (activity != null && !ContextUtils.isFinished(activity)) {
-                String proxyClsName = ComponentFinder.findActivityProxy(mLoadedApk, info);
-                // 栈内有实例, 可能是ProxyActivity，也可能是插件真实的Activity
-                if (TextUtils.equals(proxyClsName, activity.getClass().getName())
-                        || TextUtils.equals(targetActivity, activity.getClass().getName())) {
-                    String key = getActivityStackKey(activity);
-
-                    if (!TextUtils.isEmpty(key) && TextUtils.equals(targetActivity, key)) {
-                        intent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
-                        hasSameActivity = true;
-                    }
+        // 栈中需要销毁的Activity在锁外finish
+        List<Activity> finishActivities = new ArrayList<Activity>();
+        boolean quitApp = false;
+        synchronized (sStackLock) {
+            if (isSingleTop && !isClearTop) {
+                // 判断栈顶是否为需要启动的Activity, 只需要处理前台栈
+                PActivityStack focusedStack = mFocusedStack;
+                Activity activity = focusedStack.getTop();
+                boolean hasSameActivity = false;
+                if (activity != null && !ContextUtils.isFinished(activity)
+                        && isInstanceOf(activity, targetActivity, info)) {
+                    intent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+                    hasSameActivity = true;
                 }
-            }
-            if (hasSameActivity) {
-                handleOtherPluginActivityStack(activity, mFocusedStack);
-            }
-        } else if (isSingleTask || isClearTop) {
-
-            PActivityStack targetStack; // 需要搜索的任务栈
-            boolean fromBackStack = false;
-            if (isClearTop) {
-                targetStack = mFocusedStack;
-            } else {
-                // singleTask
-                if (mLastFocusedStack != null
-                        && TextUtils.equals(mLastFocusedStack.getTaskName(), matchTaskName(info.taskAffinity))) {
-                    // 后台栈和Activity的taskAffinity匹配
-                    targetStack = mLastFocusedStack;
-                    fromBackStack = true;
-                    PluginDebugLog.runtimeLog(TAG, "dealLaunchMode search in background stack: " + info.taskAffinity);
-                } else {
-                    // 前台栈中搜索
-                    targetStack = mFocusedStack;
+                if (hasSameActivity) {
+                    handleOtherPluginActivityStack(activity, focusedStack, finishActivities);
                 }
-            }
-            // 查找栈中是否存在已有实例
-            Activity found = null;
-            // 遍历已经起过的activity
-            for (Activity activity : targetStack.getActivities()) {
-                if (activity != null && !ContextUtils.isFinished(activity)) {
-                    // 堆栈里的Activity还没有销毁
-                    String proxyClsName = ComponentFinder.findActivityProxy(mLoadedApk, info);
-                    if (TextUtils.equals(proxyClsName, activity.getClass().getName())
-                            || TextUtils.equals(targetActivity, activity.getClass().getName())) {
-                        String key = getActivityStackKey(activity);
-                        if (!TextUtils.isEmpty(key) && TextUtils.equals(targetActivity, key)) {
-                            PluginDebugLog.runtimeLog(TAG, "dealLaunchMode found:" + IntentUtils.dump(activity));
-                            found = activity;
-                            break;
-                        }
+            } else if (isSingleTask || isClearTop) {
+
+                PActivityStack focusedStack = mFocusedStack;
+                PActivityStack targetStack; // 需要搜索的任务栈
+                boolean fromBackStack = false;
+                if (isClearTop) {
+                    targetStack = focusedStack;
+                } else {
+                    // singleTask，按taskAffinity找到对应的任务栈
+                    PActivityStack affinityStack = mActivityStacks.get(matchTaskName(info.taskAffinity));
+                    if (affinityStack != null && affinityStack == mLastFocusedStack) {
+                        // 后台栈和Activity的taskAffinity匹配
+                        targetStack = affinityStack;
+                        fromBackStack = true;
+                        PluginDebugLog.runtimeLog(TAG, "dealLaunchMode search in background stack: " + info.taskAffinity);
+                    } else {
+                        // 前台栈中搜索
+                        targetStack = focusedStack;
                     }
                 }
-            }
+                // 按类名查找栈中是否存在已有实例
+                Activity found = targetStack.findActivity(targetActivity);
+                if (found != null && !isInstanceOf(found, targetActivity, info)) {
+                    found = null;
+                }
+                if (found != null) {
+                    PluginDebugLog.runtimeLog(TAG, "dealLaunchMode found:" + IntentUtils.dump(found));
+                }
 
-            // 栈中已经有当前activity
-            if (found != null) {
-                // 处理其他插件的逻辑
-                // 在以这两种SingleTask， ClearTop flag启动情况下，在同一个栈的情况下
-                handleOtherPluginActivityStack(found, targetStack);
-
-                // 处理当前插件的Activity
-                List<Activity> popActivities = new ArrayList<Activity>(5);
-                for (Activity activity : targetStack.getActivities()) {
-                    if (activity == found) {
-                        if (isSingleTask || isSingleTop) {
-                            PluginDebugLog.runtimeLog(TAG, "dealLaunchMode add single top flag!");
-                            intent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+                // 栈中已经有当前activity
+                if (found != null) {
+                    // 处理其他插件的逻辑
+                    // 在以这两种SingleTask， ClearTop flag启动情况下，在同一个栈的情况下
+                    handleOtherPluginActivityStack(found, targetStack, finishActivities);
+
+                    // 处理当前插件的Activity
+                    List<Activity> popActivities = new ArrayList<Activity>(5);
+                    for (Activity activity : targetStack.getActivities()) {
+                        if (activity == found) {
+                            if (isSingleTask || isSingleTop) {
+                                PluginDebugLog.runtimeLog(TAG, "dealLaunchMode add single top flag!");
+                                intent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+                            }
+                            PluginDebugLog.runtimeLog(TAG, "dealLaunchMode add clear top flag!");
+                            intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+                            break;
                         }
-                        PluginDebugLog.runtimeLog(TAG, "dealLaunchMode add clear top flag!");
-                        intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-                        break;
+                        popActivities.add(activity);
                     }
-                    popActivities.add(activity);
-                }
 
-                for (Activity act : popActivities) {
-                    PluginDebugLog.runtimeLog(TAG, "dealLaunchMode popActivities finish " + IntentUtils.dump(act));
-                    popActivityFromStack(act);
-                    if (!ContextUtils.isFinished(act)) {
-                        act.finish();
+                    for (Activity act : popActivities) {
+                        PluginDebugLog.runtimeLog(TAG, "dealLaunchMode popActivities finish " + IntentUtils.dump(act));
+                        popActivityFromStack(act);
+                        finishActivities.add(act);
                     }
-                }
 
-                // 如果Activity是在后台堆栈中找到的，需要合并前后台栈
-                if (fromBackStack) {
-                    // https://developer.android.com/guide/components/activities/tasks-and-back-stack
-                    // 把返回栈中的Activity全部推到前台
-                    PActivityStack sysForeStack = findAssociatedStack(mFocusedStack);
-                    PActivityStack sysBackStack = findAssociatedStack(mLastFocusedStack);
-                    mergeActivityStack(sysBackStack, sysForeStack);
-                    // 处理插件自身的栈
-                    mergeActivityStack(mLastFocusedStack, mFocusedStack);
-                    // 切换前后台堆栈
-                    switchToBackStack(mFocusedStack, mLastFocusedStack);
-                }
+                    // 如果Activity是在后台堆栈中找到的，需要合并前后台栈
+                    if (fromBackStack) {
+                        // https://developer.android.com/guide/components/activities/tasks-and-back-stack
+                        // 把返回栈中的Activity全部推到前台
+                        PActivityStack sysForeStack = findAssociatedStack(focusedStack);
+                        PActivityStack sysBackStack = findAssociatedStack(targetStack);
+                        mergeActivityStack(sysBackStack, sysForeStack);
+                        // 处理插件自身的栈
+                        mergeActivityStack(targetStack, focusedStack);
+                        // 切换前后台堆栈
+                        switchToBackStack(focusedStack, targetStack);
+                    }
 
-                mLoadedApk.quitApp(false);
-            } else {
-                // 堆栈里没有找到，遍历还未启动cache中的activity记录
-                LinkedBlockingQueue<IntentRequest> records = sIntentCacheMap
-                        .get(mLoadedApk.getPluginPackageName());
-                if (null != records) {
-                    Iterator<IntentRequest> recordIterator = records.iterator();
-                    String notLaunchTargetClassName = null;
-                    while (recordIterator.hasNext()) {
-                        Intent record = recordIterator.next().getIntent();
-                        if (null != record) {
-                            if (null != record.getComponent()) {
-                                notLaunchTargetClassName = record.getComponent().getClassName();
-                            }
-                            if (TextUtils.equals(notLaunchTargetClassName, targetActivity)) {
-                                PluginDebugLog.runtimeLog(TAG, "sIntentCacheMap found: " + targetActivity);
-                                if (isSingleTask || isSingleTop) {
-                                    intent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+                    quitApp = true;
+                } else {
+                    // 堆栈里没有找到，遍历还未启动cache中的activity记录
+                    LinkedBlockingQueue<IntentRequest> records = sIntentCacheMap
+                            .get(mLoadedApk.getPluginPackageName());
+                    if (null != records) {
+                        Iterator<IntentRequest> recordIterator = records.iterator();
+                        String notLaunchTargetClassName = null;
+                        while (recordIterator.hasNext()) {
+                            Intent record = recordIterator.next().getIntent();
+                            if (null != record) {
+                                if (null != record.getComponent()) {
+                                    notLaunchTargetClassName = record.getComponent().getClassName();
+                                }
+                                if (TextUtils.equals(notLaunchTargetClassName, targetActivity)) {
+                                    PluginDebugLog.runtimeLog(TAG, "sIntentCacheMap found: " + targetActivity);
+                                    if (isSingleTask || isSingleTop) {
+                                        intent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+                                    }
+                                    intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+                                    break;
                                 }
-                                intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-                                break;
                             }
                         }
                     }
-                }
-                // 遍历启动过程中的activity记录
-                List<IntentRequest> loadingIntents = sIntentLoadingMap.get(mLoadedApk.getPluginPackageName());
-                if (null != loadingIntents) {
-                    Iterator<IntentRequest> loadingRecordIterator = loadingIntents.iterator();
-                    String notLaunchTargetClassName = null;
-                    while (loadingRecordIterator.hasNext()) {
-                        Intent record = loadingRecordIterator.next().getIntent();
-                        if (null != record) {
-                            notLaunchTargetClassName = IntentUtils.getTargetClass(record);
-                            if (TextUtils.equals(notLaunchTargetClassName, targetActivity)) {
-                                PluginDebugLog.runtimeLog(TAG,
-                                        "sIntentLoadingMap found: " + targetActivity);
-                                if (isSingleTask || isSingleTop) {
-                                    intent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+                    // 遍历启动过程中的activity记录
+                    List<IntentRequest> loadingIntents = sIntentLoadingMap.get(mLoadedApk.getPluginPackageName());
+                    if (null != loadingIntents) {
+                        Iterator<IntentRequest> loadingRecordIterator = loadingIntents.iterator();
+                        String notLaunchTargetClassName = null;
+                        while (loadingRecordIterator.hasNext()) {
+                            Intent record = loadingRecordIterator.next().getIntent();
+                            if (null != record) {
+                                notLaunchTargetClassName = IntentUtils.getTargetClass(record);
+                                if (TextUtils.equals(notLaunchTargetClassName, targetActivity)) {
+                                    PluginDebugLog.runtimeLog(TAG,
+                                            "sIntentLoadingMap found: " + targetActivity);
+                                    if (isSingleTask || isSingleTop) {
+                                        intent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+                                    }
+                                    intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+                                    break;
                                 }
-                                intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-                                break;
                             }
                         }
                     }
-                }
 
-                if (isSingleTask) {
-                    // 是否需要放到单独的任务栈
-                    String taskName = matchTaskName(info.taskAffinity);
-                    if (!TextUtils.equals(mFocusedStack.getTaskName(), taskName)) {
-                        PluginDebugLog.runtimeLog(TAG, "dealLaunchMode push activity into separated stack: " + taskName);
-                        PActivityStack stack = mActivityStacks.get(taskName);
-                        if (stack == null) {
-                            // 创建一个新的任务栈
-                            stack = new PActivityStack(taskName);
-                            mActivityStacks.put(taskName, stack);
+                    if (isSingleTask) {
+                        // 是否需要放到单独的任务栈
+                        String taskName = matchTaskName(info.taskAffinity);
+                        if (!TextUtils.equals(focusedStack.getTaskName(), taskName)) {
+                            PluginDebugLog.runtimeLog(TAG, "dealLaunchMode push activity into separated stack: " + taskName);
+                            PActivityStack stack = mActivityStacks.get(taskName);
+                            if (stack == null) {
+                                // 创建一个新的任务栈
+                                stack = new PActivityStack(taskName);
+                                PActivityStack prev = mActivityStacks.putIfAbsent(taskName, stack);
+                                if (prev != null) {
+                                    stack = prev;
+                                }
+                            }
+                            // 切换前后台栈
+                            switchToBackStack(focusedStack, stack);
+                        } else {
+                            PluginDebugLog.runtimeLog(TAG, "dealLaunchMode push activity into current stack: " + taskName);
                         }
-                        // 切换前后台栈
-                        switchToBackStack(mFocusedStack, stack);
-                    } else {
-                        PluginDebugLog.runtimeLog(TAG, "dealLaunchMode push activity into current stack: " + taskName);
                     }
                 }
             }
         }
+        for (Activity act : finishActivities) {
+            if (!ContextUtils.isFinished(act)) {
+                act.finish();
+            }
+        }
+        if (quitApp) {
+            mLoadedApk.quitApp(false);
+        }
         PluginDebugLog.runtimeLog(TAG, "dealLaunchMode end: " + intent + ", after flag: "
                 + Integer.toHexString(intent.getFlags()) + ", targetActivity: "+ targetActivity);
     }
 
     /**
-     * 处理当前Activity堆栈里的其他Activity
+     * 栈中的实例是否为需要启动的插件Activity，可能是ProxyActivity，也可能是插件真实的Activity
+     */
+    private boolean isInstanceOf(Activity activity, String targetActivity, ActivityInfo info) {
+        String clsName = activity.getClass().getName();
+        if (!TextUtils.equals(targetActivity, clsName)
+                && !TextUtils.equals(ComponentFinder.findActivityProxy(mLoadedApk, info), clsName)) {
+            return false;
+        }
+        String key = getActivityKey(activity);
+        return !TextUtils.isEmpty(key) && TextUtils.equals(targetActivity, key);
+    }
+
+    /**
+     * 获取当前Activity对应的插件Activity的名称
+     * 如果是代理Activity，则返回对应的插件Activity的类名
+     * 如果本身就是插件Activity，直接返回即可
      */
-    private void handleOtherPluginActivityStack(Activity act, PActivityStack stack) {
+    static String getActivityKey(Activity activity) {
+        String key = "";
+        if (activity instanceof InstrActivityProxy1) {
+            InstrActivityProxy1 proxy = (InstrActivityProxy1) activity;
+            PluginActivityControl ctl = proxy.getController();
+            if (ctl != null && ctl.getPlugin() != null) {
+                key = ctl.getPlugin().getClass().getName();
+            }
+        } else if (activity != null) {
+            key = activity.getClass().getName();
+        }
+        return key;
+    }
+
+    /**
+     * 处理当前Activity堆栈里的其他Activity，需要持有{@link #sStackLock}
+     *
+     * @param finishActivities 出栈之后需要finish的Activity
+     */
+    private void handleOtherPluginActivityStack(Activity act, PActivityStack stack, List<Activity> finishActivities) {
         // 假如栈中存在之前的Activity，并且在该Activity之上存在其他插件的activity，则finish掉其之上的activity
         // 例如场景桌面有多个插件的图标，点击一个业务的进入，然后home键，然后再点击另外一个循环。
         if (act != null) {
@@ -557,9 +584,7 @@ public class PActivityStackSupervisor {
                     PluginLoadedApk mPlugin = PluginManager.getPluginLoadedApkByPkgName(pkgName);
                     if (mPlugin != null) {
                         popActivityFromStack(removeItem);
-                        if (!ContextUtils.isFinished(removeItem)) {
-                            removeItem.finish();
-                        }
+                        finishActivities.add(removeItem);
                     }
                 }
             }
@@ -567,24 +592,21 @@ public class PActivityStackSupervisor {
     }
 
     /**
-     * 把后台栈中的Activity推到前台Activity栈的最前面
+     * 把后台栈中的Activity推到前台Activity栈的最前面，即前台栈的Activity整体移到后台栈的末位，
+     * 需要持有{@link #sStackLock}，合并期间不会有Activity入栈或者出栈
      */
     private void mergeActivityStack(PActivityStack backStack, PActivityStack foreStack) {
-
-        for (Activity activity : foreStack.getActivities()) {
-            // 把前台栈的Activity压入后台栈的末位
-            backStack.insertFirst(activity);
-        }
-        // 清空前台栈
-        foreStack.clear(false);
+        backStack.moveToBottom(foreStack);
     }
 
     /**
      * 把前台栈切换成后台栈
      */
     private void switchToBackStack(PActivityStack foreStack, PActivityStack nextStack) {
-        mLastFocusedStack = foreStack;
-        mFocusedStack = nextStack;
+        synchronized (sStackLock) {
+            mLastFocusedStack = foreStack;
+            mFocusedStack = nextStack;
+        }
     }
 
     /**
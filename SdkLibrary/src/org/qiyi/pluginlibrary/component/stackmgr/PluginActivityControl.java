@@ -49,6 +49,7 @@ import org.qiyi.pluginlibrary.utils.VersionUtils;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -58,7 +59,18 @@ import java.util.concurrent.ConcurrentMap;
  */
 public class PluginActivityControl implements PluginActivityCallback {
     private static final String TAG = "PluginActivityControl";
+    /**
+     * @deprecated 插件Activity的反射调用改用预解析的方法句柄，这里只为兼容外部调用保留
+     */
+    @Deprecated
     public static final ConcurrentMap<String, Vector<Method>> sMethods = new ConcurrentHashMap<String, Vector<Method>>(10);
+    /* 预解析的Activity生命周期方法，转发生命周期时不再查找和匹配参数 */
+    private static final ReflectionUtils.MethodRef ON_POST_RESUME = ReflectionUtils.resolveMethod(Activity.class, "onPostResume");
+    private static final ReflectionUtils.MethodRef ON_ACTIVITY_RESULT = ReflectionUtils.resolveMethod(Activity.class,
+            "onActivityResult", int.class, int.class, Intent.class);
+    private static final ReflectionUtils.MethodRef ON_REQUEST_PERMISSIONS_RESULT = ReflectionUtils.resolveMethod(Activity.class,
+            "onRequestPermissionsResult", int.class, String[].class, int[].class);
+    private static final ReflectionUtils.MethodRef ON_STATE_NOT_SAVED = ReflectionUtils.resolveMethod(Activity.class, "onStateNotSaved");
 
     private Activity mProxy;// 代理Activity
     private Activity mPlugin;// 插件Activity
@@ -226,7 +238,11 @@ public class PluginActivityControl implements PluginActivityCallback {
             return false;
         }
         try {
-            if (android.os.Build.VERSION.SDK_INT >= 26) {
+            if (android.os.Build.VERSION.SDK_INT >= 30) {
+                // Android R的attach方法在8.0的参数基础上增加了IBinder assistToken参数，Android S又增加了IBinder shareableActivityToken参数
+                // 11.0, android.os.Build.VERSION_CODES.R
+                callAttachV30(pluginInstr);
+            } else if (android.os.Build.VERSION.SDK_INT >= 26) {
                 // Android O的attach方法在7.0的参数基础上增加了android.view.ViewRootImpl$ActivityConfigCallback这样一个参数，这个参数是PhoneWindow的成员变量
                 // 8.0, android.os.Build.VERSION_CODES.O
                 callAttachV26(pluginInstr);
@@ -251,12 +267,13 @@ public class PluginActivityControl implements PluginActivityCallback {
                 callAttachV4(pluginInstr);
             }
 
-            mPluginRef.set("mWindow", mProxy.getWindow());
-            mPluginRef.set("mWindowManager", mProxy.getWindow().getWindowManager());
+            ReflectionUtils.resolveField(Activity.class, "mWindow").set(mPlugin, mProxy.getWindow());
+            ReflectionUtils.resolveField(Activity.class, "mWindowManager").set(mPlugin, mProxy.getWindow().getWindowManager());
             mPlugin.getWindow().setCallback(mPlugin);
             // 替换ContextImpl的OuterContext，插件Activity的LayoutInflater才能正常使用
-            Class<?>[] paramTypes = new Class[]{Context.class};
-            ReflectionUtils.on(mProxy.getBaseContext()).call("setOuterContext", sMethods, paramTypes, mPlugin);
+            Context baseContext = mProxy.getBaseContext();
+            ReflectionUtils.resolveMethod(baseContext.getClass(), "setOuterContext", Context.class)
+                    .invoke(baseContext, mPlugin);
 
             return true;
         } catch (ReflectException e) {
@@ -267,6 +284,84 @@ public class PluginActivityControl implements PluginActivityCallback {
         return false;
     }
 
+    /**
+     * 调用Activity#attach()方法，每个系统版本的attach参数个数不同，优先按参数个数解析方法句柄，
+     * 句柄可以在{@link org.qiyi.pluginlibrary.utils.ReflectionBootstrap}中提前解析
+     */
+    private void callAttach(Object... args) {
+        ReflectionUtils.MethodRef attach = ReflectionUtils.resolveMethod(Activity.class, "attach", args.length);
+        if (!attach.isAvailable()) {
+            // 同样参数个数的attach方法不止一个，按照实际参数的类型匹配
+            attach = ReflectionUtils.resolveMethodForArgs(Activity.class, "attach", args);
+        }
+        attach.invoke(mPlugin, args);
+    }
+
+    /**
+     * 读取代理Activity的成员变量
+     */
+    private <T> T getProxyField(String name) {
+        return ReflectionUtils.resolveField(Activity.class, name).get(mProxy);
+    }
+
+    /**
+     * 反射调用Android R及以上的Activity#attach()方法
+     * Android R的attach方法在8.0的参数基础上增加了IBinder assistToken参数，
+     * Android S在此基础上增加了IBinder shareableActivityToken参数
+     * <p>
+     * <href>https://android.googlesource.com/platform/frameworks/base/+/refs/tags/android-11.0.0_r1/core/java/android/app/Activity.java</href>
+     */
+    private void callAttachV30(Instrumentation pluginInstr) {
+        try {
+            Object[] args = new Object[]{
+                    // Context context
+                    mProxy,
+                    // ActivityThread aThread
+                    getProxyField("mMainThread"),
+                    // Instrumentation instr
+                    pluginInstr,
+                    // IBinder token
+                    getProxyField("mToken"),
+                    // int ident
+                    getProxyField("mIdent"),
+                    // Application application
+                    mApplication == null ? mProxy.getApplication() : mApplication,
+                    // Intent intent
+                    mProxy.getIntent(),
+                    // ActivityInfo info
+                    getProxyField("mActivityInfo"),
+                    // CharSequence title
+                    mProxy.getTitle(),
+                    // Activity parent
+                    mProxy.getParent(),
+                    // String id
+                    getProxyField("mEmbeddedID"),
+                    // NonConfigurationInstances lastNonConfigurationInstances
+                    mProxy.getLastNonConfigurationInstance(),
+                    // Configuration config
+                    getProxyField("mCurrentConfig"),
+                    // String mReferrer
+                    getProxyField("mReferrer"),
+                    // IVoiceInteractor mVoiceInteractor
+                    getProxyField("mVoiceInteractor"),
+                    // Window window
+                    mProxy.getWindow(),
+                    // android.view.ViewRootImpl$ActivityConfigCallback activityConfigCallback，同V26传null
+                    null,
+                    // IBinder assistToken
+                    getProxyField("mAssistToken")};
+            if (android.os.Build.VERSION.SDK_INT >= 31) {
+                // IBinder shareableActivityToken
+                args = Arrays.copyOf(args, args.length + 1);
+                args[args.length - 1] = getProxyField("mShareableActivityToken");
+            }
+            callAttach(args);
+        } catch (ReflectException re) {
+            re.printStackTrace();
+            callAttachV26(pluginInstr);
+        }
+    }
+
     /**
      * 反射调用Android O上的Activity#attach()方法
      * Android O的attach方法在7.0的参数基础上增加了android.view.ViewRootImpl$ActivityConfigCallback参数
@@ -275,43 +370,39 @@ public class PluginActivityControl implements PluginActivityCallback {
      */
     private void callAttachV26(Instrumentation pluginInstr) {
         try {
-            mPluginRef.call(
-                    // 方法名
-                    "attach",
-                    sMethods,
-                    null,
+            callAttach(
                     // Context context
                     // contextWrapper,
                     mProxy,
                     // ActivityThread aThread
-                    mProxyRef.get("mMainThread"),
+                    getProxyField("mMainThread"),
                     // Instrumentation instr
                     pluginInstr,
                     // IBinder token
-                    mProxyRef.get("mToken"),
+                    getProxyField("mToken"),
                     // int ident
-                    mProxyRef.get("mIdent"),
+                    getProxyField("mIdent"),
                     // Application application
                     mApplication == null ? mProxy.getApplication() : mApplication,
                     // Intent intent
                     mProxy.getIntent(),
                     // ActivityInfo info
-                    mProxyRef.get("mActivityInfo"),
+                    getProxyField("mActivityInfo"),
                     // CharSequence title
                     mProxy.getTitle(),
                     // Activity parent
                     mProxy.getParent(),
                     // String id
-                    mProxyRef.get("mEmbeddedID"),
+                    getProxyField("mEmbeddedID"),
                     // NonConfigurationInstances
                     // lastNonConfigurationInstances
                     mProxy.getLastNonConfigurationInstance(),
                     // Configuration config
-                    mProxyRef.get("mCurrentConfig"),
+                    getProxyField("mCurrentConfig"),
                     // String mReferrer
-                    mProxyRef.get("mReferrer"),
+                    getProxyField("mReferrer"),
                     // IVoiceInteractor mVoiceInteractor
-                    mProxyRef.get("mVoiceInteractor"),
+                    getProxyField("mVoiceInteractor"),
                     // Window window
                     mProxy.getWindow(),
                     // android.view.ViewRootImpl$ActivityConfigCallback activityConfigCallback, 这个参数在PhoneWindow中
@@ -331,43 +422,39 @@ public class PluginActivityControl implements PluginActivityCallback {
      */
     private void callAttachV24(Instrumentation pluginInstr) {
         try {
-            mPluginRef.call(
-                    // 方法名
-                    "attach",
-                    sMethods,
-                    null,
+            callAttach(
                     // Context context
                     // contextWrapper,
                     mProxy,
                     // ActivityThread aThread
-                    mProxyRef.get("mMainThread"),
+                    getProxyField("mMainThread"),
                     // Instrumentation instr
                     pluginInstr,
                     // IBinder token
-                    mProxyRef.get("mToken"),
+                    getProxyField("mToken"),
                     // int ident
-                    mProxyRef.get("mIdent"),
+                    getProxyField("mIdent"),
                     // Application application
                     mApplication == null ? mProxy.getApplication() : mApplication,
                     // Intent intent
                     mProxy.getIntent(),
                     // ActivityInfo info
-                    mProxyRef.get("mActivityInfo"),
+                    getProxyField("mActivityInfo"),
                     // CharSequence title
                     mProxy.getTitle(),
                     // Activity parent
                     mProxy.getParent(),
                     // String id
-                    mProxyRef.get("mEmbeddedID"),
+                    getProxyField("mEmbeddedID"),
                     // NonConfigurationInstances
                     // lastNonConfigurationInstances
                     mProxy.getLastNonConfigurationInstance(),
                     // Configuration config
-                    mProxyRef.get("mCurrentConfig"),
+                    getProxyField("mCurrentConfig"),
                     // String mReferrer
-                    mProxyRef.get("mReferrer"),
+                    getProxyField("mReferrer"),
                     // IVoiceInteractor mVoiceInteractor
-                    mProxyRef.get("mVoiceInteractor"),
+                    getProxyField("mVoiceInteractor"),
                     // Window window
                     mProxy.getWindow());
         } catch (ReflectException re) {
@@ -384,43 +471,39 @@ public class PluginActivityControl implements PluginActivityCallback {
      */
     private void callAttachV22(Instrumentation pluginInstr) {
         try {
-            mPluginRef.call(
-                    // 方法名
-                    "attach",
-                    sMethods,
-                    null,
+            callAttach(
                     // Context context
                     // contextWrapper,
                     mProxy,
                     // ActivityThread aThread
-                    mProxyRef.get("mMainThread"),
+                    getProxyField("mMainThread"),
                     // Instrumentation instr
                     pluginInstr,
                     // IBinder token
-                    mProxyRef.get("mToken"),
+                    getProxyField("mToken"),
                     // int ident
-                    mProxyRef.get("mIdent"),
+                    getProxyField("mIdent"),
                     // Application application
                     mApplication == null ? mProxy.getApplication() : mApplication,
                     // Intent intent
                     mProxy.getIntent(),
                     // ActivityInfo info
-                    mProxyRef.get("mActivityInfo"),
+                    getProxyField("mActivityInfo"),
                     // CharSequence title
                     mProxy.getTitle(),
                     // Activity parent
                     mProxy.getParent(),
                     // String id
-                    mProxyRef.get("mEmbeddedID"),
+                    getProxyField("mEmbeddedID"),
                     // NonConfigurationInstances
                     // lastNonConfigurationInstances
                     mProxy.getLastNonConfigurationInstance(),
                     // Configuration config
-                    mProxyRef.get("mCurrentConfig"),
+                    getProxyField("mCurrentConfig"),
                     // String mReferrer
-                    mProxyRef.get("mReferrer"),
+                    getProxyField("mReferrer"),
                     // IVoiceInteractor mVoiceInteractor
-                    mProxyRef.get("mVoiceInteractor"));
+                    getProxyField("mVoiceInteractor"));
         } catch (ReflectException re) {
             re.printStackTrace();
             callAttachV21(pluginInstr);
@@ -435,41 +518,37 @@ public class PluginActivityControl implements PluginActivityCallback {
      */
     private void callAttachV21(Instrumentation pluginInstr) {
         try {
-            mPluginRef.call(
-                    // 方法名
-                    "attach",
-                    sMethods,
-                    null,
+            callAttach(
                     // Context context
                     // contextWrapper,
                     mProxy,
                     // ActivityThread aThread
-                    mProxyRef.get("mMainThread"),
+                    getProxyField("mMainThread"),
                     // Instrumentation instr
                     pluginInstr,
                     // IBinder token
-                    mProxyRef.get("mToken"),
+                    getProxyField("mToken"),
                     // int ident
-                    mProxyRef.get("mIdent"),
+                    getProxyField("mIdent"),
                     // Application application
                     mApplication == null ? mProxy.getApplication() : mApplication,
                     // Intent intent
                     mProxy.getIntent(),
                     // ActivityInfo info
-                    mProxyRef.get("mActivityInfo"),
+                    getProxyField("mActivityInfo"),
                     // CharSequence title
                     mProxy.getTitle(),
                     // Activity parent
                     mProxy.getParent(),
                     // String id
-                    mProxyRef.get("mEmbeddedID"),
+                    getProxyField("mEmbeddedID"),
                     // NonConfigurationInstances
                     // lastNonConfigurationInstances
                     mProxy.getLastNonConfigurationInstance(),
                     // Configuration config
-                    mProxyRef.get("mCurrentConfig"),
+                    getProxyField("mCurrentConfig"),
                     // IVoiceInteractor mVoiceInteractor
-                    mProxyRef.get("mVoiceInteractor"));
+                    getProxyField("mVoiceInteractor"));
         } catch (ReflectException re) {
             re.printStackTrace();
             callAttachV14(pluginInstr);
@@ -483,39 +562,35 @@ public class PluginActivityControl implements PluginActivityCallback {
      */
     private void callAttachV14(Instrumentation pluginInstr) {
         try {
-            mPluginRef.call(
-                    // 方法名
-                    "attach",
-                    sMethods,
-                    null,
+            callAttach(
                     // Context context
                     // contextWrapper,
                     mProxy,
                     // ActivityThread aThread
-                    mProxyRef.get("mMainThread"),
+                    getProxyField("mMainThread"),
                     // Instrumentation instr
                     pluginInstr,
                     // IBinder token
-                    mProxyRef.get("mToken"),
+                    getProxyField("mToken"),
                     // int ident
-                    mProxyRef.get("mIdent"),
+                    getProxyField("mIdent"),
                     // Application application
                     mApplication == null ? mProxy.getApplication() : mApplication,
                     // Intent intent
                     mProxy.getIntent(),
                     // ActivityInfo info
-                    mProxyRef.get("mActivityInfo"),
+                    getProxyField("mActivityInfo"),
                     // CharSequence title
                     mProxy.getTitle(),
                     // Activity parent
                     mProxy.getParent(),
                     // String id
-                    mProxyRef.get("mEmbeddedID"),
+                    getProxyField("mEmbeddedID"),
                     // NonConfigurationInstances
                     // lastNonConfigurationInstances
                     mProxy.getLastNonConfigurationInstance(),
                     // Configuration config
-                    mProxyRef.get("mCurrentConfig"));
+                    getProxyField("mCurrentConfig"));
         } catch (ReflectException re) {
             re.printStackTrace();
             callAttachV4(pluginInstr);
@@ -527,40 +602,36 @@ public class PluginActivityControl implements PluginActivityCallback {
      * <href>http://androidxref.com/2.3.6/xref/frameworks/base/core/java/android/app/Activity.java#3739</href>
      */
     private void callAttachV4(Instrumentation pluginInstr) {
-        mPluginRef.call(
-                // 方法名
-                "attach",
-                sMethods,
-                null,
+        callAttach(
                 // Context context
                 // contextWrapper,
                 mProxy,
                 // ActivityThread aThread
-                mProxyRef.get("mMainThread"),
+                getProxyField("mMainThread"),
                 // Instrumentation instr
                 pluginInstr,
                 // IBinder token
-                mProxyRef.get("mToken"),
+                getProxyField("mToken"),
                 // int ident
-                mProxyRef.get("mIdent"),
+                getProxyField("mIdent"),
                 // Application application
                 mApplication == null ? mProxy.getApplication() : mApplication,
                 // Intent intent
                 mProxy.getIntent(),
                 // ActivityInfo info
-                mProxyRef.get("mActivityInfo"),
+                getProxyField("mActivityInfo"),
                 // CharSequence title
                 mProxy.getTitle(),
                 // Activity parent
                 mProxy.getParent(),
                 // String id
-                mProxyRef.get("mEmbeddedID"),
+                getProxyField("mEmbeddedID"),
                 // Object lastNonConfigurationInstances
                 mProxy.getLastNonConfigurationInstance(),
                 // HashMap<String, Object> lastNonConfigurationChildInstances
                 null,
                 // Configuration config
-                mProxyRef.get("mCurrentConfig"));
+                getProxyField("mCurrentConfig"));
     }
 
     /**
@@ -615,7 +686,7 @@ public class PluginActivityControl implements PluginActivityCallback {
                 // 9.0上performStart dark名单
                 mHostInstr.callActivityOnStart(mPlugin);
             } else {
-                getPluginRef().call("performStart", sMethods, null);
+                PerformMethods.START.invoke(mPlugin);
             }
         }
     }
@@ -632,7 +703,7 @@ public class PluginActivityControl implements PluginActivityCallback {
                 // 9.0上performResume dark名单
                 mHostInstr.callActivityOnResume(mPlugin);
             } else {
-                getPluginRef().call("performResume", sMethods, null);
+                PerformMethods.RESUME.invoke(mPlugin);
             }
         }
     }
@@ -662,9 +733,9 @@ public class PluginActivityControl implements PluginActivityCallback {
                 mHostInstr.callActivityOnStop(mPlugin);
             } else if (VersionUtils.hasNougat()) {
                 // ActivityThread源码里写死了false
-                getPluginRef().call("performStop", sMethods, new Class[]{boolean.class}, false);
+                PerformMethods.STOP.invoke(mPlugin, false);
             } else {
-                getPluginRef().call("performStop", sMethods, null);
+                PerformMethods.STOP.invoke(mPlugin);
             }
         }
     }
@@ -681,7 +752,7 @@ public class PluginActivityControl implements PluginActivityCallback {
                 // 9.0上performRestart dark名单
                 mHostInstr.callActivityOnRestart(mPlugin);
             } else {
-                getPluginRef().call("performRestart", sMethods, null);
+                PerformMethods.RESTART.invoke(mPlugin);
             }
         }
     }
@@ -782,7 +853,7 @@ public class PluginActivityControl implements PluginActivityCallback {
 
     @Override
     public void callOnPostResume() {
-        getPluginRef().call("onPostResume", sMethods, null);
+        ON_POST_RESUME.invoke(mPlugin);
     }
 
     @Override
@@ -817,7 +888,35 @@ public class PluginActivityControl implements PluginActivityCallback {
 
     @Override
     public void callOnActivityResult(int requestCode, int resultCode, Intent data) {
-        Class<?>[] paramTypes = new Class[]{int.class, int.class, Intent.class};
-        getPluginRef().call("onActivityResult", sMethods, paramTypes, requestCode, resultCode, data);
+        ON_ACTIVITY_RESULT.invoke(mPlugin, requestCode, resultCode, data);
+    }
+
+    /**
+     * 执行插件的onRequestPermissionsResult方法
+     *
+     * @see android.app.Activity#onRequestPermissionsResult(int, String[], int[])
+     */
+    public void callOnRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        ON_REQUEST_PERMISSIONS_RESULT.invoke(mPlugin, requestCode, permissions, grantResults);
+    }
+
+    /**
+     * 执行插件的onStateNotSaved方法
+     */
+    public void callOnStateNotSaved() {
+        ON_STATE_NOT_SAVED.invoke(mPlugin);
+    }
+
+    /**
+     * Activity的perform*方法在9.0以上属于受限的隐藏接口，只在9.0以下直接转发生命周期时才解析，
+     * 与{@link org.qiyi.pluginlibrary.utils.ReflectionBootstrap}的预热范围保持一致
+     */
+    private static final class PerformMethods {
+        static final ReflectionUtils.MethodRef START = ReflectionUtils.resolveMethod(Activity.class, "performStart");
+        static final ReflectionUtils.MethodRef RESUME = ReflectionUtils.resolveMethod(Activity.class, "performResume");
+        static final ReflectionUtils.MethodRef STOP = VersionUtils.hasNougat()
+                ? ReflectionUtils.resolveMethod(Activity.class, "performStop", boolean.class)
+                : ReflectionUtils.resolveMethod(Activity.class, "performStop");
+        static final ReflectionUtils.MethodRef RESTART = ReflectionUtils.resolveMethod(Activity.class, "performRestart");
     }
 }
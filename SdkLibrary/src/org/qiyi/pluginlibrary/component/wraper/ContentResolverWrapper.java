@@ -23,13 +23,22 @@ import android.content.IContentProvider;
 
 import org.qiyi.pluginlibrary.utils.ReflectionUtils;
 
-import java.lang.reflect.Method;
-import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-
 public class ContentResolverWrapper extends ContentResolver {
-    private static ConcurrentMap<String, Vector<Method>> sMethods = new ConcurrentHashMap<String, Vector<Method>>(5);
+    /* 预解析的ContentResolver隐藏方法，转发给宿主的ContentResolver */
+    private static final ReflectionUtils.MethodRef ACQUIRE_PROVIDER = ReflectionUtils.resolveMethod(
+            ContentResolver.class, "acquireProvider", Context.class, String.class);
+    private static final ReflectionUtils.MethodRef ACQUIRE_EXISTING_PROVIDER = ReflectionUtils.resolveMethod(
+            ContentResolver.class, "acquireExistingProvider", Context.class, String.class);
+    private static final ReflectionUtils.MethodRef RELEASE_PROVIDER = ReflectionUtils.resolveMethod(
+            ContentResolver.class, "releaseProvider", IContentProvider.class);
+    private static final ReflectionUtils.MethodRef ACQUIRE_UNSTABLE_PROVIDER = ReflectionUtils.resolveMethod(
+            ContentResolver.class, "acquireUnstableProvider", Context.class, String.class);
+    private static final ReflectionUtils.MethodRef RELEASE_UNSTABLE_PROVIDER = ReflectionUtils.resolveMethod(
+            ContentResolver.class, "releaseUnstableProvider", IContentProvider.class);
+    private static final ReflectionUtils.MethodRef UNSTABLE_PROVIDER_DIED = ReflectionUtils.resolveMethod(
+            ContentResolver.class, "unstableProviderDied", IContentProvider.class);
+    private static final ReflectionUtils.MethodRef APP_NOT_RESPONDING_VIA_PROVIDER = ReflectionUtils.resolveMethod(
+            ContentResolver.class, "appNotRespondingViaProvider", IContentProvider.class);
 
     private ContentResolver mBase;
 
@@ -41,53 +50,43 @@ public class ContentResolverWrapper extends ContentResolver {
     /** @Override*/
     protected IContentProvider acquireProvider(Context context, String name) {
         //return mBase.acquireProvider(context, name);
-        Class<?>[] paramTypes = new Class[]{Context.class, String.class};
-        return ReflectionUtils.on(mBase).call("acquireProvider", sMethods,
-                paramTypes, context, name).get();
+        return ACQUIRE_PROVIDER.invoke(mBase, context, name);
     }
 
     /** @Override*/
     protected IContentProvider acquireExistingProvider(Context context, String name) {
         //return mBase.acquireExistingProvider(context, name);
-        Class<?>[] paramTypes = new Class[]{Context.class, String.class};
-        return ReflectionUtils.on(mBase).call("acquireExistingProvider", sMethods,
-                paramTypes, context, name).get();
+        return ACQUIRE_EXISTING_PROVIDER.invoke(mBase, context, name);
     }
 
     /** @Override*/
     public boolean releaseProvider(IContentProvider icp) {
         //return mBase.releaseProvider(icp);
-        return ReflectionUtils.on(mBase).call("releaseProvider", sMethods,
-                new Class<?>[]{IContentProvider.class}, icp).get();
+        return RELEASE_PROVIDER.invoke(mBase, icp);
     }
 
     /** @Override*/
     protected IContentProvider acquireUnstableProvider(Context context, String name) {
         //return mBase.acquireUnstableProvider(context, name);
-        Class<?>[] paramTypes = new Class[]{Context.class, String.class};
-        return ReflectionUtils.on(mBase).call("acquireUnstableProvider", sMethods,
-                paramTypes, context, name).get();
+        return ACQUIRE_UNSTABLE_PROVIDER.invoke(mBase, context, name);
     }
 
     /** @Override*/
     public boolean releaseUnstableProvider(IContentProvider icp) {
         //return mBase.releaseUnstableProvider(icp);
-        return ReflectionUtils.on(mBase).call("releaseUnstableProvider", sMethods,
-                new Class<?>[]{IContentProvider.class}, icp).get();
+        return RELEASE_UNSTABLE_PROVIDER.invoke(mBase, icp);
     }
 
     /** @Override*/
     public void unstableProviderDied(IContentProvider icp) {
         //return mBase.unstableProviderDied(icp);
-        ReflectionUtils.on(mBase).call("unstableProviderDied", sMethods,
-                new Class<?>[]{IContentProvider.class}, icp);
+        UNSTABLE_PROVIDER_DIED.invoke(mBase, icp);
     }
 
     /** @Override*/
     public void appNotRespondingViaProvider(IContentProvider icp) {
         //return mBase.appNotRespondingViaProvider(icp);
         // TODO dark greylist in Android P
-        ReflectionUtils.on(mBase).call("appNotRespondingViaProvider", sMethods,
-                new Class<?>[]{IContentProvider.class}, icp);
+        APP_NOT_RESPONDING_VIA_PROVIDER.invoke(mBase, icp);
     }
 }
@@ -28,11 +28,6 @@ import android.os.IBinder;
 import org.qiyi.pluginlibrary.utils.ComponentFinder;
 import org.qiyi.pluginlibrary.utils.ReflectionUtils;
 
-import java.lang.reflect.Method;
-import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-
 /**
  * 负责转移插件的跳转目标<br>
  * 用于Hook插件Activity中Instrumentation
@@ -42,10 +37,30 @@ import java.util.concurrent.ConcurrentMap;
 public class PluginInstrument extends Instrumentation {
     private static final String TAG = "PluginInstrument";
 
-    private static ConcurrentMap<String, Vector<Method>> sMethods = new ConcurrentHashMap<String, Vector<Method>>(5);
+    /* 预解析的宿主Instrumentation启动Activity的隐藏方法，不存在的版本上调用会抛出异常 */
+    private static final ReflectionUtils.MethodRef EXEC_START_ACTIVITY = ReflectionUtils.resolveMethod(
+            Instrumentation.class, "execStartActivity", Context.class, IBinder.class, IBinder.class, Activity.class,
+            Intent.class, int.class, Bundle.class);
+    private static final ReflectionUtils.MethodRef EXEC_START_ACTIVITY_NO_OPTIONS = ReflectionUtils.resolveMethod(
+            Instrumentation.class, "execStartActivity", Context.class, IBinder.class, IBinder.class, Activity.class,
+            Intent.class, int.class);
+    private static final ReflectionUtils.MethodRef EXEC_START_ACTIVITY_AS_CALLER = ReflectionUtils.resolveMethod(
+            Instrumentation.class, "execStartActivityAsCaller", Context.class, IBinder.class, IBinder.class,
+            Activity.class, Intent.class, int.class, Bundle.class, int.class);
+    private static final ReflectionUtils.MethodRef EXEC_START_ACTIVITY_AS_CALLER_M = ReflectionUtils.resolveMethod(
+            Instrumentation.class, "execStartActivityAsCaller", Context.class, IBinder.class, IBinder.class,
+            Activity.class, Intent.class, int.class, Bundle.class, boolean.class, int.class);
+    private static final ReflectionUtils.MethodRef EXEC_START_ACTIVITIES_AS_USER = ReflectionUtils.resolveMethod(
+            Instrumentation.class, "execStartActivitiesAsUser", Context.class, IBinder.class, IBinder.class,
+            Activity.class, Intent[].class, Bundle.class, int.class);
+    private static final ReflectionUtils.MethodRef EXEC_START_ACTIVITY_FROM_FRAGMENT = ReflectionUtils.resolveMethod(
+            Instrumentation.class, "execStartActivity", Context.class, IBinder.class, IBinder.class, Fragment.class,
+            Intent.class, int.class, Bundle.class);
+    private static final ReflectionUtils.MethodRef EXEC_START_ACTIVITY_FROM_WHO = ReflectionUtils.resolveMethod(
+            Instrumentation.class, "execStartActivity", Context.class, IBinder.class, IBinder.class, String.class,
+            Intent.class, int.class, Bundle.class);
     Instrumentation mHostInstr;
     private String mPkgName;
-    private ReflectionUtils mInstrumentRef;
 
     /**
      * 插件的Instrumentation
@@ -56,7 +71,6 @@ public class PluginInstrument extends Instrumentation {
 
     public PluginInstrument(Instrumentation hostInstr, String pkgName) {
         mHostInstr = hostInstr;
-        mInstrumentRef = ReflectionUtils.on(hostInstr);
         mPkgName = pkgName;
     }
 
@@ -82,9 +96,7 @@ public class PluginInstrument extends Instrumentation {
 
         ComponentFinder.switchToActivityProxy(mPkgName, intent, requestCode, who);
         try {
-            Class<?>[] paramTypes = new Class[]{Context.class, IBinder.class, IBinder.class, Activity.class,
-                    Intent.class, int.class, Bundle.class};
-            return mInstrumentRef.call("execStartActivity", sMethods, paramTypes, who, contextThread, token, target, intent, requestCode, options).get();
+            return EXEC_START_ACTIVITY.invoke(mHostInstr, who, contextThread, token, target, intent, requestCode, options);
         } catch (Exception e) {
             // ignore
         }
@@ -99,9 +111,7 @@ public class PluginInstrument extends Instrumentation {
             Intent intent, int requestCode) {
         ComponentFinder.switchToActivityProxy(mPkgName, intent, requestCode, who);
         try {
-            Class<?>[] paramTypes = new Class[]{Context.class, IBinder.class, IBinder.class, Activity.class,
-                    Intent.class, int.class};
-            return mInstrumentRef.call("execStartActivity", sMethods, paramTypes, who, contextThread, token, target, intent, requestCode).get();
+            return EXEC_START_ACTIVITY_NO_OPTIONS.invoke(mHostInstr, who, contextThread, token, target, intent, requestCode);
         } catch (Exception e) {
             // ignore
         }
@@ -116,10 +126,8 @@ public class PluginInstrument extends Instrumentation {
             Intent intent, int requestCode, Bundle options, int userId) {
         ComponentFinder.switchToActivityProxy(mPkgName, intent, requestCode, who);
         try {
-            Class<?>[] paramTypes = new Class[]{Context.class, IBinder.class, IBinder.class, Activity.class,
-                    Intent.class, int.class, Bundle.class, int.class};
-            return mInstrumentRef.call("execStartActivityAsCaller", sMethods, paramTypes, who, contextThread, token, target, intent, requestCode, options, userId)
-                    .get();
+            return EXEC_START_ACTIVITY_AS_CALLER.invoke(mHostInstr, who, contextThread, token, target, intent, requestCode,
+                    options, userId);
         } catch (Exception e) {
             // ignore
         }
@@ -135,10 +143,8 @@ public class PluginInstrument extends Instrumentation {
             boolean ignoreTargetSecurity, int userId) {
         ComponentFinder.switchToActivityProxy(mPkgName, intent, requestCode, who);
         try {
-            Class<?>[] paramTypes = new Class[]{Context.class, IBinder.class, IBinder.class, Activity.class,
-                    Intent.class, int.class, Bundle.class, boolean.class, int.class};
-            return mInstrumentRef.call("execStartActivityAsCaller", sMethods, paramTypes, who, contextThread, token, target, intent, requestCode, options,
-                    ignoreTargetSecurity, userId).get();
+            return EXEC_START_ACTIVITY_AS_CALLER_M.invoke(mHostInstr, who, contextThread, token, target, intent, requestCode,
+                    options, ignoreTargetSecurity, userId);
         } catch (Exception e) {
             // ignore
         }
@@ -155,9 +161,7 @@ public class PluginInstrument extends Instrumentation {
             ComponentFinder.switchToActivityProxy(mPkgName, intent, 0, who);
         }
         try {
-            Class<?>[] paramTypes = new Class[]{Context.class, IBinder.class, IBinder.class, Activity.class,
-                    Intent[].class, Bundle.class, int.class};
-            mInstrumentRef.call("execStartActivitiesAsUser", sMethods, paramTypes, who, contextThread, token, target, intents, options, userId);
+            EXEC_START_ACTIVITIES_AS_USER.invoke(mHostInstr, who, contextThread, token, target, intents, options, userId);
         } catch (Exception e) {
             // ignore
         }
@@ -171,9 +175,7 @@ public class PluginInstrument extends Instrumentation {
             Intent intent, int requestCode, Bundle options) {
         ComponentFinder.switchToActivityProxy(mPkgName, intent, requestCode, who);
         try {
-            Class<?>[] paramTypes = new Class[]{Context.class, IBinder.class, IBinder.class, Fragment.class,
-                    Intent.class, int.class, Bundle.class};
-            return mInstrumentRef.call("execStartActivity", sMethods, paramTypes, who, contextThread, token, target, intent, requestCode, options).get();
+            return EXEC_START_ACTIVITY_FROM_FRAGMENT.invoke(mHostInstr, who, contextThread, token, target, intent, requestCode, options);
         } catch (Exception e) {
             // ignore
         }
@@ -188,9 +190,7 @@ public class PluginInstrument extends Instrumentation {
             Intent intent, int requestCode, Bundle options) {
         ComponentFinder.switchToActivityProxy(mPkgName, intent, requestCode, who);
         try {
-            Class<?>[] paramTypes = new Class[]{Context.class, IBinder.class, IBinder.class, String.class,
-                    Intent.class, int.class, Bundle.class};
-            return mInstrumentRef.call("execStartActivity", sMethods, paramTypes, who, contextThread, token, target, intent, requestCode, options).get();
+            return EXEC_START_ACTIVITY_FROM_WHO.invoke(mHostInstr, who, contextThread, token, target, intent, requestCode, options);
         } catch (Exception e) {
             // ignore
         }
@@ -37,13 +37,22 @@ import java.io.InputStream;
 
 /**
  * 插件资源管理
+ * <p>
+ * 根据资源id的package id决定从插件还是宿主查找资源，避免宿主资源每次都先在插件中查找失败抛出异常；
+ * 插件和宿主使用相同package id时无法区分，仍然先查找插件再回退到宿主
  */
 public class ResourcesProxy extends Resources {
+    /* 宿主资源的package id */
+    private static final int HOST_PACKAGE_ID = 0x7f;
+    /* 系统资源的package id，插件和宿主的AssetManager都包含系统资源 */
+    private static final int SYSTEM_PACKAGE_ID = 0x01;
 
     /* 宿主的Resources */
     private Resources mHostResources = null;
     /* 插件包名 */
     private String mPluginPackageName = null;
+    /* 插件资源的package id，0表示未知 */
+    private int mPluginPackageId = 0;
 
     /**
      * @param assets  插件的AssetManager
@@ -53,67 +62,142 @@ public class ResourcesProxy extends Resources {
      */
     public ResourcesProxy(AssetManager assets, DisplayMetrics metrics, Configuration config,
                           Resources hostRes, String pluginPackageName) {
+        this(assets, metrics, config, hostRes, pluginPackageName, 0);
+    }
+
+    /**
+     * @param assets          插件的AssetManager
+     * @param metrics         资源Metrics
+     * @param config          资源配置
+     * @param hostRes         宿主的资源
+     * @param pluginPackageId 插件资源的package id，0表示未知
+     */
+    public ResourcesProxy(AssetManager assets, DisplayMetrics metrics, Configuration config,
+                          Resources hostRes, String pluginPackageName, int pluginPackageId) {
         super(assets, metrics, config);
         mHostResources = hostRes;
         mPluginPackageName = pluginPackageName;
+        mPluginPackageId = pluginPackageId;
+    }
+
+    /**
+     * 资源只存在于宿主中，直接从宿主查找
+     */
+    private boolean isHostResource(int id) {
+        return mPluginPackageId != 0 && mPluginPackageId != HOST_PACKAGE_ID
+                && (id >>> 24) == HOST_PACKAGE_ID;
+    }
+
+    /**
+     * 资源只需要从插件的AssetManager中查找，找不到时宿主中也不存在
+     */
+    private boolean isPluginResource(int id) {
+        int packageId = id >>> 24;
+        if (packageId == SYSTEM_PACKAGE_ID) {
+            return true;
+        }
+        return mPluginPackageId != 0 && mPluginPackageId != HOST_PACKAGE_ID
+                && packageId == mPluginPackageId;
     }
 
     @Override
     public CharSequence getText(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getText(id);
+        }
         try {
             return super.getText(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getText(id);
         }
     }
 
     @Override
     public CharSequence getQuantityText(int id, int quantity) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getQuantityText(id, quantity);
+        }
         try {
             return super.getQuantityText(id, quantity);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getQuantityText(id, quantity);
         }
     }
 
     @Override
     public String getString(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getString(id);
+        }
         try {
             return super.getString(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getString(id);
         }
     }
 
     @Override
     public String getString(int id, Object... formatArgs) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getString(id, formatArgs);
+        }
         try {
             return super.getString(id, formatArgs);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getString(id, formatArgs);
         }
     }
 
     @Override
     public String getQuantityString(int id, int quantity, Object... formatArgs) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getQuantityString(id, quantity, formatArgs);
+        }
         try {
             return super.getQuantityString(id, quantity, formatArgs);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getQuantityString(id, quantity, formatArgs);
         }
     }
 
     @Override
     public String getQuantityString(int id, int quantity) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getQuantityString(id, quantity);
+        }
         try {
             return super.getQuantityString(id, quantity);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getQuantityString(id, quantity);
         }
     }
 
     @Override
     public CharSequence getText(int id, CharSequence def) {
+        if (isHostResource(id)) {
+            return mHostResources.getText(id, def);
+        }
+        if (isPluginResource(id)) {
+            return super.getText(id, def);
+        }
         CharSequence ret = null;
         try {
             ret = super.getText(id);
@@ -128,81 +212,135 @@ public class ResourcesProxy extends Resources {
 
     @Override
     public CharSequence[] getTextArray(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getTextArray(id);
+        }
         try {
             return super.getTextArray(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getTextArray(id);
         }
     }
 
     @Override
     public String[] getStringArray(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getStringArray(id);
+        }
         try {
             return super.getStringArray(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getStringArray(id);
         }
     }
 
     @Override
     public int[] getIntArray(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getIntArray(id);
+        }
         try {
             return super.getIntArray(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getIntArray(id);
         }
     }
 
     @Override
     public TypedArray obtainTypedArray(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.obtainTypedArray(id);
+        }
         try {
             return super.obtainTypedArray(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.obtainTypedArray(id);
         }
     }
 
     @Override
     public float getDimension(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getDimension(id);
+        }
         try {
             return super.getDimension(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getDimension(id);
         }
     }
 
     @Override
     public int getDimensionPixelOffset(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getDimensionPixelOffset(id);
+        }
         try {
             return super.getDimensionPixelOffset(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getDimensionPixelOffset(id);
         }
     }
 
     @Override
     public int getDimensionPixelSize(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getDimensionPixelSize(id);
+        }
         try {
             return super.getDimensionPixelSize(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getDimensionPixelSize(id);
         }
     }
 
     @Override
     public float getFraction(int id, int base, int pbase) {
+        if (isHostResource(id)) {
+            return mHostResources.getFraction(id, base, pbase);
+        }
         try {
             return super.getFraction(id, base, pbase);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getFraction(id, base, pbase);
         }
     }
 
     @Override
     public Drawable getDrawable(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getDrawable(id);
+        }
         try {
             return super.getDrawable(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getDrawable(id);
         }
     }
@@ -210,9 +348,15 @@ public class ResourcesProxy extends Resources {
     @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
     @Override
     public Drawable getDrawable(int id, Theme theme) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getDrawable(id, theme);
+        }
         try {
             return super.getDrawable(id, theme);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getDrawable(id, theme);
         }
     }
@@ -220,9 +364,15 @@ public class ResourcesProxy extends Resources {
     @RequiresApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1)
     @Override
     public Drawable getDrawableForDensity(int id, int density) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getDrawableForDensity(id, density);
+        }
         try {
             return super.getDrawableForDensity(id, density);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getDrawableForDensity(id, density);
         }
     }
@@ -230,27 +380,45 @@ public class ResourcesProxy extends Resources {
     @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
     @Override
     public Drawable getDrawableForDensity(int id, int density, Theme theme) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getDrawableForDensity(id, density, theme);
+        }
         try {
             return super.getDrawableForDensity(id, density, theme);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getDrawableForDensity(id, density, theme);
         }
     }
 
     @Override
     public Movie getMovie(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getMovie(id);
+        }
         try {
             return super.getMovie(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getMovie(id);
         }
     }
 
     @Override
     public int getColor(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getColor(id);
+        }
         try {
             return super.getColor(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getColor(id);
         }
     }
@@ -258,18 +426,30 @@ public class ResourcesProxy extends Resources {
     @RequiresApi(Build.VERSION_CODES.M)
     @Override
     public int getColor(int id, Theme theme) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getColor(id, theme);
+        }
         try {
             return super.getColor(id, theme);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getColor(id, theme);
         }
     }
 
     @Override
     public ColorStateList getColorStateList(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getColorStateList(id);
+        }
         try {
             return super.getColorStateList(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getColorStateList(id);
         }
     }
@@ -277,90 +457,151 @@ public class ResourcesProxy extends Resources {
     @RequiresApi(Build.VERSION_CODES.M)
     @Override
     public ColorStateList getColorStateList(int id, Theme theme) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getColorStateList(id, theme);
+        }
         try {
             return super.getColorStateList(id, theme);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getColorStateList(id, theme);
         }
     }
 
     @Override
     public boolean getBoolean(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getBoolean(id);
+        }
         try {
             return super.getBoolean(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getBoolean(id);
         }
     }
 
     @Override
     public int getInteger(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getInteger(id);
+        }
         try {
             return super.getInteger(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getInteger(id);
         }
     }
 
     @Override
     public XmlResourceParser getLayout(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getLayout(id);
+        }
         try {
             return super.getLayout(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getLayout(id);
         }
     }
 
     @Override
     public XmlResourceParser getAnimation(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getAnimation(id);
+        }
         try {
             return super.getAnimation(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getAnimation(id);
         }
     }
 
     @Override
     public XmlResourceParser getXml(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.getXml(id);
+        }
         try {
             return super.getXml(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.getXml(id);
         }
     }
 
     @Override
     public InputStream openRawResource(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.openRawResource(id);
+        }
         try {
             return super.openRawResource(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.openRawResource(id);
         }
     }
 
     @Override
     public InputStream openRawResource(int id, TypedValue value) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.openRawResource(id, value);
+        }
         try {
             return super.openRawResource(id, value);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.openRawResource(id, value);
         }
     }
 
     @Override
     public AssetFileDescriptor openRawResourceFd(int id) throws NotFoundException {
+        if (isHostResource(id)) {
+            return mHostResources.openRawResourceFd(id);
+        }
         try {
             return super.openRawResourceFd(id);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             return mHostResources.openRawResourceFd(id);
         }
     }
 
     @Override
     public void getValue(int id, TypedValue outValue, boolean resolveRefs) throws NotFoundException {
+        if (isHostResource(id)) {
+            mHostResources.getValue(id, outValue, resolveRefs);
+            return;
+        }
         try {
             super.getValue(id, outValue, resolveRefs);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             mHostResources.getValue(id, outValue, resolveRefs);
         }
     }
@@ -368,12 +609,18 @@ public class ResourcesProxy extends Resources {
     @RequiresApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1)
     @Override
     public void getValueForDensity(int id, int density, TypedValue outValue, boolean resolveRefs) throws NotFoundException {
+        if (isHostResource(id)) {
+            mHostResources.getValueForDensity(id, density, outValue, resolveRefs);
+            return;
+        }
         try {
             super.getValueForDensity(id, density, outValue, resolveRefs);
         } catch (NotFoundException e) {
+            if (isPluginResource(id)) {
+                throw e;
+            }
             mHostResources.getValueForDensity(id, density, outValue, resolveRefs);
         }
-
     }
 
     @Override
@@ -396,36 +643,60 @@ public class ResourcesProxy extends Resources {
 
     @Override
     public String getResourceName(int resid) throws NotFoundException {
+        if (isHostResource(resid)) {
+            return mHostResources.getResourceName(resid);
+        }
         try {
             return super.getResourceName(resid);
         } catch (NotFoundException e) {
+            if (isPluginResource(resid)) {
+                throw e;
+            }
             return mHostResources.getResourceName(resid);
         }
     }
 
     @Override
     public String getResourcePackageName(int resid) throws NotFoundException {
+        if (isHostResource(resid)) {
+            return mHostResources.getResourcePackageName(resid);
+        }
         try {
             return super.getResourcePackageName(resid);
         } catch (NotFoundException e) {
+            if (isPluginResource(resid)) {
+                throw e;
+            }
             return mHostResources.getResourcePackageName(resid);
         }
     }
 
     @Override
     public String getResourceTypeName(int resid) throws NotFoundException {
+        if (isHostResource(resid)) {
+            return mHostResources.getResourceTypeName(resid);
+        }
         try {
             return super.getResourceTypeName(resid);
         } catch (NotFoundException e) {
+            if (isPluginResource(resid)) {
+                throw e;
+            }
             return mHostResources.getResourceTypeName(resid);
         }
     }
 
     @Override
     public String getResourceEntryName(int resid) throws NotFoundException {
+        if (isHostResource(resid)) {
+            return mHostResources.getResourceEntryName(resid);
+        }
         try {
             return super.getResourceEntryName(resid);
         } catch (NotFoundException e) {
+            if (isPluginResource(resid)) {
+                throw e;
+            }
             return mHostResources.getResourceEntryName(resid);
         }
     }
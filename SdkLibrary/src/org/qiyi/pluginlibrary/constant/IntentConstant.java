@@ -73,6 +73,18 @@ public class IntentConstant {
     public static final String EXTRA_DEST_FILE = "install_dest_file";
     /* 被安装的插件的信息 */
     public static final String EXTRA_PLUGIN_INFO = "plugin_info";
+    /* 发出安装请求的时间(SystemClock.elapsedRealtime)，用于统计安装进程的启动耗时 */
+    public static final String EXTRA_REQUEST_TIME = "install_request_time";
+    /* 安装请求从发出到安装进程开始处理的耗时，随安装结果广播返回 */
+    public static final String EXTRA_DISPATCH_COST = "install_dispatch_cost";
+    /* 安装请求是否等待了安装进程的启动 */
+    public static final String EXTRA_DISPATCH_COLD = "install_dispatch_cold";
+    /* 安装进程空闲多久之后退出 */
+    public static final String EXTRA_IDLE_TIMEOUT = "installer_idle_timeout";
+    /* 安装进程空闲时是否常驻待命 */
+    public static final String EXTRA_WARM_STANDBY = "installer_warm_standby";
+    /* 安装前是否删除旧版本的文件 */
+    public static final String EXTRA_CLEAN_BEFORE_INSTALL = "clean_before_install";
     /* ACTION_SERVICE_CONNECTED Broadcast 中的 service 类型 */
     public static final String EXTRA_SERVICE_CLASS = "service_class";
     /* 支持TaskAffinity的容器坑位 */
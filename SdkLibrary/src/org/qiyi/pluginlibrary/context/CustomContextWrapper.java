@@ -569,6 +569,14 @@ public abstract class CustomContextWrapper extends ContextWrapper implements Int
         return null;
     }
 
+    /**
+     * 读取ContextImpl的成员变量，字段句柄按ContextImpl的类型缓存
+     */
+    private <T> T getBaseContextField(String name) {
+        Context base = getBaseContext();
+        return ReflectionUtils.resolveField(base.getClass(), name).get(base);
+    }
+
     /**
      * Android 7.0+系统，
      * <href>http://androidxref.com/7.0.0_r1/xref/frameworks/base/core/java/android/app/ContextImpl.java#141</href>
@@ -581,12 +589,11 @@ public abstract class CustomContextWrapper extends ContextWrapper implements Int
         Object sp = null;
         Class<?> clazz = Class.forName("android.app.ContextImpl");
         Class<?> SharedPreferencesImpl = Class.forName("android.app.SharedPreferencesImpl");
-        Constructor<?> constructor = SharedPreferencesImpl.getDeclaredConstructor(File.class, int.class);
-        constructor.setAccessible(true);
-        ArrayMap<String, ArrayMap<File, Object>> oSharedPrefs = ReflectionUtils.on(this.getBaseContext())
-                .<ArrayMap<String, ArrayMap<File, Object>>>get(S_SHARED_PREFS);
+        ReflectionUtils.ConstructorRef constructor = ReflectionUtils.resolveConstructor(
+                SharedPreferencesImpl, File.class, int.class);
+        ArrayMap<String, ArrayMap<File, Object>> oSharedPrefs = getBaseContextField(S_SHARED_PREFS);
         ArrayMap<String, File> oSharedPrefsPaths = VersionUtils.hasPie() ? null :
-                ReflectionUtils.on(this.getBaseContext()).<ArrayMap<String, File>>get(M_SHARED_PREFS_PATHS);
+                this.<ArrayMap<String, File>>getBaseContextField(M_SHARED_PREFS_PATHS);
         synchronized (clazz) {
             if (oSharedPrefsPaths == null) {
                 oSharedPrefsPaths = new ArrayMap<String, File>();
@@ -617,7 +624,7 @@ public abstract class CustomContextWrapper extends ContextWrapper implements Int
             }
             if ((mode & Context.MODE_MULTI_PROCESS) != 0 || getPluginPackageInfo()
                     .getPackageInfo().applicationInfo.targetSdkVersion < android.os.Build.VERSION_CODES.HONEYCOMB) {
-                ReflectionUtils.on(sp).call("startReloadIfChangedUnexpectedly", sMethods, null);
+                ReflectionUtils.resolveMethod(SharedPreferencesImpl, "startReloadIfChangedUnexpectedly").invoke(sp);
             }
         }
         return (SharedPreferences) sp;
@@ -636,10 +643,9 @@ public abstract class CustomContextWrapper extends ContextWrapper implements Int
         Object sp = null;
         Class<?> clazz = Class.forName("android.app.ContextImpl");
         Class<?> SharedPreferencesImpl = Class.forName("android.app.SharedPreferencesImpl");
-        Constructor<?> constructor = SharedPreferencesImpl.getDeclaredConstructor(File.class, int.class);
-        constructor.setAccessible(true);
-        ArrayMap<String, ArrayMap<String, Object>> oSharedPrefs = ReflectionUtils.on(this.getBaseContext())
-                .<ArrayMap<String, ArrayMap<String, Object>>>get(S_SHARED_PREFS);
+        ReflectionUtils.ConstructorRef constructor = ReflectionUtils.resolveConstructor(
+                SharedPreferencesImpl, File.class, int.class);
+        ArrayMap<String, ArrayMap<String, Object>> oSharedPrefs = getBaseContextField(S_SHARED_PREFS);
         synchronized (clazz) {
             if (oSharedPrefs == null) {
                 oSharedPrefs = new ArrayMap<String, ArrayMap<String, Object>>();
@@ -661,7 +667,7 @@ public abstract class CustomContextWrapper extends ContextWrapper implements Int
             }
             if ((mode & Context.MODE_MULTI_PROCESS) != 0 || getPluginPackageInfo()
                     .getPackageInfo().applicationInfo.targetSdkVersion < android.os.Build.VERSION_CODES.HONEYCOMB) {
-                ReflectionUtils.on(sp).call("startReloadIfChangedUnexpectedly", sMethods, null);
+                ReflectionUtils.resolveMethod(SharedPreferencesImpl, "startReloadIfChangedUnexpectedly").invoke(sp);
             }
         }
         return (SharedPreferences) sp;
@@ -679,10 +685,9 @@ public abstract class CustomContextWrapper extends ContextWrapper implements Int
             throws Exception {
         Object sp = null;
         Class<?> SharedPreferencesImpl = Class.forName("android.app.SharedPreferencesImpl");
-        Constructor<?> constructor = SharedPreferencesImpl.getDeclaredConstructor(File.class, int.class);
-        constructor.setAccessible(true);
-        HashMap<String, Object> oSharedPrefs = ReflectionUtils.on(this.getBaseContext())
-                .<HashMap<String, Object>>get(S_SHARED_PREFS);
+        ReflectionUtils.ConstructorRef constructor = ReflectionUtils.resolveConstructor(
+                SharedPreferencesImpl, File.class, int.class);
+        HashMap<String, Object> oSharedPrefs = getBaseContextField(S_SHARED_PREFS);
 
         final String packageName = getPluginPackageName();
         final String nameKey = packageName + "_" + name;
@@ -697,7 +702,7 @@ public abstract class CustomContextWrapper extends ContextWrapper implements Int
         }
         if ((mode & Context.MODE_MULTI_PROCESS) != 0 || getPluginPackageInfo()
                 .getPackageInfo().applicationInfo.targetSdkVersion < android.os.Build.VERSION_CODES.HONEYCOMB) {
-            ReflectionUtils.on(sp).call("startReloadIfChangedUnexpectedly", sMethods, null);
+            ReflectionUtils.resolveMethod(SharedPreferencesImpl, "startReloadIfChangedUnexpectedly").invoke(sp);
         }
         return (SharedPreferences) sp;
     }
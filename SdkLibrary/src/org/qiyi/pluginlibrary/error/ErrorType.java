@@ -58,6 +58,14 @@ public class ErrorType {
     public static final int INSTALL_ERROR_APK_SIGNATURE_NOT_MATCH = 4011;
     /* 安装错误，获取文件流为NULL */
     public static final int INSTALL_ERROR_STREAM_NULL = 4012;
+    /* 安装错误，安装过程中插件被卸载 */
+    public static final int INSTALL_ERROR_CANCELED = 4013;
+    /* 安装错误，安装过程中出现未预期的异常 */
+    public static final int INSTALL_ERROR_UNEXPECTED = 4014;
+    /* 安装错误，插件文件的SHA-256摘要与期望值不一致 */
+    public static final int INSTALL_ERROR_APK_DIGEST_NOT_MATCH = 4015;
+    /* 安装错误，存储空间不足 */
+    public static final int INSTALL_ERROR_NO_ENOUGH_SPACE = 4016;
     /* 安装错误，安装so库不存在 */
     public static final int INSTALL_ERROR_SO_NOT_EXIST = 4100;
     /* 安装错误，安装so库拷贝失败 */
@@ -74,6 +82,12 @@ public class ErrorType {
     public static final int INSTALL_ERROR_CLIENT_TIME_OUT = 4300;
     /* 安装错误，启动PluginInstallerService异常 */
     public static final int INSTALL_ERROR_BEFORE_START_SERVICE = 4301;
+    /* 安装错误，差分包文件不存在 */
+    public static final int INSTALL_ERROR_PATCH_NOT_EXIST = 4400;
+    /* 安装错误，差分包依赖的基础版本apk不存在 */
+    public static final int INSTALL_ERROR_PATCH_BASE_NOT_EXIST = 4401;
+    /* 安装错误，合成新版本apk失败 */
+    public static final int INSTALL_ERROR_PATCH_APPLY_FAILED = 4402;
 
 
 
@@ -29,8 +29,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import dalvik.system.DexClassLoader;
 
@@ -39,6 +48,11 @@ public class DexOptimizer {
     public static final String ODEX_SUFFIX = ".odex";
     public static final String DEX_SUFFIX = ".dex";
     private static final String TAG = "DexOptimizer";
+    /* 进程内同时进行的dexopt上限，dexopt是CPU密集型任务，保留一个核给其他线程 */
+    static final int MAX_OPTIMIZE_WORKERS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    /* 安装流水线的dexopt阶段和optimizeAll的线程池共享同一组许可，总并发不超过MAX_OPTIMIZE_WORKERS */
+    private static final Semaphore OPTIMIZE_PERMITS = new Semaphore(MAX_OPTIMIZE_WORKERS);
 
     public static boolean optimize(File dexFile, File optimizedDir,
                                    boolean useInterpretMode, ResultCallback cb) {
@@ -52,6 +66,49 @@ public class DexOptimizer {
 
     }
 
+    /**
+     * 并发优化多个dex文件，第一个dex在调用线程执行，其余的提交到线程池，等待全部完成后返回
+     *
+     * @param dexFiles      需要优化的dex文件
+     * @param optimizedDirs 每个dex文件对应的优化目录
+     * @param cb            结果回调，会在多个线程中并发回调
+     * @return 全部优化成功返回true
+     */
+    public static boolean optimizeAll(List<File> dexFiles, List<File> optimizedDirs,
+                                      boolean useInterpretMode, ResultCallback cb) {
+        if (dexFiles.size() != optimizedDirs.size()) {
+            throw new IllegalArgumentException("dexFiles and optimizedDirs size not match");
+        }
+        if (dexFiles.isEmpty()) {
+            return true;
+        }
+        String isa = CpuAbiUtils.getCurrentInstructionSet();
+        List<Future<Boolean>> futures = new ArrayList<>(dexFiles.size() - 1);
+        for (int i = 1; i < dexFiles.size(); i++) {
+            final OptimizeWorker worker = new OptimizeWorker(dexFiles.get(i), optimizedDirs.get(i),
+                    useInterpretMode, isa, cb);
+            futures.add(OptimizeExecutorHolder.EXECUTOR.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return worker.run();
+                }
+            }));
+        }
+        boolean success = new OptimizeWorker(dexFiles.get(0), optimizedDirs.get(0),
+                useInterpretMode, isa, cb).run();
+        for (Future<Boolean> future : futures) {
+            try {
+                success &= future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                success = false;
+            } catch (ExecutionException e) {
+                success = false;
+            }
+        }
+        return success;
+    }
+
     public interface ResultCallback {
         void onStart(File dexFile, File optimizedDir);
 
@@ -128,10 +185,16 @@ public class DexOptimizer {
                     callback.onStart(dexFile, optimizedDir);
                 }
                 String optimizedPath = optimizedPathFor(this.dexFile, this.optimizedDir, targetISA);
-                if (useInterpretMode) {
-                    interpretDex2Oat(dexFile.getAbsolutePath(), optimizedPath);
-                } else {
-                    new DexClassLoader(dexFile.getAbsolutePath(), this.optimizedDir.getAbsolutePath(), null, this.getClass().getClassLoader());
+                // 只在真正优化时持有许可，optimizeAll的调用线程等待其他dex时不占用许可
+                OPTIMIZE_PERMITS.acquireUninterruptibly();
+                try {
+                    if (useInterpretMode) {
+                        interpretDex2Oat(dexFile.getAbsolutePath(), optimizedPath);
+                    } else {
+                        new DexClassLoader(dexFile.getAbsolutePath(), this.optimizedDir.getAbsolutePath(), null, this.getClass().getClassLoader());
+                    }
+                } finally {
+                    OPTIMIZE_PERMITS.release();
                 }
                 if (callback != null) {
                     callback.onSuccess(dexFile, optimizedDir, new File(optimizedPath));
@@ -186,8 +249,27 @@ public class DexOptimizer {
         }
     }
 
+    private static class OptimizeExecutorHolder {
+        static final ThreadPoolExecutor EXECUTOR = createExecutor();
+
+        private static ThreadPoolExecutor createExecutor() {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_OPTIMIZE_WORKERS, MAX_OPTIMIZE_WORKERS,
+                    30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "DexOptimizer-thread-" + threadNumber.getAndIncrement());
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
     private static class StreamConsumer {
-        static final Executor STREAM_CONSUMER = Executors.newSingleThreadExecutor();
+        // 多个dex2oat进程并发执行，每个进程的输出都需要及时读取，否则进程可能阻塞在写管道上
+        static final Executor STREAM_CONSUMER = Executors.newCachedThreadPool();
 
         static void consumeInputStream(final InputStream is) {
             STREAM_CONSUMER.execute(new Runnable() {
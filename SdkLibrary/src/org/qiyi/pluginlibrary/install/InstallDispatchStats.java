@@ -0,0 +1,97 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.install;
+
+import org.qiyi.pluginlibrary.utils.PluginDebugLog;
+
+/**
+ * 安装请求分发耗时的统计，区分安装进程冷启动和已经在运行两种情况
+ * <p>
+ * 耗时由安装进程测量，随安装结果广播返回，在发起请求的进程中汇总，
+ * 用于评估安装进程常驻待命和提前预热的收益
+ */
+public final class InstallDispatchStats {
+    private static final String TAG = "InstallDispatchStats";
+
+    private static int sColdCount;
+    private static long sColdTotalCost;
+    private static long sColdMaxCost;
+    private static int sWarmCount;
+    private static long sWarmTotalCost;
+    private static long sWarmMaxCost;
+
+    private InstallDispatchStats() {
+    }
+
+    /**
+     * 记录一次安装请求的分发耗时
+     *
+     * @param cold 请求是否等待了安装进程的启动
+     * @param cost 请求从发出到安装进程开始处理的耗时，单位ms，小于0表示没有测量
+     */
+    public static synchronized void record(boolean cold, long cost) {
+        if (cost < 0) {
+            return;
+        }
+        if (cold) {
+            sColdCount++;
+            sColdTotalCost += cost;
+            sColdMaxCost = Math.max(sColdMaxCost, cost);
+        } else {
+            sWarmCount++;
+            sWarmTotalCost += cost;
+            sWarmMaxCost = Math.max(sWarmMaxCost, cost);
+        }
+        PluginDebugLog.installFormatLog(TAG, "install dispatch cost %d ms, cold: %s; "
+                        + "cold avg %d ms max %d ms (%d), warm avg %d ms max %d ms (%d)",
+                cost, cold, getAverageCost(true), sColdMaxCost, sColdCount,
+                getAverageCost(false), sWarmMaxCost, sWarmCount);
+    }
+
+    /**
+     * 记录的请求数
+     */
+    public static synchronized int getCount(boolean cold) {
+        return cold ? sColdCount : sWarmCount;
+    }
+
+    /**
+     * 平均分发耗时，单位ms，没有记录时返回0
+     */
+    public static synchronized long getAverageCost(boolean cold) {
+        int count = cold ? sColdCount : sWarmCount;
+        long total = cold ? sColdTotalCost : sWarmTotalCost;
+        return count > 0 ? total / count : 0L;
+    }
+
+    /**
+     * 最大分发耗时，单位ms
+     */
+    public static synchronized long getMaxCost(boolean cold) {
+        return cold ? sColdMaxCost : sWarmMaxCost;
+    }
+
+    static synchronized void reset() {
+        sColdCount = 0;
+        sColdTotalCost = 0;
+        sColdMaxCost = 0;
+        sWarmCount = 0;
+        sWarmTotalCost = 0;
+        sWarmMaxCost = 0;
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.install;
+
+import org.qiyi.pluginlibrary.error.ErrorType;
+import org.qiyi.pluginlibrary.utils.ErrorUtil;
+import org.qiyi.pluginlibrary.utils.PluginDebugLog;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 插件安装流水线
+ * <p>
+ * 一次安装拆分成清理、拷贝校验、so库释放、dexopt、提交几个阶段，每个阶段有独立的线程池和并发上限，
+ * 不同插件的安装在各个阶段之间并行执行；同一个插件的安装任务按提交顺序串行执行，
+ * 并且每个阶段都持有插件的锁，与卸载操作互斥，安装过程中插件被卸载时终止后续阶段
+ * <p>
+ * 插件的锁只被弱引用持有，没有线程使用时可以被回收，安装过的插件越来越多时不会一直占用内存
+ */
+final class PluginInstallPipeline {
+    private static final String TAG = "PluginInstallPipeline";
+    /* 拷贝、校验插件文件 */
+    static final int STAGE_COPY = 0;
+    /* 释放so库 */
+    static final int STAGE_NATIVE_LIB = 1;
+    /* dexopt优化 */
+    static final int STAGE_DEXOPT = 2;
+    /* 生成缓存并通知安装结果 */
+    static final int STAGE_COMMIT = 3;
+    /* 安装前删除旧版本的文件 */
+    static final int STAGE_CLEAN = 4;
+    private static final String[] STAGE_NAMES = {"copy", "lib", "dexopt", "commit", "clean"};
+
+    /* 各阶段的并发数，拷贝、释放so库和清理是IO密集型；dexopt是CPU密集型，实际并发由DexOptimizer的许可统一限制 */
+    private static final int[] STAGE_WORKERS = {2, 2, DexOptimizer.MAX_OPTIMIZE_WORKERS, 1, 1};
+
+    private static volatile PluginInstallPipeline sInstance;
+
+    private final ThreadPoolExecutor[] mStageExecutors = new ThreadPoolExecutor[STAGE_NAMES.length];
+    /* 包名 -> 排队等待的安装任务，key存在说明该插件有安装任务正在执行 */
+    private final Map<String, LinkedList<InstallJob>> mPackageQueues = new HashMap<>();
+    /* 包名 -> 卸载次数，安装任务开始后次数发生变化说明插件已经被卸载 */
+    private final Map<String, Integer> mDeleteCounts = new HashMap<>();
+    /* 包名 -> 插件的锁，安装的每个阶段和卸载互斥 */
+    private final Map<String, LockRef> mPackageLocks = new HashMap<>();
+    /* 已经被回收的锁，下次获取锁时从mPackageLocks中移除 */
+    private final ReferenceQueue<Object> mReleasedLocks = new ReferenceQueue<>();
+
+    private PluginInstallPipeline() {
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            mStageExecutors[i] = new ThreadPoolExecutor(STAGE_WORKERS[i], STAGE_WORKERS[i], 30L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new StageThreadFactory(STAGE_NAMES[i]));
+            mStageExecutors[i].allowCoreThreadTimeOut(true);
+        }
+    }
+
+    static PluginInstallPipeline getInstance() {
+        if (sInstance == null) {
+            synchronized (PluginInstallPipeline.class) {
+                if (sInstance == null) {
+                    sInstance = new PluginInstallPipeline();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * 提交一个安装任务，同一个插件已经有任务在执行时排队等待
+     */
+    void submit(InstallJob job) {
+        synchronized (mPackageQueues) {
+            LinkedList<InstallJob> queue = mPackageQueues.get(job.packageName);
+            if (queue != null) {
+                queue.add(job);
+                PluginDebugLog.installFormatLog(TAG, "install %s is busy, %d jobs waiting",
+                        job.packageName, queue.size());
+                return;
+            }
+            mPackageQueues.put(job.packageName, new LinkedList<InstallJob>());
+        }
+        start(job);
+    }
+
+    /**
+     * 获取插件的锁，持有锁期间不会有该插件的安装阶段在执行
+     * <p>
+     * 调用方在synchronized期间强引用着锁对象，同一时刻同一个插件只会有一个锁
+     */
+    Object getPackageLock(String packageName) {
+        synchronized (mPackageLocks) {
+            purgeReleasedLocks();
+            LockRef ref = mPackageLocks.get(packageName);
+            Object lock = ref != null ? ref.get() : null;
+            if (lock == null) {
+                lock = new Object();
+                mPackageLocks.put(packageName, new LockRef(packageName, lock, mReleasedLocks));
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * 当前保存的插件锁的数量
+     */
+    int getPackageLockCount() {
+        synchronized (mPackageLocks) {
+            purgeReleasedLocks();
+            return mPackageLocks.size();
+        }
+    }
+
+    private void purgeReleasedLocks() {
+        LockRef ref;
+        while ((ref = (LockRef) mReleasedLocks.poll()) != null) {
+            if (mPackageLocks.get(ref.packageName) == ref) {
+                mPackageLocks.remove(ref.packageName);
+            }
+        }
+    }
+
+    /**
+     * 插件被卸载，终止该插件正在执行和排队中的安装任务
+     */
+    void onPackageDeleted(String packageName) {
+        synchronized (mDeleteCounts) {
+            mDeleteCounts.put(packageName, getDeleteCount(packageName) + 1);
+        }
+    }
+
+    private int getDeleteCount(String packageName) {
+        synchronized (mDeleteCounts) {
+            Integer count = mDeleteCounts.get(packageName);
+            return count != null ? count : 0;
+        }
+    }
+
+    private void start(InstallJob job) {
+        job.mDeleteCount = getDeleteCount(job.packageName);
+        job.mStartTime = System.currentTimeMillis();
+        scheduleNextStage(job);
+    }
+
+    private void scheduleNextStage(final InstallJob job) {
+        if (job.mNextStage >= job.stages.length) {
+            finish(job);
+            return;
+        }
+        final int stage = job.stages[job.mNextStage++];
+        mStageExecutors[stage].execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean proceed = false;
+                try {
+                    synchronized (getPackageLock(job.packageName)) {
+                        if (job.mDeleteCount != getDeleteCount(job.packageName)) {
+                            PluginDebugLog.installFormatLog(TAG, "install %s canceled before %s stage",
+                                    job.packageName, STAGE_NAMES[stage]);
+                            job.onAborted(ErrorType.INSTALL_ERROR_CANCELED);
+                            return;
+                        }
+                        long start = System.currentTimeMillis();
+                        proceed = job.runStage(stage);
+                        PluginDebugLog.installFormatLog(TAG, "install %s %s stage cost %d ms, success: %s",
+                                job.packageName, STAGE_NAMES[stage], System.currentTimeMillis() - start, proceed);
+                    }
+                } catch (Throwable e) {
+                    ErrorUtil.throwErrorIfNeed(e);
+                    PluginDebugLog.installFormatLog(TAG, "install %s %s stage failed: %s",
+                            job.packageName, STAGE_NAMES[stage], e.getMessage());
+                    job.onAborted(ErrorType.INSTALL_ERROR_UNEXPECTED);
+                } finally {
+                    if (proceed) {
+                        scheduleNextStage(job);
+                    } else {
+                        finish(job);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 安装任务结束，开始执行同一个插件排队中的下一个任务
+     */
+    private void finish(InstallJob job) {
+        PluginDebugLog.installFormatLog(TAG, "install %s finished, total cost %d ms",
+                job.packageName, System.currentTimeMillis() - job.mStartTime);
+        InstallJob next;
+        synchronized (mPackageQueues) {
+            LinkedList<InstallJob> queue = mPackageQueues.get(job.packageName);
+            next = queue != null ? queue.poll() : null;
+            if (next == null) {
+                mPackageQueues.remove(job.packageName);
+            }
+        }
+        if (next != null) {
+            start(next);
+        }
+    }
+
+    /**
+     * 一个插件的安装任务
+     */
+    abstract static class InstallJob {
+        final String packageName;
+        /* 需要依次执行的阶段 */
+        final int[] stages;
+        private int mNextStage;
+        private int mDeleteCount;
+        private long mStartTime;
+
+        InstallJob(String packageName, int... stages) {
+            this.packageName = packageName;
+            this.stages = stages;
+        }
+
+        /**
+         * 执行一个阶段
+         *
+         * @return true继续执行下一个阶段，false表示安装失败并且已经回调了结果
+         */
+        abstract boolean runStage(int stage);
+
+        /**
+         * 安装被终止，需要回调安装失败
+         */
+        abstract void onAborted(int failReason);
+    }
+
+    private static class LockRef extends WeakReference<Object> {
+        final String packageName;
+
+        LockRef(String packageName, Object lock, ReferenceQueue<Object> queue) {
+            super(lock, queue);
+            this.packageName = packageName;
+        }
+    }
+
+    private static class StageThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String namePrefix;
+
+        StageThreadFactory(String stageName) {
+            namePrefix = "PluginInstaller-" + stageName + "-thread-";
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+            t.setDaemon(false);
+            t.setPriority(Thread.NORM_PRIORITY);
+            return t;
+        }
+    }
+}
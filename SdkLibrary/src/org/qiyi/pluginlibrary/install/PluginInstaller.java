@@ -21,34 +21,51 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 import android.os.Parcelable;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
+import android.util.Log;
 
 import org.qiyi.pluginlibrary.Neptune;
 import org.qiyi.pluginlibrary.constant.IntentConstant;
 import org.qiyi.pluginlibrary.error.ErrorType;
+import org.qiyi.pluginlibrary.pm.PluginLaunchArtifacts;
 import org.qiyi.pluginlibrary.pm.PluginLiteInfo;
+import org.qiyi.pluginlibrary.pm.PluginPackageInfo;
+import org.qiyi.pluginlibrary.pm.PluginPackageInfoCache;
 import org.qiyi.pluginlibrary.pm.PluginPackageManager;
+import org.qiyi.pluginlibrary.pm.PluginPackageManagerNative;
 import org.qiyi.pluginlibrary.utils.ErrorUtil;
 import org.qiyi.pluginlibrary.utils.FileUtils;
+import org.qiyi.pluginlibrary.utils.MultiDex;
 import org.qiyi.pluginlibrary.utils.PluginDebugLog;
 import org.qiyi.pluginlibrary.utils.ReflectionUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.qiyi.pluginlibrary.install.PluginInstallPipeline.STAGE_CLEAN;
+import static org.qiyi.pluginlibrary.install.PluginInstallPipeline.STAGE_COMMIT;
+import static org.qiyi.pluginlibrary.install.PluginInstallPipeline.STAGE_COPY;
+import static org.qiyi.pluginlibrary.install.PluginInstallPipeline.STAGE_DEXOPT;
+import static org.qiyi.pluginlibrary.install.PluginInstallPipeline.STAGE_NATIVE_LIB;
+
 /**
  * 负责插件的安装操作
  */
@@ -60,49 +77,117 @@ public class PluginInstaller {
     public static final String ZIP_SUFFIX = ".zip";
     public static final String NATIVE_LIB_PATH = "lib";
     public static final String NATIVE_DEX_PATH = "dex";
+    public static final String OAT_PATH = "oat";
     public static final String SO_SUFFIX = ".so";
     public static final String DEX_SUFFIX = ".dex";
+    public static final String PATCH_SUFFIX = ".patch";
     public static final String ANDROID_ASSETS = "/android_asset/";
     // scheme前缀
     public static final String SCHEME_ASSETS = "assets://";
     public static final String SCHEME_FILE = "file://";
     public static final String SCHEME_SO = "so://";
     public static final String SCHEME_DEX = "dex://";
+    public static final String SCHEME_PATCH = "patch://";
+    /* 校验插件文件使用的摘要算法 */
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * 获取插件安装的根目录
+     */
+    public static File getPluginappRootPath(Context context) {
+        File repoDir = context.getDir(PLUGIN_ROOT_PATH, 0);
+        if (!repoDir.exists()) {
+            repoDir.mkdirs();
+        }
+        return repoDir;
+    }
 
-    private static class InstallerThreadFactory implements ThreadFactory {
-        private final ThreadGroup group;
-        private final AtomicInteger threadNumber = new AtomicInteger(1);
-        private final String namePrefix = "PluginInstaller-thread-";
+    /**
+     * 获取插件某个版本的安装槽位，{pluginapp}/{pkgName}/{version}，保存该版本的so库和优化后的dex；
+     * 不同版本的槽位互不覆盖，新版本可以在旧版本运行时完成安装，下次冷启动加载时切换
+     * 插件的数据目录仍然是{pluginapp}/{pkgName}，升级后不变
+     *
+     * @param apkFile 安装后的插件apk，文件名格式为{pkgName}.{version}.apk
+     */
+    public static File getPluginSlotDir(Context context, String packageName, File apkFile) {
+        File pkgDir = new File(getPluginappRootPath(context), packageName);
+        String version = getApkVersion(packageName, apkFile.getName());
+        // 无法解析出版本号的apk沿用旧的目录结构，lib和优化后的dex直接放在插件目录下
+        return isValidSlotName(version) ? new File(pkgDir, version) : pkgDir;
+    }
+
+    /**
+     * 获取已安装插件版本的代码目录，保存so库和优化后的dex；
+     * 引入槽位之前安装的插件没有槽位，沿用插件目录
+     */
+    public static File getPluginCodeDir(Context context, String packageName, File apkFile) {
+        File slotDir = getPluginSlotDir(context, packageName, apkFile);
+        return slotDir.exists() ? slotDir : new File(getPluginappRootPath(context), packageName);
+    }
 
-        InstallerThreadFactory() {
-            SecurityManager s = System.getSecurityManager();
-            group = s != null ? s.getThreadGroup() : Thread.currentThread().getThreadGroup();
+    /**
+     * 从{pkgName}.{version}.apk格式的文件名中解析版本号，不符合格式返回空串
+     */
+    static String getApkVersion(String packageName, String apkName) {
+        String prefix = packageName + ".";
+        if (apkName.startsWith(prefix) && apkName.endsWith(APK_SUFFIX)
+                && apkName.length() > prefix.length() + APK_SUFFIX.length()) {
+            return apkName.substring(prefix.length(), apkName.length() - APK_SUFFIX.length());
         }
+        return "";
+    }
 
-        public Thread newThread(Runnable r) {
-            Thread t = new Thread(group, r, namePrefix + threadNumber.getAndIncrement());
-            if (t.isDaemon()) {
-                t.setDaemon(false);
-            }
-            if (t.getPriority() != Thread.NORM_PRIORITY) {
-                t.setPriority(Thread.NORM_PRIORITY);
-            }
-            return t;
+    /**
+     * 文件是否属于插件，文件名格式为{pkgName}{suffix}或者{pkgName}.{version}{suffix}
+     * 包名的每一段都以字母开头，以数字开头的版本号不会和包名前缀相同的其他插件混淆，例如com.foo和com.foo.bar；
+     * 不以数字开头的版本号无法区分，只有和插件已知的版本号相同时才认为属于该插件
+     *
+     * @param fileName    文件名
+     * @param packageName 插件包名
+     * @param suffix      文件后缀，例如.apk、.dex
+     * @param version     插件已知的版本号，可以为空
+     */
+    public static boolean isPackageFile(String fileName, String packageName, String suffix, String version) {
+        if (!fileName.endsWith(suffix)) {
+            return false;
+        }
+        String baseName = fileName.substring(0, fileName.length() - suffix.length());
+        if (baseName.equals(packageName)) {
+            return true;
+        }
+        if (!baseName.startsWith(packageName + ".")) {
+            return false;
         }
+        String fileVersion = baseName.substring(packageName.length() + 1);
+        return isValidSlotName(fileVersion) || TextUtils.equals(fileVersion, version);
     }
 
-    // 插件安装线程池
-    private static Executor sInstallerExecutor = Executors.newFixedThreadPool(1, new InstallerThreadFactory());
+    /**
+     * 槽位和插件的数据目录(files, databases, lib等)在同一层级，只接受以数字开头的版本号，避免重名
+     */
+    static boolean isValidSlotName(String version) {
+        return !TextUtils.isEmpty(version) && Character.isDigit(version.charAt(0))
+                && version.matches("[0-9A-Za-z._\\-]+");
+    }
 
     /**
-     * 获取插件安装的根目录
+     * 新版本能否在已安装版本运行时后台安装，要求两个版本使用不同的apk和槽位
+     * so插件和dex插件的文件仍然在插件目录下，不支持后台升级
+     *
+     * @param installed 已安装的插件信息
+     * @param target    待安装的插件信息
      */
-    public static File getPluginappRootPath(Context context) {
-        File repoDir = context.getDir(PLUGIN_ROOT_PATH, 0);
-        if (!repoDir.exists()) {
-            repoDir.mkdirs();
+    public static boolean canUpgradeInBackground(PluginLiteInfo installed, PluginLiteInfo target) {
+        if (installed == null || target == null || TextUtils.isEmpty(installed.srcApkPath)
+                || TextUtils.equals(installed.pluginVersion, target.pluginVersion)
+                || !new File(installed.srcApkPath).exists()) {
+            return false;
         }
-        return repoDir;
+        String path = target.mPath;
+        if (path != null && (path.startsWith(SCHEME_SO) || path.startsWith(SCHEME_DEX))) {
+            return false;
+        }
+        return isValidSlotName(target.pluginVersion);
     }
 
     /**
@@ -152,6 +237,8 @@ public class PluginInstaller {
             targetPath = SCHEME_SO + filePath;
         } else if (filePath.endsWith(DEX_SUFFIX)) {
             targetPath = SCHEME_DEX + filePath;
+        } else if (filePath.endsWith(PATCH_SUFFIX) && !filePath.startsWith(SCHEME_PATCH)) {
+            targetPath = SCHEME_PATCH + filePath;
         } else if (TextUtils.isEmpty(uri.getScheme())){
             targetPath = SCHEME_FILE + filePath;
         }
@@ -168,18 +255,43 @@ public class PluginInstaller {
      * @param callBack 安装监听器
      */
     public static void startInstall(final Context context, @NonNull final PluginLiteInfo info, final IInstallCallBack callBack) {
+        startInstall(context, info, callBack, null);
+    }
+
+    /**
+     * 准备安装一个插件，同时监听dexopt进度
+     *
+     * @param context          宿主的Context
+     * @param info             插件info信息
+     * @param callBack         安装监听器
+     * @param progressCallBack 安装进度监听器，可以为null；独立进程安装时不回调进度
+     */
+    public static void startInstall(final Context context, @NonNull final PluginLiteInfo info,
+                                    final IInstallCallBack callBack, final IInstallProgressCallBack progressCallBack) {
+        startInstall(context, info, false, callBack, progressCallBack);
+    }
+
+    /**
+     * 准备安装一个插件，同时监听dexopt进度
+     *
+     * @param context            宿主的Context
+     * @param info               插件info信息
+     * @param cleanBeforeInstall 安装前是否删除旧版本的文件，在安装流水线中执行，不阻塞调用线程
+     * @param callBack           安装监听器
+     * @param progressCallBack   安装进度监听器，可以为null；独立进程安装时不回调进度
+     */
+    public static void startInstall(final Context context, @NonNull final PluginLiteInfo info,
+                                    boolean cleanBeforeInstall, final IInstallCallBack callBack,
+                                    final IInstallProgressCallBack progressCallBack) {
         // mapping获取schema形式的path
         final String targetPath = mappingSchemaPath(info);
         // 根据版本判断是启用独立Service进程安装，还是直接安装
-        if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.JELLY_BEAN
-                || Neptune.getConfig().withInstallerProcess()
-                || info.useInstallerProcess) {
+        if (withInstallerProcess() || info.useInstallerProcess) {
             // 4.1以下系统启用独立进程Service安装插件
-            Intent intent = new Intent(PluginInstallerService.ACTION_INSTALL);
-            intent.setPackage(context.getPackageName());
-            intent.setClass(context, PluginInstallerService.class);
+            Intent intent = newInstallerIntent(context, PluginInstallerService.ACTION_INSTALL);
             intent.putExtra(IntentConstant.EXTRA_SRC_FILE, targetPath);
             intent.putExtra(IntentConstant.EXTRA_PLUGIN_INFO, (Parcelable) info);
+            intent.putExtra(IntentConstant.EXTRA_CLEAN_BEFORE_INSTALL, cleanBeforeInstall);
             try {
                 context.startService(intent);
             } catch (Exception e) {
@@ -187,36 +299,105 @@ public class PluginInstaller {
             }
         } else {
             // 4.2以上直接在当前进程安装
-            sInstallerExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    handleInstall(context, targetPath, info, callBack);
-                }
-            });
+            handleInstall(context, targetPath, info, cleanBeforeInstall, callBack, progressCallBack);
         }
     }
 
     /**
-     * 处理插件安装过程
+     * 提前启动安装进程并加载安装相关的类，后续的安装请求不需要再等待进程创建
+     * 只有使用独立进程安装插件时才生效
+     *
+     * @param context 宿主的Context
+     */
+    public static void warmUpInstallerProcess(Context context) {
+        if (!withInstallerProcess()) {
+            return;
+        }
+        Intent intent = newInstallerIntent(context, PluginInstallerService.ACTION_WARM_UP);
+        try {
+            context.startService(intent);
+        } catch (Exception e) {
+            // java.lang.IllegalStateException: Not allowed to start service Intent, app is in background uid UidRecord
+        }
+    }
+
+    /**
+     * 是否默认使用独立进程安装插件
+     */
+    private static boolean withInstallerProcess() {
+        return Build.VERSION.SDK_INT <= Build.VERSION_CODES.JELLY_BEAN
+                || Neptune.getConfig().withInstallerProcess();
+    }
+
+    /**
+     * 构造发给安装进程的Intent，同时带上安装进程的配置，安装进程可能没有初始化Neptune
+     */
+    private static Intent newInstallerIntent(Context context, String action) {
+        Intent intent = new Intent(action);
+        intent.setPackage(context.getPackageName());
+        intent.setClass(context, PluginInstallerService.class);
+        intent.putExtra(IntentConstant.EXTRA_REQUEST_TIME, SystemClock.elapsedRealtime());
+        intent.putExtra(IntentConstant.EXTRA_IDLE_TIMEOUT, Neptune.getConfig().getInstallerIdleTimeout());
+        intent.putExtra(IntentConstant.EXTRA_WARM_STANDBY, Neptune.getConfig().withInstallerWarmStandby());
+        return intent;
+    }
+
+    /**
+     * 处理插件安装过程，按照插件类型拆分成多个阶段提交到安装流水线异步执行
      *
      * @param context  宿主的Context
      * @param srcFile  源路径
      * @param info     插件info信息
+     * @param cleanBeforeInstall 安装前是否删除旧版本的文件
      * @param callBack 回调
+     * @param progressCallBack 安装进度回调，可以为null
      */
-    static void handleInstall(Context context, String srcFile, PluginLiteInfo info, IInstallCallBack callBack) {
-        PluginDebugLog.installFormatLog(TAG, "handleInstall srcFile:%s, info: %s", srcFile, info);
+    static void handleInstall(Context context, String srcFile, PluginLiteInfo info, boolean cleanBeforeInstall,
+                              IInstallCallBack callBack, IInstallProgressCallBack progressCallBack) {
+        PluginDebugLog.installFormatLog(TAG, "handleInstall srcFile:%s, clean: %s, info: %s",
+                srcFile, cleanBeforeInstall, info);
+        int[] stages;
+        if (srcFile.startsWith(PluginInstaller.SCHEME_SO)) {
+            stages = new int[]{STAGE_COPY, STAGE_NATIVE_LIB, STAGE_COMMIT};
+        } else if (srcFile.startsWith(PluginInstaller.SCHEME_DEX)) {
+            stages = new int[]{STAGE_COPY, STAGE_DEXOPT, STAGE_COMMIT};
+        } else {
+            if (!srcFile.startsWith(PluginInstaller.SCHEME_ASSETS)
+                    && !srcFile.startsWith(PluginInstaller.SCHEME_FILE)
+                    && !srcFile.startsWith(PluginInstaller.SCHEME_PATCH)) {
+                srcFile = PluginInstaller.SCHEME_FILE + srcFile;
+            }
+            stages = new int[]{STAGE_COPY, STAGE_NATIVE_LIB, STAGE_DEXOPT, STAGE_COMMIT};
+        }
+        PluginInstallPipeline pipeline = PluginInstallPipeline.getInstance();
+        if (cleanBeforeInstall) {
+            // 终止同一个插件进行中的旧安装，旧文件在本次安装的清理阶段删除
+            pipeline.onPackageDeleted(info.packageName);
+            int[] withClean = new int[stages.length + 1];
+            withClean[0] = STAGE_CLEAN;
+            System.arraycopy(stages, 0, withClean, 1, stages.length);
+            stages = withClean;
+        }
+        InstallSession session = new InstallSession(context, srcFile, info, callBack, stages);
+        session.progressCallback = progressCallBack;
+        pipeline.submit(session);
+    }
+
+    /**
+     * 拷贝阶段，校验插件文件并拷贝到安装目录
+     */
+    private static boolean copyPluginFile(InstallSession session) {
+        String srcFile = session.srcPathWithScheme;
         if (srcFile.startsWith(PluginInstaller.SCHEME_ASSETS)) {
-            installBuiltinApk(context, srcFile, info, callBack);
+            return installBuiltinApk(session);
         } else if (srcFile.startsWith(PluginInstaller.SCHEME_SO)) {
-            installSoPlugin(context, srcFile, info, callBack);
+            return installSoPlugin(session);
         } else if (srcFile.startsWith(PluginInstaller.SCHEME_DEX)) {
-            installDexPlugin(context, srcFile, info, callBack);
-        } else if (srcFile.startsWith(PluginInstaller.SCHEME_FILE)) {
-            installApkFile(context, srcFile, info, callBack);
+            return installDexPlugin(session);
+        } else if (srcFile.startsWith(PluginInstaller.SCHEME_PATCH)) {
+            return installPatchFile(session);
         } else {
-            srcFile = PluginInstaller.SCHEME_FILE + srcFile;
-            installApkFile(context, srcFile, info, callBack);
+            return installApkFile(session);
         }
     }
 
@@ -224,113 +405,200 @@ public class PluginInstaller {
      * 安装so插件，解压释放压缩包中的so库到相应的目录
      * 压缩包按照apk格式：对应架构的so库放到lib/{arch}/目录下
      */
-    private static void installSoPlugin(Context context, String srcFile,
-                                        PluginLiteInfo info, IInstallCallBack callback) {
-        String soZipPath = srcFile.substring(PluginInstaller.SCHEME_SO.length());
+    private static boolean installSoPlugin(InstallSession session) {
+        Context context = session.context;
+        String soZipPath = session.srcPathWithScheme.substring(PluginInstaller.SCHEME_SO.length());
         File soZipFile = new File(soZipPath);
         if (!soZipFile.exists()) {
-            setInstallFail(context, srcFile, ErrorType.INSTALL_ERROR_SO_NOT_EXIST, info, callback);
-            return;
+            session.fail(ErrorType.INSTALL_ERROR_SO_NOT_EXIST);
+            return false;
         }
 
         // 获取插件安装地址
+        PluginLiteInfo info = session.info;
         String packageName = info.packageName;
         String apkName = info.packageName + "." + info.pluginVersion + PluginInstaller.APK_SUFFIX;
         File destFile = getDefaultInstallLocation(context, apkName);
-        int copyResult = tryCopyPluginFile(soZipFile, destFile);
+        if (!checkFreeSpace(session, soZipFile, destFile)) {
+            return false;
+        }
+        int copyResult = tryCopyPluginFile(session, soZipFile, destFile, false);
         if (copyResult != ErrorType.SUCCESS) {
-            setInstallFail(context, srcFile, copyResult, info, callback);
-            return;
+            session.fail(copyResult);
+            return false;
         }
 
-        PluginDebugLog.installFormatLog(TAG,
-                "installSoPlugin, begin install native lib, pkgName:%s", packageName);
         File pkgDir = new File(PluginInstaller.getPluginappRootPath(context), packageName);
         if (!pkgDir.exists() && !pkgDir.mkdirs()) {
-            setInstallFail(context, srcFile, ErrorType.INSTALL_ERROR_MKDIR_FAILED, info, callback);
-            return;
+            session.fail(ErrorType.INSTALL_ERROR_MKDIR_FAILED);
+            return false;
         }
 
+        // lib目录中未变化的so库在释放时会跳过，不需要清空
         File libDir = new File(pkgDir, PluginInstaller.NATIVE_LIB_PATH);
-        FileUtils.deleteDirectory(libDir);
         if (!libDir.exists() && !libDir.mkdirs()) {
-            setInstallFail(context, srcFile, ErrorType.INSTALL_ERROR_MKDIR_FAILED, info, callback);
-            return;
-        }
-
-        boolean extractResult = tryCopyNativeLib(context, destFile.getAbsolutePath(), libDir.getAbsolutePath());
-        PluginDebugLog.installFormatLog(TAG, "installSoPlugin %s success: %s", packageName, extractResult);
-        if (extractResult) {
-            setInstallSuccess(context, srcFile, destFile.getAbsolutePath(), info, callback);
-        } else {
-            setInstallFail(context, srcFile, ErrorType.INSTALL_ERROR_SO_UNZIP_FAILED, info, callback);
+            session.fail(ErrorType.INSTALL_ERROR_MKDIR_FAILED);
+            return false;
         }
+        session.destFile = destFile;
+        session.libDir = libDir;
+        return true;
     }
 
     /**
      * 安装dex插件，只做拷贝
      * 压缩包结构按照apk格式：classes.dex, classes2.dex
      */
-    private static void installDexPlugin(Context context, String srcFile,
-                                         PluginLiteInfo info, IInstallCallBack callback) {
-        String dexZipPath = srcFile.substring(PluginInstaller.SCHEME_DEX.length());
+    private static boolean installDexPlugin(InstallSession session) {
+        Context context = session.context;
+        String dexZipPath = session.srcPathWithScheme.substring(PluginInstaller.SCHEME_DEX.length());
         File dexZipFile = new File(dexZipPath);
         if (!dexZipFile.exists()) {
-            setInstallFail(context, srcFile, ErrorType.INSTALL_ERROR_DEX_NOT_EXIST, info, callback);
-            return;
+            session.fail(ErrorType.INSTALL_ERROR_DEX_NOT_EXIST);
+            return false;
         }
 
         // 获取插件安装地址
+        PluginLiteInfo info = session.info;
         String packageName = info.packageName;
         String apkName = info.packageName + "." + info.pluginVersion + PluginInstaller.APK_SUFFIX;
         File destFile = getDefaultInstallLocation(context, apkName);
-        int copyResult = tryCopyPluginFile(dexZipFile, destFile);
+        if (!checkFreeSpace(session, dexZipFile, destFile)) {
+            return false;
+        }
+        int copyResult = tryCopyPluginFile(session, dexZipFile, destFile, false);
         if (copyResult != ErrorType.SUCCESS) {
-            setInstallFail(context, srcFile, copyResult, info, callback);
-            return;
+            session.fail(copyResult);
+            return false;
         }
 
-        PluginDebugLog.installFormatLog(TAG,
-                "installDexPlugin, begin install native lib, pkgName:%s", packageName);
-        String rootDir = PluginInstaller.getPluginappRootPath(context).getAbsolutePath();
-        File pkgDir = new File(rootDir, packageName);
+        File pkgDir = new File(PluginInstaller.getPluginappRootPath(context), packageName);
         if (!pkgDir.exists() && !pkgDir.mkdirs()) {
-            setInstallFail(context, srcFile, ErrorType.INSTALL_ERROR_MKDIR_FAILED, info, callback);
-            return;
+            session.fail(ErrorType.INSTALL_ERROR_MKDIR_FAILED);
+            return false;
         }
 
         File dexDir = new File(pkgDir, PluginInstaller.NATIVE_DEX_PATH);
         FileUtils.deleteDirectory(dexDir);
         if (!dexDir.exists() && !dexDir.mkdirs()) {
-            setInstallFail(context, srcFile, ErrorType.INSTALL_ERROR_MKDIR_FAILED, info, callback);
-            return;
+            session.fail(ErrorType.INSTALL_ERROR_MKDIR_FAILED);
+            return false;
         }
-        // dexopt, 提前优化插件的dex
-        PluginDebugLog.installFormatLog(TAG,
-                "doInstall: began install dex,pkgName:%s", packageName);
-        tryInstallNativeDex(destFile, packageName, rootDir);
-        PluginDebugLog.installFormatLog(TAG, "installDexPlugin %s success", packageName);
-        setInstallSuccess(context, srcFile, destFile.getAbsolutePath(), info, callback);
+        session.destFile = destFile;
+        return true;
     }
 
 
     /**
      * 安装asset/pluginapp内置插件
      */
-    private static void installBuiltinApk(Context context, String assetsPathWithScheme,
-                                          PluginLiteInfo info, IInstallCallBack callback) {
+    private static boolean installBuiltinApk(InstallSession session) {
+        Context context = session.context;
+        String assetsPathWithScheme = session.srcPathWithScheme;
         String assetsPath = assetsPathWithScheme.substring(PluginInstaller.SCHEME_ASSETS.length());
         PluginDebugLog.installFormatLog(TAG,
                 "PluginInstallerService installBuildInApk assetsPath" + assetsPath);
-        // 先把 asset 拷贝到临时文件
+        // 先把 asset 拷贝到安装目录下的临时文件，解析完成后rename成最终的安装文件，多个插件并行安装，临时文件以包名区分
+        File rootDir = PluginInstaller.getPluginappRootPath(context);
+        // 拷贝之前按asset的长度检查空间，so库和dex的空间在解析apk后检查
+        long assetLength = getAssetLength(context, assetsPath);
+        if (!checkFreeSpace(session, rootDir, assetLength, 0L)) {
+            return false;
+        }
+        File tempFile = new File(rootDir, session.info.packageName + "." + System.currentTimeMillis() + ".tmp");
+        try {
+            MessageDigest digest = newDigestIfNeed(session);
+            int extractResult = extractAssetFile(context, assetsPath, tempFile, digest);
+            PluginDebugLog.installFormatLog(TAG, "doInstall copy asset result: %d", extractResult);
+            if (extractResult != ErrorType.SUCCESS) {
+                session.fail(extractResult);
+                return false;
+            }
+            session.bytesWritten += tempFile.length();
+            if (digest != null) {
+                session.actualDigest = FileUtils.toHexString(digest.digest());
+            }
+            // 解析apk之前先校验摘要，损坏的文件尽早失败
+            if (!verifyDigest(session)) {
+                session.fail(ErrorType.INSTALL_ERROR_APK_DIGEST_NOT_MATCH);
+                return false;
+            }
+            return doInstall(session, tempFile, true);
+        } finally {
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * 获取asset文件的长度，未压缩存储的asset从文件描述符获取，否则从流中获取解压后的长度
+     *
+     * @return asset的长度，无法获取时返回0
+     */
+    private static long getAssetLength(Context context, String assetsPath) {
+        try {
+            AssetFileDescriptor afd = context.getAssets().openFd(assetsPath);
+            long length = afd.getLength();
+            try {
+                afd.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            return Math.max(length, 0L);
+        } catch (IOException e) {
+            // asset被压缩存储，无法获取文件描述符
+        }
         InputStream is = null;
         try {
             is = context.getAssets().open(assetsPath);
-            doInstall(context, is, assetsPathWithScheme, info, callback);
+            return Math.max(is.available(), 0);
+        } catch (IOException e) {
+            // asset不存在，交给拷贝过程处理
+            return 0L;
+        } finally {
+            FileUtils.closeQuietly(is);
+        }
+    }
 
+    /**
+     * 拷贝asset文件，未压缩存储的asset直接从宿主apk中对应的偏移量传输，否则通过流拷贝
+     *
+     * @param digest 拷贝过程中同时计算的摘要，可以为null
+     * @return 0: 拷贝成功，其他：对应的错误码
+     */
+    private static int extractAssetFile(Context context, String assetsPath, File destFile, MessageDigest digest) {
+        AssetFileDescriptor afd = null;
+        try {
+            afd = context.getAssets().openFd(assetsPath);
         } catch (IOException e) {
-            setInstallFail(context, assetsPathWithScheme, e instanceof FileNotFoundException ?
-                    ErrorType.INSTALL_ERROR_ASSET_APK_NOT_FOUND : ErrorType.INSTALL_ERROR_FILE_IOEXCEPTION, info, callback);
+            // asset被压缩存储，无法获取文件描述符
+        }
+        if (afd != null) {
+            try {
+                if (FileUtils.copyToFile(afd, destFile, digest)) {
+                    return ErrorType.SUCCESS;
+                }
+                if (digest != null) {
+                    digest.reset();
+                }
+            } finally {
+                try {
+                    afd.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        InputStream is = null;
+        try {
+            is = context.getAssets().open(assetsPath);
+            return FileUtils.copyToFile(is, destFile, digest) ? ErrorType.SUCCESS
+                    : ErrorType.INSTALL_ERROR_ASSET_APK_COPY_FAILED;
+        } catch (IOException e) {
+            return e instanceof FileNotFoundException ?
+                    ErrorType.INSTALL_ERROR_ASSET_APK_NOT_FOUND : ErrorType.INSTALL_ERROR_FILE_IOEXCEPTION;
         } finally {
             FileUtils.closeQuietly(is);
         }
@@ -340,76 +608,135 @@ public class PluginInstaller {
     /**
      * 安装sd卡上的插件
      */
-    private static void installApkFile(Context context, String apkFilePathWithScheme,
-                                       PluginLiteInfo info, IInstallCallBack callback) {
-        String apkFilePath = apkFilePathWithScheme.substring(PluginInstaller.SCHEME_FILE.length());
+    private static boolean installApkFile(InstallSession session) {
+        String apkFilePath = session.srcPathWithScheme.substring(PluginInstaller.SCHEME_FILE.length());
         PluginDebugLog.installFormatLog(TAG, "PluginInstallerService::installApkFile: %s", apkFilePath);
 
         File source = new File(apkFilePath);
         if (!source.exists()) {
-            setInstallFail(context, apkFilePathWithScheme, ErrorType.INSTALL_ERROR_APK_NOT_EXIST, info, callback);
-            return;
+            session.fail(ErrorType.INSTALL_ERROR_APK_NOT_EXIST);
+            return false;
+        }
+        // 和内置插件、差分包一样，解析apk之前先校验摘要，损坏或者被篡改的文件不交给PackageManager解析
+        if (!TextUtils.isEmpty(session.info.apkDigest)) {
+            MessageDigest digest = newDigestIfNeed(session);
+            if (digest != null) {
+                session.actualDigest = FileUtils.digest(source, digest);
+            }
+            if (!verifyDigest(session)) {
+                session.fail(ErrorType.INSTALL_ERROR_APK_DIGEST_NOT_MATCH);
+                return false;
+            }
         }
+        return doInstall(session, source, false);
+    }
 
-        InputStream is = null;
+    /**
+     * 安装差分包，基于已安装的基础版本合成新版本apk，之后和完整apk一样释放so库和dexopt
+     */
+    private static boolean installPatchFile(InstallSession session) {
+        Context context = session.context;
+        PluginLiteInfo info = session.info;
+        String patchPath = session.srcPathWithScheme.substring(PluginInstaller.SCHEME_PATCH.length());
+        PluginDebugLog.installFormatLog(TAG, "installPatchFile: %s, base version: %s",
+                patchPath, info.patchBaseVersion);
+        File patchFile = new File(patchPath);
+        if (!patchFile.exists()) {
+            session.fail(ErrorType.INSTALL_ERROR_PATCH_NOT_EXIST);
+            return false;
+        }
+        // 合成结果必须校验摘要，差分包和基础版本不匹配时可能合成出格式正确但内容错误的apk
+        if (TextUtils.isEmpty(info.apkDigest)) {
+            PluginDebugLog.installFormatLog(TAG, "installPatchFile: apkDigest is required for %s", info.packageName);
+            session.fail(ErrorType.INSTALL_ERROR_PATCH_APPLY_FAILED);
+            return false;
+        }
+        File baseApk = findPatchBaseApk(context, info);
+        if (baseApk == null) {
+            session.fail(ErrorType.INSTALL_ERROR_PATCH_BASE_NOT_EXIST);
+            return false;
+        }
+
+        // 合成之前按差分包头部记录的新版本长度检查空间，so库和dex按基础版本估算
+        File rootDir = PluginInstaller.getPluginappRootPath(context);
+        long targetLength;
+        try {
+            targetLength = PluginPatcher.readTargetLength(patchFile);
+        } catch (IOException e) {
+            PluginDebugLog.installFormatLog(TAG, "read patch header for %s failed: %s",
+                    info.packageName, e.getMessage());
+            session.fail(ErrorType.INSTALL_ERROR_PATCH_APPLY_FAILED);
+            return false;
+        }
+        if (!checkFreeSpace(session, rootDir, targetLength, PluginStorageManager.estimateCodeBytes(baseApk))) {
+            return false;
+        }
+        // 合成到安装目录下的临时文件，校验通过后rename成最终的安装文件
+        File tempFile = new File(rootDir, info.packageName + "." + System.currentTimeMillis() + ".tmp");
         try {
-            is = new FileInputStream(source);
-            doInstall(context, is, apkFilePathWithScheme, info, callback);
-        } catch (FileNotFoundException e) {
-            setInstallFail(context, apkFilePathWithScheme, ErrorType.INSTALL_ERROR_APK_NOT_EXIST, info, callback);
+            MessageDigest digest = newDigestIfNeed(session);
+            try {
+                session.bytesWritten += PluginPatcher.apply(baseApk, patchFile, tempFile, digest);
+            } catch (IOException e) {
+                PluginDebugLog.installFormatLog(TAG, "apply patch for %s failed: %s",
+                        info.packageName, e.getMessage());
+                session.fail(ErrorType.INSTALL_ERROR_PATCH_APPLY_FAILED);
+                return false;
+            }
+            if (digest != null) {
+                session.actualDigest = FileUtils.toHexString(digest.digest());
+            }
+            if (!verifyDigest(session)) {
+                session.fail(ErrorType.INSTALL_ERROR_APK_DIGEST_NOT_MATCH);
+                return false;
+            }
+            return doInstall(session, tempFile, true);
         } finally {
-            FileUtils.closeQuietly(is);
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
         }
     }
 
     /**
-     * 安装某个插件
-     *
-     * @param context           上下文
-     * @param is                输入流，文件流或asset流
-     * @param srcPathWithScheme 文件路径
-     * @param info              插件信息
-     * @param callback          安装结果回调
+     * 查找差分包依赖的基础版本apk，使用已安装插件记录的安装路径，而不是按命名规则拼接路径
      */
-    private static void doInstall(Context context, InputStream is, String srcPathWithScheme,
-                                  PluginLiteInfo info, IInstallCallBack callback) {
-
-        if (is == null || TextUtils.isEmpty(srcPathWithScheme)) {
-            PluginDebugLog.installLog(TAG, "doInstall: srcPathWithScheme or InputStream is null and just return!");
-            setInstallFail(context, srcPathWithScheme, ErrorType.INSTALL_ERROR_STREAM_NULL,
-                    info, callback);
-            return;
+    private static File findPatchBaseApk(Context context, PluginLiteInfo info) {
+        if (TextUtils.isEmpty(info.patchBaseVersion)) {
+            return null;
+        }
+        PluginLiteInfo installed = PluginPackageManagerNative.getInstance(context).getPackageInfo(info.packageName);
+        if (installed == null || !TextUtils.equals(installed.pluginVersion, info.patchBaseVersion)
+                || TextUtils.isEmpty(installed.srcApkPath)) {
+            PluginDebugLog.installFormatLog(TAG, "patch base %s@%s is not installed, installed: %s",
+                    info.packageName, info.patchBaseVersion, installed);
+            return null;
         }
+        File baseApk = new File(installed.srcApkPath);
+        if (!baseApk.exists()) {
+            PluginDebugLog.installFormatLog(TAG, "patch base apk %s not found", baseApk.getAbsolutePath());
+            return null;
+        }
+        return baseApk;
+    }
 
+    /**
+     * 校验插件apk并拷贝到安装目录
+     *
+     * @param session    安装过程的状态
+     * @param srcApkFile 待安装的apk文件
+     * @param ownsSource 源文件是否是安装过程中生成的临时文件，可以直接rename到安装目录
+     * @return 是否可以继续安装
+     */
+    private static boolean doInstall(InstallSession session, File srcApkFile, boolean ownsSource) {
+        Context context = session.context;
+        String srcPathWithScheme = session.srcPathWithScheme;
+        PluginLiteInfo info = session.info;
         PluginDebugLog.installFormatLog(TAG,
                 "doInstall: %s, pkgName: %s", srcPathWithScheme, info.packageName);
 
         PackageManager pm = context.getPackageManager();
-        String apkFilePath = null;
-        if (srcPathWithScheme.startsWith(PluginInstaller.SCHEME_FILE)) {
-            apkFilePath = srcPathWithScheme.substring(PluginInstaller.SCHEME_FILE.length());
-        } else if (srcPathWithScheme.startsWith(PluginInstaller.SCHEME_ASSETS)) {
-            // 解压拷贝Asset目录下的插件
-            File tempFile = new File(PluginInstaller.getPluginappRootPath(context), System.currentTimeMillis() + ".tmp");
-            boolean result = FileUtils.copyToFile(is, tempFile);
-            PluginDebugLog.installLog(TAG, "doInstall copy result" + result);
-            if (!result) {
-                tempFile.delete();
-                setInstallFail(context, srcPathWithScheme, ErrorType.INSTALL_ERROR_ASSET_APK_COPY_FAILED, info, callback);
-                return;
-            }
-            apkFilePath = tempFile.getAbsolutePath();
-        }
-        if (null == apkFilePath) {
-            setInstallFail(context, srcPathWithScheme, ErrorType.INSTALL_ERROR_FILE_PATH_ILLEGAL, info, callback);
-            return;
-        }
-        // 再次校验源文件是否存在
-        File srcApkFile = new File(apkFilePath);
-        if (!srcApkFile.exists()) {
-            setInstallFail(context, srcPathWithScheme, ErrorType.INSTALL_ERROR_APK_NOT_EXIST, info, callback);
-            return;
-        }
+        String apkFilePath = srcApkFile.getAbsolutePath();
         // 解析apk数据
         PackageInfo pkgInfo = null;
         try {
@@ -419,8 +746,8 @@ public class PluginInstaller {
         }
 
         if (pkgInfo == null) {
-            setInstallFail(context, srcPathWithScheme, ErrorType.INSTALL_ERROR_APK_PARSE_FAILED, info, callback);
-            return;
+            session.fail(ErrorType.INSTALL_ERROR_APK_PARSE_FAILED);
+            return false;
         }
 
         info.srcApkPkgName = pkgInfo.packageName;
@@ -432,6 +759,10 @@ public class PluginInstaller {
         if (PluginDebugLog.isDebug()) {
             int nameStart = srcPathWithScheme.lastIndexOf("/");
             int nameEnd = srcPathWithScheme.lastIndexOf(PluginInstaller.APK_SUFFIX);
+            if (nameEnd <= nameStart) {
+                // 差分包等不以.apk结尾的安装文件
+                nameEnd = srcPathWithScheme.length();
+            }
             String fileName = srcPathWithScheme.substring(nameStart + 1, nameEnd);
             PluginDebugLog.installLog(TAG, "doInstall with: " + packageName + " and file: " + fileName);
             // 待安装的插件和apk里的包名是否一致
@@ -448,8 +779,8 @@ public class PluginInstaller {
 
         if (!TextUtils.equals(info.packageName, pkgInfo.packageName)) {
             PluginDebugLog.installLog(TAG, "doInstall with apk packageName not match with plugin name, " + packageName);
-            setInstallFail(context, srcPathWithScheme, ErrorType.INSTALL_ERROR_PKG_NAME_NOT_MATCH, info, callback);
-            return;
+            session.fail(ErrorType.INSTALL_ERROR_PKG_NAME_NOT_MATCH);
+            return false;
         }
 
         // 如果是内置app，检查文件名是否以包名命名，处于效率原因，要求内置app必须以包名命名.
@@ -462,108 +793,353 @@ public class PluginInstaller {
                 // named with it's package name : "
                 // + packageName + PluginInstaller.APK_SUFFIX);
                 PluginDebugLog.installLog(TAG, "doInstall build plugin, package name is not same as in apk file, return!");
-                setInstallFail(context, srcPathWithScheme, ErrorType.INSTALL_ERROR_PKG_NAME_NOT_MATCH, info, callback);
-                return;
+                session.fail(ErrorType.INSTALL_ERROR_PKG_NAME_NOT_MATCH);
+                return false;
             }
         }
         // 获取插件安装地址
         String apkName = packageName + "." + info.pluginVersion + PluginInstaller.APK_SUFFIX;
         File destFile = getPreferredInstallLocation(context, pkgInfo, apkName);
-        int copyResult = tryCopyPluginFile(srcApkFile, destFile);
+        if (!checkFreeSpace(session, srcApkFile, destFile)) {
+            return false;
+        }
+        int copyResult = tryCopyPluginFile(session, srcApkFile, destFile, ownsSource);
         if (copyResult != ErrorType.SUCCESS) {
-            setInstallFail(context, srcPathWithScheme, copyResult, info, callback);
-            return;
+            session.fail(copyResult);
+            return false;
         }
 
-        PluginDebugLog.installFormatLog(TAG,
-                "doInstall: begin install native lib, pkgName:%s", packageName);
-        String rootDir = PluginInstaller.getPluginappRootPath(context).getAbsolutePath();
-        File pkgDir = new File(rootDir, packageName);
+        File pkgDir = new File(PluginInstaller.getPluginappRootPath(context), packageName);
         if (!pkgDir.exists() && !pkgDir.mkdirs()) {
-            setInstallFail(context, srcPathWithScheme, ErrorType.INSTALL_ERROR_MKDIR_FAILED, info, callback);
-            return;
+            session.fail(ErrorType.INSTALL_ERROR_MKDIR_FAILED);
+            return false;
         }
 
-        File libDir = new File(pkgDir, PluginInstaller.NATIVE_LIB_PATH);
+        // so库和优化后的dex保存在当前版本的槽位中，升级时旧版本仍然可以继续运行
+        File libDir = new File(getPluginSlotDir(context, packageName, destFile), PluginInstaller.NATIVE_LIB_PATH);
         if (!libDir.exists() && !libDir.mkdirs()) {
-            setInstallFail(context, srcPathWithScheme, ErrorType.INSTALL_ERROR_MKDIR_FAILED, info, callback);
-            return;
+            session.fail(ErrorType.INSTALL_ERROR_MKDIR_FAILED);
+            return false;
         }
+        session.destFile = destFile;
+        session.libDir = libDir;
+        return true;
+    }
 
-        tryCopyNativeLib(context, destFile.getAbsolutePath(), libDir.getAbsolutePath());
+    /**
+     * 拷贝前检查剩余空间，包括apk本身、释放的so库和优化后的dex，
+     * 空间不足时先清理安装中断遗留的临时文件，仍然不足则安装失败
+     */
+    private static boolean checkFreeSpace(InstallSession session, File srcFile, File destFile) {
+        File destDir = destFile.getParentFile();
+        // 同一目录下的临时文件直接rename，不占用额外的空间
+        long apkBytes = destDir.equals(srcFile.getParentFile()) ? 0L : srcFile.length();
+        return checkFreeSpace(session, destDir, apkBytes, PluginStorageManager.estimateCodeBytes(srcFile));
+    }
+
+    /**
+     * 检查剩余空间
+     *
+     * @param destDir   apk写入的目录
+     * @param apkBytes  写入的apk字节数
+     * @param codeBytes 释放的so库和优化后的dex的估算字节数，保存在pluginapp目录下
+     */
+    private static boolean checkFreeSpace(InstallSession session, File destDir, long apkBytes, long codeBytes) {
+        File rootDir = getPluginappRootPath(session.context);
+        // 外置存储上的apk和内部存储上的so库、dex分别检查
+        long destRequired = destDir.equals(rootDir) ? apkBytes + codeBytes : apkBytes;
+        long rootRequired = destDir.equals(rootDir) ? 0L : codeBytes;
+        if (PluginStorageManager.hasEnoughSpace(destDir, destRequired)
+                && PluginStorageManager.hasEnoughSpace(rootDir, rootRequired)) {
+            return true;
+        }
+        if (PluginStorageManager.deleteStaleTempFiles(session.context) > 0
+                && PluginStorageManager.hasEnoughSpace(destDir, destRequired)
+                && PluginStorageManager.hasEnoughSpace(rootDir, rootRequired)) {
+            return true;
+        }
+        PluginDebugLog.installFormatLog(TAG, "no enough space to install %s, apk %d, code %d",
+                session.info.packageName, apkBytes, codeBytes);
+        session.fail(ErrorType.INSTALL_ERROR_NO_ENOUGH_SPACE);
+        return false;
+    }
+
+    /**
+     * so库阶段，释放插件中的so库
+     */
+    private static boolean installNativeLib(InstallSession session) {
+        String packageName = session.info.packageName;
+        PluginDebugLog.installFormatLog(TAG,
+                "doInstall: begin install native lib, pkgName:%s", packageName);
+        seedNativeLib(session);
+        long extractResult = tryCopyNativeLib(session.context,
+                session.destFile.getAbsolutePath(), session.libDir.getAbsolutePath());
         PluginDebugLog.installFormatLog(TAG,
-                "doInstall: finish install lib,pkgName:%s", packageName);
-        // dexopt, 提前优化插件的dex
+                "doInstall: finish install lib, pkgName:%s, bytes written: %d", packageName, extractResult);
+        if (extractResult > 0) {
+            session.bytesWritten += extractResult;
+        }
+        if (extractResult < 0 && session.srcPathWithScheme.startsWith(PluginInstaller.SCHEME_SO)) {
+            // so插件必须释放成功，apk插件可能不包含so库
+            session.fail(ErrorType.INSTALL_ERROR_SO_UNZIP_FAILED);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * dexopt阶段，提前优化插件的dex，包括低版本系统上需要MultiDex加载的secondary dex，
+     * 避免插件首次加载时在运行进程中执行dexopt
+     */
+    private static void installDex(final InstallSession session) {
+        final String packageName = session.info.packageName;
         PluginDebugLog.installFormatLog(TAG,
                 "doInstall: began install dex,pkgName:%s", packageName);
-        tryInstallNativeDex(destFile, packageName, rootDir);
+        long start = System.currentTimeMillis();
+        File slotDir = getPluginSlotDir(session.context, packageName, session.destFile);
+        File oatDir = new File(slotDir, OAT_PATH);
+        if (!oatDir.exists()) {
+            oatDir.mkdirs();
+        }
+        List<File> dexFiles = new ArrayList<>();
+        List<File> optimizedDirs = new ArrayList<>();
+        dexFiles.add(session.destFile);
+        optimizedDirs.add(oatDir);
+        try {
+            List<? extends File> secondaryDexes = MultiDex.extractSecondaryDexes(packageName, session.destFile, slotDir);
+            File secondaryDexDir = MultiDex.getSecondaryDexDir(slotDir);
+            for (File dexFile : secondaryDexes) {
+                dexFiles.add(dexFile);
+                optimizedDirs.add(secondaryDexDir);
+            }
+        } catch (IOException e) {
+            // 释放失败时插件加载阶段会重新释放
+            PluginDebugLog.installFormatLog(TAG, "extract secondary dex for %s failed: %s",
+                    packageName, e.getMessage());
+        }
+
+        final int total = dexFiles.size();
+        final AtomicInteger finished = new AtomicInteger();
+        final Map<File, Long> startTimes = new ConcurrentHashMap<>();
+        final List<String> failedDexes = Collections.synchronizedList(new ArrayList<String>());
+        boolean success = tryInstallNativeDex(dexFiles, optimizedDirs, new DexOptimizer.ResultCallback() {
+            @Override
+            public void onStart(File dexFile, File optimizedDir) {
+                startTimes.put(dexFile, System.currentTimeMillis());
+            }
+
+            @Override
+            public void onSuccess(File dexFile, File optimizedDir, File optimizedFile) {
+                onDexFinished(dexFile);
+            }
+
+            @Override
+            public void onFailed(File dexFile, File optimizedDir, Throwable thr) {
+                // 安装不因此失败，插件加载时由系统重新优化，但是首次启动会变慢
+                failedDexes.add(dexFile.getName());
+                Log.w(TAG, "dexopt " + dexFile.getAbsolutePath() + " failed for " + packageName, thr);
+                onDexFinished(dexFile);
+            }
+
+            private void onDexFinished(File dexFile) {
+                Long startTime = startTimes.get(dexFile);
+                long costMs = startTime != null ? System.currentTimeMillis() - startTime : 0;
+                int count = finished.incrementAndGet();
+                PluginDebugLog.installFormatLog(TAG, "dexopt %s finished (%d/%d), cost %d ms",
+                        dexFile.getName(), count, total, costMs);
+                if (session.progressCallback != null) {
+                    try {
+                        session.progressCallback.onPackageInstallProgress(session.info, dexFile.getName(), count, total, costMs);
+                    } catch (RemoteException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
         PluginDebugLog.installFormatLog(TAG,
-                "doInstall: finish install dex,pkgName:%s", packageName);
-        // dexoat结束之后，再通知插件安装完成
-        setInstallSuccess(context, srcPathWithScheme, destFile.getAbsolutePath(), info, callback);
+                "doInstall: finish install dex,pkgName:%s, dex count %d, success %s, cost %d ms",
+                packageName, total, success, System.currentTimeMillis() - start);
+        if (!success) {
+            Log.w(TAG, "dexopt failed for " + packageName + ", failed dex " + failedDexes + " of " + total
+                    + ", will be optimized on first load");
+        }
     }
 
     /**
-     * 拷贝插件文件，如果在相同文件夹下面，直接rename，否则copy
+     * 提交阶段，dexopt结束之后，再通知插件安装完成
+     */
+    private static void commitInstall(InstallSession session) {
+        String srcPathWithScheme = session.srcPathWithScheme;
+        if (!srcPathWithScheme.startsWith(PluginInstaller.SCHEME_SO)
+                && !srcPathWithScheme.startsWith(PluginInstaller.SCHEME_DEX)) {
+            // 提前解析插件的PackageInfo并写入磁盘缓存，加快插件启动
+            PluginPackageInfo packageInfo = PluginPackageInfoCache.prepare(session.context, session.destFile);
+            // 预先计算插件首次启动需要的Activity代理特征和静态Receiver
+            PluginLaunchArtifacts.prepare(session.context, session.destFile, packageInfo);
+        }
+        PluginDebugLog.installFormatLog(TAG, "install %s wrote %d bytes, apk size %d",
+                session.info.packageName, session.bytesWritten, session.destFile.length());
+        setInstallSuccess(session.context, srcPathWithScheme, session.destFile.getAbsolutePath(),
+                session.info, session.callback);
+    }
+
+    /**
+     * 拷贝插件文件，如果在相同文件夹下面或者源文件是安装过程中生成的临时文件，直接rename，否则copy；
+     * 指定了插件的摘要时，拷贝的同时计算SHA-256并校验
+     * @param session  安装过程的状态，记录实际写入的字节数
      * @param srcFile  插件源文件
      * @param destFile  插件目标文件
+     * @param ownsSource 源文件是否是安装过程中生成的临时文件
      * @return 0: copy成功，其他：对应的错误码
      */
-    private static int tryCopyPluginFile(File srcFile, File destFile) {
+    private static int tryCopyPluginFile(InstallSession session, File srcFile, File destFile, boolean ownsSource) {
         int copyResult = ErrorType.SUCCESS;
         if (destFile.exists()) {
             destFile.delete();
         }
 
-        if (TextUtils.equals(srcFile.getParent(), destFile.getParent())) {
-            // 目标文件和临时文件在同一目录下
+        // 源文件已经校验过时rename不需要重新读取，拷贝时仍然校验写入的数据
+        MessageDigest digest = newDigest(session);
+        boolean copied = false;
+        if (ownsSource || TextUtils.equals(srcFile.getParent(), destFile.getParent())) {
+            // 目标文件和临时文件在同一目录或者同一个文件系统下，rename不需要拷贝数据
             PluginDebugLog.installLog(TAG,
-                    "tryCopyPluginFile: tmpFile and destFile in same directory!");
+                    "tryCopyPluginFile: try rename tmpFile to destFile!");
             if (!srcFile.renameTo(destFile)) {
-                // rename失败，尝试拷贝
-                boolean tempResult = FileUtils.copyToFile(srcFile, destFile);
+                // rename失败，比如安装到 sdcard，尝试拷贝
+                boolean tempResult = FileUtils.copyToFile(srcFile, destFile, digest);
                 if (!tempResult) {
                     PluginDebugLog.installLog(TAG, "tryCopyPluginFile: copy apk failed!");
                     copyResult = ErrorType.INSTALL_ERROR_RENAME_FAILED;
                 } else {
+                    session.bytesWritten += destFile.length();
                     srcFile.delete();
+                    copied = true;
                 }
             }
         } else {
             // 拷贝到其他目录，比如安装到 sdcard
             PluginDebugLog.installLog(TAG,
                     "tryCopyPluginFile: tmpFile and destFile in different directory!");
-            boolean tempResult = FileUtils.copyToFile(srcFile, destFile);
+            boolean tempResult = FileUtils.copyToFile(srcFile, destFile, digest);
             if (!tempResult) {
                 PluginDebugLog.installLog(TAG, "tryCopyPluginFile: copy apk failed!");
                 copyResult = ErrorType.INSTALL_ERROR_APK_COPY_FAILED;
+            } else {
+                session.bytesWritten += destFile.length();
+                copied = true;
             }
         }
+
+        if (copyResult == ErrorType.SUCCESS && digest != null) {
+            if (copied) {
+                session.actualDigest = FileUtils.toHexString(digest.digest());
+            } else if (session.actualDigest == null) {
+                // rename的文件没有经过拷贝，需要单独读取一遍计算摘要
+                session.actualDigest = FileUtils.digest(destFile, digest);
+            }
+        }
+        if (copyResult == ErrorType.SUCCESS && !verifyDigest(session)) {
+            destFile.delete();
+            copyResult = ErrorType.INSTALL_ERROR_APK_DIGEST_NOT_MATCH;
+        }
         return copyResult;
     }
 
     /**
-     * 拷贝释放so库到对应的lib目录
+     * 需要校验插件摘要并且还没有计算过时，创建SHA-256摘要
+     */
+    private static MessageDigest newDigestIfNeed(InstallSession session) {
+        return session.actualDigest != null ? null : newDigest(session);
+    }
+
+    /**
+     * 需要校验插件摘要时创建SHA-256摘要
+     */
+    private static MessageDigest newDigest(InstallSession session) {
+        if (TextUtils.isEmpty(session.info.apkDigest)) {
+            return null;
+        }
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // 无法计算摘要时校验失败
+            return null;
+        }
+    }
+
+    /**
+     * 校验插件文件的摘要，没有指定期望的摘要时不校验
+     */
+    private static boolean verifyDigest(InstallSession session) {
+        return verifyDigest(session.info.packageName, session.info.apkDigest, session.actualDigest);
+    }
+
+    /**
+     * 校验插件文件的摘要，不区分大小写
+     *
+     * @param expected 期望的摘要，为空时不校验
+     * @param actual   实际计算的摘要，没有计算时为null
+     */
+    static boolean verifyDigest(String packageName, String expected, String actual) {
+        if (TextUtils.isEmpty(expected)) {
+            return true;
+        }
+        boolean match = expected.equalsIgnoreCase(actual);
+        if (!match) {
+            PluginDebugLog.installFormatLog(TAG, "verify digest failed for %s, expected %s, actual %s",
+                    packageName, expected, actual);
+        }
+        return match;
+    }
+
+    /**
+     * 升级到新的版本槽位时lib目录是空的，先复用已安装版本的so库和清单，未变化的so库不需要重新释放
+     */
+    private static void seedNativeLib(InstallSession session) {
+        Context context = session.context;
+        String packageName = session.info.packageName;
+        PluginLiteInfo installed = PluginPackageManagerNative.getInstance(context).getPackageInfo(packageName);
+        if (installed == null || TextUtils.isEmpty(installed.srcApkPath)
+                || TextUtils.equals(installed.pluginVersion, session.info.pluginVersion)) {
+            return;
+        }
+        File installedApk = new File(installed.srcApkPath);
+        if (!installedApk.exists()) {
+            return;
+        }
+        File installedLibDir = new File(getPluginCodeDir(context, packageName, installedApk),
+                PluginInstaller.NATIVE_LIB_PATH);
+        int seeded = FileUtils.seedNativeLibrary(installedLibDir, session.libDir);
+        PluginDebugLog.installFormatLog(TAG, "seed %d native libs of %s from version %s",
+                seeded, packageName, installed.pluginVersion);
+    }
+
+    /**
+     * 拷贝释放so库到对应的lib目录，与已安装版本相同的so库会跳过
      *
      * @param context 上下文
      * @param apkPath 插件apk文件
      * @param libDir  插件lib目录
+     * @return 实际写入的字节数，失败返回-1
      */
-    private static boolean tryCopyNativeLib(Context context, String apkPath, String libDir) {
+    private static long tryCopyNativeLib(Context context, String apkPath, String libDir) {
         // 拷贝Native SO库
-        return FileUtils.installNativeLibrary(context, apkPath, libDir);
+        return FileUtils.extractNativeLibrary(context, apkPath, libDir);
     }
 
     /**
-     * 执行dexopt优化dex，提高插件运行速度
+     * 执行dexopt优化dex，提高插件运行速度，多个dex并发优化
      *
-     * @param apkFile  插件apk文件
-     * @param pkgName  插件包名
-     * @param pkgDirPath  dexopt目录
+     * @param dexFiles      插件apk文件和secondary dex
+     * @param optimizedDirs 每个dex对应的dexopt目录
+     * @param callback      每个dex优化的结果回调
+     * @return 全部优化成功返回true
      */
-    private static void tryInstallNativeDex(File apkFile, String pkgName, String pkgDirPath) {
+    private static boolean tryInstallNativeDex(List<File> dexFiles, List<File> optimizedDirs,
+                                               DexOptimizer.ResultCallback callback) {
         // 进行dexopt优化dex
-        FileUtils.installDex(apkFile, pkgName, pkgDirPath);
+        return FileUtils.installDex(dexFiles, optimizedDirs, callback);
     }
 
 
@@ -697,4 +1273,63 @@ public class PluginInstaller {
         PluginDebugLog.runtimeFormatLog(TAG, "filePath: %s, pkgName: ", filePath, mapPkgName);
         return mapPkgName;
     }
+
+    /**
+     * 一次插件安装的状态，在安装流水线的各个阶段之间传递
+     */
+    private static class InstallSession extends PluginInstallPipeline.InstallJob {
+        final Context context;
+        final String srcPathWithScheme;
+        final PluginLiteInfo info;
+        final IInstallCallBack callback;
+        /* 可选的安装进度回调 */
+        IInstallProgressCallBack progressCallback;
+        /* 安装后的插件文件 */
+        File destFile;
+        /* so库释放目录 */
+        File libDir;
+        /* 安装过程中实际写入磁盘的字节数 */
+        long bytesWritten;
+        /* 拷贝插件文件时计算的SHA-256摘要 */
+        String actualDigest;
+
+        InstallSession(Context context, String srcPathWithScheme, PluginLiteInfo info,
+                       IInstallCallBack callback, int... stages) {
+            super(info.packageName, stages);
+            this.context = context;
+            this.srcPathWithScheme = srcPathWithScheme;
+            this.info = info;
+            this.callback = callback;
+        }
+
+        @Override
+        boolean runStage(int stage) {
+            switch (stage) {
+                case STAGE_CLEAN:
+                    PluginUninstaller.deleteBeforeInstall(context, info);
+                    return true;
+                case STAGE_COPY:
+                    return copyPluginFile(this);
+                case STAGE_NATIVE_LIB:
+                    return installNativeLib(this);
+                case STAGE_DEXOPT:
+                    installDex(this);
+                    return true;
+                case STAGE_COMMIT:
+                    commitInstall(this);
+                    return true;
+                default:
+                    return true;
+            }
+        }
+
+        @Override
+        void onAborted(int failReason) {
+            fail(failReason);
+        }
+
+        void fail(int failReason) {
+            setInstallFail(context, srcPathWithScheme, failReason, info, callback);
+        }
+    }
 }
@@ -29,6 +29,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.Parcelable;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import org.qiyi.pluginlibrary.constant.IntentConstant;
@@ -46,6 +47,10 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import dalvik.system.DexClassLoader;
 
@@ -58,13 +63,31 @@ public class PluginInstallerService extends Service {
 
     public static final String TAG = "PluginInstallerService";
     public static final String ACTION_INSTALL = "com.qiyi.neptune.action.INSTALL";
+    /* 提前启动安装进程，待命等待后续的安装请求 */
+    public static final String ACTION_WARM_UP = "com.qiyi.neptune.action.WARM_UP";
 
     private static final int MSG_ACTION_INSTALL = 0;
     private static final int MSG_ACTION_QUIT = 1;
     private static final int DELAY_QUIT_TIME = 1000 * 30;  // 30s
+    /* 安装进程启动的时间(SystemClock.elapsedRealtime) */
+    private static final long sProcessStartTime = getProcessStartTime();
 
-    private volatile Looper mServiceLooper;
+    volatile Looper mServiceLooper;
     private volatile ServiceHandler mServiceHandler;
+    /* 提交到安装流水线还没有结束的安装任务数 */
+    private final AtomicInteger mPendingInstalls = new AtomicInteger();
+    /* 等待处理的请求，一次消息处理完所有排队的请求 */
+    private final ConcurrentLinkedQueue<Intent> mPendingIntents = new ConcurrentLinkedQueue<>();
+    /* 最近一次消息处理的请求数 */
+    volatile int mLastBatchSize;
+    /* 当前进程生命周期内处理的安装请求数 */
+    private final AtomicInteger mHandledInstalls = new AtomicInteger();
+    /* 最近一次onStartCommand的startId，退出时用于判断是否有新的请求 */
+    private volatile int mLastStartId;
+    /* 空闲多久之后退出 */
+    private volatile long mIdleTimeout = DELAY_QUIT_TIME;
+    /* 空闲时是否常驻待命 */
+    private volatile boolean mWarmStandby;
 
     private final class ServiceHandler extends Handler {
         ServiceHandler(Looper looper) {
@@ -76,18 +99,39 @@ public class PluginInstallerService extends Service {
             PluginDebugLog.installLog(TAG, "handleMessage: what " + msg.what);
             if (msg.what == MSG_ACTION_INSTALL) {
                 mServiceHandler.removeMessages(MSG_ACTION_QUIT); //插件准备安装，移除退出消息
-                if (msg.obj instanceof Intent) {
-                    onHandleIntent((Intent) msg.obj);
+                // 一次处理完所有排队的请求，全部提交到安装流水线并行执行
+                int count = 0;
+                Intent intent;
+                while ((intent = mPendingIntents.poll()) != null) {
+                    onHandleIntent(intent);
+                    count++;
                 }
+                mLastBatchSize = count;
+                PluginDebugLog.installFormatLog(TAG, "handle %d queued requests in batch", count);
 
-                if (!mServiceHandler.hasMessages(MSG_ACTION_INSTALL)) {
-                    // 没有其他的安装消息了, 30s之后退出Service
-                    Message quit = mServiceHandler.obtainMessage(MSG_ACTION_QUIT);
-                    mServiceHandler.sendMessageDelayed(quit, DELAY_QUIT_TIME);
-                }
+                scheduleQuitIfIdle();
             } else if (msg.what == MSG_ACTION_QUIT) {
-                stopSelf();
+                // 退出前又收到了新的请求时不退出
+                if (!stopSelfResult(mLastStartId)) {
+                    PluginDebugLog.installLog(TAG, "new request arrived, cancel quit");
+                }
+            }
+        }
+    }
+
+    /**
+     * 没有其他的安装消息并且流水线中的安装都已结束，空闲超时之后退出Service；常驻待命时不退出
+     */
+    private void scheduleQuitIfIdle() {
+        if (!mServiceHandler.hasMessages(MSG_ACTION_INSTALL) && mPendingIntents.isEmpty()
+                && mPendingInstalls.get() == 0) {
+            mServiceHandler.removeMessages(MSG_ACTION_QUIT);
+            if (mWarmStandby) {
+                PluginDebugLog.installLog(TAG, "installer is idle, keep warm standby");
+                return;
             }
+            Message quit = mServiceHandler.obtainMessage(MSG_ACTION_QUIT);
+            mServiceHandler.sendMessageDelayed(quit, mIdleTimeout);
         }
     }
 
@@ -113,10 +157,17 @@ public class PluginInstallerService extends Service {
             mServiceHandler.removeMessages(MSG_ACTION_QUIT);
         }
         PluginDebugLog.installLog(TAG, "pluginInstallerService onStartCommand MSG_ACTION_INSTALL");
-        Message msg = mServiceHandler.obtainMessage(MSG_ACTION_INSTALL);
-        msg.arg1 = startId;
-        msg.obj = intent;
-        mServiceHandler.sendMessage(msg);
+        mLastStartId = startId;
+        if (intent != null) {
+            // 安装进程的配置由发起请求的进程传入
+            mIdleTimeout = intent.getLongExtra(IntentConstant.EXTRA_IDLE_TIMEOUT, mIdleTimeout);
+            mWarmStandby = intent.getBooleanExtra(IntentConstant.EXTRA_WARM_STANDBY, mWarmStandby);
+            mPendingIntents.offer(intent);
+        }
+        // 已经有消息在等待处理时，新的请求会在同一批次中处理
+        if (!mServiceHandler.hasMessages(MSG_ACTION_INSTALL)) {
+            mServiceHandler.sendEmptyMessage(MSG_ACTION_INSTALL);
+        }
         return START_REDELIVER_INTENT;
     }
 
@@ -134,29 +185,100 @@ public class PluginInstallerService extends Service {
     private void onHandleIntent(Intent intent) {
 
         String action = intent.getAction();
-        if (ACTION_INSTALL.equals(action)) { // 插件安装
+        if (ACTION_WARM_UP.equals(action)) { // 预热安装进程
+            warmUp();
+        } else if (ACTION_INSTALL.equals(action)) { // 插件安装
             String srcFile = intent.getStringExtra(IntentConstant.EXTRA_SRC_FILE);
             PluginLiteInfo pluginInfo = intent.getParcelableExtra(IntentConstant.EXTRA_PLUGIN_INFO);
-            PluginInstaller.handleInstall(this, srcFile, pluginInfo, new IInstallCallBack.Stub() {
+            long requestTime = intent.getLongExtra(IntentConstant.EXTRA_REQUEST_TIME, 0L);
+            final long dispatchCost = requestTime > 0 ? SystemClock.elapsedRealtime() - requestTime : -1L;
+            final boolean coldDispatch = isColdDispatch(requestTime, sProcessStartTime);
+            logDispatchCost(pluginInfo, dispatchCost, coldDispatch);
+            mPendingInstalls.incrementAndGet();
+            // 安装进程不转发安装进度
+            boolean cleanBeforeInstall = intent.getBooleanExtra(IntentConstant.EXTRA_CLEAN_BEFORE_INSTALL, false);
+            PluginInstaller.handleInstall(this, srcFile, pluginInfo, cleanBeforeInstall, new IInstallCallBack.Stub() {
                 @Override
                 public void onPackageInstalled(PluginLiteInfo info) throws RemoteException {
-                    setInstallSuccess(info);
+                    setInstallSuccess(info, dispatchCost, coldDispatch);
+                    onInstallFinished();
                 }
 
                 @Override
                 public void onPackageInstallFail(PluginLiteInfo info, int failReason) throws RemoteException {
-                    setInstallFail(info, failReason);
+                    setInstallFail(info, failReason, dispatchCost, coldDispatch);
+                    onInstallFinished();
+                }
+            }, null);
+        }
+    }
+
+    /**
+     * 提前加载安装过程中用到的类和系统服务，后续的安装请求不需要再付出这部分开销
+     */
+    private void warmUp() {
+        long start = SystemClock.elapsedRealtime();
+        PluginInstaller.getPluginappRootPath(this);
+        PluginInstallPipeline.getInstance();
+        getPackageManager();
+        try {
+            MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // ignore
+        }
+        PluginDebugLog.installFormatLog(TAG, "warm up installer process cost %d ms, process started %d ms ago",
+                SystemClock.elapsedRealtime() - start, start - sProcessStartTime);
+    }
+
+    /**
+     * 请求早于安装进程启动，说明请求等待了进程的创建以及Application和Service的初始化
+     */
+    static boolean isColdDispatch(long requestTime, long processStartTime) {
+        return requestTime > 0 && requestTime < processStartTime;
+    }
+
+    /**
+     * 输出安装请求从发出到开始处理的耗时，耗时随安装结果返回给发起请求的进程汇总
+     */
+    private void logDispatchCost(PluginLiteInfo info, long dispatchCost, boolean coldDispatch) {
+        int handled = mHandledInstalls.incrementAndGet();
+        if (dispatchCost < 0) {
+            return;
+        }
+        PluginDebugLog.installFormatLog(TAG, "install %s dispatched after %d ms, cold start: %s, "
+                        + "%d installs handled in this process",
+                info != null ? info.packageName : null, dispatchCost, coldDispatch, handled);
+    }
+
+    /**
+     * 获取当前进程启动的时间，N以下使用类加载的时间近似
+     */
+    private static long getProcessStartTime() {
+        if (VersionUtils.hasNougat()) {
+            return android.os.Process.getStartElapsedRealtime();
+        }
+        return SystemClock.elapsedRealtime();
+    }
+
+    private void onInstallFinished() {
+        if (mPendingInstalls.decrementAndGet() == 0) {
+            mServiceHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    scheduleQuitIfIdle();
                 }
             });
         }
     }
 
-    private void setInstallFail(PluginLiteInfo info, int failReason) {
+    private void setInstallFail(PluginLiteInfo info, int failReason, long dispatchCost, boolean coldDispatch) {
         Intent intent = new Intent(PluginPackageManager.ACTION_PACKAGE_INSTALLFAIL);
         intent.setPackage(getPackageName());
         intent.putExtra(IntentConstant.EXTRA_PKG_NAME, info.packageName);
         intent.putExtra(ErrorType.ERROR_REASON, failReason);               // 同时返回安装失败的原因
         intent.putExtra(IntentConstant.EXTRA_PLUGIN_INFO, (Parcelable) info);// 同时返回APK的插件信息
+        intent.putExtra(IntentConstant.EXTRA_DISPATCH_COST, dispatchCost);
+        intent.putExtra(IntentConstant.EXTRA_DISPATCH_COLD, coldDispatch);
         try {
             sendBroadcast(intent);
         } catch (Exception e) {
@@ -164,12 +286,14 @@ public class PluginInstallerService extends Service {
         }
     }
 
-    private void setInstallSuccess(PluginLiteInfo info) {
+    private void setInstallSuccess(PluginLiteInfo info, long dispatchCost, boolean coldDispatch) {
         Intent intent = new Intent(PluginPackageManager.ACTION_PACKAGE_INSTALLED);
         intent.setPackage(getPackageName());
         intent.putExtra(IntentConstant.EXTRA_PKG_NAME, info.packageName);
         intent.putExtra(IntentConstant.EXTRA_DEST_FILE, info.srcApkPath);    // 同时返回安装后的安装文件目录。
         intent.putExtra(IntentConstant.EXTRA_PLUGIN_INFO, (Parcelable) info);// 同时返回APK的插件信息
+        intent.putExtra(IntentConstant.EXTRA_DISPATCH_COST, dispatchCost);
+        intent.putExtra(IntentConstant.EXTRA_DISPATCH_COLD, coldDispatch);
         try {
             sendBroadcast(intent);
         } catch (Exception e) {
@@ -0,0 +1,204 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.install;
+
+import org.qiyi.pluginlibrary.utils.FileUtils;
+import org.qiyi.pluginlibrary.utils.PluginDebugLog;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 插件差分包的合成
+ * <p>
+ * 插件apk每次发版通常只有少量zip entry发生变化，差分包只描述新版本apk如何由已安装的基础版本拼接而成：
+ * 未变化的数据从基础版本apk中按偏移量拷贝，变化的数据直接内嵌在差分包里。
+ * 合成时顺序读取差分包，按块写入新apk，不需要把任何一个文件完整读入内存
+ * <pre>
+ * int   MAGIC "NPDT"
+ * int   FORMAT_VERSION
+ * long  基础版本apk的长度
+ * long  新版本apk的长度
+ * 之后是deflate压缩的指令流，直到OP_END:
+ *   OP_COPY   long 基础版本apk中的偏移量, int 长度
+ *   OP_INSERT int 长度, byte[长度] 数据
+ *   OP_END
+ * </pre>
+ * 差分包由服务端的发版工具按上述格式生成，客户端只负责合成
+ */
+final class PluginPatcher {
+    private static final String TAG = "PluginPatcher";
+    static final int MAGIC = 0x4E504454; // "NPDT"
+    static final int FORMAT_VERSION = 1;
+    static final int OP_END = 0;
+    static final int OP_COPY = 1;
+    static final int OP_INSERT = 2;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private PluginPatcher() {
+    }
+
+    /**
+     * 把差分包应用到基础版本apk上，合成新版本apk
+     *
+     * @param baseApk   已安装的基础版本apk
+     * @param patchFile 差分包
+     * @param destFile  合成的新版本apk
+     * @param digest    合成过程中同时计算的摘要，可以为null
+     * @return 写入的字节数
+     * @throws IOException 差分包格式错误、与基础版本不匹配或者读写失败
+     */
+    static long apply(File baseApk, File patchFile, File destFile, MessageDigest digest) throws IOException {
+        long start = System.currentTimeMillis();
+        DataInputStream patch = null;
+        RandomAccessFile base = null;
+        FileOutputStream out = null;
+        try {
+            patch = new DataInputStream(new BufferedInputStream(new FileInputStream(patchFile), BUFFER_SIZE));
+            if (patch.readInt() != MAGIC || patch.readInt() != FORMAT_VERSION) {
+                throw new IOException("unsupported patch format: " + patchFile.getName());
+            }
+            long baseLength = patch.readLong();
+            long targetLength = patch.readLong();
+            base = new RandomAccessFile(baseApk, "r");
+            FileChannel baseChannel = base.getChannel();
+            if (baseChannel.size() != baseLength) {
+                throw new IOException("patch base not match, expected length " + baseLength
+                        + ", actual " + baseChannel.size());
+            }
+            // 头部之后的指令流是压缩的
+            patch = new DataInputStream(new BufferedInputStream(new InflaterInputStream(patch), BUFFER_SIZE));
+            out = new FileOutputStream(destFile);
+            FileChannel outChannel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long written = 0;
+            int op;
+            while ((op = patch.readUnsignedByte()) != OP_END) {
+                if (op == OP_COPY) {
+                    long offset = patch.readLong();
+                    int length = patch.readInt();
+                    if (offset < 0 || length < 0 || offset + length > baseLength) {
+                        throw new IOException("illegal copy range: " + offset + "+" + length);
+                    }
+                    written += copyRange(baseChannel, offset, length, outChannel, buffer, digest);
+                } else if (op == OP_INSERT) {
+                    int length = patch.readInt();
+                    if (length < 0) {
+                        throw new IOException("illegal insert length: " + length);
+                    }
+                    written += insert(patch, length, outChannel, buffer, digest);
+                } else {
+                    throw new IOException("unknown patch op: " + op);
+                }
+                if (written > targetLength) {
+                    throw new IOException("patch output exceeds target length " + targetLength);
+                }
+            }
+            if (written != targetLength) {
+                throw new IOException("patch output length " + written + " not match target length " + targetLength);
+            }
+            out.getFD().sync();
+            PluginDebugLog.installFormatLog(TAG, "apply patch %s on %s, output %d bytes, cost %d ms",
+                    patchFile.getName(), baseApk.getName(), written, System.currentTimeMillis() - start);
+            return written;
+        } finally {
+            FileUtils.closeQuietly(patch);
+            FileUtils.closeQuietly(base);
+            FileUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * 只读取差分包头部中新版本apk的长度，用于合成之前检查剩余空间
+     *
+     * @throws IOException 差分包格式错误或者读取失败
+     */
+    static long readTargetLength(File patchFile) throws IOException {
+        DataInputStream patch = null;
+        try {
+            patch = new DataInputStream(new FileInputStream(patchFile));
+            if (patch.readInt() != MAGIC || patch.readInt() != FORMAT_VERSION) {
+                throw new IOException("unsupported patch format: " + patchFile.getName());
+            }
+            patch.readLong();
+            long targetLength = patch.readLong();
+            if (targetLength < 0) {
+                throw new IOException("illegal target length: " + targetLength);
+            }
+            return targetLength;
+        } finally {
+            FileUtils.closeQuietly(patch);
+        }
+    }
+
+    /**
+     * 从基础版本apk的指定位置拷贝数据
+     */
+    private static long copyRange(FileChannel base, long offset, int length, FileChannel out,
+                                  ByteBuffer buffer, MessageDigest digest) throws IOException {
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = base.read(buffer, position);
+            if (read <= 0) {
+                throw new IOException("unexpected end of base apk at " + position);
+            }
+            position += read;
+            write(out, buffer, digest);
+        }
+        return length;
+    }
+
+    /**
+     * 把差分包中内嵌的数据写入新apk
+     */
+    private static long insert(DataInputStream patch, int length, FileChannel out,
+                               ByteBuffer buffer, MessageDigest digest) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            buffer.clear();
+            int count = Math.min(buffer.capacity(), remaining);
+            patch.readFully(buffer.array(), 0, count);
+            buffer.position(count);
+            remaining -= count;
+            write(out, buffer, digest);
+        }
+        return length;
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer, MessageDigest digest) throws IOException {
+        buffer.flip();
+        if (digest != null) {
+            digest.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
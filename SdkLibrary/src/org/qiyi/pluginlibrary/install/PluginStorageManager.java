@@ -0,0 +1,564 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.install;
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import org.qiyi.pluginlibrary.pm.PluginLaunchArtifacts;
+import org.qiyi.pluginlibrary.pm.PluginLiteInfo;
+import org.qiyi.pluginlibrary.pm.PluginPackageManager;
+import org.qiyi.pluginlibrary.utils.FileUtils;
+import org.qiyi.pluginlibrary.utils.PluginDebugLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * 插件安装目录的空间管理
+ * <p>
+ * 安装前根据apk的central directory估算需要的空间，空间不足时直接失败，避免拷贝到一半才出错；
+ * 后台回收pluginapp目录下安装中断遗留的临时文件、已卸载插件和过期版本的文件，
+ * 超过配额时再回收上一个版本和已卸载插件的数据目录
+ * <p>
+ * 插件进程加载某个版本时对{apk}.lock持有共享锁，回收时拿不到排他锁的版本仍在运行，跳过不删除
+ */
+public final class PluginStorageManager {
+    private static final String TAG = "PluginStorageManager";
+    /* 超过这个时间没有修改的临时文件认为是安装中断遗留的 */
+    private static final long STALE_TMP_AGE = 60 * 60 * 1000L;
+    private static final String TMP_SUFFIX = ".tmp";
+    /* 插件运行期间持有共享锁的文件后缀，{pkgName}.{version}.apk.lock，与apk在同一目录 */
+    public static final String IN_USE_SUFFIX = ".lock";
+    /* 优化后的dex相对于原始dex的估算倍数 */
+    private static final int OAT_SIZE_FACTOR = 2;
+    /* 安装完成后至少保留的剩余空间 */
+    private static final long MIN_FREE_BYTES = 1024 * 1024L;
+    /* pluginapp目录下不属于单个插件的文件和目录 */
+    private static final Set<String> SHARED_NAMES = new HashSet<>(Arrays.asList(
+            "install.journal", "install.journal.lock", "pkginfo", "dex", PluginInstaller.OAT_PATH));
+
+    private PluginStorageManager() {
+    }
+
+    /**
+     * 回收时查询插件当前的安装状态
+     * <p>
+     * 已安装和正在安装的插件列表只是回收开始时的快照，之后开始或者完成的安装不在其中，
+     * 删除每个插件的文件之前需要在插件的锁内重新查询
+     */
+    public interface PackageStateProvider {
+        /**
+         * 插件是否正在安装
+         */
+        boolean isPackageInstalling(String packageName);
+
+        /**
+         * 插件当前已安装的信息，未安装返回null
+         */
+        PluginLiteInfo getInstalledPackage(String packageName);
+    }
+
+    /**
+     * 估算安装插件需要的空间，包括释放的so库和优化后的dex，不包括apk本身
+     *
+     * @param apkFile 插件apk或者so插件的压缩包
+     * @return 估算的字节数，无法解析时返回0
+     */
+    static long estimateCodeBytes(File apkFile) {
+        ZipFile zipFile = null;
+        try {
+            // ZipFile只读取central directory，不需要解压
+            zipFile = new ZipFile(apkFile);
+            Map<String, Long> abiLibBytes = new HashMap<>();
+            long dexBytes = 0L;
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                long size = Math.max(entry.getSize(), 0L);
+                if (name.startsWith("lib/") && name.endsWith(PluginInstaller.SO_SUFFIX)) {
+                    int end = name.indexOf('/', "lib/".length());
+                    if (end > 0) {
+                        String abi = name.substring("lib/".length(), end);
+                        Long total = abiLibBytes.get(abi);
+                        abiLibBytes.put(abi, (total != null ? total : 0L) + size);
+                    }
+                } else if (name.startsWith("classes") && name.endsWith(PluginInstaller.DEX_SUFFIX)
+                        && name.indexOf('/') < 0) {
+                    dexBytes += size;
+                }
+            }
+            // 只会释放一种abi的so库，按照最大的估算
+            long libBytes = abiLibBytes.isEmpty() ? 0L : Collections.max(abiLibBytes.values());
+            return libBytes + dexBytes * OAT_SIZE_FACTOR;
+        } catch (IOException e) {
+            PluginDebugLog.installFormatLog(TAG, "estimate install size of %s failed: %s",
+                    apkFile.getName(), e.getMessage());
+            return 0L;
+        } finally {
+            FileUtils.closeQuietly(zipFile);
+        }
+    }
+
+    /**
+     * 目录所在的分区是否还有足够的空间
+     */
+    static boolean hasEnoughSpace(File dir, long requiredBytes) {
+        if (requiredBytes <= 0 || !dir.exists()) {
+            // 目录不存在时无法获取分区信息，交给后续的拷贝处理
+            return true;
+        }
+        long usable = dir.getUsableSpace();
+        boolean enough = usable - requiredBytes >= MIN_FREE_BYTES;
+        if (!enough) {
+            PluginDebugLog.installFormatLog(TAG, "no enough space in %s, required %d, usable %d",
+                    dir.getAbsolutePath(), requiredBytes, usable);
+        }
+        return enough;
+    }
+
+    /**
+     * 删除安装中断遗留的临时文件，正在写入的临时文件修改时间较新，不会被删除
+     *
+     * @return 回收的字节数
+     */
+    static long deleteStaleTempFiles(Context context) {
+        File rootDir = PluginInstaller.getPluginappRootPath(context);
+        long freed = deleteStaleTempFiles(rootDir);
+        freed += deleteStaleTempFiles(new File(rootDir, "pkginfo"));
+        return freed;
+    }
+
+    private static long deleteStaleTempFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0L;
+        }
+        long now = System.currentTimeMillis();
+        long freed = 0L;
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(TMP_SUFFIX)
+                    && now - file.lastModified() > STALE_TMP_AGE) {
+                long size = file.length();
+                if (file.delete()) {
+                    freed += size;
+                    PluginDebugLog.installFormatLog(TAG, "delete stale temp file %s", file.getName());
+                }
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * 回收pluginapp目录的空间，需要在主进程的后台线程调用
+     * <ul>
+     * <li>安装中断遗留的临时文件</li>
+     * <li>已卸载插件的apk、so库、优化后的dex和缓存，数据目录只在超过配额时删除</li>
+     * <li>已安装插件除当前版本和上一个版本之外的apk和槽位，超过配额时上一个版本也删除</li>
+     * <li>apk已经不存在的缓存和启动数据</li>
+     * </ul>
+     *
+     * @param context    宿主的Context
+     * @param installed  已安装的插件
+     * @param installing 正在安装的插件包名，跳过这些插件
+     * @param quotaBytes pluginapp目录的空间配额，0表示不限制
+     * @param provider   删除之前重新查询插件的安装状态，状态与快照不一致的插件跳过
+     * @return 回收的字节数
+     */
+    public static long collect(Context context, Collection<PluginLiteInfo> installed,
+                               Collection<String> installing, long quotaBytes, PackageStateProvider provider) {
+        long start = System.currentTimeMillis();
+        File rootDir = PluginInstaller.getPluginappRootPath(context);
+        long usageBefore = FileUtils.sizeOf(rootDir);
+
+        deleteStaleTempFiles(context);
+
+        Map<String, PluginLiteInfo> installedMap = new HashMap<>();
+        // 已知的插件包名和版本号，用于判断apk文件属于哪个插件
+        Map<String, String> knownVersions = new HashMap<>();
+        for (PluginLiteInfo info : installed) {
+            if (info != null && !TextUtils.isEmpty(info.packageName)) {
+                installedMap.put(info.packageName, info);
+                knownVersions.put(info.packageName, info.pluginVersion);
+            }
+        }
+        for (String packageName : installing) {
+            if (!knownVersions.containsKey(packageName)) {
+                knownVersions.put(packageName, null);
+            }
+        }
+        Set<String> packages = findPackages(rootDir, knownVersions);
+        packages.addAll(installedMap.keySet());
+        packages.removeAll(installing);
+
+        PluginInstallPipeline pipeline = PluginInstallPipeline.getInstance();
+        for (String packageName : packages) {
+            PluginLiteInfo info = installedMap.get(packageName);
+            // 持有插件的锁期间不会有该插件的安装阶段在执行，重新确认状态后再删除
+            synchronized (pipeline.getPackageLock(packageName)) {
+                if (isStateChanged(packageName, info, provider)) {
+                    continue;
+                }
+                if (info == null) {
+                    // 已卸载插件遗留的安装文件，已经确认没有进行中的安装，不需要终止安装流水线
+                    PluginUninstaller.deleteUninstalledFiles(context, packageName);
+                    continue;
+                }
+                File current = getInstalledApk(context, info);
+                if (current == null) {
+                    // 找不到当前版本的apk时不做任何删除
+                    continue;
+                }
+                List<String> keepApkPaths = new ArrayList<>();
+                keepApkPaths.add(current.getAbsolutePath());
+                File previous = findPreviousApk(rootDir, packageName, current, knownVersions);
+                if (previous != null) {
+                    keepApkPaths.add(previous.getAbsolutePath());
+                }
+                PluginUninstaller.deleteStaleVersions(context, packageName, keepApkPaths);
+            }
+        }
+        deleteOrphanFiles(context, rootDir);
+
+        long usage = FileUtils.sizeOf(rootDir);
+        if (quotaBytes > 0 && usage > quotaBytes) {
+            usage = trimToQuota(context, rootDir, installedMap, packages, quotaBytes, usage, provider);
+        }
+        long freed = usageBefore - usage;
+        PluginDebugLog.installFormatLog(TAG, "collect pluginapp storage, usage %d -> %d, quota %d, cost %d ms",
+                usageBefore, usage, quotaBytes, System.currentTimeMillis() - start);
+        return Math.max(freed, 0L);
+    }
+
+    /**
+     * 超过配额时依次删除已安装插件的上一个版本、已卸载插件的数据目录(最久没有修改的优先)
+     */
+    private static long trimToQuota(Context context, File rootDir, Map<String, PluginLiteInfo> installedMap,
+                                    Set<String> packages, long quotaBytes, long usage,
+                                    PackageStateProvider provider) {
+        PluginInstallPipeline pipeline = PluginInstallPipeline.getInstance();
+        for (String packageName : packages) {
+            PluginLiteInfo info = installedMap.get(packageName);
+            if (info == null) {
+                continue;
+            }
+            synchronized (pipeline.getPackageLock(packageName)) {
+                File current = getInstalledApk(context, info);
+                if (current != null && !isStateChanged(packageName, info, provider)) {
+                    PluginUninstaller.deleteStaleVersions(context, packageName,
+                            Collections.singletonList(current.getAbsolutePath()));
+                }
+            }
+        }
+        usage = FileUtils.sizeOf(rootDir);
+
+        List<File> orphanDataDirs = new ArrayList<>();
+        for (String packageName : packages) {
+            File dataDir = new File(rootDir, packageName);
+            if (!installedMap.containsKey(packageName) && dataDir.isDirectory()) {
+                orphanDataDirs.add(dataDir);
+            }
+        }
+        Collections.sort(orphanDataDirs, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long diff = lhs.lastModified() - rhs.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File dataDir : orphanDataDirs) {
+            if (usage <= quotaBytes) {
+                break;
+            }
+            String packageName = dataDir.getName();
+            synchronized (pipeline.getPackageLock(packageName)) {
+                if (isStateChanged(packageName, null, provider)) {
+                    continue;
+                }
+                long size = FileUtils.sizeOf(dataDir);
+                boolean deleted = FileUtils.deleteDirectory(dataDir);
+                PluginDebugLog.installFormatLog(TAG, "delete data of uninstalled plugin %s, size %d, success: %s",
+                        packageName, size, deleted);
+            }
+            usage = FileUtils.sizeOf(rootDir);
+        }
+        return usage;
+    }
+
+    /**
+     * 插件的安装状态是否与回收开始时的快照不一致，需要在插件的锁内调用
+     *
+     * @param snapshot 快照中已安装的插件信息，快照中未安装为null
+     * @return true表示插件正在安装，或者快照之后完成了安装、卸载或升级，本次不回收
+     */
+    private static boolean isStateChanged(String packageName, PluginLiteInfo snapshot,
+                                          PackageStateProvider provider) {
+        boolean changed;
+        if (provider.isPackageInstalling(packageName)) {
+            changed = true;
+        } else {
+            PluginLiteInfo current = provider.getInstalledPackage(packageName);
+            changed = snapshot == null ? current != null
+                    : current == null || !TextUtils.equals(current.pluginVersion, snapshot.pluginVersion);
+        }
+        if (changed) {
+            PluginDebugLog.installFormatLog(TAG, "install state of %s changed since collect started, skip it",
+                    packageName);
+        }
+        return changed;
+    }
+
+    /**
+     * 根据pluginapp目录下的插件目录和apk文件名找出所有出现过的插件包名
+     *
+     * @param knownVersions 已知的插件包名和版本号，插件目录名也会加入其中
+     */
+    static Set<String> findPackages(File rootDir, Map<String, String> knownVersions) {
+        Set<String> packages = new HashSet<>();
+        File[] files = rootDir.listFiles();
+        if (files == null) {
+            return packages;
+        }
+        List<String> apkNames = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (SHARED_NAMES.contains(name)) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                packages.add(name);
+                if (!knownVersions.containsKey(name)) {
+                    knownVersions.put(name, null);
+                }
+            } else if (name.endsWith(PluginInstaller.APK_SUFFIX)) {
+                apkNames.add(name);
+            }
+        }
+        for (String apkName : apkNames) {
+            String packageName = resolvePackageName(apkName, knownVersions);
+            if (!TextUtils.isEmpty(packageName)) {
+                packages.add(packageName);
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * 判断apk文件属于哪个插件
+     * <p>
+     * 优先按已知插件精确匹配，{@link PluginInstaller#isPackageFile}同时匹配多个插件时取包名最长的，
+     * 例如com.foo.bar.1.apk属于com.foo.bar而不是com.foo；已知版本号为v1的com.foo拥有com.foo.v1.apk。
+     * 没有匹配的已知插件时按文件名解析
+     */
+    static String resolvePackageName(String apkName, Map<String, String> knownVersions) {
+        String result = null;
+        for (Map.Entry<String, String> known : knownVersions.entrySet()) {
+            String packageName = known.getKey();
+            if (PluginInstaller.isPackageFile(apkName, packageName, PluginInstaller.APK_SUFFIX, known.getValue())
+                    && (result == null || packageName.length() > result.length())) {
+                result = packageName;
+            }
+        }
+        return result != null ? result : parsePackageName(apkName);
+    }
+
+    /**
+     * 从{pkgName}.{version}.apk或者{pkgName}.apk中解析包名，包名的每一段都不以数字开头，版本号以数字开头
+     */
+    static String parsePackageName(String apkName) {
+        String name = apkName.substring(0, apkName.length() - PluginInstaller.APK_SUFFIX.length());
+        for (int i = 0; i < name.length() - 1; i++) {
+            if (name.charAt(i) == '.' && Character.isDigit(name.charAt(i + 1))) {
+                return name.substring(0, i);
+            }
+        }
+        return name;
+    }
+
+    /**
+     * 获取已安装插件当前版本的apk，不存在返回null
+     */
+    private static File getInstalledApk(Context context, PluginLiteInfo info) {
+        PluginPackageManager.updateSrcApkPath(context, info);
+        if (TextUtils.isEmpty(info.srcApkPath)) {
+            return null;
+        }
+        File apkFile = new File(info.srcApkPath);
+        return apkFile.exists() ? apkFile : null;
+    }
+
+    /**
+     * 查找插件上一个版本的apk，取除当前版本外最近安装的一个
+     */
+    private static File findPreviousApk(File rootDir, String packageName, File current,
+                                        Map<String, String> knownVersions) {
+        File[] files = rootDir.listFiles();
+        if (files == null) {
+            return null;
+        }
+        File previous = null;
+        for (File file : files) {
+            String name = file.getName();
+            if (!file.isFile() || file.equals(current) || !name.endsWith(PluginInstaller.APK_SUFFIX)
+                    || !TextUtils.equals(resolvePackageName(name, knownVersions), packageName)) {
+                continue;
+            }
+            if (previous == null || file.lastModified() > previous.lastModified()) {
+                previous = file;
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * 删除apk已经不存在的启动数据、PackageInfo缓存和系统生成的odex文件
+     */
+    private static void deleteOrphanFiles(Context context, File rootDir) {
+        File externalDir = context.getExternalFilesDir(PluginInstaller.PLUGIN_ROOT_PATH);
+        File[] files = rootDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(PluginInstaller.APK_SUFFIX + PluginLaunchArtifacts.FILE_SUFFIX)) {
+                    String apkName = name.substring(0, name.length() - PluginLaunchArtifacts.FILE_SUFFIX.length());
+                    deleteIfApkMissing(file, apkName, rootDir, externalDir);
+                } else if (name.endsWith(PluginInstaller.APK_SUFFIX + IN_USE_SUFFIX)) {
+                    String apkName = name.substring(0, name.length() - IN_USE_SUFFIX.length());
+                    deleteIfApkMissing(file, apkName, rootDir, externalDir);
+                }
+            }
+        }
+        // PackageInfo缓存以apk文件名命名，{pkgName}.{version}.apk.pinfo
+        File[] caches = new File(rootDir, "pkginfo").listFiles();
+        if (caches != null) {
+            for (File file : caches) {
+                String name = file.getName();
+                int end = name.lastIndexOf(PluginInstaller.APK_SUFFIX);
+                if (end > 0 && !name.endsWith(TMP_SUFFIX)) {
+                    deleteIfApkMissing(file, name.substring(0, end + PluginInstaller.APK_SUFFIX.length()),
+                            rootDir, externalDir);
+                }
+            }
+        }
+        // Android O以上系统在apk所在目录的oat/{isa}下生成odex和vdex文件
+        File[] isaDirs = new File(rootDir, PluginInstaller.OAT_PATH).listFiles();
+        if (isaDirs != null) {
+            for (File isaDir : isaDirs) {
+                File[] oatFiles = isaDir.listFiles();
+                if (oatFiles == null) {
+                    continue;
+                }
+                for (File file : oatFiles) {
+                    String name = file.getName();
+                    int end = name.lastIndexOf('.');
+                    if (end > 0 && (name.endsWith(".odex") || name.endsWith(".vdex"))) {
+                        deleteIfApkMissing(file, name.substring(0, end) + PluginInstaller.APK_SUFFIX,
+                                rootDir, externalDir);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void deleteIfApkMissing(File file, String apkName, File rootDir, File externalDir) {
+        if (new File(rootDir, apkName).exists()
+                || (externalDir != null && new File(externalDir, apkName).exists())) {
+            return;
+        }
+        boolean deleted = file.delete();
+        PluginDebugLog.installFormatLog(TAG, "delete orphan file %s, success: %s", file.getName(), deleted);
+    }
+
+    /**
+     * 标记插件apk正在被当前进程使用，持有共享锁直到进程退出，空间回收不会删除这个版本
+     *
+     * @return 持有的锁，需要一直引用；正在被回收或者加锁失败时返回null
+     */
+    public static FileLock markInUse(File apkFile) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(getInUseLockFile(apkFile), "rw");
+            FileLock lock = raf.getChannel().tryLock(0L, Long.MAX_VALUE, true);
+            if (lock != null) {
+                return lock;
+            }
+        } catch (IOException | OverlappingFileLockException e) {
+            // 当前进程已经持有锁或者无法加锁
+            PluginDebugLog.installFormatLog(TAG, "mark %s in use failed: %s", apkFile.getName(), e);
+        }
+        FileUtils.closeQuietly(raf);
+        return null;
+    }
+
+    /**
+     * 删除插件apk之前获取排他锁，其他进程或者当前进程正在使用这个版本时返回null
+     */
+    static FileLock lockForDelete(File apkFile) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(getInUseLockFile(apkFile), "rw");
+            FileLock lock = raf.getChannel().tryLock(0L, Long.MAX_VALUE, false);
+            if (lock != null) {
+                return lock;
+            }
+        } catch (IOException | OverlappingFileLockException e) {
+            // 当前进程正在使用，或者无法判断时按正在使用处理
+            PluginDebugLog.installFormatLog(TAG, "lock %s for delete failed: %s", apkFile.getName(), e);
+        }
+        FileUtils.closeQuietly(raf);
+        return null;
+    }
+
+    /**
+     * apk删除之后释放排他锁并删除锁文件
+     */
+    static void releaseAfterDelete(FileLock lock, File apkFile) {
+        FileChannel channel = lock.channel();
+        try {
+            lock.release();
+        } catch (IOException e) {
+            // ignore
+        }
+        FileUtils.closeQuietly(channel);
+        if (!apkFile.exists()) {
+            getInUseLockFile(apkFile).delete();
+        }
+    }
+
+    static File getInUseLockFile(File apkFile) {
+        return new File(apkFile.getParentFile(), apkFile.getName() + IN_USE_SUFFIX);
+    }
+}
@@ -20,7 +20,9 @@ package org.qiyi.pluginlibrary.install;
 import android.content.Context;
 import android.text.TextUtils;
 
+import org.qiyi.pluginlibrary.pm.PluginLaunchArtifacts;
 import org.qiyi.pluginlibrary.pm.PluginLiteInfo;
+import org.qiyi.pluginlibrary.pm.PluginPackageInfoCache;
 import org.qiyi.pluginlibrary.pm.PluginPackageManager;
 import org.qiyi.pluginlibrary.utils.CpuAbiUtils;
 import org.qiyi.pluginlibrary.utils.FileUtils;
@@ -29,7 +31,9 @@ import org.qiyi.pluginlibrary.utils.VersionUtils;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.nio.channels.FileLock;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -37,6 +41,8 @@ import java.util.List;
  */
 public class PluginUninstaller extends PluginInstaller {
     private static final String TAG = "PluginUninstaller";
+    private static final String ODEX_SUFFIX = ".odex";
+    private static final String VDEX_SUFFIX = ".vdex";
 
     /**
      * 删除已经安装插件的apk,dex,so库等文件
@@ -51,17 +57,163 @@ public class PluginUninstaller extends PluginInstaller {
      */
     public static void deleteInstallerPackage(
             Context context, PluginLiteInfo info, boolean deleteAllVersion) {
+        PluginInstallPipeline pipeline = PluginInstallPipeline.getInstance();
+        // 与同一个插件的安装阶段互斥，正在进行的安装在下一个阶段开始前终止
+        synchronized (pipeline.getPackageLock(info.packageName)) {
+            pipeline.onPackageDeleted(info.packageName);
+            deleteInstallerFiles(context, info, deleteAllVersion);
+        }
+    }
+
+    /**
+     * 安装前删除旧版本的apk,dex,so库等文件，在安装流水线的清理阶段执行，调用方已经持有插件的锁
+     */
+    static void deleteBeforeInstall(Context context, PluginLiteInfo info) {
+        deleteInstallerFiles(context, info, true);
+    }
+
+    /**
+     * 删除已卸载插件遗留的文件，调用方已经在插件的锁内确认没有进行中的安装，
+     * 与{@link #deleteInstallerPackage}不同，不会终止之后提交的安装任务
+     */
+    static void deleteUninstalledFiles(Context context, String packageName) {
+        PluginLiteInfo uninstalled = new PluginLiteInfo();
+        uninstalled.packageName = packageName;
+        synchronized (PluginInstallPipeline.getInstance().getPackageLock(packageName)) {
+            deleteInstallerFiles(context, uninstalled, true);
+        }
+    }
+
+    /**
+     * 插件升级成功后删除过期版本的apk、槽位以及相关缓存，只保留当前版本和上一个版本
+     * 上一个版本可能仍然在其他进程中运行，等下一次升级时再删除
+     *
+     * @param context      宿主的Context
+     * @param packageName  插件包名
+     * @param keepApkPaths 需要保留的apk路径
+     */
+    public static void deleteStaleVersions(Context context, String packageName, Collection<String> keepApkPaths) {
+        PluginInstallPipeline pipeline = PluginInstallPipeline.getInstance();
+        // 与同一个插件的安装阶段互斥，不终止正在进行的安装
+        synchronized (pipeline.getPackageLock(packageName)) {
+            File rootDir = PluginInstaller.getPluginappRootPath(context);
+            File dataDir = new File(rootDir, packageName);
+            File[] apkFiles = rootDir.listFiles();
+            if (apkFiles == null) {
+                return;
+            }
+            boolean legacyInUse = false;
+            List<File> keepSlots = new ArrayList<>();
+            for (String apkPath : keepApkPaths) {
+                legacyInUse |= dataDir.equals(getPluginCodeDir(context, packageName, new File(apkPath)));
+                keepSlots.add(getPluginSlotDir(context, packageName, new File(apkPath)));
+            }
+            for (File apkFile : apkFiles) {
+                if (!isVersionApk(packageName, apkFile) || keepApkPaths.contains(apkFile.getAbsolutePath())) {
+                    continue;
+                }
+                FileLock lock = PluginStorageManager.lockForDelete(apkFile);
+                if (lock == null) {
+                    // 插件进程仍在运行这个版本，例如后台升级之后还没有重启
+                    PluginDebugLog.installFormatLog(TAG, "deleteStaleVersions %s, apk %s is in use",
+                            packageName, apkFile.getName());
+                    legacyInUse |= dataDir.equals(getPluginCodeDir(context, packageName, apkFile));
+                    keepSlots.add(getPluginSlotDir(context, packageName, apkFile));
+                    continue;
+                }
+                String version = getApkVersion(packageName, apkFile.getName());
+                boolean deleted = apkFile.delete();
+                PluginStorageManager.releaseAfterDelete(lock, apkFile);
+                PluginDebugLog.installFormatLog(TAG, "deleteStaleVersions %s, apk %s success: %s",
+                        packageName, apkFile.getName(), deleted);
+                PluginLaunchArtifacts.delete(apkFile);
+                PluginPackageInfoCache.delete(context, apkFile);
+                deleteSlot(context, packageName, apkFile);
+                // 没有槽位时优化后的dex保存在插件目录下
+                File dexFile = new File(dataDir,
+                        apkFile.getName().substring(0, apkFile.getName().length() - APK_SUFFIX.length()) + DEX_SUFFIX);
+                if (dexFile.exists()) {
+                    dexFile.delete();
+                }
+                deleteOatFiles(apkFile, packageName, version, false);
+            }
+            // apk已经不存在的槽位
+            File[] slots = dataDir.listFiles();
+            if (slots != null) {
+                for (File slot : slots) {
+                    if (slot.isDirectory() && isValidSlotName(slot.getName()) && !keepSlots.contains(slot)) {
+                        boolean deleted = FileUtils.deleteDirectory(slot);
+                        PluginDebugLog.installFormatLog(TAG, "delete orphan slot %s success: %s",
+                                slot.getAbsolutePath(), deleted);
+                    }
+                }
+            }
+            if (!legacyInUse) {
+                // 保留的版本都已经使用槽位，插件目录下旧的so库和优化后的dex不再需要
+                FileUtils.deleteDirectory(new File(dataDir, NATIVE_LIB_PATH));
+                FileUtils.deleteDirectory(new File(dataDir, OAT_PATH));
+            }
+        }
+    }
+
+    /**
+     * 是否是插件某个版本的apk，{pkgName}.apk或者{pkgName}.{version}.apk
+     */
+    private static boolean isVersionApk(String packageName, File file) {
+        String name = file.getName();
+        if (!file.isFile() || !name.endsWith(APK_SUFFIX)) {
+            return false;
+        }
+        if (name.equals(packageName + APK_SUFFIX)) {
+            return true;
+        }
+        // 版本号以数字开头，避免误删包名前缀相同的其他插件
+        return isValidSlotName(getApkVersion(packageName, name));
+    }
+
+    /**
+     * 删除某个版本的槽位，包括so库、优化后的dex和secondary dex
+     */
+    private static void deleteSlot(Context context, String packageName, File apkFile) {
+        File slotDir = getPluginSlotDir(context, packageName, apkFile);
+        if (slotDir.equals(new File(getPluginappRootPath(context), packageName))) {
+            // 旧的目录结构，so库直接在插件目录下
+            return;
+        }
+        boolean deleted = FileUtils.deleteDirectory(slotDir);
+        PluginDebugLog.installFormatLog(TAG, "delete slot %s success: %s", slotDir.getAbsolutePath(), deleted);
+    }
+
+    /**
+     * 删除插件所有版本的槽位
+     */
+    private static void deleteAllSlots(File dataDir) {
+        File[] files = dataDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory() && isValidSlotName(file.getName())) {
+                boolean deleted = FileUtils.deleteDirectory(file);
+                PluginDebugLog.installFormatLog(TAG, "delete slot %s success: %s", file.getAbsolutePath(), deleted);
+            }
+        }
+    }
+
+    private static void deleteInstallerFiles(Context context, PluginLiteInfo info, boolean deleteAllVersion) {
         String packageName = info.packageName;
         PluginDebugLog.installFormatLog(TAG, "deleteInstallerPackage:%s", packageName);
 
         File rootDir = PluginInstaller.getPluginappRootPath(context);
-        deleteDexFiles(rootDir, packageName);
+        deleteDexFiles(rootDir, packageName, info.pluginVersion);
 
         File dataDir = new File(rootDir, packageName);
         File lib = new File(dataDir, NATIVE_LIB_PATH);
         // 删除lib目录下的so库
         boolean deleted = FileUtils.deleteDirectory(lib);
         PluginDebugLog.installFormatLog(TAG, "deleteInstallerPackage lib %s success: %s", packageName, deleted);
+        // 删除PackageInfo缓存
+        PluginPackageInfoCache.delete(context, packageName, info.pluginVersion);
 
         File apk = null;
         String apkPath = info.srcApkPath;
@@ -72,6 +224,9 @@ public class PluginUninstaller extends PluginInstaller {
             } else {
                 PluginDebugLog.installFormatLog(TAG, "deleteInstallerPackage apk  %s fail!", packageName);
             }
+            // 删除安装时生成的启动数据和运行标记
+            PluginLaunchArtifacts.delete(apk);
+            PluginStorageManager.getInUseLockFile(apk).delete();
         } else {
             PluginDebugLog.installFormatLog(TAG, "deleteInstallerPackage info srcApkPath is empty %s", packageName);
             apk = new File(rootDir, packageName + "." + info.pluginVersion + PluginInstaller.APK_SUFFIX);
@@ -79,9 +234,15 @@ public class PluginUninstaller extends PluginInstaller {
                 apk = new File(rootDir, packageName + PluginInstaller.APK_SUFFIX);
             }
         }
+        // 删除槽位中的so库和优化后的dex
+        if (deleteAllVersion) {
+            deleteAllSlots(dataDir);
+        } else {
+            deleteSlot(context, packageName, apk);
+        }
         // 删除历史版本遗留的apk
         if (deleteAllVersion) {
-            deleteOldApks(rootDir, packageName);
+            deleteOldApks(rootDir, packageName, info.pluginVersion);
         }
         // 删除odex和vdex文件
         deleteOatFiles(apk, packageName, info.pluginVersion, deleteAllVersion);
@@ -89,9 +250,9 @@ public class PluginUninstaller extends PluginInstaller {
 
 
     /**
-     * 删除已安装插件相关dex文件
+     * 删除已安装插件相关dex文件，按文件名精确匹配，不误删包名前缀相同的其他插件
      */
-    private static void deleteDexFiles(File rootDir, final String packageName) {
+    private static void deleteDexFiles(File rootDir, final String packageName, final String version) {
 
         List<File> dexFiles = new ArrayList<>();
         File dataDir = new File(rootDir, packageName);
@@ -99,7 +260,7 @@ public class PluginUninstaller extends PluginInstaller {
             @Override
             public boolean accept(File pathname) {
                 String name = pathname.getName();
-                return name.startsWith(packageName) && name.endsWith(DEX_SUFFIX);
+                return PluginInstaller.isPackageFile(name, packageName, DEX_SUFFIX, version);
             }
         };
 
@@ -127,15 +288,19 @@ public class PluginUninstaller extends PluginInstaller {
     }
 
     /**
-     * 删除遗留的低版本的apk
+     * 删除遗留的低版本的apk，以及apk对应的启动数据和运行标记
      */
-    private static void deleteOldApks(File rootDir, final String packageName) {
+    private static void deleteOldApks(File rootDir, final String packageName, final String version) {
         List<File> apkFiles = new ArrayList<>();
         FileFilter fileFilter = new FileFilter() {
             @Override
             public boolean accept(File pathname) {
                 String name = pathname.getName();
-                return name.startsWith(packageName) && name.endsWith(APK_SUFFIX);
+                return PluginInstaller.isPackageFile(name, packageName, APK_SUFFIX, version)
+                        || PluginInstaller.isPackageFile(name, packageName,
+                        APK_SUFFIX + PluginLaunchArtifacts.FILE_SUFFIX, version)
+                        || PluginInstaller.isPackageFile(name, packageName,
+                        APK_SUFFIX + PluginStorageManager.IN_USE_SUFFIX, version);
             }
         };
         File[] files = rootDir.listFiles(fileFilter);
@@ -176,12 +341,19 @@ public class PluginUninstaller extends PluginInstaller {
             }
 
             List<File> toDeleted = new ArrayList<>();
+            String apkName = apkFile.getName();
+            final String apkBaseName = apkName.endsWith(APK_SUFFIX)
+                    ? apkName.substring(0, apkName.length() - APK_SUFFIX.length()) : apkName;
             FileFilter fileFilter = new FileFilter() {
                 @Override
                 public boolean accept(File pathname) {
                     String name = pathname.getName();
-                    return name.startsWith(deleteAllVersion ? packageName : packageName + "." + version)
-                            && (name.endsWith(".odex") || name.endsWith(".vdex"));
+                    if (deleteAllVersion) {
+                        return PluginInstaller.isPackageFile(name, packageName, ODEX_SUFFIX, version)
+                                || PluginInstaller.isPackageFile(name, packageName, VDEX_SUFFIX, version);
+                    }
+                    // 只删除这个apk生成的文件
+                    return name.equals(apkBaseName + ODEX_SUFFIX) || name.equals(apkBaseName + VDEX_SUFFIX);
                 }
             };
 
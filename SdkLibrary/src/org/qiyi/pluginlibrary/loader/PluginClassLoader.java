@@ -20,8 +20,7 @@ package org.qiyi.pluginlibrary.loader;
 import org.qiyi.pluginlibrary.pm.PluginPackageInfo;
 import org.qiyi.pluginlibrary.utils.MultiDex;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import dalvik.system.DexClassLoader;
 
@@ -33,13 +32,13 @@ public class PluginClassLoader extends DexClassLoader {
     // 插件的包名
     private String pkgName;
     // 依赖的插件的ClassLoader
-    private List<DexClassLoader> dependencies;
+    private CopyOnWriteArrayList<DexClassLoader> dependencies;
 
     public PluginClassLoader(PluginPackageInfo packageInfo, String dexPath, String optimizedDirectory,
                              String librarySearchPath, ClassLoader parent) {
         super(dexPath, optimizedDirectory, librarySearchPath, parent);
         this.pkgName = packageInfo.getPackageName();
-        this.dependencies = new ArrayList<>();
+        this.dependencies = new CopyOnWriteArrayList<>();
         MultiDex.install(packageInfo, dexPath, this);
     }
 
@@ -86,7 +85,7 @@ public class PluginClassLoader extends DexClassLoader {
      * 添加依赖的插件ClassLoader
      */
     public void addDependency(DexClassLoader classLoader) {
-        dependencies.add(classLoader);
+        dependencies.addIfAbsent(classLoader);
     }
 
     @Override
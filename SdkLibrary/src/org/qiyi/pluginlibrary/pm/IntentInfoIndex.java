@@ -0,0 +1,203 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.pm;
+
+import android.content.IntentFilter;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 插件组件IntentFilter的索引，用于加速隐式Intent的查找
+ * <p>
+ * 按action和scheme把IntentFilter分桶，查找时只遍历较小的桶；
+ * 每个IntentFilter声明的category预先计算成位图，快速排除不满足的候选，
+ * 最终仍然调用{@link IntentFilter#match}确认，保证和线性查找的结果一致
+ */
+final class IntentInfoIndex<T extends PluginPackageInfo.IntentInfo> {
+    private static final String TAG = "IntentInfoIndex";
+    /* 位图最多记录的category个数 */
+    private static final int MAX_CATEGORY_BITS = 64;
+
+    /* 所有的IntentFilter，保持组件声明的顺序 */
+    private final List<Entry<T>> mAllEntries = new ArrayList<>();
+    /* action -> 声明了该action的IntentFilter */
+    private final Map<String, List<Entry<T>>> mActionIndex = new HashMap<>();
+    /* scheme -> 声明了该scheme或者没有声明scheme的IntentFilter */
+    private final Map<String, List<Entry<T>>> mSchemeIndex = new HashMap<>();
+    /* 没有声明scheme的IntentFilter */
+    private final List<Entry<T>> mNoSchemeEntries = new ArrayList<>();
+    /* category -> 位图中的位置 */
+    private final Map<String, Integer> mCategoryBits = new HashMap<>();
+
+    IntentInfoIndex(Map<String, T> intentInfos) {
+        if (intentInfos == null) {
+            return;
+        }
+        for (T info : intentInfos.values()) {
+            if (info == null || info.mFilter == null) {
+                continue;
+            }
+            for (IntentFilter filter : info.mFilter) {
+                if (filter != null) {
+                    addEntry(new Entry<>(info, filter, buildCategoryMask(filter)));
+                }
+            }
+        }
+        // 没有声明scheme的IntentFilter可能匹配任意scheme，按顺序合并到每个scheme桶中
+        for (Map.Entry<String, List<Entry<T>>> bucket : mSchemeIndex.entrySet()) {
+            bucket.setValue(mergeInOrder(bucket.getValue(), mNoSchemeEntries));
+        }
+    }
+
+    private void addEntry(Entry<T> entry) {
+        entry.order = mAllEntries.size();
+        mAllEntries.add(entry);
+
+        Iterator<String> actions = entry.filter.actionsIterator();
+        while (actions != null && actions.hasNext()) {
+            addToBucket(mActionIndex, actions.next(), entry);
+        }
+
+        Iterator<String> schemes = entry.filter.schemesIterator();
+        if (schemes == null || !schemes.hasNext()) {
+            mNoSchemeEntries.add(entry);
+        } else {
+            while (schemes.hasNext()) {
+                addToBucket(mSchemeIndex, schemes.next(), entry);
+            }
+        }
+    }
+
+    private long buildCategoryMask(IntentFilter filter) {
+        long mask = 0;
+        Iterator<String> categories = filter.categoriesIterator();
+        while (categories != null && categories.hasNext()) {
+            String category = categories.next();
+            Integer bit = mCategoryBits.get(category);
+            if (bit == null) {
+                bit = mCategoryBits.size();
+                mCategoryBits.put(category, bit);
+            }
+            if (bit < MAX_CATEGORY_BITS) {
+                mask |= 1L << bit;
+            }
+        }
+        return mask;
+    }
+
+    private static <T extends PluginPackageInfo.IntentInfo> void addToBucket(
+            Map<String, List<Entry<T>>> index, String key, Entry<T> entry) {
+        List<Entry<T>> bucket = index.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>(1);
+            index.put(key, bucket);
+        }
+        // 同一个IntentFilter可能重复声明相同的action
+        if (bucket.isEmpty() || bucket.get(bucket.size() - 1) != entry) {
+            bucket.add(entry);
+        }
+    }
+
+    private static <T extends PluginPackageInfo.IntentInfo> List<Entry<T>> mergeInOrder(
+            List<Entry<T>> first, List<Entry<T>> second) {
+        if (second.isEmpty()) {
+            return first;
+        }
+        List<Entry<T>> merged = new ArrayList<>(first.size() + second.size());
+        int i = 0, j = 0;
+        while (i < first.size() || j < second.size()) {
+            if (j >= second.size()
+                    || (i < first.size() && first.get(i).order < second.get(j).order)) {
+                merged.add(first.get(i++));
+            } else {
+                merged.add(second.get(j++));
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * 查找第一个能够匹配的组件，参数含义同{@link IntentFilter#match}
+     */
+    T match(String action, String type, String scheme, Uri data, Set<String> categories) {
+        List<Entry<T>> candidates = action != null ? mActionIndex.get(action) : mAllEntries;
+        if (candidates == null) {
+            return null;
+        }
+        if (scheme != null) {
+            List<Entry<T>> schemeCandidates = mSchemeIndex.get(scheme);
+            if (schemeCandidates == null) {
+                schemeCandidates = mNoSchemeEntries;
+            }
+            if (schemeCandidates.size() < candidates.size()) {
+                candidates = schemeCandidates;
+            }
+        }
+
+        long categoryMask = 0;
+        if (categories != null) {
+            for (String category : categories) {
+                Integer bit = mCategoryBits.get(category);
+                if (bit == null) {
+                    // 没有任何IntentFilter声明这个category
+                    return null;
+                }
+                if (bit < MAX_CATEGORY_BITS) {
+                    categoryMask |= 1L << bit;
+                }
+            }
+        }
+
+        for (Entry<T> entry : candidates) {
+            if ((entry.categoryMask & categoryMask) != categoryMask) {
+                continue;
+            }
+            if (entry.filter.match(action, type, scheme, data, categories, TAG) > 0) {
+                return entry.info;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 所有IntentFilter声明的action
+     */
+    Set<String> getActions() {
+        return Collections.unmodifiableSet(mActionIndex.keySet());
+    }
+
+    private static class Entry<T> {
+        final T info;
+        final IntentFilter filter;
+        final long categoryMask;
+        int order;
+
+        Entry(T info, IntentFilter filter, long categoryMask) {
+            this.info = info;
+            this.filter = filter;
+            this.categoryMask = categoryMask;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.pm;
+
+import android.content.pm.ProviderInfo;
+import android.text.TextUtils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 跨插件的组件索引，记录每个action/authority可能由哪些插件处理
+ * <p>
+ * 隐式Intent在所有插件中查找时，只需要在候选插件里做精确匹配；
+ * 每个插件的索引以包名、安装路径和版本号作为key，插件升级或者卸载后自动失效
+ */
+final class PluginComponentIndex {
+    static final int TYPE_ACTIVITY = 0;
+    static final int TYPE_SERVICE = 1;
+
+    /* 包名 -> 已经建立索引的插件 */
+    private final Map<String, IndexedPackage> mPackages = new HashMap<>();
+    /* action -> 声明了该action的插件包名 */
+    private final Map<String, Set<String>> mActivityActions = new HashMap<>();
+    private final Map<String, Set<String>> mServiceActions = new HashMap<>();
+    /* authority -> 插件包名 */
+    private final Map<String, String> mAuthorities = new HashMap<>();
+
+    /**
+     * 获取已经建立索引的插件信息，没有索引或者已经过期返回null
+     */
+    synchronized PluginPackageInfo get(PluginLiteInfo liteInfo) {
+        IndexedPackage indexed = mPackages.get(liteInfo.packageName);
+        if (indexed != null && TextUtils.equals(indexed.key, keyOf(liteInfo))) {
+            return indexed.info;
+        }
+        return null;
+    }
+
+    /**
+     * 添加或者更新插件的索引
+     *
+     * @param key 获取插件信息之前通过{@link #keyOf}计算的key
+     */
+    synchronized void put(String packageName, String key, PluginPackageInfo info) {
+        remove(packageName);
+        mPackages.put(packageName, new IndexedPackage(key, info));
+        for (String action : info.getActivityActions()) {
+            addToBucket(mActivityActions, action, packageName);
+        }
+        for (String action : info.getServiceActions()) {
+            addToBucket(mServiceActions, action, packageName);
+        }
+        for (String authority : info.getProviderAuthorities()) {
+            mAuthorities.put(authority, packageName);
+        }
+    }
+
+    /**
+     * 删除插件的索引
+     */
+    synchronized void remove(String packageName) {
+        if (mPackages.remove(packageName) == null) {
+            return;
+        }
+        removeFromBuckets(mActivityActions, packageName);
+        removeFromBuckets(mServiceActions, packageName);
+        Iterator<Map.Entry<String, String>> iterator = mAuthorities.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (TextUtils.equals(iterator.next().getValue(), packageName)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 只保留当前已安装插件的索引
+     */
+    synchronized void retain(List<PluginLiteInfo> installed) {
+        Set<String> installedNames = new HashSet<>();
+        for (PluginLiteInfo info : installed) {
+            if (info != null) {
+                installedNames.add(info.packageName);
+            }
+        }
+        for (String packageName : new HashSet<>(mPackages.keySet())) {
+            if (!installedNames.contains(packageName)) {
+                remove(packageName);
+            }
+        }
+    }
+
+    /**
+     * 插件是否可能处理这个action，action为空时所有插件都是候选
+     */
+    synchronized boolean mayHandle(String packageName, String action, int type) {
+        if (action == null) {
+            return true;
+        }
+        Set<String> candidates = (type == TYPE_ACTIVITY ? mActivityActions : mServiceActions).get(action);
+        return candidates != null && candidates.contains(packageName);
+    }
+
+    /**
+     * 在已经建立索引的插件中查找能够处理这个authority的Provider
+     */
+    synchronized ProviderInfo resolveProvider(String authority) {
+        String packageName = mAuthorities.get(authority);
+        IndexedPackage indexed = packageName != null ? mPackages.get(packageName) : null;
+        return indexed != null ? indexed.info.resolveProvider(authority) : null;
+    }
+
+    private static void addToBucket(Map<String, Set<String>> index, String key, String packageName) {
+        Set<String> bucket = index.get(key);
+        if (bucket == null) {
+            bucket = new HashSet<>();
+            index.put(key, bucket);
+        }
+        bucket.add(packageName);
+    }
+
+    private static void removeFromBuckets(Map<String, Set<String>> index, String packageName) {
+        Iterator<Map.Entry<String, Set<String>>> iterator = index.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Set<String> bucket = iterator.next().getValue();
+            bucket.remove(packageName);
+            if (bucket.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    static String keyOf(PluginLiteInfo liteInfo) {
+        return liteInfo.srcApkPath + "@" + liteInfo.pluginVersion;
+    }
+
+    private static class IndexedPackage {
+        final String key;
+        final PluginPackageInfo info;
+
+        IndexedPackage(String key, PluginPackageInfo info) {
+            this.key = key;
+            this.info = info;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.pm;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 已安装插件数据的恢复任务
+ * <p>
+ * 恢复只执行一次：后台线程和等待超时的调用线程谁先开始谁负责执行，
+ * 另一方只通过latch等待执行完成，不会再持有任何锁去等待正在进行的恢复
+ */
+final class PluginDataRecovery {
+    private final Runnable mRestore;
+    /* 恢复是否已经开始 */
+    private final AtomicBoolean mStarted = new AtomicBoolean();
+    /* 恢复完成的信号 */
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+    /* 恢复是否完成 */
+    private volatile boolean mOver;
+
+    PluginDataRecovery(Runnable restore) {
+        mRestore = restore;
+    }
+
+    /**
+     * 执行恢复，已经开始过时直接返回
+     *
+     * @return true:由当前线程完成了恢复
+     */
+    boolean run() {
+        if (!mStarted.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            mRestore.run();
+        } finally {
+            mOver = true;
+            mLatch.countDown();
+        }
+        return true;
+    }
+
+    boolean isOver() {
+        return mOver;
+    }
+
+    /**
+     * 等待恢复完成；超时后如果恢复还没有开始，在当前线程执行，已经开始则继续等待它完成
+     *
+     * @return true:由当前线程完成了恢复
+     */
+    boolean await(long timeoutMs) {
+        if (mOver) {
+            return false;
+        }
+        try {
+            if (mLatch.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            if (run()) {
+                return true;
+            }
+            mLatch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.pm;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.text.TextUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.qiyi.pluginlibrary.install.PluginInstaller;
+import org.qiyi.pluginlibrary.utils.FileUtils;
+import org.qiyi.pluginlibrary.utils.PluginDebugLog;
+import org.qiyi.pluginlibrary.utils.PreferUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 已安装插件列表的持久化，使用只追加的二进制日志代替SharedPreferences中的json
+ * <p>
+ * 每次安装/卸载只追加一条记录，记录带有长度和crc校验，进程崩溃导致的不完整记录在恢复时被丢弃；
+ * 日志中的无效记录过多时重写为只包含当前已安装插件的快照。
+ * 多进程之间通过文件锁互斥写入，恢复时通过内存映射读取
+ * <p>
+ * 头部损坏时整个日志无法使用，保留损坏的文件，从SharedPreferences或者安装目录中的apk重建已安装列表，
+ * 不会写入空的快照覆盖所有安装记录
+ */
+final class PluginInstallJournal {
+    private static final String TAG = "PluginInstallJournal";
+    private static final String JOURNAL_NAME = "install.journal";
+    private static final String LOCK_NAME = "install.journal.lock";
+    /* 头部损坏的日志重命名保留，不直接删除 */
+    private static final String CORRUPT_NAME = "install.journal.corrupt";
+    private static final int MAGIC = 0x4E50494A; // "NPIJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    /* 单条记录的最大长度，超过认为日志已损坏 */
+    private static final int MAX_RECORD_SIZE = 256 * 1024;
+    /* 日志超过这个大小并且是有效数据的两倍以上时压缩 */
+    private static final long COMPACT_MIN_SIZE = 32 * 1024;
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_REMOVE = 2;
+
+    /* 旧版本存储在SharedPreferences中的数据，用于迁移 */
+    private static final String LEGACY_SP_NAME = "plugin_install";
+    private static final String LEGACY_SP_KEY = "install_status";
+
+    private final Context mContext;
+    private final File mJournalFile;
+    private final File mLockFile;
+    /* 当前进程已知的日志有效长度，与文件长度不一致说明其他进程写入过或者末尾有不完整的记录 */
+    private long mValidLength = -1;
+    /* 有效数据的大小，用于判断是否需要压缩 */
+    private long mLiveSize;
+    /* 每个已安装插件最新一条记录的大小 */
+    private final Map<String, Integer> mLiveRecordSizes = new HashMap<>();
+    /* 最近一次重放时日志头部损坏，日志中的记录全部不可用 */
+    private boolean mCorrupted;
+
+    PluginInstallJournal(Context context) {
+        mContext = context;
+        File rootDir = PluginInstaller.getPluginappRootPath(context);
+        mJournalFile = new File(rootDir, JOURNAL_NAME);
+        mLockFile = new File(rootDir, LOCK_NAME);
+    }
+
+    /**
+     * 恢复已安装插件列表，日志不存在时从SharedPreferences迁移
+     *
+     * @return key是插件包名，按照安装顺序排列
+     */
+    synchronized Map<String, PluginLiteInfo> restore() {
+        long start = System.currentTimeMillis();
+        Map<String, PluginLiteInfo> result;
+        if (mJournalFile.exists()) {
+            result = replay();
+            if (mCorrupted) {
+                FileLock lock = null;
+                try {
+                    lock = lock();
+                    // 其他进程可能已经重建过，持有锁之后重新确认
+                    result = replay();
+                    if (mCorrupted) {
+                        result = recoverCorrupted();
+                    }
+                } catch (IOException e) {
+                    PluginDebugLog.installFormatLog(TAG, "recover corrupted journal failed: %s", e.getMessage());
+                } finally {
+                    release(lock);
+                }
+            }
+        } else {
+            result = restoreLegacy();
+            if (!result.isEmpty()) {
+                FileLock lock = null;
+                try {
+                    lock = lock();
+                    writeSnapshot(result);
+                    PreferUtils.save(mContext, LEGACY_SP_NAME, LEGACY_SP_KEY, "");
+                } catch (IOException e) {
+                    PluginDebugLog.installFormatLog(TAG, "migrate legacy data failed: %s", e.getMessage());
+                } finally {
+                    release(lock);
+                }
+            }
+        }
+        PluginDebugLog.installFormatLog(TAG, "restore %d plugins cost %d ms",
+                result.size(), System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * 记录插件安装
+     */
+    synchronized void put(PluginLiteInfo info) {
+        append(TYPE_PUT, info.packageName, info.toJson());
+    }
+
+    /**
+     * 记录插件卸载
+     */
+    synchronized void remove(String packageName) {
+        append(TYPE_REMOVE, packageName, null);
+    }
+
+    private void append(byte type, String packageName, String value) {
+        FileLock lock = null;
+        RandomAccessFile raf = null;
+        try {
+            byte[] record = encodeRecord(type, packageName, value);
+            lock = lock();
+            if (mValidLength < 0 || !mJournalFile.exists() || mJournalFile.length() != mValidLength) {
+                // 其他进程写入过或者末尾有不完整的记录，重新扫描并截断无效数据
+                Map<String, PluginLiteInfo> current = replay();
+                if (mCorrupted) {
+                    // 头部损坏时不能用空的快照覆盖，先重建已安装列表
+                    current = recoverCorrupted();
+                }
+                if (mValidLength < HEADER_SIZE) {
+                    writeSnapshot(current);
+                }
+            }
+            raf = new RandomAccessFile(mJournalFile, "rw");
+            raf.setLength(mValidLength);
+            raf.seek(mValidLength);
+            raf.write(record);
+            mValidLength += record.length;
+            raf.close();
+            raf = null;
+            updateLiveSize(type, packageName, record.length);
+
+            if (mValidLength > COMPACT_MIN_SIZE && mValidLength > mLiveSize * 2) {
+                writeSnapshot(replay());
+            }
+        } catch (IOException e) {
+            mValidLength = -1;
+            PluginDebugLog.installFormatLog(TAG, "append journal for %s failed: %s", packageName, e.getMessage());
+        } finally {
+            FileUtils.closeQuietly(raf);
+            release(lock);
+        }
+    }
+
+    private void updateLiveSize(byte type, String packageName, int recordSize) {
+        Integer previous = type == TYPE_PUT ? mLiveRecordSizes.put(packageName, recordSize)
+                : mLiveRecordSizes.remove(packageName);
+        if (previous != null) {
+            mLiveSize -= previous;
+        }
+        if (type == TYPE_PUT) {
+            mLiveSize += recordSize;
+        }
+    }
+
+    /**
+     * 重放日志，遇到不完整或者校验失败的记录时停止
+     */
+    private Map<String, PluginLiteInfo> replay() {
+        Map<String, PluginLiteInfo> result = new LinkedHashMap<>();
+        mValidLength = 0;
+        mLiveSize = HEADER_SIZE;
+        mLiveRecordSizes.clear();
+        mCorrupted = false;
+        if (!mJournalFile.exists()) {
+            return result;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mJournalFile, "r");
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                // 快照先写临时文件再rename，正常情况下不会出现不完整的头部
+                PluginDebugLog.installFormatLog(TAG, "journal size %d is invalid", size);
+                mCorrupted = true;
+                return result;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                PluginDebugLog.installLog(TAG, "journal header not match");
+                mCorrupted = true;
+                return result;
+            }
+            long validLength = HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE || buffer.remaining() < length + 4) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                buffer.get(body);
+                crc.reset();
+                crc.update(body);
+                if (buffer.getInt() != (int) crc.getValue()) {
+                    break;
+                }
+                applyRecord(body, result);
+                validLength += length + 8;
+            }
+            mValidLength = validLength;
+            if (validLength != size) {
+                PluginDebugLog.installFormatLog(TAG, "journal has %d bytes invalid tail", size - validLength);
+            }
+        } catch (IOException | RuntimeException e) {
+            PluginDebugLog.installFormatLog(TAG, "replay journal failed: %s", e.getMessage());
+            if (mValidLength < HEADER_SIZE) {
+                // 头部都无法读取，按损坏处理
+                mCorrupted = true;
+            }
+        } finally {
+            FileUtils.closeQuietly(raf);
+        }
+        return result;
+    }
+
+    /**
+     * 日志头部损坏，保留损坏的文件，依次从SharedPreferences和安装目录中的apk重建已安装列表并写入新的快照，
+     * 需要持有文件锁
+     */
+    private Map<String, PluginLiteInfo> recoverCorrupted() throws IOException {
+        File corruptFile = new File(mJournalFile.getParentFile(), CORRUPT_NAME);
+        corruptFile.delete();
+        if (!mJournalFile.renameTo(corruptFile)) {
+            throw new IOException("keep corrupted journal failed");
+        }
+        Map<String, PluginLiteInfo> result = restoreLegacy();
+        if (result.isEmpty()) {
+            result = rebuildFromApks();
+        }
+        mCorrupted = false;
+        writeSnapshot(result);
+        PluginDebugLog.installFormatLog(TAG, "journal corrupted, rebuild %d plugins", result.size());
+        return result;
+    }
+
+    /**
+     * 从安装目录中的apk重建已安装列表，同一个插件有多个版本的apk时取最近安装的
+     */
+    private Map<String, PluginLiteInfo> rebuildFromApks() {
+        Map<String, PluginLiteInfo> result = new LinkedHashMap<>();
+        Map<String, Long> installTimes = new HashMap<>();
+        PackageManager pm = mContext.getPackageManager();
+        File[] dirs = {PluginInstaller.getPluginappRootPath(mContext),
+                mContext.getExternalFilesDir(PluginInstaller.PLUGIN_ROOT_PATH)};
+        for (File dir : dirs) {
+            File[] files = dir != null ? dir.listFiles() : null;
+            if (files == null) {
+                continue;
+            }
+            for (File apkFile : files) {
+                String name = apkFile.getName();
+                if (!apkFile.isFile() || !name.endsWith(PluginInstaller.APK_SUFFIX)) {
+                    continue;
+                }
+                PackageInfo pkgInfo = null;
+                try {
+                    pkgInfo = pm.getPackageArchiveInfo(apkFile.getAbsolutePath(), 0);
+                } catch (RuntimeException e) {
+                    // 无法解析的apk
+                }
+                if (pkgInfo == null || TextUtils.isEmpty(pkgInfo.packageName)
+                        || !PluginInstaller.isPackageFile(name, pkgInfo.packageName,
+                        PluginInstaller.APK_SUFFIX, pkgInfo.versionName)) {
+                    continue;
+                }
+                Long installTime = installTimes.get(pkgInfo.packageName);
+                if (installTime != null && installTime >= apkFile.lastModified()) {
+                    continue;
+                }
+                installTimes.put(pkgInfo.packageName, apkFile.lastModified());
+                // 安装文件名为{pkgName}.{version}.apk，优先使用文件名中的插件版本号
+                String baseName = name.substring(0, name.length() - PluginInstaller.APK_SUFFIX.length());
+                String version = baseName.length() > pkgInfo.packageName.length()
+                        ? baseName.substring(pkgInfo.packageName.length() + 1) : pkgInfo.versionName;
+                PluginLiteInfo info = new PluginLiteInfo();
+                info.packageName = pkgInfo.packageName;
+                info.pluginVersion = version;
+                info.srcApkPath = apkFile.getAbsolutePath();
+                info.srcApkPkgName = pkgInfo.packageName;
+                info.srcApkVersion = pkgInfo.versionName;
+                info.installStatus = PluginLiteInfo.PLUGIN_INSTALLED;
+                result.put(info.packageName, info);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 把一条记录应用到已安装列表
+     */
+    private void applyRecord(byte[] body, Map<String, PluginLiteInfo> result) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = in.readByte();
+        String packageName = in.readUTF();
+        if (type == TYPE_PUT) {
+            PluginLiteInfo info = new PluginLiteInfo(in.readUTF());
+            if (!TextUtils.equals(info.packageName, packageName)) {
+                return;
+            }
+            // 重新安装的插件移动到末尾
+            result.remove(packageName);
+            result.put(packageName, info);
+        } else if (type == TYPE_REMOVE) {
+            result.remove(packageName);
+        } else {
+            return;
+        }
+        updateLiveSize(type, packageName, body.length + 8);
+    }
+
+    /**
+     * 把当前已安装插件写成新的日志，先写临时文件再rename
+     */
+    private void writeSnapshot(Map<String, PluginLiteInfo> installed) throws IOException {
+        File tmpFile = new File(mJournalFile.getParentFile(), JOURNAL_NAME + ".tmp");
+        FileOutputStream fos = null;
+        long length = HEADER_SIZE;
+        try {
+            fos = new FileOutputStream(tmpFile);
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            mLiveRecordSizes.clear();
+            for (PluginLiteInfo info : installed.values()) {
+                byte[] record = encodeRecord(TYPE_PUT, info.packageName, info.toJson());
+                out.write(record);
+                length += record.length;
+                mLiveRecordSizes.put(info.packageName, record.length);
+            }
+            out.flush();
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+            if (!tmpFile.renameTo(mJournalFile)) {
+                throw new IOException("rename journal failed");
+            }
+            mValidLength = length;
+            mLiveSize = length;
+            PluginDebugLog.installFormatLog(TAG, "write journal snapshot, %d plugins, %d bytes",
+                    installed.size(), length);
+        } finally {
+            FileUtils.closeQuietly(fos);
+            if (tmpFile.exists()) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private static byte[] encodeRecord(byte type, String packageName, String value) throws IOException {
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        body.writeByte(type);
+        body.writeUTF(packageName);
+        if (value != null) {
+            body.writeUTF(value);
+        }
+        body.flush();
+        byte[] data = bodyBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        ByteBuffer record = ByteBuffer.allocate(data.length + 8);
+        record.putInt(data.length);
+        record.put(data);
+        record.putInt((int) crc.getValue());
+        return record.array();
+    }
+
+    /**
+     * 获取跨进程的文件锁
+     */
+    private FileLock lock() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mLockFile, "rw");
+        try {
+            return raf.getChannel().lock();
+        } catch (IOException | RuntimeException e) {
+            FileUtils.closeQuietly(raf);
+            throw e;
+        }
+    }
+
+    private static void release(FileLock lock) {
+        if (lock != null) {
+            try {
+                lock.release();
+            } catch (IOException e) {
+                // ignore
+            }
+            FileUtils.closeQuietly(lock.channel());
+        }
+    }
+
+    /**
+     * 从旧版本的SharedPreferences中恢复数据
+     */
+    private Map<String, PluginLiteInfo> restoreLegacy() {
+        Map<String, PluginLiteInfo> result = new LinkedHashMap<>();
+        String content = PreferUtils.get(mContext, LEGACY_SP_NAME, LEGACY_SP_KEY, "");
+        if (TextUtils.isEmpty(content)) {
+            return result;
+        }
+        try {
+            JSONArray jArray = new JSONArray(content);
+            for (int i = 0; i < jArray.length(); i++) {
+                JSONObject jObj = jArray.optJSONObject(i);
+                if (jObj != null) {
+                    String pkgName = jObj.optString("pkgName");
+                    String info = jObj.optString("info");
+                    if (TextUtils.isEmpty(pkgName) || TextUtils.isEmpty(info)) {
+                        continue;
+                    }
+                    PluginLiteInfo liteInfo = new PluginLiteInfo(info);
+                    if (TextUtils.isEmpty(liteInfo.packageName) || !TextUtils.equals(liteInfo.packageName, pkgName)) {
+                        continue;
+                    }
+                    result.put(pkgName, liteInfo);
+                }
+            }
+        } catch (JSONException e) {
+            // ignore
+        }
+        return result;
+    }
+}
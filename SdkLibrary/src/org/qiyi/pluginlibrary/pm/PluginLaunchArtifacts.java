@@ -0,0 +1,282 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.pm;
+
+import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.os.Build;
+import android.text.TextUtils;
+
+import org.qiyi.pluginlibrary.component.wraper.ResourcesProxy;
+import org.qiyi.pluginlibrary.runtime.PluginLoadedApk;
+import org.qiyi.pluginlibrary.utils.ComponentFinder;
+import org.qiyi.pluginlibrary.utils.ErrorUtil;
+import org.qiyi.pluginlibrary.utils.FileUtils;
+import org.qiyi.pluginlibrary.utils.PluginDebugLog;
+import org.qiyi.pluginlibrary.utils.ReflectionUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 插件安装时预先计算的启动数据，以sidecar文件的形式和插件apk放在同一目录
+ * <p>
+ * 插件首次启动时需要为每个Activity计算选择代理的特征(主题是否透明等)，并确定需要注册的静态Receiver；
+ * 这些结果只依赖插件apk和系统环境，安装时计算一次，{@link PluginLoadedApk}加载时直接读取。
+ * 文件以apk大小、修改时间、系统版本和宿主apk作为key，不匹配时忽略，运行时重新计算
+ */
+public final class PluginLaunchArtifacts {
+    private static final String TAG = "PluginLaunchArtifacts";
+    /* sidecar文件后缀，{apkName}.launch */
+    public static final String FILE_SUFFIX = ".launch";
+    private static final int MAGIC = 0x4E504C41; // "NPLA"
+    /* 文件格式版本，代理特征的计算方式变更时需要升级 */
+    private static final int FORMAT_VERSION = 1;
+
+    /* Activity类名 -> 选择代理的特征 */
+    private final Map<String, Integer> mActivityFeatures;
+    /* 声明了IntentFilter的静态Receiver类名 */
+    private final List<String> mStaticReceivers;
+
+    private PluginLaunchArtifacts(Map<String, Integer> activityFeatures, List<String> staticReceivers) {
+        mActivityFeatures = activityFeatures;
+        mStaticReceivers = staticReceivers;
+    }
+
+    /**
+     * 安装完成后计算插件的启动数据并写入sidecar文件
+     *
+     * @param context 宿主的Context
+     * @param apkFile 安装后的插件apk文件
+     * @param info    插件的PackageInfo
+     */
+    public static void prepare(Context context, File apkFile, PluginPackageInfo info) {
+        if (info == null || TextUtils.isEmpty(info.getPackageName()) || info.getPackageInfo() == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Map<String, Integer> activityFeatures = new HashMap<>();
+        ActivityInfo[] activities = info.getPackageInfo().activities;
+        if (activities != null && activities.length > 0) {
+            Resources resources = createResources(context, apkFile, info);
+            if (resources == null) {
+                return;
+            }
+            Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+            for (ActivityInfo actInfo : activities) {
+                // 判断透明主题时会applyStyle，每个Activity使用独立的Theme，避免相互影响
+                Resources.Theme theme = resources.newTheme();
+                theme.setTo(appContext.getTheme());
+                try {
+                    activityFeatures.put(actInfo.name,
+                            ComponentFinder.getActivityProxyFeatures(theme, actInfo, info.getPackageName()));
+                } catch (Exception e) {
+                    // 计算失败的Activity在运行时重新计算
+                    ErrorUtil.throwErrorIfNeed(e);
+                }
+            }
+        }
+
+        List<String> staticReceivers = new ArrayList<>();
+        Map<String, PluginPackageInfo.ReceiverIntentInfo> receiverInfos = info.getReceiverIntentInfos();
+        if (receiverInfos != null) {
+            for (Map.Entry<String, PluginPackageInfo.ReceiverIntentInfo> entry : receiverInfos.entrySet()) {
+                PluginPackageInfo.ReceiverIntentInfo receiverInfo = entry.getValue();
+                if (receiverInfo != null && receiverInfo.mFilter != null && !receiverInfo.mFilter.isEmpty()) {
+                    staticReceivers.add(entry.getKey());
+                }
+            }
+        }
+
+        write(context, apkFile, activityFeatures, staticReceivers);
+        PluginDebugLog.installFormatLog(TAG, "prepare launch artifacts for %s, activities %d, receivers %d, cost %d ms",
+                apkFile.getName(), activityFeatures.size(), staticReceivers.size(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 读取插件的启动数据，文件不存在或者已经失效返回null
+     *
+     * @param context 宿主的Context
+     * @param apkFile 插件apk文件
+     */
+    public static PluginLaunchArtifacts load(Context context, File apkFile) {
+        File file = getArtifactsFile(apkFile);
+        if (!file.exists() || !apkFile.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        boolean valid = false;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC
+                    || in.readInt() != FORMAT_VERSION
+                    || in.readInt() != Build.VERSION.SDK_INT
+                    || !TextUtils.equals(in.readUTF(), String.valueOf(Build.FINGERPRINT))
+                    || in.readLong() != PluginPackageInfoCache.getHostApkStamp(context)
+                    || in.readLong() != apkFile.length()
+                    || in.readLong() != apkFile.lastModified()) {
+                PluginDebugLog.runtimeFormatLog(TAG, "launch artifacts key not match: %s", file.getName());
+                return null;
+            }
+            int activityCount = in.readInt();
+            Map<String, Integer> activityFeatures = new HashMap<>(activityCount);
+            for (int i = 0; i < activityCount; i++) {
+                String name = in.readUTF();
+                activityFeatures.put(name, in.readInt());
+            }
+            int receiverCount = in.readInt();
+            List<String> staticReceivers = new ArrayList<>(receiverCount);
+            for (int i = 0; i < receiverCount; i++) {
+                staticReceivers.add(in.readUTF());
+            }
+            valid = true;
+            return new PluginLaunchArtifacts(activityFeatures, Collections.unmodifiableList(staticReceivers));
+        } catch (Throwable e) {
+            // 文件损坏或者格式不兼容
+            PluginDebugLog.runtimeFormatLog(TAG, "read launch artifacts %s failed: %s",
+                    file.getName(), e.getMessage());
+            return null;
+        } finally {
+            FileUtils.closeQuietly(in);
+            if (!valid) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 删除插件apk对应的sidecar文件
+     */
+    public static void delete(File apkFile) {
+        File file = getArtifactsFile(apkFile);
+        if (file.exists()) {
+            boolean deleted = file.delete();
+            PluginDebugLog.installFormatLog(TAG, "delete launch artifacts %s: %s", file.getName(), deleted);
+        }
+    }
+
+    /**
+     * 获取Activity选择代理的特征
+     *
+     * @return {@link ComponentFinder}中PROXY_FEATURE_*的组合，没有预先计算时返回-1
+     */
+    public int getActivityProxyFeatures(String activityName) {
+        Integer features = mActivityFeatures.get(activityName);
+        return features != null ? features : -1;
+    }
+
+    /**
+     * 需要动态注册的静态Receiver类名
+     */
+    public List<String> getStaticReceivers() {
+        return mStaticReceivers;
+    }
+
+    /**
+     * 写入sidecar文件，先写临时文件再rename，保证其他进程读到的文件是完整的
+     */
+    static void write(Context context, File apkFile, Map<String, Integer> activityFeatures,
+                              List<String> staticReceivers) {
+        File file = getArtifactsFile(apkFile);
+        File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = null;
+        boolean success = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(Build.VERSION.SDK_INT);
+            out.writeUTF(String.valueOf(Build.FINGERPRINT));
+            out.writeLong(PluginPackageInfoCache.getHostApkStamp(context));
+            out.writeLong(apkFile.length());
+            out.writeLong(apkFile.lastModified());
+            out.writeInt(activityFeatures.size());
+            for (Map.Entry<String, Integer> entry : activityFeatures.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+            out.writeInt(staticReceivers.size());
+            for (String receiver : staticReceivers) {
+                out.writeUTF(receiver);
+            }
+            out.flush();
+            out.close();
+            out = null;
+            success = tmpFile.renameTo(file);
+        } catch (Throwable e) {
+            // 写入失败不影响插件运行，启动时重新计算即可
+            PluginDebugLog.installFormatLog(TAG, "write launch artifacts %s failed: %s",
+                    file.getName(), e.getMessage());
+        } finally {
+            FileUtils.closeQuietly(out);
+            if (!success) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * 按照插件运行时的方式创建Resources，用于解析Activity的主题
+     */
+    private static Resources createResources(Context context, File apkFile, PluginPackageInfo info) {
+        try {
+            AssetManager am;
+            ReflectionUtils.MethodRef addAssetPath = ReflectionUtils.resolveMethod(
+                    AssetManager.class, "addAssetPath", String.class);
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                am = AssetManager.class.newInstance();
+                addAssetPath.invoke(am, apkFile.getAbsolutePath());
+            } else {
+                PackageManager pm = context.getPackageManager();
+                am = pm.getResourcesForApplication(info.getApplicationInfo()).getAssets();
+            }
+            if (!info.isIndividualMode() && info.isResourceNeedMerge()) {
+                addAssetPath.invoke(am, context.getApplicationInfo().sourceDir);
+            }
+            Resources hostRes = context.getResources();
+            if (info.isIndividualMode()) {
+                return new Resources(am, hostRes.getDisplayMetrics(), hostRes.getConfiguration());
+            }
+            return new ResourcesProxy(am, hostRes.getDisplayMetrics(), hostRes.getConfiguration(),
+                    hostRes, info.getPackageName(), info.getResourcePackageId());
+        } catch (Exception e) {
+            ErrorUtil.throwErrorIfNeed(e);
+            PluginDebugLog.installFormatLog(TAG, "create resources for %s failed: %s",
+                    apkFile.getName(), e.getMessage());
+            return null;
+        }
+    }
+
+    static File getArtifactsFile(File apkFile) {
+        return new File(apkFile.getParentFile(), apkFile.getName() + FILE_SUFFIX);
+    }
+}
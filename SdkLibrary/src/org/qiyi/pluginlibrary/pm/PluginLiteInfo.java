@@ -32,6 +32,7 @@ import org.json.JSONObject;
  * 安装位置(安装完成后，将安装路径放在此字段返回给调用者)
  * apk包AndroidManifest配置的包名
  * apk包AndroidManifest配置的版本号
+ * 插件文件的SHA-256摘要(可以为空)
  */
 public class PluginLiteInfo implements Parcelable {
     public static final String PLUGIN_INSTALLED = "installed";
@@ -68,6 +69,10 @@ public class PluginLiteInfo implements Parcelable {
     public boolean deletePackageBeforeInstall = true;
     /* 是否使用独立进程安装插件 */
     public boolean useInstallerProcess = false;
+    /* 插件文件的SHA-256摘要(十六进制)，不为空时安装过程中校验 */
+    public String apkDigest = "";
+    /* 差分包安装时依赖的已安装基础版本，mPath指向差分包 */
+    public String patchBaseVersion = "";
 
     public static final Creator<PluginLiteInfo> CREATOR = new Creator<PluginLiteInfo>() {
         @Override
@@ -103,11 +108,36 @@ public class PluginLiteInfo implements Parcelable {
             statusCode = jObj.optInt("statusCode");
             deletePackageBeforeInstall = jObj.optBoolean("deletePackageBeforeInstall");
             useInstallerProcess = jObj.optBoolean("useInstallerProcess");
+            apkDigest = jObj.optString("apkDigest");
+            patchBaseVersion = jObj.optString("patchBaseVersion");
         } catch (JSONException e) {
             // ignore
         }
     }
 
+    /**
+     * 复制一份插件信息，调用方可以修改复制后的对象而不影响原对象
+     */
+    public PluginLiteInfo(PluginLiteInfo other) {
+        mPath = other.mPath;
+        packageName = other.packageName;
+        srcApkPath = other.srcApkPath;
+        installStatus = other.installStatus;
+        pluginVersion = other.pluginVersion;
+        pluginGrayVersion = other.pluginGrayVersion;
+        id = other.id;
+        mDeliverStartUp = other.mDeliverStartUp;
+        srcApkPkgName = other.srcApkPkgName;
+        srcApkVersion = other.srcApkVersion;
+        enableRecovery = other.enableRecovery;
+        plugin_refs = other.plugin_refs;
+        statusCode = other.statusCode;
+        deletePackageBeforeInstall = other.deletePackageBeforeInstall;
+        useInstallerProcess = other.useInstallerProcess;
+        apkDigest = other.apkDigest;
+        patchBaseVersion = other.patchBaseVersion;
+    }
+
     protected PluginLiteInfo(Parcel in) {
         mPath = in.readString();
         packageName = in.readString();
@@ -124,6 +154,8 @@ public class PluginLiteInfo implements Parcelable {
         statusCode = in.readInt();
         deletePackageBeforeInstall = in.readInt() == 1;
         useInstallerProcess = in.readInt() == 1;
+        apkDigest = in.readString();
+        patchBaseVersion = in.readString();
     }
 
     @Override
@@ -148,6 +180,8 @@ public class PluginLiteInfo implements Parcelable {
         parcel.writeInt(statusCode);
         parcel.writeInt(deletePackageBeforeInstall ? 1 : 0);
         parcel.writeInt(useInstallerProcess ? 1 : 0);
+        parcel.writeString(apkDigest);
+        parcel.writeString(patchBaseVersion);
     }
 
 
@@ -169,6 +203,8 @@ public class PluginLiteInfo implements Parcelable {
             jObj.put("statusCode", statusCode);
             jObj.put("deletePackageBeforeInstall", deletePackageBeforeInstall);
             jObj.put("useInstallerProcess", useInstallerProcess);
+            jObj.put("apkDigest", apkDigest);
+            jObj.put("patchBaseVersion", patchBaseVersion);
         } catch (JSONException e) {
             // ignore
         }
@@ -183,6 +219,7 @@ public class PluginLiteInfo implements Parcelable {
                 + ", srcApkPkgName=" + srcApkPkgName + ", srcApkVersion=" + srcApkVersion
                 + ", enableRecovery=" + enableRecovery + ", plugin_refs=[" + plugin_refs + "]"
                 + ", statusCode=" + statusCode + ", deletePackageBeforeInstall=" + deletePackageBeforeInstall
-                + ", useInstallerProcess=" + useInstallerProcess;
+                + ", useInstallerProcess=" + useInstallerProcess + ", apkDigest=" + apkDigest
+                + ", patchBaseVersion=" + patchBaseVersion;
     }
 }
@@ -23,6 +23,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.ComponentInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PermissionInfo;
@@ -42,11 +43,15 @@ import org.qiyi.pluginlibrary.runtime.PluginManager;
 import org.qiyi.pluginlibrary.utils.ErrorUtil;
 import org.qiyi.pluginlibrary.utils.PluginDebugLog;
 import org.qiyi.pluginlibrary.utils.ResolveInfoUtil;
+import org.qiyi.pluginlibrary.utils.ResourceTableUtils;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * 存放插件apk的{@link PackageInfo}里面的信息
@@ -80,14 +85,29 @@ public class PluginPackageInfo implements Parcelable {
      */
     private static final String META_KEY_SUPPORT_PROVIDER = "pluginapp_support_provider";
 
+    /**
+     * 序列化格式版本，格式变更时需要升级，{@link PluginPackageInfoCache}的缓存版本随之变化
+     */
+    static final int PARCEL_VERSION = 4;
+    /* 序列化时组件在PackageInfo对应数组中不存在 */
+    private static final int COMPONENT_INLINE = -1;
+
+    private static final int FLAG_CLASS_INJECT = 1;
+    private static final int FLAG_MERGE_RESOURCE = 1 << 1;
+    private static final int FLAG_ADD_WEBVIEW_RESOURCE = 1 << 2;
+    private static final int FLAG_SUPPORT_PROVIDER = 1 << 3;
+    private static final int FLAG_INDIVIDUAL_MODE = 1 << 4;
+    private static final int FLAG_USE_PLUGIN_APP_INFO = 1 << 5;
+    private static final int FLAG_USE_PLUGIN_CODE_PATH = 1 << 6;
+
     private String packageName;
     private String applicationClassName;
     private String defaultActivityName;
-    private PermissionInfo[] permissions;
+    /* 权限、ApplicationInfo和metaData都直接从PackageInfo中读取，不单独保存和序列化 */
     private PackageInfo packageInfo;
-    private ApplicationInfo applicationInfo;
-    private Bundle metaData;
     private String dataDir;
+    /* 当前版本的安装槽位，保存so库和优化后的dex */
+    private String codeDir;
     private String nativeLibraryDir;
     private String processName;
     // 是否需要把插件class注入进入父classloader，已废弃
@@ -102,6 +122,8 @@ public class PluginPackageInfo implements Parcelable {
     private boolean mIsIndividualMode = false;
     private boolean mUsePluginAppInfo = false;
     private boolean mUsePluginCodePath = false;
+    /* 插件资源的package id，安装时从resources.arsc读取，0表示未知 */
+    private int mResourcePackageId = 0;
 
     /**
      * Save all activity's resolve info
@@ -119,6 +141,20 @@ public class PluginPackageInfo implements Parcelable {
      * Save all provider's resolve info
      */
     private Map<String, ProviderIntentInfo> mProviderIntentInfos = new HashMap<String, ProviderIntentInfo>(0);
+    /**
+     * IntentFilter索引，第一次隐式查找时构建，组件变化时重建
+     */
+    private volatile IntentInfoIndex<ActivityIntentInfo> mActivityIndex;
+    private volatile IntentInfoIndex<ServiceIntentInfo> mServiceIndex;
+    private volatile IntentInfoIndex<ReceiverIntentInfo> mReceiverIndex;
+    /**
+     * 从Parcel中读取的尚未解析的组件信息，第一次访问组件时再解析
+     */
+    private volatile byte[] mPendingComponents;
+    /**
+     * 序列化后的字节数，从Parcel读取或者写入Parcel时记录，组件变化时失效
+     */
+    private volatile int mParcelSize = -1;
 
 
     public static final Creator<PluginPackageInfo> CREATOR = new Creator<PluginPackageInfo>() {
@@ -160,16 +196,16 @@ public class PluginPackageInfo implements Parcelable {
             }
 
             dataDir = new File(PluginInstaller.getPluginappRootPath(context), packageName).getAbsolutePath();
-            nativeLibraryDir = new File(dataDir, PluginInstaller.NATIVE_LIB_PATH).getAbsolutePath();
+            codeDir = PluginInstaller.getPluginCodeDir(context, packageName, apkFile).getAbsolutePath();
+            nativeLibraryDir = new File(codeDir, PluginInstaller.NATIVE_LIB_PATH).getAbsolutePath();
 
             packageInfo.applicationInfo.dataDir = dataDir;
             packageInfo.applicationInfo.nativeLibraryDir = nativeLibraryDir;
 
             processName = packageInfo.applicationInfo.processName;
-            permissions = packageInfo.permissions;
-            applicationInfo = packageInfo.applicationInfo;
+            mResourcePackageId = ResourceTableUtils.readPackageId(apkFile);
 
-            metaData = packageInfo.applicationInfo.metaData;
+            Bundle metaData = packageInfo.applicationInfo.metaData;
             if (metaData != null) {
                 mIsClassInject = metaData.getBoolean(META_KEY_CLASS_INJECT);
                 mIsMergeResource = metaData.getBoolean(META_KEY_MERGE_RES);
@@ -224,69 +260,159 @@ public class PluginPackageInfo implements Parcelable {
     }
 
     protected PluginPackageInfo(Parcel in) {
+        int start = in.dataPosition();
+        int version = in.readInt();
+        if (version != PARCEL_VERSION) {
+            throw new IllegalStateException("unsupported PluginPackageInfo parcel version: " + version);
+        }
         packageName = in.readString();
         processName = in.readString();
         applicationClassName = in.readString();
         defaultActivityName = in.readString();
-        permissions = in.createTypedArray(PermissionInfo.CREATOR);
-        packageInfo = in.readParcelable(PackageInfo.class.getClassLoader());
-        metaData = in.readBundle();
         dataDir = in.readString();
+        codeDir = in.readString();
         nativeLibraryDir = in.readString();
-        mIsClassInject = in.readByte() != 0;
-        mIsMergeResource = in.readByte() != 0;
-        mAddWebviewResource = in.readByte() != 0;
-        mSupportProvider = in.readByte() != 0;
-        mIsIndividualMode = in.readByte() != 0;
-        mUsePluginAppInfo = in.readByte() != 0;
-        mUsePluginCodePath = in.readByte() != 0;
+        int flags = in.readInt();
+        mIsClassInject = (flags & FLAG_CLASS_INJECT) != 0;
+        mIsMergeResource = (flags & FLAG_MERGE_RESOURCE) != 0;
+        mAddWebviewResource = (flags & FLAG_ADD_WEBVIEW_RESOURCE) != 0;
+        mSupportProvider = (flags & FLAG_SUPPORT_PROVIDER) != 0;
+        mIsIndividualMode = (flags & FLAG_INDIVIDUAL_MODE) != 0;
+        mUsePluginAppInfo = (flags & FLAG_USE_PLUGIN_APP_INFO) != 0;
+        mUsePluginCodePath = (flags & FLAG_USE_PLUGIN_CODE_PATH) != 0;
+        mResourcePackageId = in.readInt();
 
-        applicationInfo = packageInfo.applicationInfo;
-
-        final Bundle activityStates = in.readBundle(ActivityIntentInfo.class.getClassLoader());
+        packageInfo = in.readParcelable(PackageInfo.class.getClassLoader());
+        mPendingComponents = in.createByteArray();
+        if (mPendingComponents != null) {
+            // 原始数据原样转发，写入的大小与读取的相同
+            mParcelSize = in.dataPosition() - start;
+        }
+    }
 
-        for (String key : activityStates.keySet()) {
-            final ActivityIntentInfo state = getBundleParcelable(activityStates, key);
-            if (state != null) {
-                mActivityIntentInfos.put(key, state);
+    /**
+     * 解析延迟读取的组件信息
+     */
+    private void ensureComponents() {
+        if (mPendingComponents == null) {
+            return;
+        }
+        synchronized (this) {
+            byte[] data = mPendingComponents;
+            if (data == null) {
+                return;
             }
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.unmarshall(data, 0, data.length);
+                parcel.setDataPosition(0);
+                readComponents(parcel);
+            } finally {
+                parcel.recycle();
+            }
+            mPendingComponents = null;
         }
+    }
 
-        final Bundle serviceStates = in.readBundle(ServiceIntentInfo.class.getClassLoader());
-        for (String key : serviceStates.keySet()) {
-            final ServiceIntentInfo state = getBundleParcelable(serviceStates, key);
-            if (state != null) {
-                mServiceIntentInfos.put(key, state);
+    private void readComponents(Parcel parcel) {
+        int count = parcel.readInt();
+        for (int i = 0; i < count; i++) {
+            ActivityInfo info = readComponentInfo(parcel, packageInfo.activities, ActivityInfo.CREATOR);
+            List<IntentFilter> filters = parcel.createTypedArrayList(IntentFilter.CREATOR);
+            if (info != null) {
+                ActivityIntentInfo intentInfo = new ActivityIntentInfo(info);
+                intentInfo.setFilter(filters);
+                mActivityIntentInfos.put(info.name, intentInfo);
             }
         }
-
-        final Bundle receiverStates = in.readBundle(ReceiverIntentInfo.class.getClassLoader());
-        for (String key : receiverStates.keySet()) {
-            final ReceiverIntentInfo state = getBundleParcelable(receiverStates, key);
-            if (state != null) {
-                mReceiverIntentInfos.put(key, state);
+        count = parcel.readInt();
+        for (int i = 0; i < count; i++) {
+            ServiceInfo info = readComponentInfo(parcel, packageInfo.services, ServiceInfo.CREATOR);
+            List<IntentFilter> filters = parcel.createTypedArrayList(IntentFilter.CREATOR);
+            if (info != null) {
+                ServiceIntentInfo intentInfo = new ServiceIntentInfo(info);
+                intentInfo.setFilter(filters);
+                mServiceIntentInfos.put(info.name, intentInfo);
             }
         }
-
-        final Bundle providerStates = in.readBundle(ProviderIntentInfo.class.getClassLoader());
-        for (String key : providerStates.keySet()) {
-            final ProviderIntentInfo state = getBundleParcelable(providerStates, key);
-            if (state != null) {
-                mProviderIntentInfos.put(key, state);
+        count = parcel.readInt();
+        for (int i = 0; i < count; i++) {
+            ActivityInfo info = readComponentInfo(parcel, packageInfo.receivers, ActivityInfo.CREATOR);
+            List<IntentFilter> filters = parcel.createTypedArrayList(IntentFilter.CREATOR);
+            if (info != null) {
+                ReceiverIntentInfo intentInfo = new ReceiverIntentInfo(info);
+                intentInfo.setFilter(filters);
+                mReceiverIntentInfos.put(info.name, intentInfo);
+            }
+        }
+        count = parcel.readInt();
+        for (int i = 0; i < count; i++) {
+            ProviderInfo info = readComponentInfo(parcel, packageInfo.providers, ProviderInfo.CREATOR);
+            List<IntentFilter> filters = parcel.createTypedArrayList(IntentFilter.CREATOR);
+            if (info != null) {
+                ProviderIntentInfo intentInfo = new ProviderIntentInfo(info);
+                intentInfo.setFilter(filters);
+                mProviderIntentInfos.put(info.name, intentInfo);
             }
         }
     }
 
     /**
-     * vivo X5L, 4,4, java.lang.NoSuchMethodError: android.os.Bundle.getParcelable
+     * 组件信息优先引用PackageInfo中的对象，只有不存在时才完整读取
      */
-    private static <T extends Parcelable> T getBundleParcelable(Bundle bundle, String key) {
+    private static <T extends ComponentInfo> T readComponentInfo(Parcel parcel, T[] components,
+                                                                 Parcelable.Creator<T> creator) {
+        int index = parcel.readInt();
+        if (index == COMPONENT_INLINE) {
+            return creator.createFromParcel(parcel);
+        }
+        return components != null && index >= 0 && index < components.length ? components[index] : null;
+    }
+
+    /**
+     * 序列化组件信息，Map的key就是组件类名，不再单独写入
+     */
+    private byte[] marshallComponents(int flags) {
+        Parcel parcel = Parcel.obtain();
         try {
-            return bundle.getParcelable(key);
-        } catch (NoSuchMethodError e) {
-            e.printStackTrace();
+            writeIntentInfos(parcel, mActivityIntentInfos, packageInfo.activities, flags);
+            writeIntentInfos(parcel, mServiceIntentInfos, packageInfo.services, flags);
+            writeIntentInfos(parcel, mReceiverIntentInfos, packageInfo.receivers, flags);
+            writeIntentInfos(parcel, mProviderIntentInfos, packageInfo.providers, flags);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static void writeIntentInfos(Parcel parcel, Map<String, ? extends IntentInfo> intentInfos,
+                                         ComponentInfo[] components, int flags) {
+        List<IntentInfo> infos = new ArrayList<>();
+        if (intentInfos != null) {
+            for (IntentInfo info : intentInfos.values()) {
+                if (info != null && info.getComponentInfo() != null) {
+                    infos.add(info);
+                }
+            }
+        }
+        Map<ComponentInfo, Integer> indexes = new IdentityHashMap<>();
+        if (components != null) {
+            for (int i = 0; i < components.length; i++) {
+                indexes.put(components[i], i);
+            }
+        }
+        parcel.writeInt(infos.size());
+        for (IntentInfo info : infos) {
+            ComponentInfo component = info.getComponentInfo();
+            Integer index = indexes.get(component);
+            if (index != null) {
+                parcel.writeInt(index);
+            } else {
+                parcel.writeInt(COMPONENT_INLINE);
+                component.writeToParcel(parcel, flags);
+            }
+            parcel.writeTypedList(info.mFilter);
         }
-        return null;
     }
 
     public String getProcessName() {
@@ -297,22 +423,32 @@ public class PluginPackageInfo implements Parcelable {
         return dataDir;
     }
 
+    public String getCodeDir() {
+        return codeDir;
+    }
+
     public String getNativeLibraryDir() {
         return nativeLibraryDir;
     }
 
     public ApplicationInfo getApplicationInfo() {
-        if (applicationInfo != null) {
-            return applicationInfo;
-        }
-        return packageInfo.applicationInfo;
+        return packageInfo != null ? packageInfo.applicationInfo : null;
+    }
+
+    /**
+     * 插件资源的package id，安装时从resources.arsc中读取，读取失败时返回0
+     */
+    public int getResourcePackageId() {
+        return mResourcePackageId;
     }
 
     public Map<String, ReceiverIntentInfo> getReceiverIntentInfos() {
+        ensureComponents();
         return mReceiverIntentInfos;
     }
 
     public Map<String, ProviderIntentInfo> getProviderIntentInfos() {
+        ensureComponents();
         return mProviderIntentInfos;
     }
 
@@ -371,6 +507,7 @@ public class PluginPackageInfo implements Parcelable {
         if (intent == null) {
             return null;
         }
+        ensureComponents();
         if (mActivityIntentInfos != null) {
             ComponentName compName = intent.getComponent();
             String className = null;
@@ -383,15 +520,10 @@ public class PluginPackageInfo implements Parcelable {
                     return act.mInfo;
                 }
             } else {
-                for (ActivityIntentInfo info : mActivityIntentInfos.values()) {
-                    if (info != null && info.mFilter != null) {
-                        for (IntentFilter filter : info.mFilter) {
-                            if (filter.match(intent.getAction(), intent.getType(), intent.getScheme(), intent.getData(),
-                                    intent.getCategories(), TAG) > 0) {
-                                return info.mInfo;
-                            }
-                        }
-                    }
+                ActivityIntentInfo info = getActivityIndex().match(intent.getAction(), intent.getType(),
+                        intent.getScheme(), intent.getData(), intent.getCategories());
+                if (info != null) {
+                    return info.mInfo;
                 }
             }
         }
@@ -405,6 +537,7 @@ public class PluginPackageInfo implements Parcelable {
         if (intent == null) {
             return null;
         }
+        ensureComponents();
 
         if (mServiceIntentInfos != null) {
             ComponentName compName = intent.getComponent();
@@ -418,15 +551,10 @@ public class PluginPackageInfo implements Parcelable {
                     return service.mInfo;
                 }
             } else {
-                for (ServiceIntentInfo info : mServiceIntentInfos.values()) {
-                    if (info != null && info.mFilter != null) {
-                        for (IntentFilter filter : info.mFilter) {
-                            if (filter.match(intent.getAction(), null, intent.getScheme(), intent.getData(),
-                                    intent.getCategories(), TAG) > 0) {
-                                return info.mInfo;
-                            }
-                        }
-                    }
+                ServiceIntentInfo info = getServiceIndex().match(intent.getAction(), null,
+                        intent.getScheme(), intent.getData(), intent.getCategories());
+                if (info != null) {
+                    return info.mInfo;
                 }
             }
         }
@@ -441,6 +569,7 @@ public class PluginPackageInfo implements Parcelable {
         if (mIntent == null) {
             return null;
         }
+        ensureComponents();
         if (mReceiverIntentInfos != null) {
             ComponentName compName = mIntent.getComponent();
             String className = null;
@@ -453,21 +582,75 @@ public class PluginPackageInfo implements Parcelable {
                     return mReceiverInfo.mInfo;
                 }
             } else {
-                for (ReceiverIntentInfo info : mReceiverIntentInfos.values()) {
-                    if (info != null && info.mFilter != null) {
-                        for (IntentFilter filter : info.mFilter) {
-                            if (filter.match(mIntent.getAction(), null, null, null,
-                                    null, TAG) > 0) {
-                                return info.mInfo;
-                            }
-                        }
-                    }
+                ReceiverIntentInfo info = getReceiverIndex().match(mIntent.getAction(), null, null, null, null);
+                if (info != null) {
+                    return info.mInfo;
                 }
             }
         }
         return null;
     }
 
+    private IntentInfoIndex<ActivityIntentInfo> getActivityIndex() {
+        ensureComponents();
+        IntentInfoIndex<ActivityIntentInfo> index = mActivityIndex;
+        if (index == null) {
+            index = new IntentInfoIndex<>(mActivityIntentInfos);
+            mActivityIndex = index;
+        }
+        return index;
+    }
+
+    private IntentInfoIndex<ServiceIntentInfo> getServiceIndex() {
+        ensureComponents();
+        IntentInfoIndex<ServiceIntentInfo> index = mServiceIndex;
+        if (index == null) {
+            index = new IntentInfoIndex<>(mServiceIntentInfos);
+            mServiceIndex = index;
+        }
+        return index;
+    }
+
+    private IntentInfoIndex<ReceiverIntentInfo> getReceiverIndex() {
+        ensureComponents();
+        IntentInfoIndex<ReceiverIntentInfo> index = mReceiverIndex;
+        if (index == null) {
+            index = new IntentInfoIndex<>(mReceiverIntentInfos);
+            mReceiverIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * 插件Activity的IntentFilter声明的所有action
+     */
+    Set<String> getActivityActions() {
+        return getActivityIndex().getActions();
+    }
+
+    /**
+     * 插件Service的IntentFilter声明的所有action
+     */
+    Set<String> getServiceActions() {
+        return getServiceIndex().getActions();
+    }
+
+    /**
+     * 插件声明的所有Provider的authority
+     */
+    List<String> getProviderAuthorities() {
+        ensureComponents();
+        List<String> authorities = new ArrayList<>();
+        if (mProviderIntentInfos != null) {
+            for (ProviderIntentInfo info : mProviderIntentInfos.values()) {
+                if (info != null && info.mInfo != null && !TextUtils.isEmpty(info.mInfo.authority)) {
+                    authorities.add(info.mInfo.authority);
+                }
+            }
+        }
+        return authorities;
+    }
+
     /**
      * 查找能够处理这个authority的Provider
      */
@@ -475,6 +658,7 @@ public class PluginPackageInfo implements Parcelable {
         if (TextUtils.isEmpty(authority)) {
             return null;
         }
+        ensureComponents();
         if (mProviderIntentInfos != null) {
             for (ProviderIntentInfo info : mProviderIntentInfos.values()) {
                 if (info != null && TextUtils.equals(authority, info.mInfo.authority)) {
@@ -526,7 +710,7 @@ public class PluginPackageInfo implements Parcelable {
     }
 
     public PermissionInfo[] getPermissions() {
-        return permissions;
+        return packageInfo != null ? packageInfo.permissions : null;
     }
 
     public String getVersionName() {
@@ -559,6 +743,7 @@ public class PluginPackageInfo implements Parcelable {
     }
 
     public ActivityInfo getActivityInfo(String activity) {
+        ensureComponents();
         if (!TextUtils.isEmpty(activity) && mActivityIntentInfos != null) {
             ActivityIntentInfo info = mActivityIntentInfos.get(activity);
             if (info != null) {
@@ -569,6 +754,7 @@ public class PluginPackageInfo implements Parcelable {
     }
 
     public ServiceInfo getServiceInfo(String service) {
+        ensureComponents();
         if (!TextUtils.isEmpty(service) && mServiceIntentInfos != null) {
             ServiceIntentInfo info = mServiceIntentInfos.get(service);
             if (info != null) {
@@ -579,32 +765,43 @@ public class PluginPackageInfo implements Parcelable {
     }
 
     public void addActivity(ActivityIntentInfo activity) {
+        ensureComponents();
         if (mActivityIntentInfos == null) {
             mActivityIntentInfos = new HashMap<String, ActivityIntentInfo>(0);
         }
         mActivityIntentInfos.put(activity.mInfo.name, activity);
+        mActivityIndex = null;
+        mParcelSize = -1;
     }
 
     public void addReceiver(ReceiverIntentInfo receiver) {
+        ensureComponents();
         if (mReceiverIntentInfos == null) {
             mReceiverIntentInfos = new HashMap<String, ReceiverIntentInfo>(0);
         }
         // 此时的activityInfo 表示 receiverInfo
         mReceiverIntentInfos.put(receiver.mInfo.name, receiver);
+        mReceiverIndex = null;
+        mParcelSize = -1;
     }
 
     public void addService(ServiceIntentInfo service) {
+        ensureComponents();
         if (mServiceIntentInfos == null) {
             mServiceIntentInfos = new HashMap<String, ServiceIntentInfo>(0);
         }
         mServiceIntentInfos.put(service.mInfo.name, service);
+        mServiceIndex = null;
+        mParcelSize = -1;
     }
 
     public void addProvider(ProviderIntentInfo provider) {
+        ensureComponents();
         if (mProviderIntentInfos == null) {
             mProviderIntentInfos = new HashMap<String, ProviderIntentInfo>(0);
         }
         mProviderIntentInfos.put(provider.mInfo.name, provider);
+        mParcelSize = -1;
     }
 
     @Override
@@ -614,50 +811,50 @@ public class PluginPackageInfo implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel parcel, int i) {
+        int start = parcel.dataPosition();
+        parcel.writeInt(PARCEL_VERSION);
         parcel.writeString(packageName);
         parcel.writeString(processName);
         parcel.writeString(applicationClassName);
         parcel.writeString(defaultActivityName);
-        parcel.writeTypedArray(permissions, i);
-        parcel.writeParcelable(packageInfo, i);
-        parcel.writeBundle(metaData);
         parcel.writeString(dataDir);
+        parcel.writeString(codeDir);
         parcel.writeString(nativeLibraryDir);
-        parcel.writeByte((byte) (mIsClassInject ? 1 : 0));
-        parcel.writeByte((byte) (mIsMergeResource ? 1 : 0));
-        parcel.writeByte((byte) (mAddWebviewResource ? 1: 0));
-        parcel.writeByte((byte) (mSupportProvider ? 1 : 0));
-        parcel.writeByte((byte) (mIsIndividualMode ? 1 : 0));
-        parcel.writeByte((byte) (mUsePluginAppInfo ? 1 : 0));
-        parcel.writeByte((byte) (mUsePluginCodePath ? 1 : 0));
-
-        final Bundle activityStates = new Bundle();
-        for (String uri : mActivityIntentInfos.keySet()) {
-            final ActivityIntentInfo aii = mActivityIntentInfos.get(uri);
-            activityStates.putParcelable(uri, aii);
-        }
-        parcel.writeBundle(activityStates);
-
-        final Bundle serviceStates = new Bundle();
-        for (String uri : mServiceIntentInfos.keySet()) {
-            final ServiceIntentInfo sii = mServiceIntentInfos.get(uri);
-            serviceStates.putParcelable(uri, sii);
+        int flags = 0;
+        flags |= mIsClassInject ? FLAG_CLASS_INJECT : 0;
+        flags |= mIsMergeResource ? FLAG_MERGE_RESOURCE : 0;
+        flags |= mAddWebviewResource ? FLAG_ADD_WEBVIEW_RESOURCE : 0;
+        flags |= mSupportProvider ? FLAG_SUPPORT_PROVIDER : 0;
+        flags |= mIsIndividualMode ? FLAG_INDIVIDUAL_MODE : 0;
+        flags |= mUsePluginAppInfo ? FLAG_USE_PLUGIN_APP_INFO : 0;
+        flags |= mUsePluginCodePath ? FLAG_USE_PLUGIN_CODE_PATH : 0;
+        parcel.writeInt(flags);
+        parcel.writeInt(mResourcePackageId);
+        parcel.writeParcelable(packageInfo, i);
+        // 组件信息还没有解析时直接转发原始数据
+        byte[] components = mPendingComponents;
+        if (components == null) {
+            components = packageInfo != null ? marshallComponents(i) : null;
         }
-        parcel.writeBundle(serviceStates);
+        parcel.writeByteArray(components);
+        mParcelSize = parcel.dataPosition() - start;
+    }
 
-        final Bundle receiverStates = new Bundle();
-        for (String uri : mReceiverIntentInfos.keySet()) {
-            final ReceiverIntentInfo rii = mReceiverIntentInfos.get(uri);
-            receiverStates.putParcelable(uri, rii);
+    /**
+     * 序列化后的字节数，从Parcel读取或者写入过的对象直接使用记录的大小，不再重复序列化
+     */
+    int getParcelSize() {
+        int size = mParcelSize;
+        if (size >= 0) {
+            return size;
         }
-        parcel.writeBundle(receiverStates);
-
-        final Bundle providerStates = new Bundle();
-        for (String uri : mProviderIntentInfos.keySet()) {
-            final ProviderIntentInfo pii = mProviderIntentInfos.get(uri);
-            providerStates.putParcelable(uri, pii);
+        Parcel parcel = Parcel.obtain();
+        try {
+            writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
         }
-        parcel.writeBundle(providerStates);
     }
 
     public final static class ActivityIntentInfo extends IntentInfo implements Parcelable {
@@ -695,6 +892,11 @@ public class PluginPackageInfo implements Parcelable {
                 mInfo.writeToParcel(parcel, i);
             }
         }
+
+        @Override
+        ComponentInfo getComponentInfo() {
+            return mInfo;
+        }
     }
 
     public final static class ServiceIntentInfo extends IntentInfo implements Parcelable {
@@ -733,6 +935,11 @@ public class PluginPackageInfo implements Parcelable {
                 mInfo.writeToParcel(parcel, i);
             }
         }
+
+        @Override
+        ComponentInfo getComponentInfo() {
+            return mInfo;
+        }
     }
 
     public final static class ReceiverIntentInfo extends IntentInfo implements Parcelable {
@@ -770,6 +977,11 @@ public class PluginPackageInfo implements Parcelable {
                 mInfo.writeToParcel(parcel, i);
             }
         }
+
+        @Override
+        ComponentInfo getComponentInfo() {
+            return mInfo;
+        }
     }
 
     public final static class ProviderIntentInfo extends IntentInfo implements Parcelable {
@@ -807,6 +1019,11 @@ public class PluginPackageInfo implements Parcelable {
                 mInfo.writeToParcel(parcel, i);
             }
         }
+
+        @Override
+        ComponentInfo getComponentInfo() {
+            return mInfo;
+        }
     }
 
     public static class IntentInfo implements Parcelable {
@@ -834,6 +1051,13 @@ public class PluginPackageInfo implements Parcelable {
             mFilter = filters;
         }
 
+        /**
+         * 对应的组件信息
+         */
+        ComponentInfo getComponentInfo() {
+            return null;
+        }
+
         @Override
         public int describeContents() {
             return 0;
@@ -0,0 +1,288 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.pm;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.Process;
+import android.text.TextUtils;
+
+import org.qiyi.pluginlibrary.install.PluginInstaller;
+import org.qiyi.pluginlibrary.utils.FileUtils;
+import org.qiyi.pluginlibrary.utils.PluginDebugLog;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * 插件{@link PluginPackageInfo}的磁盘缓存
+ * <p>
+ * 解析插件的AndroidManifest.xml比较耗时，每个进程冷启动都要重新解析一次。
+ * 安装时把解析结果序列化成二进制文件，运行时通过内存映射读取；
+ * 缓存以apk路径、大小、修改时间和central directory的crc作为key，
+ * 同时记录系统版本和宿主apk，任何一项不匹配都会丢弃缓存重新解析
+ */
+public final class PluginPackageInfoCache {
+    private static final String TAG = "PluginPackageInfoCache";
+    /* 缓存文件目录，位于pluginapp目录下 */
+    private static final String CACHE_DIR = "pkginfo";
+    private static final String CACHE_SUFFIX = ".pinfo";
+    private static final int MAGIC = 0x4E505049; // "NPPI"
+    /* 缓存格式版本，与PluginPackageInfo的序列化格式版本一致 */
+    private static final int FORMAT_VERSION = PluginPackageInfo.PARCEL_VERSION;
+    /* 缓存文件最大长度，超过认为文件已损坏 */
+    private static final int MAX_CACHE_SIZE = 4 * 1024 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private PluginPackageInfoCache() {
+    }
+
+    /**
+     * 获取插件apk的PluginPackageInfo，优先读取磁盘缓存，
+     * 缓存不存在或者已失效时解析apk，并把结果写回缓存
+     *
+     * @param context 宿主的Context
+     * @param apkFile 插件apk文件
+     */
+    public static PluginPackageInfo load(Context context, File apkFile) {
+        PluginPackageInfo result = read(context, apkFile);
+        if (result != null) {
+            return result;
+        }
+        result = new PluginPackageInfo(context, apkFile);
+        write(context, apkFile, result);
+        return result;
+    }
+
+    /**
+     * 安装完成后预先生成缓存，插件运行时可以直接命中
+     *
+     * @param context 宿主的Context
+     * @param apkFile 安装后的插件apk文件
+     * @return 插件的PackageInfo
+     */
+    public static PluginPackageInfo prepare(Context context, File apkFile) {
+        long start = System.currentTimeMillis();
+        PluginPackageInfo result = read(context, apkFile);
+        if (result == null) {
+            result = new PluginPackageInfo(context, apkFile);
+            write(context, apkFile, result);
+        }
+        PluginDebugLog.installFormatLog(TAG, "prepare package info cache for %s cost %d ms",
+                apkFile.getName(), System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * 删除插件所有版本的缓存文件
+     *
+     * @param context     宿主的Context
+     * @param packageName 插件包名
+     * @param version     插件当前的版本号
+     */
+    public static void delete(Context context, final String packageName, final String version) {
+        File[] files = getCacheDir(context).listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File pathname) {
+                // 缓存文件以apk文件名命名，{pkgName}.{version}.apk.pinfo，不能误删包名前缀相同的其他插件
+                return PluginInstaller.isPackageFile(pathname.getName(), packageName,
+                        PluginInstaller.APK_SUFFIX + CACHE_SUFFIX, version);
+            }
+        });
+        if (files != null) {
+            for (File file : files) {
+                boolean deleted = file.delete();
+                PluginDebugLog.installFormatLog(TAG, "delete package info cache %s: %s",
+                        file.getName(), deleted);
+            }
+        }
+    }
+
+    /**
+     * 删除插件某个版本apk的缓存文件
+     *
+     * @param context 宿主的Context
+     * @param apkFile 插件apk文件
+     */
+    public static void delete(Context context, File apkFile) {
+        File cacheFile = getCacheFile(context, apkFile);
+        if (cacheFile.exists()) {
+            boolean deleted = cacheFile.delete();
+            PluginDebugLog.installFormatLog(TAG, "delete package info cache %s: %s",
+                    cacheFile.getName(), deleted);
+        }
+    }
+
+    /**
+     * 读取缓存，key不匹配或者读取失败返回null
+     */
+    private static PluginPackageInfo read(Context context, File apkFile) {
+        File cacheFile = getCacheFile(context, apkFile);
+        if (!cacheFile.exists() || !apkFile.exists()) {
+            return null;
+        }
+        long start = System.currentTimeMillis();
+        RandomAccessFile raf = null;
+        Parcel parcel = null;
+        boolean valid = false;
+        try {
+            raf = new RandomAccessFile(cacheFile, "r");
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > MAX_CACHE_SIZE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC
+                    || buffer.getInt() != FORMAT_VERSION
+                    || buffer.getInt() != Build.VERSION.SDK_INT
+                    || !TextUtils.equals(readString(buffer), String.valueOf(Build.FINGERPRINT))
+                    || buffer.getLong() != getHostApkStamp(context)
+                    || !TextUtils.equals(readString(buffer), apkFile.getAbsolutePath())
+                    || buffer.getLong() != apkFile.length()
+                    || buffer.getLong() != apkFile.lastModified()
+                    || buffer.getLong() != FileUtils.getZipCrc(apkFile)) {
+                PluginDebugLog.runtimeFormatLog(TAG, "package info cache key not match: %s", cacheFile.getName());
+                return null;
+            }
+            int length = buffer.getInt();
+            if (length <= 0 || length != buffer.remaining()) {
+                return null;
+            }
+            byte[] data = new byte[length];
+            buffer.get(data);
+
+            parcel = Parcel.obtain();
+            parcel.unmarshall(data, 0, length);
+            parcel.setDataPosition(0);
+            PluginPackageInfo result = PluginPackageInfo.CREATOR.createFromParcel(parcel);
+            valid = result != null && !TextUtils.isEmpty(result.getPackageName());
+            PluginDebugLog.runtimeFormatLog(TAG, "read package info cache %s, hit: %s, cost %d ms",
+                    cacheFile.getName(), valid, System.currentTimeMillis() - start);
+            return valid ? result : null;
+        } catch (Throwable e) {
+            // 缓存损坏或者格式不兼容
+            PluginDebugLog.runtimeFormatLog(TAG, "read package info cache %s failed: %s",
+                    cacheFile.getName(), e.getMessage());
+            return null;
+        } finally {
+            if (parcel != null) {
+                parcel.recycle();
+            }
+            FileUtils.closeQuietly(raf);
+            if (!valid) {
+                cacheFile.delete();
+            }
+        }
+    }
+
+    /**
+     * 写入缓存，先写临时文件再rename，保证多进程读到的缓存是完整的
+     */
+    private static void write(Context context, File apkFile, PluginPackageInfo info) {
+        if (info == null || TextUtils.isEmpty(info.getPackageName()) || !apkFile.exists()) {
+            // 解析失败的结果不缓存
+            return;
+        }
+        File cacheFile = getCacheFile(context, apkFile);
+        File tmpFile = new File(cacheFile.getParentFile(), cacheFile.getName() + "."
+                + Process.myPid() + "." + Thread.currentThread().getId() + ".tmp");
+        Parcel parcel = Parcel.obtain();
+        DataOutputStream out = null;
+        boolean success = false;
+        try {
+            info.writeToParcel(parcel, 0);
+            byte[] data = parcel.marshall();
+
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(Build.VERSION.SDK_INT);
+            writeString(out, String.valueOf(Build.FINGERPRINT));
+            out.writeLong(getHostApkStamp(context));
+            writeString(out, apkFile.getAbsolutePath());
+            out.writeLong(apkFile.length());
+            out.writeLong(apkFile.lastModified());
+            out.writeLong(FileUtils.getZipCrc(apkFile));
+            out.writeInt(data.length);
+            out.write(data);
+            out.flush();
+            out.close();
+            out = null;
+            success = tmpFile.renameTo(cacheFile);
+            PluginDebugLog.runtimeFormatLog(TAG, "write package info cache %s, size %d, success: %s",
+                    cacheFile.getName(), data.length, success);
+        } catch (Throwable e) {
+            // 写缓存失败不影响插件运行，下次重新解析即可
+            PluginDebugLog.runtimeFormatLog(TAG, "write package info cache %s failed: %s",
+                    cacheFile.getName(), e.getMessage());
+        } finally {
+            parcel.recycle();
+            FileUtils.closeQuietly(out);
+            if (!success) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private static File getCacheDir(Context context) {
+        File cacheDir = new File(PluginInstaller.getPluginappRootPath(context), CACHE_DIR);
+        if (!cacheDir.exists()) {
+            cacheDir.mkdirs();
+        }
+        return cacheDir;
+    }
+
+    private static File getCacheFile(Context context, File apkFile) {
+        return new File(getCacheDir(context), apkFile.getName() + CACHE_SUFFIX);
+    }
+
+    /**
+     * 宿主apk升级后，框架自身的序列化格式可能发生变化
+     */
+    static long getHostApkStamp(Context context) {
+        String sourceDir = context.getApplicationInfo().sourceDir;
+        return TextUtils.isEmpty(sourceDir) ? 0L : new File(sourceDir).lastModified();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalStateException("illegal string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.pm;
+
+import org.qiyi.pluginlibrary.utils.PluginDebugLog;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 非主进程中插件信息的本地缓存
+ * <p>
+ * 缓存从{@link PluginPackageManagerService}读取到的插件信息，避免每次都进行ipc和反序列化；
+ * 缓存只有在注册了{@link IPackageChangeListener}之后才生效，
+ * 服务端每次插件信息变化都会递增版本号并推送给客户端，客户端据此淘汰对应插件的缓存。
+ * 写入缓存时需要带上读取前的版本号，读取期间发生过变化的结果不会被缓存。
+ * <p>
+ * {@link PluginLiteInfo}和列表会被调用方修改(例如更新srcApkPath)，写入和读取时都复制一份；
+ * {@link PluginPackageInfo}解析完成后只读，复制需要完整的序列化，这里直接共享
+ */
+final class PluginPackageLocalCache {
+    private static final String TAG = "PluginPackageLocalCache";
+    /* 缓存不可用时的版本号 */
+    static final long INVALID_VERSION = -1L;
+
+    /* 当前缓存对应的服务端版本号 */
+    private long mVersion = INVALID_VERSION;
+    private final Map<String, PluginLiteInfo> mLiteInfos = new HashMap<>();
+    private final Map<String, PluginPackageInfo> mPackageInfos = new HashMap<>();
+    private final Map<String, List<String>> mRefs = new HashMap<>();
+    /* 已安装插件列表 */
+    private List<PluginLiteInfo> mInstalledApps;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mInvalidateCount = new AtomicLong();
+
+    /**
+     * 获取当前版本号，在读取远程数据之前调用，写入缓存时传回
+     */
+    synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * 与服务端建立连接后，清空缓存并设置新的版本号
+     */
+    synchronized void reset(long version) {
+        clearLocked();
+        mVersion = version;
+        PluginDebugLog.runtimeFormatLog(TAG, "reset local cache, version %d", version);
+    }
+
+    /**
+     * 与服务端断开连接，之后不再缓存任何数据
+     */
+    synchronized void disable() {
+        reset(INVALID_VERSION);
+    }
+
+    /**
+     * 服务端推送插件变化，淘汰对应插件的缓存
+     *
+     * @param packageName 发生变化的插件，为空时淘汰所有缓存
+     * @param version     变化后的版本号
+     */
+    synchronized void invalidate(String packageName, long version) {
+        mInvalidateCount.incrementAndGet();
+        if (mVersion == INVALID_VERSION) {
+            return;
+        }
+        if (packageName == null) {
+            clearLocked();
+        } else {
+            mLiteInfos.remove(packageName);
+            mPackageInfos.remove(packageName);
+            mRefs.remove(packageName);
+            mInstalledApps = null;
+        }
+        mVersion = Math.max(mVersion, version);
+        PluginDebugLog.runtimeFormatLog(TAG, "invalidate %s, version %d", packageName, mVersion);
+    }
+
+    synchronized PluginLiteInfo getLiteInfo(String packageName) {
+        PluginLiteInfo info = record(mLiteInfos.get(packageName));
+        return info != null ? new PluginLiteInfo(info) : null;
+    }
+
+    synchronized PluginPackageInfo getPackageInfo(String packageName) {
+        return record(mPackageInfos.get(packageName));
+    }
+
+    synchronized List<String> getRefs(String packageName) {
+        List<String> refs = record(mRefs.get(packageName));
+        return refs != null ? new ArrayList<>(refs) : null;
+    }
+
+    synchronized List<PluginLiteInfo> getInstalledApps() {
+        List<PluginLiteInfo> installedApps = record(mInstalledApps);
+        return installedApps != null ? copyOf(installedApps) : null;
+    }
+
+    synchronized void putLiteInfo(String packageName, PluginLiteInfo info, long version) {
+        if (info != null && isCacheable(version)) {
+            mLiteInfos.put(packageName, new PluginLiteInfo(info));
+        }
+    }
+
+    synchronized void putPackageInfo(String packageName, PluginPackageInfo info, long version) {
+        if (info != null && isCacheable(version)) {
+            mPackageInfos.put(packageName, info);
+        }
+    }
+
+    synchronized void putRefs(String packageName, List<String> refs, long version) {
+        if (refs != null && isCacheable(version)) {
+            mRefs.put(packageName, new ArrayList<>(refs));
+        }
+    }
+
+    synchronized void putInstalledApps(List<PluginLiteInfo> installedApps, long version) {
+        if (installedApps != null && isCacheable(version)) {
+            mInstalledApps = copyOf(installedApps);
+        }
+    }
+
+    /**
+     * 输出缓存命中统计
+     */
+    void dump(PrintWriter printWriter) {
+        long hit = mHitCount.get();
+        long miss = mMissCount.get();
+        long total = hit + miss;
+        printWriter.print(String.format(Locale.US,
+                "plugin package local cache: version=%d, hit=%d, miss=%d, hitRate=%d%%, invalidate=%d\n",
+                getVersion(), hit, miss, total > 0 ? hit * 100 / total : 0, mInvalidateCount.get()));
+    }
+
+    private boolean isCacheable(long version) {
+        return mVersion != INVALID_VERSION && mVersion == version;
+    }
+
+    private <T> T record(T value) {
+        if (value != null) {
+            mHitCount.incrementAndGet();
+        } else {
+            mMissCount.incrementAndGet();
+        }
+        return value;
+    }
+
+    private static List<PluginLiteInfo> copyOf(List<PluginLiteInfo> infos) {
+        List<PluginLiteInfo> result = new ArrayList<>(infos.size());
+        for (PluginLiteInfo info : infos) {
+            result.add(info != null ? new PluginLiteInfo(info) : null);
+        }
+        return result;
+    }
+
+    private void clearLocked() {
+        mLiteInfos.clear();
+        mPackageInfos.clear();
+        mRefs.clear();
+        mInstalledApps = null;
+    }
+}
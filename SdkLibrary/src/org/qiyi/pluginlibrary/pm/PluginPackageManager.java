@@ -25,35 +25,42 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Parcelable;
 import android.os.Process;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.qiyi.pluginlibrary.Neptune;
 import org.qiyi.pluginlibrary.constant.IntentConstant;
 import org.qiyi.pluginlibrary.error.ErrorType;
 import org.qiyi.pluginlibrary.install.IActionFinishCallback;
 import org.qiyi.pluginlibrary.install.IInstallCallBack;
+import org.qiyi.pluginlibrary.install.IInstallProgressCallBack;
+import org.qiyi.pluginlibrary.install.InstallDispatchStats;
 import org.qiyi.pluginlibrary.install.IUninstallCallBack;
 import org.qiyi.pluginlibrary.install.PluginInstaller;
+import org.qiyi.pluginlibrary.install.PluginStorageManager;
 import org.qiyi.pluginlibrary.install.PluginUninstaller;
 import org.qiyi.pluginlibrary.runtime.PluginManager;
 import org.qiyi.pluginlibrary.utils.ContextUtils;
 import org.qiyi.pluginlibrary.utils.ErrorUtil;
 import org.qiyi.pluginlibrary.utils.PluginDebugLog;
-import org.qiyi.pluginlibrary.utils.PreferUtils;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 负责安装卸载app，获取安装列表等工作.<br>
@@ -75,6 +82,10 @@ public class PluginPackageManager {
      * 卸载插件完成，发送广播
      */
     public static final String ACTION_PACKAGE_UNINSTALL = "com.qiyi.neptune.action.uninstall";
+    /**
+     * 插件安装或者卸载完成，通知所有进程插件信息发生变化
+     */
+    public static final String ACTION_PACKAGE_CHANGED = "com.qiyi.neptune.action.changed";
     /**
      * 如果发现某个插件异常，通知上层检查
      */
@@ -86,8 +97,12 @@ public class PluginPackageManager {
     public static final int UNINSTALL_SUCCESS = 3;
     public static final int UNINSTALL_FAILED = -3;
 
-    private static final String PLUGIN_INSTALL_SP_NAME = "plugin_install";
-    private static final String PLUGIN_INSTALL_KEY = "install_status";
+    /* 等待后台恢复已安装插件数据的最长时间，超时后在调用线程同步恢复 */
+    private static final long DATA_RECOVERY_TIMEOUT_MS = 1000;
+    /* 启动后延迟回收插件目录空间的时间 */
+    private static final long STORAGE_COLLECT_DELAY_MS = 30 * 1000L;
+    /* 批量获取插件信息时单次返回的PluginPackageInfo总大小上限，binder事务缓冲区只有1M且整个进程共享 */
+    static final long MAX_SNAPSHOTS_REPLY_BYTES = 256 * 1024L;
     /**
      * 验证插件基本信息、获取插件状态等信息接口，该接口通常交由主工程实现，并设置
      */
@@ -104,14 +119,35 @@ public class PluginPackageManager {
     // 已安装插件列表
     private ConcurrentHashMap<String, PluginLiteInfo> mInstalledPlugins =
             new ConcurrentHashMap<>();
-    /* 本地已安装插件数据是否恢复完成 */
-    private boolean mDataRecoveryOver = false;
+    /* 已安装插件列表的持久化日志 */
+    private PluginInstallJournal mInstallJournal;
+    /* 过期版本和空间回收都在这个线程串行执行，避免同时删除同一批文件 */
+    private final ExecutorService mGcExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "ppm-gc");
+        }
+    });
+    /* 本地已安装插件数据的恢复任务 */
+    private final PluginDataRecovery mDataRecovery = new PluginDataRecovery(new Runnable() {
+        @Override
+        public void run() {
+            restoreInstallPluginInfos();
+        }
+    });
+    /* 插件信息的版本号，每次安装、卸载都会递增 */
+    private final AtomicLong mChangeVersion = new AtomicLong();
+    /* 其他进程注册的插件变化监听 */
+    private final RemoteCallbackList<IPackageChangeListener> mChangeListeners =
+            new RemoteCallbackList<>();
 
     // 主进程回调的Handler
     private Handler mHandler = new Handler(Looper.getMainLooper());
 
     /* 存放正在安装的插件列表 */
     private List<String> mInstallingList = Collections.synchronizedList(new LinkedList<String>());
+    /* 正在后台升级的插件，新版本安装到独立的槽位，旧版本仍然可以正常启动 */
+    private Set<String> mBackgroundUpgrades = Collections.synchronizedSet(new HashSet<String>());
 
     private boolean mInstallerReceiverRegistered = false;
     /**
@@ -130,6 +166,11 @@ public class PluginPackageManager {
         @Override
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
+            if (ACTION_PACKAGE_INSTALLED.equals(action) || ACTION_PACKAGE_INSTALLFAIL.equals(action)) {
+                // 汇总安装进程冷启动和已经运行时的请求分发耗时
+                InstallDispatchStats.record(intent.getBooleanExtra(IntentConstant.EXTRA_DISPATCH_COLD, false),
+                        intent.getLongExtra(IntentConstant.EXTRA_DISPATCH_COST, -1L));
+            }
             if (ACTION_PACKAGE_INSTALLED.equals(action)) {
                 // 插件安装成功
                 PluginLiteInfo pkgInfo = intent.getParcelableExtra(IntentConstant.EXTRA_PLUGIN_INFO);
@@ -264,76 +305,59 @@ public class PluginPackageManager {
 
     private void init(Context context) {
         mContext = context.getApplicationContext();
+        mInstallJournal = new PluginInstallJournal(mContext);
         registerInstallReceiver();
         startRestoreData();
     }
 
-    /**
-     * 保存已安装插件信息到本地
-     */
-    private void saveInstallPluginInfos() {
-
-        JSONArray jArray = new JSONArray();
-        for (Map.Entry<String, PluginLiteInfo> entry : mInstalledPlugins.entrySet()) {
-            String pkgName = entry.getKey();
-            PluginLiteInfo liteInfo = entry.getValue();
-
-            JSONObject jObj = new JSONObject();
-            try {
-                jObj.put("pkgName", pkgName);
-                jObj.put("info", liteInfo.toJson());
-
-                jArray.put(jObj);
-            } catch (JSONException e) {
-                // ignore
-            }
-        }
-        PreferUtils.save(mContext, PLUGIN_INSTALL_SP_NAME, PLUGIN_INSTALL_KEY, jArray.toString());
-    }
-
     private void startRestoreData() {
         new Thread("ppm-rd") {
             @Override
             public void run() {
                 Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-                restoreInstallPluginInfos();
+                if (mDataRecovery.run()) {
+                    onDataRecovered();
+                }
             }
         }.start();
     }
 
     /**
-     * 从本地恢复已安装插件信息
+     * 从本地恢复已安装插件信息，先读取到局部的Map，读取完成后再合并到已安装列表
      */
     private void restoreInstallPluginInfos() {
-
-        String content = PreferUtils.get(mContext, PLUGIN_INSTALL_SP_NAME, PLUGIN_INSTALL_KEY, "");
-        if (TextUtils.isEmpty(content)) {
-            return;
+        Map<String, PluginLiteInfo> restored = mInstallJournal.restore();
+        for (Map.Entry<String, PluginLiteInfo> entry : restored.entrySet()) {
+            // 恢复期间新安装的插件以内存中的为准
+            mInstalledPlugins.putIfAbsent(entry.getKey(), entry.getValue());
         }
+    }
 
-        // restore data
-        try {
-            JSONArray jArray = new JSONArray(content);
-            for (int i = 0; i < jArray.length(); i++) {
-                JSONObject jObj = jArray.optJSONObject(i);
-                if (jObj != null) {
-                    String pkgName = jObj.optString("pkgName");
-                    String info = jObj.optString("info");
-                    if (TextUtils.isEmpty(pkgName) || TextUtils.isEmpty(info)) {
-                        continue;
-                    }
-
-                    PluginLiteInfo liteInfo = new PluginLiteInfo(info);
-                    if (TextUtils.isEmpty(liteInfo.packageName) || !TextUtils.equals(liteInfo.packageName, pkgName)) {
-                        continue;
-                    }
-                    // restore success
-                    mInstalledPlugins.put(pkgName, liteInfo);
-                }
+    /**
+     * 已安装插件信息恢复完成
+     */
+    private void onDataRecovered() {
+        // 恢复之前其他进程可能缓存了不完整的数据
+        notifyPackageChanged(null);
+        // 启动阶段IO较多，延迟回收插件目录的空间
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                collectStorage();
             }
-            mDataRecoveryOver = true;
-        } catch (JSONException e) {
-            // ignore
+        }, STORAGE_COLLECT_DELAY_MS);
+    }
+
+    /**
+     * 等待本地已安装插件数据恢复完成，超时后恢复还没有开始时在当前线程同步恢复
+     */
+    private void awaitDataRecovery() {
+        if (mDataRecovery.isOver() || sPluginInfoProvider != null) {
+            return;
+        }
+        if (mDataRecovery.await(DATA_RECOVERY_TIMEOUT_MS)) {
+            PluginDebugLog.runtimeLog(TAG, "wait data recovery timeout, restored it synchronously");
+            onDataRecovered();
         }
     }
 
@@ -390,7 +414,8 @@ public class PluginPackageManager {
         PluginDebugLog.installLog(TAG, "packageAction , " + packageInfo.packageName + " installed : "
                 + packageInstalled + " installing: " + installing);
 
-        if (packageInstalled && (!installing)) { // 安装了，并且没有更新操作
+        boolean backgroundUpgrade = mBackgroundUpgrades.contains(packageInfo.packageName);
+        if (packageInstalled && (!installing || backgroundUpgrade)) { // 安装了，并且没有更新操作或者在后台升级
             try {
                 if (callBack != null) {
                     callBack.onPackageInstalled(packageInfo);
@@ -504,8 +529,11 @@ public class PluginPackageManager {
     private void onPackageInstalled(PluginLiteInfo pkgInfo, @Nullable IInstallCallBack callback) {
         PluginDebugLog.installFormatLog(TAG, "plugin install success: %s", pkgInfo.packageName);
         // 先更新内存状态，再回调给上层
-        mInstalledPlugins.put(pkgInfo.packageName, pkgInfo);
-        saveInstallPluginInfos();
+        awaitDataRecovery();
+        PluginLiteInfo previous = mInstalledPlugins.put(pkgInfo.packageName, pkgInfo);
+        mPackageInfoCache.remove(pkgInfo.packageName);
+        mInstallJournal.put(pkgInfo);
+        notifyPackageChanged(pkgInfo.packageName);
         String key = pkgInfo.packageName + "_" + pkgInfo.pluginVersion;
         if (callback != null) {
             try {
@@ -517,9 +545,132 @@ public class PluginPackageManager {
             }
         }
         mInstallingList.remove(pkgInfo.packageName);
+        mBackgroundUpgrades.remove(pkgInfo.packageName);
         // 等待执行的安装action直接回调
         executePackageAction(pkgInfo, true, 0);
         onActionFinish(pkgInfo, INSTALL_SUCCESS);
+        deleteStaleVersions(pkgInfo, previous);
+    }
+
+    /**
+     * 插件升级完成后在后台删除过期的版本，保留当前版本和上一个版本
+     * 正在运行的旧版本在下次冷启动时切换到新版本
+     */
+    private void deleteStaleVersions(final PluginLiteInfo current, @Nullable PluginLiteInfo previous) {
+        if (TextUtils.isEmpty(current.srcApkPath)) {
+            return;
+        }
+        final List<String> keepApkPaths = new ArrayList<>();
+        keepApkPaths.add(new File(current.srcApkPath).getAbsolutePath());
+        if (previous != null && !TextUtils.isEmpty(previous.srcApkPath)) {
+            keepApkPaths.add(new File(previous.srcApkPath).getAbsolutePath());
+        }
+        mGcExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // 又有新的安装开始，等它完成后再清理
+                if (isPackageInstalling(current.packageName)) {
+                    return;
+                }
+                PluginUninstaller.deleteStaleVersions(mContext, current.packageName, keepApkPaths);
+            }
+        });
+    }
+
+    /**
+     * 在后台回收pluginapp目录的空间，删除遗留的临时文件、已卸载插件和过期版本的文件
+     */
+    private void collectStorage() {
+        mGcExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                List<PluginLiteInfo> installed = getInstalledApps();
+                if (installed == null) {
+                    // 无法确定已安装的插件，不做回收
+                    return;
+                }
+                Map<String, PluginLiteInfo> installedMap = new HashMap<>();
+                for (PluginLiteInfo info : installed) {
+                    if (info != null) {
+                        installedMap.put(info.packageName, info);
+                    }
+                }
+                for (PluginLiteInfo info : mInstalledPlugins.values()) {
+                    if (!installedMap.containsKey(info.packageName)) {
+                        installedMap.put(info.packageName, info);
+                    }
+                }
+                List<String> installing;
+                synchronized (mInstallingList) {
+                    installing = new ArrayList<>(mInstallingList);
+                }
+                long quota = Neptune.getConfig().getStorageQuota();
+                long freed = PluginStorageManager.collect(mContext, installedMap.values(), installing, quota,
+                        new PluginStorageManager.PackageStateProvider() {
+                            @Override
+                            public boolean isPackageInstalling(String packageName) {
+                                return mInstallingList.contains(packageName);
+                            }
+
+                            @Override
+                            public PluginLiteInfo getInstalledPackage(String packageName) {
+                                return getPackageInfo(packageName);
+                            }
+                        });
+                PluginDebugLog.installFormatLog(TAG, "collect plugin storage, freed %d bytes", freed);
+            }
+        });
+    }
+
+    /**
+     * 通知所有进程插件发生变化，递增版本号并推送给注册了监听的进程
+     *
+     * @param packageName 发生变化的插件包名，为null表示所有插件
+     */
+    private void notifyPackageChanged(String packageName) {
+        synchronized (mChangeListeners) {
+            long version = mChangeVersion.incrementAndGet();
+            int count = mChangeListeners.beginBroadcast();
+            try {
+                for (int i = 0; i < count; i++) {
+                    try {
+                        mChangeListeners.getBroadcastItem(i).onPackageChanged(packageName, version);
+                    } catch (RemoteException e) {
+                        // ignore, RemoteCallbackList会移除已经死亡的进程
+                    }
+                }
+            } finally {
+                mChangeListeners.finishBroadcast();
+            }
+            PluginDebugLog.runtimeFormatLog(TAG, "package %s changed, version %d, listeners %d",
+                    packageName, version, count);
+        }
+        if (packageName == null) {
+            return;
+        }
+        try {
+            Intent intent = new Intent(ACTION_PACKAGE_CHANGED);
+            intent.setPackage(mContext.getPackageName());
+            intent.putExtra(IntentConstant.EXTRA_PKG_NAME, packageName);
+            mContext.sendBroadcast(intent);
+        } catch (Exception e) {
+            ErrorUtil.throwErrorIfNeed(e);
+        }
+    }
+
+    /**
+     * 注册插件变化监听
+     *
+     * @return 当前的版本号，监听只会收到比这个版本号更新的变化
+     */
+    long registerPackageChangeListener(IPackageChangeListener listener) {
+        synchronized (mChangeListeners) {
+            if (listener != null) {
+                mChangeListeners.register(listener);
+            }
+            return mChangeVersion.get();
+        }
     }
 
     /**
@@ -540,6 +691,11 @@ public class PluginPackageManager {
             }
         }
         mInstallingList.remove(pkgInfo.packageName);
+        mBackgroundUpgrades.remove(pkgInfo.packageName);
+        if (failReason == ErrorType.INSTALL_ERROR_NO_ENOUGH_SPACE) {
+            // 空间不足，回收后由应用层决定是否重试
+            collectStorage();
+        }
         // 等待执行的安装action直接回调
         executePackageAction(pkgInfo, false, failReason);
         onActionFinish(pkgInfo, INSTALL_FAILED);
@@ -568,6 +724,7 @@ public class PluginPackageManager {
             return packageInfoList;
         }
 
+        awaitDataRecovery();
         return new ArrayList<>(mInstalledPlugins.values());
     }
 
@@ -578,6 +735,7 @@ public class PluginPackageManager {
         if (sPluginInfoProvider != null) {
             return sPluginInfoProvider.isPackageInstalled(packageName);
         }
+        awaitDataRecovery();
         return mInstalledPlugins.containsKey(packageName);
     }
 
@@ -607,15 +765,8 @@ public class PluginPackageManager {
             PluginDebugLog.runtimeFormatLog(TAG, "getPackageInfo for %s" +
                     " return null due to sPluginInfoProvider is null", packageName);
         }
-        info = mInstalledPlugins.get(packageName);
-        if (info == null && !mDataRecoveryOver) {
-            PluginDebugLog.runtimeFormatLog(TAG, "getPackageInfo for %s from local data is null " +
-                    "due to data recovery not over", packageName);
-            // 获取info为null且本地数据未恢复完成，同步恢复下
-            restoreInstallPluginInfos();
-            info = mInstalledPlugins.get(packageName);
-        }
-        return info;
+        awaitDataRecovery();
+        return mInstalledPlugins.get(packageName);
     }
 
     /**
@@ -626,11 +777,33 @@ public class PluginPackageManager {
      * @param callback   监听器
      */
     void install(PluginLiteInfo pluginInfo, final IInstallCallBack callback) {
+        install(pluginInfo, callback, null);
+    }
+
+    /**
+     * 安装一个插件，同时监听dexopt进度
+     *
+     * @param pluginInfo       插件信息
+     * @param callback         监听器
+     * @param progressCallback 安装进度监听器，可以为null
+     */
+    void install(PluginLiteInfo pluginInfo, final IInstallCallBack callback,
+                 IInstallProgressCallBack progressCallback) {
         registerInstallReceiver();  //注册广播
+        // 新版本安装到独立的槽位，旧版本在安装过程中可以继续运行，安装完成后下次冷启动时切换
+        boolean backgroundUpgrade = PluginInstaller.canUpgradeInBackground(
+                getPackageInfo(pluginInfo.packageName), pluginInfo);
         // 安装插件前，先清理apk,dex,so库等数据
         // 插件运行与插件更新可能并发执行，导致插件出现 ClassNotFoundException, 尝试更新时不清除旧插件，下次启动时再清除
-        if (pluginInfo.deletePackageBeforeInstall) {
-            deletePackage(pluginInfo, null, false);
+        // 差分包安装依赖已安装的基础版本，不能提前删除
+        // 内存中的数据立即清理，安装文件在安装流水线的清理阶段删除，不在调用线程上等待同一个插件进行中的dexopt
+        boolean cleanBeforeInstall = pluginInfo.deletePackageBeforeInstall && !backgroundUpgrade
+                && TextUtils.isEmpty(pluginInfo.patchBaseVersion);
+        if (cleanBeforeInstall) {
+            deletePackage(pluginInfo, null, false, false);
+        }
+        if (backgroundUpgrade) {
+            mBackgroundUpgrades.add(pluginInfo.packageName);
         }
 
         String key = pluginInfo.packageName + "_" + pluginInfo.pluginVersion;
@@ -639,7 +812,7 @@ public class PluginPackageManager {
         add2InstallList(pluginInfo.packageName);
 
         PluginDebugLog.installLog(TAG, "install plugin: " + pluginInfo);
-        PluginInstaller.startInstall(mContext, pluginInfo, new IInstallCallBack.Stub() {
+        PluginInstaller.startInstall(mContext, pluginInfo, cleanBeforeInstall, new IInstallCallBack.Stub() {
             @Override
             public void onPackageInstalled(final PluginLiteInfo info) throws RemoteException {
                 if (Looper.myLooper() == Looper.getMainLooper()) {
@@ -667,7 +840,7 @@ public class PluginPackageManager {
                     });
                 }
             }
-        });
+        }, progressCallback);
     }
 
     /**
@@ -721,22 +894,39 @@ public class PluginPackageManager {
      */
     private void deletePackage(@NonNull PluginLiteInfo packageInfo, @Nullable IUninstallCallBack observer,
                                boolean deleteData) {
+        deletePackage(packageInfo, observer, deleteData, true);
+    }
+
+    /**
+     * 删除安装包。 卸载插件应用程序
+     *
+     * @param packageInfo 需要删除的package 的 PluginLiteInfo
+     * @param observer    卸载结果回调
+     * @param deleteData  是否删除生成的data
+     * @param deleteFiles 是否在当前线程删除apk，dex，so等安装文件，安装前的清理交给安装流水线
+     */
+    private void deletePackage(@NonNull PluginLiteInfo packageInfo, @Nullable IUninstallCallBack observer,
+                               boolean deleteData, boolean deleteFiles) {
         String packageName = packageInfo.packageName;
-        PluginDebugLog.installFormatLog(TAG, "delete plugin :%s, deleteData:%s", packageName
-                , String.valueOf(deleteData));
+        PluginDebugLog.installFormatLog(TAG, "delete plugin :%s, deleteData:%s, deleteFiles:%s", packageName
+                , String.valueOf(deleteData), String.valueOf(deleteFiles));
 
         // 先停止正在运行中的插件
         PluginManager.exitPlugin(packageName);
-        // 先删除安装文件，apk，dex，so
-        PluginUninstaller.deleteInstallerPackage(mContext, packageInfo);
+        if (deleteFiles) {
+            // 先删除安装文件，apk，dex，so
+            PluginUninstaller.deleteInstallerPackage(mContext, packageInfo);
+        }
         if (deleteData) {
             // 删除生成的data数据文件
             PluginUninstaller.deletePluginData(mContext, packageName);
         }
         // 清理内存数据
+        awaitDataRecovery();
         mPackageInfoCache.remove(packageName);
         mInstalledPlugins.remove(packageName);
-        saveInstallPluginInfos();
+        mInstallJournal.remove(packageName);
+        notifyPackageChanged(packageName);
         // 发送广播给插件进程，清理PluginLoadedApk数据
         try {
             Intent intent = new Intent(PluginPackageManager.ACTION_PACKAGE_UNINSTALL);
@@ -797,7 +987,7 @@ public class PluginPackageManager {
             if (!TextUtils.isEmpty(packageInfo.srcApkPath)) {
                 File file = new File(packageInfo.srcApkPath);
                 if (file.exists()) {
-                    result = new PluginPackageInfo(mContext, file);
+                    result = PluginPackageInfoCache.load(mContext, file);
                 }
             }
         }
@@ -820,6 +1010,7 @@ public class PluginPackageManager {
         if (sPluginInfoProvider != null) {
             mRefs = sPluginInfoProvider.getPluginRefs(pkgName);
         } else {
+            awaitDataRecovery();
             PluginLiteInfo liteInfo = mInstalledPlugins.get(pkgName);
             if (liteInfo != null && !TextUtils.isEmpty(liteInfo.plugin_refs)) {
                 String[] refs = liteInfo.plugin_refs.split(",");
@@ -833,6 +1024,20 @@ public class PluginPackageManager {
         return mRefs;
     }
 
+    /**
+     * 批量获取插件的安装信息、PluginPackageInfo和依赖列表
+     *
+     * @param pkgNames         插件包名列表
+     * @param withDependencies 是否同时返回所有间接依赖的插件
+     * @param loadedPkgNames   调用方已经加载的插件，只返回安装信息和依赖列表，不返回PluginPackageInfo，也不展开它们的依赖
+     * @return 已安装插件的信息，未安装的插件不会出现在结果中；单次返回的PluginPackageInfo总大小
+     * 受{@link #MAX_SNAPSHOTS_REPLY_BYTES}限制，超出部分packageInfo为null，由调用方再次获取
+     */
+    List<PluginPackageSnapshot> getPackageSnapshots(List<String> pkgNames, boolean withDependencies,
+                                                    List<String> loadedPkgNames) {
+        return collectPackageSnapshots(pkgNames, withDependencies, loadedPkgNames, false);
+    }
+
     /**
      * 直接获取已经安装的插件列表(不经过ipc，直接读取sp)
      */
@@ -842,6 +1047,7 @@ public class PluginPackageManager {
             installPlugins = sPluginInfoProvider.getInstalledPackagesDirectly();
         } else {
             PluginDebugLog.runtimeLog(TAG, "[warning] sPluginInfoProvider is null");
+            awaitDataRecovery();
             installPlugins.addAll(mInstalledPlugins.values());
         }
         return installPlugins;
@@ -859,6 +1065,7 @@ public class PluginPackageManager {
         } else {
             PluginDebugLog.runtimeLog(TAG, "[warning] sPluginInfoProvider is null");
         }
+        awaitDataRecovery();
         return mInstalledPlugins.containsKey(packageName);
     }
 
@@ -871,6 +1078,7 @@ public class PluginPackageManager {
             mRefPlugins = sPluginInfoProvider.getPluginRefsDirectly(packageName);
         } else {
             PluginDebugLog.runtimeLog(TAG, "[warning] sPluginInfoProvider is null");
+            awaitDataRecovery();
             PluginLiteInfo liteInfo = mInstalledPlugins.get(packageName);
             if (liteInfo != null && !TextUtils.isEmpty(liteInfo.plugin_refs)) {
                 String[] refs = liteInfo.plugin_refs.split(",");
@@ -896,12 +1104,95 @@ public class PluginPackageManager {
             liteInfo = sPluginInfoProvider.getPackageInfoDirectly(packageName);
         } else {
             PluginDebugLog.runtimeLog(TAG, "[warning] sPluginInfoProvider is null");
+            awaitDataRecovery();
             liteInfo = mInstalledPlugins.get(packageName);
         }
 
         return liteInfo;
     }
 
+    /**
+     * 直接批量获取插件信息(不经过ipc)
+     */
+    List<PluginPackageSnapshot> getPackageSnapshotsDirectly(List<String> pkgNames, boolean withDependencies,
+                                                            List<String> loadedPkgNames) {
+        return collectPackageSnapshots(pkgNames, withDependencies, loadedPkgNames, true);
+    }
+
+    /**
+     * 按广度优先顺序收集插件及其依赖的信息，每个插件只出现一次
+     * <p>
+     * 跨进程返回时PluginPackageInfo按序列化后的大小累计，超过单次返回上限后不再附带，
+     * 避免依赖图较大时触发TransactionTooLargeException；每次至少附带一个，保证调用方分页获取时总能前进
+     */
+    private List<PluginPackageSnapshot> collectPackageSnapshots(List<String> pkgNames, boolean withDependencies,
+                                                                List<String> loadedPkgNames, boolean directly) {
+        List<PluginPackageSnapshot> snapshots = new ArrayList<>();
+        if (pkgNames == null) {
+            return snapshots;
+        }
+        Set<String> loaded = loadedPkgNames != null ? new HashSet<>(loadedPkgNames) : Collections.<String>emptySet();
+        long remainingBytes = directly ? Long.MAX_VALUE : MAX_SNAPSHOTS_REPLY_BYTES;
+        int deferred = 0;
+        Set<String> visited = new HashSet<>();
+        LinkedList<String> pending = new LinkedList<>(pkgNames);
+        while (!pending.isEmpty()) {
+            String pkgName = pending.poll();
+            if (TextUtils.isEmpty(pkgName) || !visited.add(pkgName)) {
+                continue;
+            }
+            PluginLiteInfo liteInfo = directly ? getPackageInfoDirectly(pkgName) : getPackageInfo(pkgName);
+            if (liteInfo == null || TextUtils.isEmpty(liteInfo.packageName)) {
+                continue;
+            }
+            List<String> refs = directly ? getPluginRefsDirectly(pkgName) : getPluginRefs(pkgName);
+            if (loaded.contains(pkgName)) {
+                // 调用方已经加载过的插件，依赖关系也已经处理过了
+                snapshots.add(new PluginPackageSnapshot(liteInfo, null, refs));
+                continue;
+            }
+            if (remainingBytes <= 0) {
+                deferred++;
+                snapshots.add(new PluginPackageSnapshot(liteInfo, null, refs));
+                if (withDependencies && refs != null) {
+                    pending.addAll(refs);
+                }
+                continue;
+            }
+            PluginPackageInfo packageInfo;
+            if (directly) {
+                packageInfo = null;
+                updateSrcApkPath(mContext, liteInfo);
+                if (!TextUtils.isEmpty(liteInfo.srcApkPath)) {
+                    File file = new File(liteInfo.srcApkPath);
+                    if (file.exists()) {
+                        packageInfo = PluginPackageInfoCache.load(mContext, file);
+                    }
+                }
+            } else {
+                packageInfo = getPluginPackageInfo(pkgName);
+            }
+            if (packageInfo != null && !directly) {
+                long size = packageInfo.getParcelSize();
+                if (size > remainingBytes && remainingBytes < MAX_SNAPSHOTS_REPLY_BYTES) {
+                    // 已经附带过PackageInfo，超出部分留给下一次获取
+                    packageInfo = null;
+                    deferred++;
+                    remainingBytes = 0;
+                } else {
+                    remainingBytes -= size;
+                }
+            }
+            snapshots.add(new PluginPackageSnapshot(liteInfo, packageInfo, refs));
+            if (withDependencies && refs != null) {
+                pending.addAll(refs);
+            }
+        }
+        PluginDebugLog.runtimeFormatLog(TAG, "collect %d package snapshots for %s, %d package info deferred",
+                snapshots.size(), pkgNames, deferred);
+        return snapshots;
+    }
+
     /**
      * 包依赖任务队列对象。
      */
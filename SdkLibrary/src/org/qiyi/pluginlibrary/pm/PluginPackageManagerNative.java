@@ -21,6 +21,9 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ProviderInfo;
+import android.content.pm.ServiceInfo;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
@@ -31,7 +34,9 @@ import android.text.TextUtils;
 import org.qiyi.pluginlibrary.error.ErrorType;
 import org.qiyi.pluginlibrary.install.IActionFinishCallback;
 import org.qiyi.pluginlibrary.install.IInstallCallBack;
+import org.qiyi.pluginlibrary.install.IInstallProgressCallBack;
 import org.qiyi.pluginlibrary.install.IUninstallCallBack;
+import org.qiyi.pluginlibrary.install.PluginInstaller;
 import org.qiyi.pluginlibrary.runtime.NotifyCenter;
 import org.qiyi.pluginlibrary.utils.ContextUtils;
 import org.qiyi.pluginlibrary.utils.ErrorUtil;
@@ -39,9 +44,16 @@ import org.qiyi.pluginlibrary.utils.PluginDebugLog;
 import org.qiyi.pluginlibrary.utils.ProcessUtils;
 
 import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -77,6 +89,16 @@ public class PluginPackageManagerNative {
     private IPluginPackageManager mService = null;
     private ServiceConnection mServiceConnection = null;
     private Uri mProviderUri;
+    /* 跨插件的组件索引，用于隐式Intent在所有插件中查找 */
+    private final PluginComponentIndex mComponentIndex = new PluginComponentIndex();
+    /* 从主进程读取的插件信息缓存，由主进程推送的变化通知淘汰 */
+    private final PluginPackageLocalCache mLocalCache = new PluginPackageLocalCache();
+    private final IPackageChangeListener.Stub mChangeListener = new IPackageChangeListener.Stub() {
+        @Override
+        public void onPackageChanged(String pkgName, long version) throws RemoteException {
+            mLocalCache.invalidate(pkgName, version);
+        }
+    };
 
     private PluginPackageManagerNative() {
         // no-op
@@ -205,8 +227,19 @@ public class PluginPackageManagerNative {
      * 提交一个PluginInstallAction安装插件任务
      */
     public void install(@NonNull PluginLiteInfo info, IInstallCallBack callBack) {
+        install(info, callBack, null);
+    }
+
+    /**
+     * 提交一个PluginInstallAction安装插件任务，同时监听dexopt进度
+     *
+     * @param progressCallBack 安装进度回调，可以为null；使用独立进程安装时不回调进度
+     */
+    public void install(@NonNull PluginLiteInfo info, IInstallCallBack callBack,
+                        IInstallProgressCallBack progressCallBack) {
         PluginInstallAction action = new PluginInstallAction();
         action.observer = callBack;
+        action.progressObserver = progressCallBack;
         action.info = info;
         action.callbackHost = this;
         if (action.meetCondition() && addAction(action) && actionIsReady(action)) {
@@ -242,10 +275,11 @@ public class PluginPackageManagerNative {
     /**
      * 通过aidl调用{@link PluginPackageManagerService}进行安装
      */
-    private void installInternal(PluginLiteInfo info, IInstallCallBack listener) {
+    private void installInternal(PluginLiteInfo info, IInstallCallBack listener,
+                                 IInstallProgressCallBack progressListener) {
         if (isConnected()) {
             try {
-                mService.install(info, listener);
+                mService.install(info, listener, progressListener);
                 return;
             } catch (RemoteException e) {
                 // ignore
@@ -409,6 +443,7 @@ public class PluginPackageManagerNative {
                 }
                 mServiceConnection = null;
             }
+            mLocalCache.disable();
             Intent intent = new Intent(applicationContext, PluginPackageManagerService.class);
             applicationContext.stopService(intent);
         }
@@ -421,8 +456,15 @@ public class PluginPackageManagerNative {
      */
     public List<PluginLiteInfo> getInstalledApps() {
         if (isConnected()) {
+            List<PluginLiteInfo> installedApps = mLocalCache.getInstalledApps();
+            if (installedApps != null) {
+                return installedApps;
+            }
             try {
-                return mService.getInstalledApps();
+                long version = mLocalCache.getVersion();
+                installedApps = mService.getInstalledApps();
+                mLocalCache.putInstalledApps(installedApps, version);
+                return installedApps;
             } catch (RemoteException e) {
                 // ignore
             }
@@ -449,8 +491,15 @@ public class PluginPackageManagerNative {
      */
     public List<String> getPluginRefs(String pkgName) {
         if (isConnected()) {
+            List<String> refs = mLocalCache.getRefs(pkgName);
+            if (refs != null) {
+                return refs;
+            }
             try {
-                return mService.getPluginRefs(pkgName);
+                long version = mLocalCache.getVersion();
+                refs = mService.getPluginRefs(pkgName);
+                mLocalCache.putRefs(pkgName, refs, version);
+                return refs;
             } catch (RemoteException e) {
                 e.printStackTrace();
             }
@@ -468,6 +517,9 @@ public class PluginPackageManagerNative {
      */
     public boolean isPackageInstalled(String pkgName) {
         if (isConnected()) {
+            if (mLocalCache.getLiteInfo(pkgName) != null) {
+                return true;
+            }
             try {
                 return mService.isPackageInstalled(pkgName);
             } catch (RemoteException e) {
@@ -492,12 +544,13 @@ public class PluginPackageManagerNative {
 
     /**
      * 判断某个插件是否可用，如果插件正在执行安装/卸载操作，则认为不可用
+     * 新版本在后台升级时，已安装的版本仍然可用
      */
     public boolean isPackageAvailable(String pkgName) {
 
         if (sActionMap.containsKey(pkgName) && !TextUtils.isEmpty(pkgName)) {
             List<Action> actions = sActionMap.get(pkgName);
-            if (actions != null && actions.size() > 0) {
+            if (actions != null && actions.size() > 0 && !isUpgradingInBackground(pkgName, actions)) {
                 PluginDebugLog.log(TAG, actions.size() + " actions in action list for " + pkgName + " isPackageAvailable : true");
                 if (PluginDebugLog.isDebug()) {
                     for (int index = 0; index < actions.size(); index++) {
@@ -516,6 +569,25 @@ public class PluginPackageManagerNative {
         return available;
     }
 
+    /**
+     * 等待中的Action是否都是后台升级，新版本安装到独立的槽位，不影响已安装版本的运行
+     */
+    private boolean isUpgradingInBackground(String pkgName, List<Action> actions) {
+        PluginLiteInfo installed = null;
+        for (Action action : actions) {
+            if (!(action instanceof PluginInstallAction)) {
+                return false;
+            }
+            if (installed == null) {
+                installed = getPackageInfo(pkgName);
+            }
+            if (!PluginInstaller.canUpgradeInBackground(installed, ((PluginInstallAction) action).info)) {
+                return false;
+            }
+        }
+        return installed != null;
+    }
+
     /**
      * 根据应用包名，获取插件信息，通过aidl到PackageManagerService中获取值，如果service不存在，
      * 直接在sharedPreference中读取值，并且启动service
@@ -525,9 +597,16 @@ public class PluginPackageManagerNative {
      */
     public PluginLiteInfo getPackageInfo(String pkg) {
         if (isConnected()) {
+            PluginLiteInfo info = mLocalCache.getLiteInfo(pkg);
+            if (info != null) {
+                return info;
+            }
             try {
                 PluginDebugLog.runtimeLog(TAG, "getPackageInfo service is connected and not null, call remote service");
-                return mService.getPackageInfo(pkg);
+                long version = mLocalCache.getVersion();
+                info = mService.getPackageInfo(pkg);
+                mLocalCache.putLiteInfo(pkg, info, version);
+                return info;
             } catch (RemoteException e) {
                 // ignore
             }
@@ -571,8 +650,15 @@ public class PluginPackageManagerNative {
 
         String pkgName = mPackageInfo.packageName;
         if (isConnected()) {
+            PluginPackageInfo target = mLocalCache.getPackageInfo(pkgName);
+            if (target != null) {
+                return target;
+            }
             try {
-                return mService.getPluginPackageInfo(pkgName);
+                long version = mLocalCache.getVersion();
+                target = mService.getPluginPackageInfo(pkgName);
+                mLocalCache.putPackageInfo(pkgName, target, version);
+                return target;
             } catch (RemoteException e) {
                 // ignore
             }
@@ -592,13 +678,243 @@ public class PluginPackageManagerNative {
             if (!TextUtils.isEmpty(mPackageInfo.srcApkPath)) {
                 File file = new File(mPackageInfo.srcApkPath);
                 if (file.exists()) {
-                    target = new PluginPackageInfo(ContextUtils.getOriginalContext(mContext), file);
+                    target = PluginPackageInfoCache.load(ContextUtils.getOriginalContext(mContext), file);
                 }
             }
         }
         return target;
     }
 
+    /**
+     * 批量获取插件的安装信息、PluginPackageInfo和依赖列表，一次ipc完成，
+     * 用于插件进程启动时减少和主进程的交互次数
+     *
+     * @param pkgNames         插件包名列表
+     * @param withDependencies 是否同时返回所有间接依赖的插件
+     * @return 已安装插件的信息，未安装的插件不会出现在结果中
+     */
+    public List<PluginPackageSnapshot> getPackageSnapshots(List<String> pkgNames, boolean withDependencies) {
+        return getPackageSnapshots(pkgNames, withDependencies, null);
+    }
+
+    /**
+     * 批量获取插件的安装信息、PluginPackageInfo和依赖列表
+     * <p>
+     * 主进程单次返回的PluginPackageInfo总大小有上限，超出部分的packageInfo为null，
+     * 这里会继续分批获取，直到所有插件的packageInfo都已获取或者不再有进展
+     *
+     * @param pkgNames         插件包名列表
+     * @param withDependencies 是否同时返回所有间接依赖的插件
+     * @param loadedPkgNames   当前进程已经加载的插件，只返回安装信息和依赖列表，packageInfo为null且不展开它们的依赖
+     * @return 已安装插件的信息，未安装的插件不会出现在结果中
+     */
+    public List<PluginPackageSnapshot> getPackageSnapshots(List<String> pkgNames, boolean withDependencies,
+                                                           Collection<String> loadedPkgNames) {
+        if (pkgNames == null || pkgNames.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Set<String> loaded = loadedPkgNames != null ? new HashSet<>(loadedPkgNames) : new HashSet<String>();
+        Map<String, PluginPackageSnapshot> result = new LinkedHashMap<>();
+        List<String> uncached = collectCachedSnapshots(pkgNames, withDependencies, loaded, result);
+        if (uncached.isEmpty()) {
+            return new ArrayList<>(result.values());
+        }
+        // 本地缓存中已经完整的插件也不需要主进程再返回PackageInfo，它们的依赖已经在本地展开
+        ArrayList<String> skipped = new ArrayList<>(loaded);
+        skipped.addAll(result.keySet());
+        List<PluginPackageSnapshot> snapshots = fetchPackageSnapshots(uncached, withDependencies, skipped);
+        while (snapshots != null) {
+            int received = 0;
+            for (PluginPackageSnapshot snapshot : snapshots) {
+                if (snapshot == null || snapshot.liteInfo == null || TextUtils.isEmpty(snapshot.liteInfo.packageName)) {
+                    continue;
+                }
+                PluginPackageSnapshot existed = result.get(snapshot.liteInfo.packageName);
+                if (existed == null || (existed.packageInfo == null && snapshot.packageInfo != null)) {
+                    result.put(snapshot.liteInfo.packageName, snapshot);
+                    if (snapshot.packageInfo != null) {
+                        received++;
+                    }
+                }
+            }
+            List<String> missing = new ArrayList<>();
+            for (PluginPackageSnapshot snapshot : result.values()) {
+                if (snapshot.packageInfo == null && !skipped.contains(snapshot.liteInfo.packageName)) {
+                    missing.add(snapshot.liteInfo.packageName);
+                }
+            }
+            if (missing.isEmpty() || received == 0) {
+                // 剩余的插件apk不存在或者解析失败
+                break;
+            }
+            PluginDebugLog.runtimeFormatLog(TAG, "getPackageSnapshots, fetch %d deferred package info", missing.size());
+            snapshots = fetchPackageSnapshots(missing, false, skipped);
+        }
+        return new ArrayList<>(result.values());
+    }
+
+    /**
+     * 按广度优先顺序从本地缓存中收集插件信息，安装信息、依赖列表和PackageInfo都命中的插件放入result
+     *
+     * @return 缓存未完整命中的插件，需要从主进程获取
+     */
+    private List<String> collectCachedSnapshots(List<String> pkgNames, boolean withDependencies,
+                                                Set<String> loaded, Map<String, PluginPackageSnapshot> result) {
+        List<String> uncached = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        LinkedList<String> pending = new LinkedList<>(pkgNames);
+        while (!pending.isEmpty()) {
+            String pkgName = pending.poll();
+            if (TextUtils.isEmpty(pkgName) || !visited.add(pkgName)) {
+                continue;
+            }
+            boolean isLoaded = loaded.contains(pkgName);
+            PluginLiteInfo liteInfo = mLocalCache.getLiteInfo(pkgName);
+            List<String> refs = liteInfo != null ? mLocalCache.getRefs(pkgName) : null;
+            PluginPackageInfo packageInfo = refs != null && !isLoaded ? mLocalCache.getPackageInfo(pkgName) : null;
+            if (liteInfo == null || refs == null || (!isLoaded && packageInfo == null)) {
+                uncached.add(pkgName);
+                continue;
+            }
+            result.put(pkgName, new PluginPackageSnapshot(liteInfo, packageInfo, refs));
+            if (withDependencies && !isLoaded) {
+                pending.addAll(refs);
+            }
+        }
+        return uncached;
+    }
+
+    /**
+     * 获取一批插件信息，依次尝试binder调用、ContentProvider和当前进程直接读取
+     */
+    private List<PluginPackageSnapshot> fetchPackageSnapshots(List<String> pkgNames, boolean withDependencies,
+                                                              ArrayList<String> loadedPkgNames) {
+        if (isConnected()) {
+            try {
+                long version = mLocalCache.getVersion();
+                List<PluginPackageSnapshot> snapshots =
+                        mService.getPackageSnapshots(pkgNames, withDependencies, loadedPkgNames);
+                if (snapshots != null) {
+                    for (PluginPackageSnapshot snapshot : snapshots) {
+                        String pkgName = snapshot.liteInfo.packageName;
+                        mLocalCache.putLiteInfo(pkgName, snapshot.liteInfo, version);
+                        mLocalCache.putPackageInfo(pkgName, snapshot.packageInfo, version);
+                        mLocalCache.putRefs(pkgName, snapshot.refs, version);
+                    }
+                    return snapshots;
+                }
+            } catch (RemoteException e) {
+                // 数据量过大等原因导致失败，降级处理
+                PluginDebugLog.runtimeFormatLog(TAG, "getPackageSnapshots failed: %s", e.getMessage());
+            }
+        }
+        PluginDebugLog.runtimeLog(TAG, "getPackageSnapshots, service is disconnected, need rebind");
+        onBindService(mContext);
+        // 通过ContentProvider获取
+        Bundle extras = new Bundle();
+        extras.putStringArrayList(PluginPackageManagerProvider.PACKAGE_NAMES_KEY, new ArrayList<>(pkgNames));
+        extras.putBoolean(PluginPackageManagerProvider.WITH_DEPENDENCIES_KEY, withDependencies);
+        extras.putStringArrayList(PluginPackageManagerProvider.LOADED_PACKAGE_NAMES_KEY, loadedPkgNames);
+        Bundle result = callRemoteProvider(PluginPackageManagerProvider.GET_PACKAGE_SNAPSHOTS, "", extras);
+        List<PluginPackageSnapshot> snapshots = null;
+        if (result != null) {
+            result.setClassLoader(PluginPackageSnapshot.class.getClassLoader());
+            snapshots = result.getParcelableArrayList(RESULT_KEY);
+        }
+        // still null, fallback to current process method
+        if (snapshots == null) {
+            snapshots = mPackageManager.getPackageSnapshotsDirectly(pkgNames, withDependencies, loadedPkgNames);
+        }
+        return snapshots;
+    }
+
+    /**
+     * 在所有已安装的插件中查找能够响应Intent的Activity
+     *
+     * @param context    宿主的Context
+     * @param intent     隐式Intent
+     * @param excludePkg 不参与查找的插件包名，可以为空
+     */
+    public ActivityInfo resolveActivity(Context context, Intent intent, String excludePkg) {
+        for (PluginPackageInfo target : getCandidatePackages(context, intent.getAction(),
+                PluginComponentIndex.TYPE_ACTIVITY, excludePkg)) {
+            ActivityInfo activityInfo = target.resolveActivity(intent);
+            if (activityInfo != null) {
+                return activityInfo;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 在所有已安装的插件中查找能够响应Intent的Service
+     *
+     * @param context    宿主的Context
+     * @param intent     隐式Intent
+     * @param excludePkg 不参与查找的插件包名，可以为空
+     */
+    public ServiceInfo resolveService(Context context, Intent intent, String excludePkg) {
+        for (PluginPackageInfo target : getCandidatePackages(context, intent.getAction(),
+                PluginComponentIndex.TYPE_SERVICE, excludePkg)) {
+            ServiceInfo serviceInfo = target.resolveService(intent);
+            if (serviceInfo != null) {
+                return serviceInfo;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 在所有已安装的插件中查找能够处理这个authority的Provider
+     */
+    public ProviderInfo resolveProvider(Context context, String authority) {
+        if (TextUtils.isEmpty(authority)) {
+            return null;
+        }
+        // 确保所有已安装的插件都已经建立索引
+        getCandidatePackages(context, null, PluginComponentIndex.TYPE_ACTIVITY, null);
+        return mComponentIndex.resolveProvider(authority);
+    }
+
+    /**
+     * 通过索引筛选出可能处理该action的插件，按照插件的安装顺序返回
+     */
+    private List<PluginPackageInfo> getCandidatePackages(Context context, String action, int type, String excludePkg) {
+        List<PluginPackageInfo> candidates = new ArrayList<>();
+        List<PluginLiteInfo> packageList = getInstalledApps();
+        if (packageList == null) {
+            return candidates;
+        }
+        mComponentIndex.retain(packageList);
+        for (PluginLiteInfo pkgInfo : packageList) {
+            if (pkgInfo == null || TextUtils.isEmpty(pkgInfo.packageName)
+                    || TextUtils.equals(pkgInfo.packageName, excludePkg)) {
+                continue;
+            }
+            PluginPackageInfo target = mComponentIndex.get(pkgInfo);
+            if (target == null) {
+                // 获取PluginPackageInfo时会修改srcApkPath，提前计算key
+                String key = PluginComponentIndex.keyOf(pkgInfo);
+                target = getPluginPackageInfo(context, pkgInfo);
+                if (target == null) {
+                    continue;
+                }
+                mComponentIndex.put(pkgInfo.packageName, key, target);
+            }
+            if (mComponentIndex.mayHandle(pkgInfo.packageName, action, type)) {
+                candidates.add(target);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * 输出本地缓存的命中统计
+     */
+    public void dump(PrintWriter printWriter) {
+        mLocalCache.dump(printWriter);
+    }
+
     /**
      * 调用远程ContentProvider进行ipc获取信息
      */
@@ -724,6 +1040,7 @@ public class PluginPackageManagerNative {
     private static class PluginInstallAction implements Action {
 
         public IInstallCallBack observer;
+        public IInstallProgressCallBack progressObserver;
         public PluginLiteInfo info;
         public PluginPackageManagerNative callbackHost;
 
@@ -775,7 +1092,7 @@ public class PluginPackageManagerNative {
         public void doAction() {
             PluginDebugLog.installFormatLog(TAG, "PluginInstallAction for plugin %s is ready to execute", info.packageName);
             if (callbackHost != null) {
-                callbackHost.installInternal(info, observer);
+                callbackHost.installInternal(info, observer, progressObserver);
             }
         }
     }
@@ -857,6 +1174,7 @@ public class PluginPackageManagerNative {
                         mService.asBinder().unlinkToDeath(this, 0); //注销监听
                     }
                     mService = null;
+                    mLocalCache.disable();
                     PluginDebugLog.runtimeLog(TAG, "binderDied called, remote binder is died");
                 }
             }
@@ -883,6 +1201,8 @@ public class PluginPackageManagerNative {
                     try {
                         String processName = ProcessUtils.getCurrentProcessName(mContext);
                         mService.setActionFinishCallback(new ActionFinishCallback(processName));
+                        // 注册插件变化监听之后本地缓存才生效
+                        mLocalCache.reset(mService.registerPackageChangeListener(mChangeListener));
                         NotifyCenter.notifyServiceConnected(mContext, PluginPackageManagerService.class.getName());
                     } catch (Exception e) {
                         // ignore
@@ -905,6 +1225,7 @@ public class PluginPackageManagerNative {
         public void onServiceDisconnected(ComponentName name) {
             synchronized (sLock) {
                 mService = null;
+                mLocalCache.disable();
                 PluginDebugLog.runtimeLog(TAG, "onServiceDisconnected called");
             }
         }
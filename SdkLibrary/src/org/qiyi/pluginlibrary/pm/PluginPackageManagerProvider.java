@@ -37,10 +37,14 @@ public class PluginPackageManagerProvider extends ContentProvider {
     public static final String UNINSTALL_PACKAGE = "uninstall";
     public static final String GET_PLUGIN_PACKAGE_INFO = "getPluginPackageInfo";
     public static final String GET_PLUGIN_REFS = "getPluginRefs";
+    public static final String GET_PACKAGE_SNAPSHOTS = "getPackageSnapshots";
 
     public static final String PLUGIN_INFO_KEY = "pluginInfo";
     public static final String CALLBACK_BINDER_KEY = "callbackBinder";
     public static final String RESULT_KEY = "result";
+    public static final String PACKAGE_NAMES_KEY = "packageNames";
+    public static final String WITH_DEPENDENCIES_KEY = "withDependencies";
+    public static final String LOADED_PACKAGE_NAMES_KEY = "loadedPackageNames";
 
     private PluginPackageManager mManager;
 
@@ -129,6 +133,13 @@ public class PluginPackageManagerProvider extends ContentProvider {
         } else if (GET_PLUGIN_REFS.equals(method)) {
             ArrayList<String> refs = new ArrayList<>(mManager.getPluginRefs(arg));
             result.putStringArrayList(RESULT_KEY, refs);
+        } else if (GET_PACKAGE_SNAPSHOTS.equals(method)) {
+            ArrayList<String> pkgNames = extras.getStringArrayList(PACKAGE_NAMES_KEY);
+            boolean withDependencies = extras.getBoolean(WITH_DEPENDENCIES_KEY, false);
+            ArrayList<String> loadedPkgNames = extras.getStringArrayList(LOADED_PACKAGE_NAMES_KEY);
+            ArrayList<PluginPackageSnapshot> snapshots =
+                    new ArrayList<>(mManager.getPackageSnapshots(pkgNames, withDependencies, loadedPkgNames));
+            result.putParcelableArrayList(RESULT_KEY, snapshots);
         }
         return result;
     }
@@ -25,6 +25,7 @@ import android.text.TextUtils;
 
 import org.qiyi.pluginlibrary.install.IActionFinishCallback;
 import org.qiyi.pluginlibrary.install.IInstallCallBack;
+import org.qiyi.pluginlibrary.install.IInstallProgressCallBack;
 import org.qiyi.pluginlibrary.install.IUninstallCallBack;
 import org.qiyi.pluginlibrary.utils.PluginDebugLog;
 
@@ -101,11 +102,12 @@ public class PluginPackageManagerService extends Service {
             }
 
             @Override
-            public void install(PluginLiteInfo info, IInstallCallBack listener) throws RemoteException {
+            public void install(PluginLiteInfo info, IInstallCallBack listener,
+                                IInstallProgressCallBack progressListener) throws RemoteException {
                 if (mManager == null || info == null || TextUtils.isEmpty(info.packageName)) {
                     return;
                 }
-                mManager.install(info, listener);
+                mManager.install(info, listener, progressListener);
             }
 
             @Override
@@ -158,6 +160,24 @@ public class PluginPackageManagerService extends Service {
                 }
                 return null;
             }
+
+            @Override
+            public List<PluginPackageSnapshot> getPackageSnapshots(
+                    List<String> pkgNames, boolean withDependencies, List<String> loadedPkgNames)
+                    throws RemoteException {
+                if (mManager != null) {
+                    return mManager.getPackageSnapshots(pkgNames, withDependencies, loadedPkgNames);
+                }
+                return null;
+            }
+
+            @Override
+            public long registerPackageChangeListener(IPackageChangeListener listener) throws RemoteException {
+                if (mManager == null) {
+                    return PluginPackageLocalCache.INVALID_VERSION;
+                }
+                return mManager.registerPackageChangeListener(listener);
+            }
         };
     }
 }
@@ -0,0 +1,88 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.pm;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 插件启动需要的全部包信息：{@link PluginLiteInfo}、{@link PluginPackageInfo}和依赖列表
+ * <p>
+ * 用于批量ipc，插件进程启动时一次事务获取插件及其依赖的所有信息
+ */
+public class PluginPackageSnapshot implements Parcelable {
+    /* 插件的安装信息 */
+    public final PluginLiteInfo liteInfo;
+    /* 插件的PackageInfo，apk不存在或者解析失败时为null */
+    public final PluginPackageInfo packageInfo;
+    /* 插件直接依赖的插件包名 */
+    public final List<String> refs;
+
+    public static final Creator<PluginPackageSnapshot> CREATOR = new Creator<PluginPackageSnapshot>() {
+        @Override
+        public PluginPackageSnapshot createFromParcel(Parcel in) {
+            return new PluginPackageSnapshot(in);
+        }
+
+        @Override
+        public PluginPackageSnapshot[] newArray(int size) {
+            return new PluginPackageSnapshot[size];
+        }
+    };
+
+    public PluginPackageSnapshot(PluginLiteInfo liteInfo, PluginPackageInfo packageInfo, List<String> refs) {
+        this.liteInfo = liteInfo;
+        this.packageInfo = packageInfo;
+        this.refs = refs != null ? refs : new ArrayList<String>();
+    }
+
+    protected PluginPackageSnapshot(Parcel in) {
+        liteInfo = in.readInt() != 0 ? PluginLiteInfo.CREATOR.createFromParcel(in) : null;
+        packageInfo = in.readInt() != 0 ? PluginPackageInfo.CREATOR.createFromParcel(in) : null;
+        refs = in.createStringArrayList();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel parcel, int flags) {
+        writeNullable(parcel, liteInfo, flags);
+        writeNullable(parcel, packageInfo, flags);
+        parcel.writeStringList(refs);
+    }
+
+    private static void writeNullable(Parcel parcel, Parcelable value, int flags) {
+        if (value != null) {
+            parcel.writeInt(1);
+            value.writeToParcel(parcel, flags);
+        } else {
+            parcel.writeInt(0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "liteInfo=" + liteInfo + ", hasPackageInfo=" + (packageInfo != null) + ", refs=" + refs;
+    }
+}
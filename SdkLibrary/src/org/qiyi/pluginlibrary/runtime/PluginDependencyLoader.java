@@ -0,0 +1,396 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.runtime;
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import org.qiyi.pluginlibrary.install.PluginInstaller;
+import org.qiyi.pluginlibrary.loader.PluginClassLoader;
+import org.qiyi.pluginlibrary.pm.PluginLiteInfo;
+import org.qiyi.pluginlibrary.pm.PluginPackageInfo;
+import org.qiyi.pluginlibrary.pm.PluginPackageManager;
+import org.qiyi.pluginlibrary.pm.PluginPackageManagerNative;
+import org.qiyi.pluginlibrary.pm.PluginPackageSnapshot;
+import org.qiyi.pluginlibrary.utils.ClassLoaderInjectHelper;
+import org.qiyi.pluginlibrary.utils.FileUtils;
+import org.qiyi.pluginlibrary.utils.PluginDebugLog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dalvik.system.DexClassLoader;
+
+/**
+ * 插件依赖关系加载器
+ * <p>
+ * 先解析出当前插件完整的传递依赖图(DAG)，然后在有界线程池中并行创建
+ * 互不依赖的{@link PluginClassLoader}；每个依赖节点在自身和它所有依赖都就绪之后
+ * 才会链接依赖关系、放入全局的ClassLoader缓存并标记为就绪，
+ * 根插件只需要等待它的直接依赖就绪即可
+ */
+final class PluginDependencyLoader {
+    private static final String TAG = "PluginDependencyLoader";
+    /* 并行创建ClassLoader的最大线程数，dexopt/oat校验是CPU和IO密集型操作，不宜过多 */
+    private static final int MAX_WORKERS =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    /* 依赖ClassLoader创建线程池 */
+    private static final ThreadPoolExecutor sExecutor;
+
+    static {
+        sExecutor = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new LoaderThreadFactory());
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final Context mHostContext;
+    private final ClassLoader mHostClassLoader;
+    /* 全局的插件ClassLoader缓存 */
+    private final ConcurrentMap<String, DexClassLoader> mClassLoaderCache;
+    /* 当前插件包名 */
+    private final String mRootPackageName;
+    /* 依赖图中的所有节点，key是包名，不包含根插件 */
+    private final Map<String, Node> mNodes = new LinkedHashMap<>();
+    /* 根插件的直接依赖 */
+    private final List<Node> mRootDependencies = new ArrayList<>();
+    /* 根插件及其所有依赖的包信息，key是包名 */
+    private Map<String, PluginPackageSnapshot> mSnapshots;
+
+    PluginDependencyLoader(Context hostContext, ConcurrentMap<String, DexClassLoader> cache,
+                           String rootPackageName) {
+        this(hostContext, cache, rootPackageName, null);
+    }
+
+    /**
+     * @param snapshots 已经通过{@link #fetchSnapshots}获取的包信息，为null时在{@link #start()}中获取
+     */
+    PluginDependencyLoader(Context hostContext, ConcurrentMap<String, DexClassLoader> cache,
+                           String rootPackageName, Map<String, PluginPackageSnapshot> snapshots) {
+        this.mHostContext = hostContext;
+        this.mHostClassLoader = hostContext.getClassLoader();
+        this.mClassLoaderCache = cache;
+        this.mRootPackageName = rootPackageName;
+        this.mSnapshots = snapshots;
+    }
+
+    /**
+     * 一次ipc获取插件及其所有传递依赖的包信息，已经创建过ClassLoader的依赖只获取安装信息和依赖列表
+     *
+     * @param cache 全局的插件ClassLoader缓存
+     * @return key是包名，未安装的插件不在结果中
+     */
+    static Map<String, PluginPackageSnapshot> fetchSnapshots(Context hostContext,
+                                                             Map<String, DexClassLoader> cache, String packageName) {
+        long start = System.currentTimeMillis();
+        Set<String> loadedPkgNames = new HashSet<>(cache.keySet());
+        loadedPkgNames.remove(packageName);
+        List<PluginPackageSnapshot> snapshots = PluginPackageManagerNative.getInstance(hostContext)
+                .getPackageSnapshots(Collections.singletonList(packageName), true, loadedPkgNames);
+        Map<String, PluginPackageSnapshot> result = new LinkedHashMap<>();
+        if (snapshots != null) {
+            for (PluginPackageSnapshot snapshot : snapshots) {
+                if (snapshot != null && snapshot.liteInfo != null
+                        && !TextUtils.isEmpty(snapshot.liteInfo.packageName)) {
+                    result.put(snapshot.liteInfo.packageName, snapshot);
+                }
+            }
+        }
+        PluginDebugLog.runtimeFormatLog(TAG, "fetch %d package snapshots for plugin %s cost %d ms",
+                result.size(), packageName, System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * 解析完整的依赖图，并提交所有需要新建的依赖ClassLoader到线程池中并行创建
+     *
+     * @return true:解析成功，false:依赖插件信息缺失或者apk文件不存在
+     */
+    boolean start() {
+        Set<String> visiting = new HashSet<>();
+        visiting.add(mRootPackageName);
+        if (mSnapshots == null) {
+            mSnapshots = fetchSnapshots(mHostContext, mClassLoaderCache, mRootPackageName);
+        }
+        PluginPackageSnapshot rootSnapshot = mSnapshots.get(mRootPackageName);
+        List<String> refs = rootSnapshot != null ? rootSnapshot.refs : null;
+        if (refs != null) {
+            for (String ref : refs) {
+                Node node = resolve(ref, visiting);
+                if (node == null) {
+                    return false;
+                }
+                if (node != Node.SKIPPED) {
+                    mRootDependencies.add(node);
+                }
+            }
+        }
+        if (mNodes.isEmpty()) {
+            return true;
+        }
+        PluginDebugLog.runtimeFormatLog(TAG, "plugin %s resolved %d dependencies, %d direct",
+                mRootPackageName, mNodes.size(), mRootDependencies.size());
+
+        for (final Node node : mNodes.values()) {
+            DexClassLoader cached = mClassLoaderCache.get(node.packageName);
+            if (cached != null) {
+                PluginDebugLog.runtimeLog(TAG, "dependency classloader find in cache " + node.packageName);
+                node.classLoader = cached;
+                onBuilt(node);
+                continue;
+            }
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    build(node);
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * 等待根插件的直接依赖就绪，并添加到根插件的ClassLoader中
+     *
+     * @param rootClassLoader 根插件的ClassLoader
+     * @return true:处理成功，false：处理失败
+     */
+    boolean attachTo(DexClassLoader rootClassLoader) {
+        for (Node node : mRootDependencies) {
+            try {
+                node.ready.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                PluginDebugLog.runtimeLog(TAG, "interrupted when wait for dependency " + node.packageName);
+                return false;
+            }
+            if (node.failed) {
+                PluginDebugLog.runtimeFormatLog(TAG, "dependency %s of plugin %s load failed",
+                        node.packageName, mRootPackageName);
+                return false;
+            }
+            // 把依赖插件的ClassLoader添加到当前的ClassLoader
+            if (rootClassLoader instanceof PluginClassLoader) {
+                ((PluginClassLoader) rootClassLoader).addDependency(node.classLoader);
+                PluginDebugLog.runtimeFormatLog(TAG, "addDependency %s into plugin %s success ",
+                        node.packageName, mRootPackageName);
+            } else {
+                // 注入到PluginClassLoader
+                ClassLoaderInjectHelper.InjectResult injectResult =
+                        ClassLoaderInjectHelper.inject(rootClassLoader, node.classLoader, null);
+                if (injectResult != null && injectResult.mIsSuccessful) {
+                    PluginDebugLog.runtimeFormatLog(TAG, "inject into %s success", mRootPackageName);
+                } else {
+                    PluginDebugLog.runtimeFormatLog(TAG, "inject into %s failed", mRootPackageName);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 深度优先解析依赖节点，依赖图中的环会被打断
+     *
+     * @return 解析失败返回null，成环时返回{@link Node#SKIPPED}
+     */
+    private Node resolve(String packageName, Set<String> visiting) {
+        Node node = mNodes.get(packageName);
+        if (node != null) {
+            return node;
+        }
+        if (visiting.contains(packageName)) {
+            PluginDebugLog.runtimeFormatLog(TAG, "dependency cycle detected at %s for plugin %s, skip it",
+                    packageName, mRootPackageName);
+            return Node.SKIPPED;
+        }
+
+        PluginPackageSnapshot snapshot = mSnapshots.get(packageName);
+        if (snapshot == null) {
+            // 与原有逻辑保持一致，未安装的依赖直接忽略
+            return Node.SKIPPED;
+        }
+        PluginLiteInfo libraryInfo = snapshot.liteInfo;
+        PluginPackageInfo libraryPackageInfo = snapshot.packageInfo;
+        if (libraryPackageInfo == null && !mClassLoaderCache.containsKey(packageName)) {
+            PluginDebugLog.runtimeLog(TAG, "get libraryPackageInfo null " + libraryInfo.packageName);
+            return null;
+        }
+
+        node = new Node(libraryInfo.packageName, libraryInfo, libraryPackageInfo);
+        if (!mClassLoaderCache.containsKey(node.packageName)) {
+            PluginPackageManager.updateSrcApkPath(mHostContext, libraryInfo);
+            File apkFile = new File(libraryInfo.srcApkPath);
+            if (!apkFile.exists()) {
+                PluginDebugLog.runtimeLog(TAG,
+                        "Special case apkFile not exist, notify client! packageName: "
+                                + libraryInfo.packageName);
+                PluginPackageManager.notifyClientPluginException(mHostContext,
+                        libraryInfo.packageName,
+                        "Apk file not exist when handle dependencies!");
+                return null;
+            }
+            // 缓存中已存在的ClassLoader依赖关系已经处理过了，只需要展开新建的节点
+            visiting.add(node.packageName);
+            for (String ref : snapshot.refs) {
+                Node child = resolve(ref, visiting);
+                if (child == null) {
+                    return null;
+                }
+                if (child != Node.SKIPPED) {
+                    node.dependencies.add(child);
+                    child.dependents.add(node);
+                }
+            }
+            visiting.remove(node.packageName);
+        }
+        node.pendingDependencies = node.dependencies.size();
+        mNodes.put(node.packageName, node);
+        return node;
+    }
+
+    /**
+     * 在工作线程中创建依赖插件的ClassLoader
+     */
+    private void build(Node node) {
+        try {
+            PluginLiteInfo libraryInfo = node.liteInfo;
+            PluginPackageInfo libraryPackageInfo = node.packageInfo;
+            PluginDebugLog.runtimeLog(TAG, "create dependency classloader, src apk path : " + libraryInfo.srcApkPath);
+            String nativeLibraryDir = libraryPackageInfo.getNativeLibraryDir();
+            ClassLoader parent = libraryPackageInfo.isIndividualMode() ? mHostClassLoader.getParent() : mHostClassLoader;
+            // 使用安装时dexopt的输出目录，和prepareClassLoader一致，直接复用安装时生成的oat文件
+            File optDir = new File(libraryPackageInfo.getCodeDir(), PluginInstaller.OAT_PATH);
+            if (!optDir.exists()) {
+                optDir.mkdirs();
+            }
+            FileUtils.checkOtaFileValid(optDir, new File(libraryInfo.srcApkPath)); //检查oat文件是否损坏
+            // 依赖关系链接完成之前不放入全局缓存，见tryReady
+            node.classLoader = new PluginClassLoader(libraryPackageInfo, libraryInfo.srcApkPath,
+                    optDir.getAbsolutePath(), nativeLibraryDir, parent);
+            node.created = true;
+        } catch (Throwable tr) {
+            PluginDebugLog.runtimeLog(TAG, "create dependency classloader failed for "
+                    + node.packageName + ", " + tr.getMessage());
+            onFailed(node);
+            return;
+        }
+        onBuilt(node);
+    }
+
+    private synchronized void onBuilt(Node node) {
+        node.built = true;
+        tryReady(node);
+    }
+
+    /**
+     * 节点自身和它的所有依赖都创建完成后，链接依赖关系并放入全局缓存，标记为就绪，
+     * 然后通知依赖它的节点；失败的节点和依赖失败的节点永远不会走到这里，不会被缓存
+     */
+    private void tryReady(Node node) {
+        if (node.failed || !node.built || node.pendingDependencies > 0) {
+            return;
+        }
+        if (node.created) {
+            if (node.classLoader instanceof PluginClassLoader) {
+                for (Node dependency : node.dependencies) {
+                    ((PluginClassLoader) node.classLoader).addDependency(dependency.classLoader);
+                }
+            }
+            DexClassLoader existed = mClassLoaderCache.putIfAbsent(node.packageName, node.classLoader);
+            if (existed != null) {
+                // 其他插件并发加载时已经创建并缓存了该依赖，缓存中的ClassLoader也已经链接完成
+                PluginDebugLog.runtimeLog(TAG, "dependency classloader published concurrently " + node.packageName);
+                node.classLoader = existed;
+                node.created = false;
+            }
+        }
+        node.ready.countDown();
+        for (Node dependent : node.dependents) {
+            dependent.pendingDependencies--;
+            tryReady(dependent);
+        }
+    }
+
+    /**
+     * 节点创建失败，所有直接或间接依赖它的节点都标记为失败
+     */
+    private synchronized void onFailed(Node node) {
+        if (node.failed) {
+            return;
+        }
+        node.failed = true;
+        node.ready.countDown();
+        for (Node dependent : node.dependents) {
+            onFailed(dependent);
+        }
+    }
+
+    /**
+     * 依赖图中的一个插件节点
+     */
+    private static final class Node {
+        /* 依赖成环或者未安装时的占位节点 */
+        static final Node SKIPPED = new Node("", null, null);
+
+        final String packageName;
+        final PluginLiteInfo liteInfo;
+        final PluginPackageInfo packageInfo;
+        /* 当前节点依赖的插件 */
+        final List<Node> dependencies = new ArrayList<>();
+        /* 依赖当前节点的插件 */
+        final List<Node> dependents = new ArrayList<>();
+        final CountDownLatch ready = new CountDownLatch(1);
+        DexClassLoader classLoader;
+        /* 是否由本次加载新建，新建的ClassLoader需要添加自己的依赖后才能放入缓存 */
+        boolean created;
+        boolean built;
+        int pendingDependencies;
+        volatile boolean failed;
+
+        Node(String packageName, PluginLiteInfo liteInfo, PluginPackageInfo packageInfo) {
+            this.packageName = packageName;
+            this.liteInfo = liteInfo;
+            this.packageInfo = packageInfo;
+        }
+    }
+
+    private static class LoaderThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "PluginDependencyLoader-thread-" + threadNumber.getAndIncrement());
+            t.setDaemon(false);
+            t.setPriority(Thread.NORM_PRIORITY);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.runtime;
+
+import android.os.SystemClock;
+
+import org.qiyi.pluginlibrary.listenter.IPluginLoadListener;
+import org.qiyi.pluginlibrary.utils.PluginDebugLog;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 插件加载任务调度器
+ * <p>
+ * 使用固定数量的工作线程和优先级队列执行插件加载任务，
+ * 前台启动的插件优先于后台加载和预热；同一个插件并发的加载请求会合并成一个任务，
+ * 所有的监听器在任务完成后统一回调；同时统计任务在队列中的等待耗时
+ */
+final class PluginLoadScheduler implements Executor {
+    private static final String TAG = "PluginLoadScheduler";
+    /* 前台优先级，用户正在等待插件启动 */
+    static final int PRIORITY_FOREGROUND = 0;
+    /* 后台优先级，宿主静默加载插件 */
+    static final int PRIORITY_BACKGROUND = 1;
+    /* 预热优先级，预测用户将要打开的插件 */
+    static final int PRIORITY_PREFETCH = 2;
+    private static final String[] PRIORITY_NAMES = {"FOREGROUND", "BACKGROUND", "PREFETCH"};
+
+    /* 工作线程数量，插件加载主要是IO和dex校验，不宜过多 */
+    private static final int MAX_WORKERS =
+            Math.max(2, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+    /* 正在等待或者执行中的插件加载请求，key是插件包名 */
+    private final Map<String, LoadRequest> mInFlightLoads = new HashMap<>();
+    /* 队列等待耗时统计 */
+    private final AtomicInteger[] mTaskCount = new AtomicInteger[PRIORITY_NAMES.length];
+    private final AtomicLong[] mTotalWaitMs = new AtomicLong[PRIORITY_NAMES.length];
+    private final AtomicLong[] mMaxWaitMs = new AtomicLong[PRIORITY_NAMES.length];
+    /* 合并掉的重复加载请求数 */
+    private final AtomicInteger mMergedCount = new AtomicInteger();
+
+    PluginLoadScheduler() {
+        mExecutor = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 30L, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new LoadThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+        for (int i = 0; i < PRIORITY_NAMES.length; i++) {
+            mTaskCount[i] = new AtomicInteger();
+            mTotalWaitMs[i] = new AtomicLong();
+            mMaxWaitMs[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * 以后台优先级执行任务
+     */
+    @Override
+    public void execute(Runnable command) {
+        execute(command, PRIORITY_BACKGROUND);
+    }
+
+    /**
+     * 以指定优先级执行任务
+     */
+    void execute(Runnable command, int priority) {
+        mExecutor.execute(new PrioritizedTask(command, priority, mSequence.getAndIncrement()));
+    }
+
+    /**
+     * 提交一个插件加载请求，如果同一个插件已经有加载请求在队列中或者正在执行，
+     * 则合并到已有的请求中，必要时提升已有请求的优先级
+     *
+     * @param packageName 插件包名
+     * @param listener    加载结果回调
+     * @param priority    优先级
+     * @param factory     用于创建真正的加载任务
+     */
+    void submitLoad(String packageName, IPluginLoadListener listener, int priority, LoadTaskFactory factory) {
+        LoadRequest request;
+        synchronized (mInFlightLoads) {
+            request = mInFlightLoads.get(packageName);
+            if (request != null) {
+                mMergedCount.incrementAndGet();
+                if (listener != null) {
+                    request.listeners.add(listener);
+                }
+                PluginDebugLog.runtimeFormatLog(TAG, "merge load request for %s, listeners %d",
+                        packageName, request.listeners.size());
+                if (priority < request.task.priority && mExecutor.remove(request.task)) {
+                    // 任务还在队列中，提升优先级后重新入队
+                    request.task = new PrioritizedTask(request.task.command, priority, request.task.sequence,
+                            request.task.enqueueTime);
+                    mExecutor.execute(request.task);
+                }
+                return;
+            }
+            request = new LoadRequest(packageName);
+            if (listener != null) {
+                request.listeners.add(listener);
+            }
+            final LoadRequest loadRequest = request;
+            final Runnable command = factory.create(request);
+            request.task = new PrioritizedTask(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        command.run();
+                    } catch (RuntimeException | Error e) {
+                        // 加载任务异常退出，不会再有结果回调，避免后续请求一直被合并
+                        loadRequest.finish();
+                        throw e;
+                    }
+                }
+            }, priority, mSequence.getAndIncrement());
+            mInFlightLoads.put(packageName, request);
+        }
+        mExecutor.execute(request.task);
+    }
+
+    /**
+     * 输出队列等待耗时统计
+     */
+    void dump(PrintWriter printWriter) {
+        printWriter.print("plugin load scheduler: workers=" + MAX_WORKERS
+                + ", queued=" + mExecutor.getQueue().size()
+                + ", merged=" + mMergedCount.get() + "\n");
+        for (int i = 0; i < PRIORITY_NAMES.length; i++) {
+            int count = mTaskCount[i].get();
+            long avg = count > 0 ? mTotalWaitMs[i].get() / count : 0;
+            printWriter.print(String.format(Locale.US, "  %s: tasks=%d, avgWait=%dms, maxWait=%dms\n",
+                    PRIORITY_NAMES[i], count, avg, mMaxWaitMs[i].get()));
+        }
+    }
+
+    private void recordWait(int priority, long waitMs) {
+        mTaskCount[priority].incrementAndGet();
+        mTotalWaitMs[priority].addAndGet(waitMs);
+        AtomicLong max = mMaxWaitMs[priority];
+        long current;
+        while (waitMs > (current = max.get())) {
+            if (max.compareAndSet(current, waitMs)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 创建插件加载任务
+     */
+    interface LoadTaskFactory {
+        Runnable create(IPluginLoadListener listener);
+    }
+
+    /**
+     * 一次插件加载请求，合并了所有并发请求的监听器
+     */
+    private class LoadRequest implements IPluginLoadListener {
+        final String packageName;
+        final List<IPluginLoadListener> listeners = new ArrayList<>();
+        PrioritizedTask task;
+
+        LoadRequest(String packageName) {
+            this.packageName = packageName;
+        }
+
+        @Override
+        public void onLoadSuccess(String packageName) {
+            for (IPluginLoadListener listener : finish()) {
+                listener.onLoadSuccess(packageName);
+            }
+        }
+
+        @Override
+        public void onLoadFailed(String packageName) {
+            for (IPluginLoadListener listener : finish()) {
+                listener.onLoadFailed(packageName);
+            }
+        }
+
+        private List<IPluginLoadListener> finish() {
+            synchronized (mInFlightLoads) {
+                if (mInFlightLoads.get(packageName) == this) {
+                    mInFlightLoads.remove(packageName);
+                }
+                return new ArrayList<>(listeners);
+            }
+        }
+    }
+
+    /**
+     * 带优先级的任务，优先级相同时按提交顺序执行
+     */
+    private class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        final Runnable command;
+        final int priority;
+        final long sequence;
+        final long enqueueTime;
+
+        PrioritizedTask(Runnable command, int priority, long sequence) {
+            this(command, priority, sequence, SystemClock.elapsedRealtime());
+        }
+
+        PrioritizedTask(Runnable command, int priority, long sequence, long enqueueTime) {
+            this.command = command;
+            this.priority = Math.max(PRIORITY_FOREGROUND, Math.min(PRIORITY_PREFETCH, priority));
+            this.sequence = sequence;
+            this.enqueueTime = enqueueTime;
+        }
+
+        @Override
+        public void run() {
+            long waitMs = SystemClock.elapsedRealtime() - enqueueTime;
+            recordWait(priority, waitMs);
+            PluginDebugLog.runtimeFormatLog(TAG, "%s task waited %d ms in queue",
+                    PRIORITY_NAMES[priority], waitMs);
+            command.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask another) {
+            if (priority != another.priority) {
+                return priority < another.priority ? -1 : 1;
+            }
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+
+    private static class LoadThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "PluginLoadScheduler-thread-" + threadNumber.getAndIncrement());
+            t.setDaemon(false);
+            t.setPriority(Thread.NORM_PRIORITY);
+            return t;
+        }
+    }
+}
@@ -51,23 +51,30 @@ import org.qiyi.pluginlibrary.component.wraper.ResourcesProxy;
 import org.qiyi.pluginlibrary.context.PluginContextWrapper;
 import org.qiyi.pluginlibrary.error.ErrorType;
 import org.qiyi.pluginlibrary.install.PluginInstaller;
+import org.qiyi.pluginlibrary.install.PluginStorageManager;
 import org.qiyi.pluginlibrary.loader.PluginClassLoader;
+import org.qiyi.pluginlibrary.pm.PluginLaunchArtifacts;
 import org.qiyi.pluginlibrary.pm.PluginLiteInfo;
 import org.qiyi.pluginlibrary.pm.PluginPackageInfo;
+import org.qiyi.pluginlibrary.pm.PluginPackageInfoCache;
 import org.qiyi.pluginlibrary.pm.PluginPackageManager;
-import org.qiyi.pluginlibrary.pm.PluginPackageManagerNative;
+import org.qiyi.pluginlibrary.pm.PluginPackageSnapshot;
 import org.qiyi.pluginlibrary.provider.PluginContentResolver;
 import org.qiyi.pluginlibrary.utils.ClassLoaderInjectHelper;
+import org.qiyi.pluginlibrary.utils.ComponentFinder;
 import org.qiyi.pluginlibrary.utils.ErrorUtil;
 import org.qiyi.pluginlibrary.utils.FileUtils;
 import org.qiyi.pluginlibrary.utils.PluginDebugLog;
 import org.qiyi.pluginlibrary.utils.ReflectionUtils;
 import org.qiyi.pluginlibrary.utils.ResourcesToolForPlugin;
 import org.qiyi.pluginlibrary.utils.RunUtil;
+import org.qiyi.pluginlibrary.utils.VersionUtils;
 
 import java.io.File;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.channels.FileLock;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -87,12 +94,22 @@ import dalvik.system.DexClassLoader;
  * {@link ClassLoader}, {@link PackageInfo}等信息
  */
 public class PluginLoadedApk {
+    /**
+     * @deprecated 框架内部改用{@link ReflectionUtils#resolveMethod(Class, String, Class[])}预解析的方法句柄，
+     * 这里只为兼容外部调用保留
+     */
+    @Deprecated
     public static final ConcurrentMap<String, Vector<Method>> sMethods = new ConcurrentHashMap<String, Vector<Method>>(1);
     private static final String TAG = "PluginLoadedApk";
+    /* 预解析的AssetManager方法 */
+    private static final ReflectionUtils.MethodRef ADD_ASSET_PATH = ReflectionUtils.resolveMethod(
+            AssetManager.class, "addAssetPath", String.class);
+    private static final ReflectionUtils.MethodRef ADD_ASSET_PATH_AS_SHARED_LIBRARY = ReflectionUtils.resolveMethod(
+            AssetManager.class, "addAssetPathAsSharedLibrary", String.class);
     /* 保存注入到宿主ClassLoader的插件 */
     private static Set<String> sInjectedPlugins = Collections.synchronizedSet(new HashSet<String>());
     /* 保存所有的插件ClassLoader */
-    private static Map<String, DexClassLoader> sAllPluginClassLoader = new ConcurrentHashMap<>();
+    private static ConcurrentMap<String, DexClassLoader> sAllPluginClassLoader = new ConcurrentHashMap<>();
 
     /* 宿主的Context */
     private final Context mHostContext;
@@ -106,6 +123,8 @@ public class PluginLoadedApk {
     private final String mPluginPath;
     /* 插件运行的进程名 */
     private final String mProcessName;
+    /* 插件apk的运行标记，进程存活期间一直持有，避免空间回收删除正在运行的版本 */
+    private final FileLock mInUseLock;
     /* 插件ClassLoader的parent */
     private ClassLoader mParent;
     /* 插件的类加载器 */
@@ -118,8 +137,12 @@ public class PluginLoadedApk {
     private Resources.Theme mPluginTheme;
     /* 插件的详细信息，主要通过解析AndroidManifest.xml获得 */
     private PluginPackageInfo mPluginPackageInfo;
+    /* 插件安装时预先计算的启动数据，没有或者已经失效时为null */
+    private PluginLaunchArtifacts mLaunchArtifacts;
     /* 插件工程的包名 */
     private String mPluginPackageName;
+    /* 启动时批量获取的插件及其依赖的包信息，ClassLoader创建完成后释放 */
+    private Map<String, PluginPackageSnapshot> mPackageSnapshots;
     /* 插件的Application */
     private Application mPluginApplication;
     /* 自定义插件Context,主要用来改写其中的一些方法从而改变插件行为 */
@@ -177,6 +200,7 @@ public class PluginLoadedApk {
 
         this.mPluginPath = mPluginPath;
         this.mPluginPackageName = mPluginPackageName;
+        this.mInUseLock = PluginStorageManager.markInUse(new File(mPluginPath));
         this.mActivityStackSupervisor = new PActivityStackSupervisor(this);
         this.mProcessName = mProcessName;
         // 提取插件Apk的信息
@@ -195,6 +219,7 @@ public class PluginLoadedApk {
                 throw new RuntimeException(errMsg);
             }
         }
+        mPackageSnapshots = null;
         PluginDebugLog.runtimeFormatLog(TAG, "plugin %s, class loader: %s", mPluginPackageName, mPluginClassLoader.toString());
         // 创建插件资源
         createPluginResource();
@@ -213,11 +238,12 @@ public class PluginLoadedApk {
         Map<String, PluginPackageInfo.ReceiverIntentInfo> mReceiverIntentInfos =
                 mPluginPackageInfo.getReceiverIntentInfos();
         if (mReceiverIntentInfos != null) {
-            Set<Map.Entry<String, PluginPackageInfo.ReceiverIntentInfo>> mEntries =
-                    mReceiverIntentInfos.entrySet();
+            // 优先使用安装时筛选出的声明了IntentFilter的Receiver
+            Collection<String> mReceiverNames = mLaunchArtifacts != null
+                    ? mLaunchArtifacts.getStaticReceivers() : mReceiverIntentInfos.keySet();
             Context mGlobalContext = mHostContext.getApplicationContext();
-            for (Map.Entry<String, PluginPackageInfo.ReceiverIntentInfo> mEntry : mEntries) {
-                PluginPackageInfo.ReceiverIntentInfo mReceiverInfo = mEntry.getValue();
+            for (String mReceiverName : mReceiverNames) {
+                PluginPackageInfo.ReceiverIntentInfo mReceiverInfo = mReceiverIntentInfos.get(mReceiverName);
                 if (mReceiverInfo != null) {
                     try {
                         BroadcastReceiver mReceiver =
@@ -244,51 +270,75 @@ public class PluginLoadedApk {
     private void createPluginResource() {
 
         PluginDebugLog.runtimeLog(TAG, "createPluginResource for " + mPluginPackageName);
+        boolean shouldAddHostRes = !mPluginPackageInfo.isIndividualMode() && mPluginPackageInfo.isResourceNeedMerge();
+        boolean shouldAddWebviewRes = mPluginPackageInfo.isNeedAddWebviewResource()
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+        String hostPath = mHostContext.getApplicationInfo().sourceDir;
+        String assetKey = PluginResourcesCache.assetKeyOf(mPluginPath,
+                shouldAddHostRes ? hostPath : null, shouldAddWebviewRes);
+        Configuration config = new Configuration();
+        config.setTo(mHostResource.getConfiguration());
+        boolean individual = mPluginPackageInfo.isIndividualMode();
+        // 同一个插件重新加载时复用已经创建的Resources
+        mPluginResource = PluginResourcesCache.getResources(assetKey, config, individual);
+        if (mPluginResource != null) {
+            mPluginAssetManager = mPluginResource.getAssets();
+        } else {
+            // Android P以上复用已经加载的宿主资源表和插件资源表
+            String webViewPath = shouldAddWebviewRes && VersionUtils.hasPie() ? getWebViewAssetPath() : null;
+            mPluginAssetManager = PluginResourcesCache.createAssetManager(mHostResource.getAssets(), mPluginPath,
+                    shouldAddHostRes ? hostPath : null, webViewPath);
+            if (mPluginAssetManager == null) {
+                mPluginAssetManager = createPluginAssetManager(shouldAddHostRes, hostPath);
+            }
+            if (individual) {
+                // 独立插件包，不依赖宿主的Resource
+                mPluginResource = new Resources(mPluginAssetManager, mHostResource.getDisplayMetrics(),
+                        config);
+            } else {
+                mPluginResource = new ResourcesProxy(mPluginAssetManager, mHostResource.getDisplayMetrics(),
+                        config, mHostResource, mPluginPackageName, mPluginPackageInfo.getResourcePackageId());
+            }
+            if (mPluginAssetManager != null) {
+                PluginResourcesCache.putResources(assetKey, config, individual, mPluginResource);
+            }
+        }
+        mPluginTheme = mPluginResource.newTheme();
+        mPluginTheme.setTo(mHostContext.getTheme());
+        mResourceTool = new ResourcesToolForPlugin(mHostContext);
+    }
+
+    /**
+     * 创建插件的AssetManager，按需添加宿主和Webview的资源
+     */
+    private AssetManager createPluginAssetManager(boolean shouldAddHostRes, String hostPath) {
         PackageManager pm = mHostContext.getPackageManager();
         AssetManager am = null;
         try {
-            Class<?>[] paramTypes = new Class[]{String.class};
             if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
                 // Android 5.0以下系统方法创建的AssetManager不支持扩展资源表，始终new出来
                 am = AssetManager.class.newInstance();
-                ReflectionUtils.on(am).call("addAssetPath", sMethods, paramTypes, mPluginPath);
+                ADD_ASSET_PATH.invoke(am, mPluginPath);
             } else {
                 // Android 5.0以上使用PackageManager的公开方法创建, 避免反射
                 Resources resources = pm.getResourcesForApplication(mPluginPackageInfo.getApplicationInfo());
                 am = resources.getAssets();
             }
-            boolean shouldAddHostRes = !mPluginPackageInfo.isIndividualMode() && mPluginPackageInfo.isResourceNeedMerge();
             if (shouldAddHostRes) {
                 // 添加宿主的资源到插件的AssetManager
-                ReflectionUtils.on(am).call("addAssetPath", sMethods, paramTypes,
-                        mHostContext.getApplicationInfo().sourceDir);
+                ADD_ASSET_PATH.invoke(am, hostPath);
                 PluginDebugLog.runtimeLog(TAG, "--- Resource merging into plugin @ " + mPluginPackageInfo.getPackageName());
             }
             // 添加系统Webview资源, Android L+
             if (mPluginPackageInfo.isNeedAddWebviewResource()) {
                 addWebviewAssetPath(am);
             }
-
-            mPluginAssetManager = am;
         } catch (Exception e) {
             ErrorUtil.throwErrorIfNeed(e);
             String errMsg = "create plugin resources failed: " + e.getMessage();
             PluginManager.deliver(mHostContext, false, mPluginPackageName, ErrorType.ERROR_PLUGIN_INIT_RESOURCES, errMsg);
         }
-
-        Configuration config = new Configuration();
-        config.setTo(mHostResource.getConfiguration());
-        if (mPluginPackageInfo.isIndividualMode()) {
-            // 独立插件包，不依赖宿主的Resource
-            mPluginResource = new Resources(mPluginAssetManager, mHostResource.getDisplayMetrics(),
-                    config);
-        } else {
-            mPluginResource = new ResourcesProxy(mPluginAssetManager, mHostResource.getDisplayMetrics(),
-                    config, mHostResource, mPluginPackageName);
-        }
-        mPluginTheme = mPluginResource.newTheme();
-        mPluginTheme.setTo(mHostContext.getTheme());
-        mResourceTool = new ResourcesToolForPlugin(mHostContext);
+        return am;
     }
 
     /**
@@ -306,12 +356,10 @@ public class PluginLoadedApk {
                 return;
             }
 
-            Class<?>[] paramTypes = new Class[]{String.class};
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
                 try {
                     // 7.0以上添加webview为SharedLibrary, 否则会存在packageID冲突
-                    ReflectionUtils.on(assetManager).call("addAssetPathAsSharedLibrary", sMethods,
-                            paramTypes, webAsset);
+                    ADD_ASSET_PATH_AS_SHARED_LIBRARY.invoke(assetManager, webAsset);
                     PluginDebugLog.runtimeFormatLog(TAG, "--- Add webview resources %s into plugin @%s for above nougat", webAsset,
                             mPluginPackageInfo.getPackageName());
                     return;
@@ -321,7 +369,7 @@ public class PluginLoadedApk {
             }
             // 7.0以下系统
             try {
-                ReflectionUtils.on(assetManager).call("addAssetPath", sMethods, paramTypes, webAsset);
+                ADD_ASSET_PATH.invoke(assetManager, webAsset);
                 PluginDebugLog.runtimeFormatLog(TAG, "--- Add webview resources %s into plugin @%s for below nougat", webAsset,
                         mPluginPackageInfo.getPackageName());
             } catch (Exception e) {
@@ -397,7 +445,7 @@ public class PluginLoadedApk {
             return false;
         }
         PluginDebugLog.runtimeLog(TAG, "createClassLoader");
-        File optDir = getDataDir(mHostContext, mPluginPackageName);
+        File optDir = getOptimizedDir();
         if (optDir != null && isOptDirAccessible(optDir)) {
 
             FileUtils.checkOtaFileValid(optDir, new File(mPluginPath));  // 创建ClassLoader之前check上次生成的oat文件是否损坏
@@ -440,22 +488,37 @@ public class PluginLoadedApk {
     private boolean createNewClassLoader() {
 
         PluginDebugLog.runtimeLog(TAG, "createNewClassLoader");
-        File optDir = getDataDir(mHostContext, mPluginPackageName);
+        File optDir = getOptimizedDir();
         mParent = mPluginPackageInfo.isIndividualMode() ? mHostClassLoader.getParent() : mHostClassLoader;
         if (optDir != null && isOptDirAccessible(optDir)) {
+            // 先解析依赖图并在后台并行创建依赖的ClassLoader，与当前插件ClassLoader的创建同时进行
+            PluginDependencyLoader dependencyLoader = new PluginDependencyLoader(mHostContext,
+                    sAllPluginClassLoader, mPluginPackageName, mPackageSnapshots);
+            if (!dependencyLoader.start()) {
+                PluginDebugLog.runtimeLog(TAG, "resolve dependencies failed for plugin " + mPluginPackageName);
+                return false;
+            }
+
             DexClassLoader classLoader = sAllPluginClassLoader.get(mPluginPackageName);
             if (classLoader == null) {
                 FileUtils.checkOtaFileValid(optDir, new File(mPluginPath));  //检测oat文件是否损坏
                 mPluginClassLoader = new PluginClassLoader(mPluginPackageInfo, mPluginPath,
                         optDir.getAbsolutePath(), mPluginPackageInfo.getNativeLibraryDir(), mParent);
                 PluginDebugLog.runtimeLog(TAG, "createNewClassLoader success for plugin " + mPluginPackageName);
-                sAllPluginClassLoader.put(mPluginPackageName, mPluginClassLoader);
             } else {
                 PluginDebugLog.runtimeLog(TAG, "classloader find in cache, createNewClassLoader success for plugin " + mPluginPackageName);
                 mPluginClassLoader = classLoader;
             }
 
-            return handleNewDependencies();
+            if (!handleNewDependencies(dependencyLoader)) {
+                return false;
+            }
+            // 依赖全部链接完成后才放入缓存，避免其他插件拿到未链接依赖的ClassLoader
+            DexClassLoader existed = sAllPluginClassLoader.putIfAbsent(mPluginPackageName, mPluginClassLoader);
+            if (existed != null) {
+                mPluginClassLoader = existed;
+            }
+            return true;
         } else if (optDir != null) {
             PluginDebugLog.runtimeLog(TAG,
                     "createNewClassLoader failed as " + optDir.getAbsolutePath() + " exist: "
@@ -465,6 +528,49 @@ public class PluginLoadedApk {
         return false;
     }
 
+    /**
+     * 预热时提前创建插件及其依赖的ClassLoader，并缓存起来，
+     * 后续创建{@link PluginLoadedApk}时直接从缓存中获取
+     *
+     * @return true:创建成功或者已经存在，false:创建失败
+     */
+    static boolean prepareClassLoader(Context hostContext, PluginLiteInfo liteInfo, PluginPackageInfo packageInfo) {
+        String packageName = liteInfo.packageName;
+        if (!Neptune.SEPARATED_CLASSLOADER || sAllPluginClassLoader.containsKey(packageName)) {
+            return Neptune.SEPARATED_CLASSLOADER;
+        }
+        PluginPackageManager.updateSrcApkPath(hostContext, liteInfo);
+        if (TextUtils.isEmpty(liteInfo.srcApkPath) || !new File(liteInfo.srcApkPath).exists()) {
+            PluginDebugLog.runtimeLog(TAG, "prepareClassLoader apk file not exist for " + packageName);
+            return false;
+        }
+        File optDir = new File(packageInfo.getCodeDir(), PluginInstaller.OAT_PATH);
+        if (!optDir.exists()) {
+            optDir.mkdirs();
+        }
+        if (!optDir.canRead() || !optDir.canWrite()) {
+            PluginDebugLog.runtimeLog(TAG, "prepareClassLoader optDir not accessible for " + packageName);
+            return false;
+        }
+
+        PluginDependencyLoader dependencyLoader = new PluginDependencyLoader(hostContext,
+                sAllPluginClassLoader, packageName);
+        if (!dependencyLoader.start()) {
+            return false;
+        }
+        ClassLoader hostClassLoader = hostContext.getClassLoader();
+        ClassLoader parent = packageInfo.isIndividualMode() ? hostClassLoader.getParent() : hostClassLoader;
+        FileUtils.checkOtaFileValid(optDir, new File(liteInfo.srcApkPath));  //检测oat文件是否损坏
+        PluginClassLoader classLoader = new PluginClassLoader(packageInfo, liteInfo.srcApkPath,
+                optDir.getAbsolutePath(), packageInfo.getNativeLibraryDir(), parent);
+        if (!dependencyLoader.attachTo(classLoader)) {
+            return false;
+        }
+        sAllPluginClassLoader.putIfAbsent(packageName, classLoader);
+        PluginDebugLog.runtimeLog(TAG, "prepareClassLoader success for plugin " + packageName);
+        return true;
+    }
+
     /**
      * 将插件中的类从主工程中删除
      */
@@ -697,21 +803,22 @@ public class PluginLoadedApk {
     }
 
     /**
-     * 提取插件apk中的PackageInfo信息，主要就是解析AndroidManifest.xml文件
+     * 提取插件apk中的PackageInfo信息，主要就是解析AndroidManifest.xml文件，
+     * 同时一次性获取所有依赖插件的信息，供后续创建ClassLoader使用
      *
      * @param mPluginPackage 需要提取信息的插件包名
      */
     private void extraPluginPackageInfo(String mPluginPackage) {
-        PluginLiteInfo pkgInfo = PluginPackageManagerNative.getInstance(mHostContext)
-                .getPackageInfo(mPluginPackage);
-        if (pkgInfo != null) {
-            mPluginPackageInfo = PluginPackageManagerNative.getInstance(mHostContext)
-                    .getPluginPackageInfo(mHostContext, pkgInfo);
+        mPackageSnapshots = PluginDependencyLoader.fetchSnapshots(mHostContext, sAllPluginClassLoader, mPluginPackage);
+        PluginPackageSnapshot snapshot = mPackageSnapshots.get(mPluginPackage);
+        if (snapshot != null) {
+            mPluginPackageInfo = snapshot.packageInfo;
         }
 
         if (mPluginPackageInfo == null) {
-            mPluginPackageInfo = new PluginPackageInfo(mHostContext, new File(mPluginPath));
+            mPluginPackageInfo = PluginPackageInfoCache.load(mHostContext, new File(mPluginPath));
         }
+        mLaunchArtifacts = PluginLaunchArtifacts.load(mHostContext, new File(mPluginPath));
     }
 
 
@@ -722,6 +829,8 @@ public class PluginLoadedApk {
      */
     public void updateConfiguration(Configuration newConfig) {
         mPluginApplication.onConfigurationChanged(newConfig);
+        // 缓存的key中包含旧的Configuration
+        PluginResourcesCache.invalidate(mPluginResource);
         mPluginResource.updateConfiguration(newConfig,
                 mHostResource != null ? mHostResource.getDisplayMetrics() : mPluginResource.getDisplayMetrics());
     }
@@ -732,14 +841,14 @@ public class PluginLoadedApk {
      * @return true:处理成功，false：处理失败
      */
     private boolean handleDependencies() {
-        List<String> dependencies = PluginPackageManagerNative
-                .getInstance(mHostContext).getPluginRefs(mPluginPackageName); //pkgInfo.pluginInfo.getPluginResfs();
+        PluginPackageSnapshot rootSnapshot = mPackageSnapshots.get(mPluginPackageName);
+        List<String> dependencies = rootSnapshot != null ? rootSnapshot.refs : null;
         if (null != dependencies) {
             PluginLiteInfo libraryInfo;
             ClassLoaderInjectHelper.InjectResult injectResult;
             for (int i = 0; i < dependencies.size(); i++) {
-                libraryInfo = PluginPackageManagerNative.getInstance(mHostContext)
-                        .getPackageInfo(dependencies.get(i));
+                PluginPackageSnapshot snapshot = mPackageSnapshots.get(dependencies.get(i));
+                libraryInfo = snapshot != null ? snapshot.liteInfo : null;
                 if (null != libraryInfo && !TextUtils.isEmpty(libraryInfo.packageName)) {
                     if (!sInjectedPlugins.contains(libraryInfo.packageName)) {
                         PluginDebugLog.runtimeLog(TAG, "handleDependences inject " + libraryInfo.packageName);
@@ -756,8 +865,8 @@ public class PluginLoadedApk {
                         }
                         PluginDebugLog.runtimeLog(TAG,
                                 "handleDependences src apk path : " + libraryInfo.srcApkPath);
-                        File dataDir = new File(PluginInstaller.getPluginappRootPath(mHostContext), libraryInfo.packageName);
-                        String nativeLibraryDir = new File(dataDir, PluginInstaller.NATIVE_LIB_PATH).getAbsolutePath();
+                        File codeDir = PluginInstaller.getPluginCodeDir(mHostContext, libraryInfo.packageName, apkFile);
+                        String nativeLibraryDir = new File(codeDir, PluginInstaller.NATIVE_LIB_PATH).getAbsolutePath();
                         injectResult = ClassLoaderInjectHelper.inject(mHostContext,
                                 libraryInfo.srcApkPath, null, nativeLibraryDir);
                         if (null != injectResult && injectResult.mIsSuccessful) {
@@ -783,88 +892,45 @@ public class PluginLoadedApk {
     }
 
     /**
-     * 处理当前插件的依赖关系
+     * 处理当前插件的依赖关系，只等待直接依赖的ClassLoader就绪
      *
+     * @param dependencyLoader 已经开始加载的依赖图
      * @return true:处理成功，false：处理失败
      */
-    private boolean handleNewDependencies() {
-        List<String> dependencies = PluginPackageManagerNative
-                .getInstance(mHostContext).getPluginRefs(mPluginPackageName); //pkgInfo.pluginInfo.getPluginResfs();
-        if (null != dependencies) {
-            PluginLiteInfo libraryInfo;
-            PluginPackageInfo libraryPackageInfo;
-            DexClassLoader dependency;
-            ClassLoaderInjectHelper.InjectResult injectResult;
-            for (int i = 0; i < dependencies.size(); i++) {
-                libraryInfo = PluginPackageManagerNative.getInstance(mHostContext)
-                        .getPackageInfo(dependencies.get(i));
-                if (null != libraryInfo && !TextUtils.isEmpty(libraryInfo.packageName)) {
-                    libraryPackageInfo = PluginPackageManagerNative.getInstance(mHostContext)
-                            .getPluginPackageInfo(mHostContext, libraryInfo);
-                    if (libraryPackageInfo == null) {
-                        PluginDebugLog.runtimeLog(TAG, "handleNewDependencies get libraryPackageInfo null " + libraryInfo.packageName);
-                        return false;
-                    }
+    private boolean handleNewDependencies(PluginDependencyLoader dependencyLoader) {
+        boolean result = dependencyLoader.attachTo(mPluginClassLoader);
+        PluginDebugLog.runtimeFormatLog(TAG, "handleNewDependencies for plugin %s result: %s",
+                mPluginPackageName, String.valueOf(result));
+        return result;
+    }
 
-                    dependency = sAllPluginClassLoader.get(libraryInfo.packageName);
-                    if (dependency == null) {
-                        PluginDebugLog.runtimeLog(TAG, "handleNewDependencies not contain in cache " + libraryInfo.packageName);
-                        PluginPackageManager.updateSrcApkPath(mHostContext, libraryInfo);
-                        File apkFile = new File(libraryInfo.srcApkPath);
-                        if (!apkFile.exists()) {
-                            PluginDebugLog.runtimeLog(TAG,
-                                    "Special case apkFile not exist, notify client! packageName: "
-                                            + libraryInfo.packageName);
-                            PluginPackageManager.notifyClientPluginException(mHostContext,
-                                    libraryInfo.packageName,
-                                    "Apk file not exist when handle dependencies!");
-                            return false;
-                        }
 
-                        PluginDebugLog.runtimeLog(TAG,
-                                "handleNewDependencies src apk path : " + libraryInfo.srcApkPath);
-                        String nativeLibraryDir = libraryPackageInfo.getNativeLibraryDir();
-                        ClassLoader parent = libraryPackageInfo.isIndividualMode() ? mHostClassLoader.getParent() : mHostClassLoader;
-                        File optDir = PluginInstaller.getPluginInjectRootPath(mHostContext);
-                        FileUtils.checkOtaFileValid(optDir, new File(libraryInfo.srcApkPath)); //检查oat文件是否损坏
-                        dependency = new PluginClassLoader(libraryPackageInfo, libraryInfo.srcApkPath,
-                                optDir.getAbsolutePath(), nativeLibraryDir, parent);
-                        sAllPluginClassLoader.put(libraryInfo.packageName, dependency);
-                    }
-                    // 把依赖插件的ClassLoader添加到当前的ClassLoader
-                    if (mPluginClassLoader instanceof PluginClassLoader) {
-                        ((PluginClassLoader) mPluginClassLoader).addDependency(dependency);
-                        PluginDebugLog.runtimeFormatLog(TAG, "handleNewDependencies addDependency %s into plugin %s success ",
-                                libraryInfo.packageName, mPluginPackageName);
-                    } else {
-                        // 注入到PluginClassLoader
-                        injectResult = ClassLoaderInjectHelper.inject(mPluginClassLoader, dependency, null);
-                        if (injectResult != null && injectResult.mIsSuccessful) {
-                            PluginDebugLog.runtimeFormatLog(TAG, "handleNewDependencies inject into %s success", mPluginPackageName);
-                        } else {
-                            PluginDebugLog.runtimeFormatLog(TAG, "handleNewDependencies inject into %s failed", mPluginPackageName);
-                        }
-                        return false;
-                    }
-                }
-                libraryInfo = null;
-                injectResult = null;
-            }
+    /**
+     * 获取插件优化后dex的保存目录，位于当前版本的安装槽位中
+     */
+    private File getOptimizedDir() {
+        File optDir = new File(mPluginPackageInfo.getCodeDir(), PluginInstaller.OAT_PATH);
+        PluginDebugLog.runtimeLog(TAG, "packageName:" + mPluginPackageName + " optDir:" + optDir);
+        if (!optDir.exists()) {
+            optDir.mkdirs();
         }
-        return true;
+        return optDir;
     }
 
-
     /**
-     * 获取插件的数据目录
+     * 获取插件Activity选择代理时依赖的特征，优先使用安装时预先计算的结果
+     *
+     * @param actInfo 插件Activity对应的ActivityInfo
+     * @return {@link ComponentFinder}中PROXY_FEATURE_*的组合
      */
-    private File getDataDir(Context context, String packageName) {
-        PluginDebugLog.runtimeLog(TAG, "packageName:" + packageName + " context:" + context);
-        File dataDir = new File(mPluginPackageInfo.getDataDir());
-        if (!dataDir.exists()) {
-            dataDir.mkdirs();
+    public int getActivityProxyFeatures(ActivityInfo actInfo) {
+        if (mLaunchArtifacts != null) {
+            int features = mLaunchArtifacts.getActivityProxyFeatures(actInfo.name);
+            if (features >= 0) {
+                return features;
+            }
         }
-        return dataDir;
+        return ComponentFinder.getActivityProxyFeatures(mPluginTheme, actInfo, mPluginPackageName);
     }
 
     /**
@@ -64,6 +64,7 @@ import org.qiyi.pluginlibrary.utils.ErrorUtil;
 import org.qiyi.pluginlibrary.utils.IntentUtils;
 import org.qiyi.pluginlibrary.utils.PluginDebugLog;
 import org.qiyi.pluginlibrary.utils.ProcessUtils;
+import org.qiyi.pluginlibrary.utils.ReflectionBootstrap;
 import org.qiyi.pluginlibrary.utils.ViewPluginHelper;
 
 import java.io.File;
@@ -76,7 +77,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -86,6 +86,14 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class PluginManager {
     public static final String TAG = "PluginManager";
+    /* 预热等级：只解析插件的PluginPackageInfo */
+    public static final int PREWARM_PACKAGE_INFO = 1;
+    /* 预热等级：创建插件的ClassLoader */
+    public static final int PREWARM_CLASSLOADER = 2;
+    /* 预热等级：创建插件的Resources，生成PluginLoadedApk实例 */
+    public static final int PREWARM_RESOURCES = 3;
+    /* 预热等级：创建插件的Application */
+    public static final int PREWARM_APPLICATION = 4;
     /**
      * 宿主注册到插件里的ActivityLifeCycle监听器
      * 插件重写了Application，需要注册到插件的Application类里去
@@ -95,8 +103,10 @@ public class PluginManager {
     /* 已经加载到内存了的插件集合 */
     private static ConcurrentHashMap<String, PluginLoadedApk> sPluginsMap =
             new ConcurrentHashMap<>();
-    /* 异步加载插件线程池 */
-    private static Executor sExecutor = Executors.newCachedThreadPool();
+    /* 异步加载插件调度器，有界线程数并按优先级执行 */
+    private static PluginLoadScheduler sLoadScheduler = new PluginLoadScheduler();
+    /* 每个插件创建PluginLoadedApk时使用的锁，避免同一个插件被并发创建 */
+    private static ConcurrentHashMap<String, Object> sLoadLocks = new ConcurrentHashMap<>();
     /* 插件加载线程和主线程通信 */
     private static Handler sHandler = new Handler(Looper.getMainLooper());
     /* 插件状态投递 */
@@ -105,6 +115,8 @@ public class PluginManager {
     private static IPluginStatusListener sPluginStatusListener;
     /* 处理插件退出时的善后逻辑 */
     private static IAppExitStuff sExitStuff;
+    /* 插件预热调度器 */
+    private static PluginPrewarmScheduler sPrewarmScheduler;
 
     static {
         sActivityLifecycleCallbacks.add(new PluginManagerObserver());
@@ -393,7 +405,7 @@ public class PluginManager {
             public void onLoadFailed(String packageName) {
                 listener.onFail(ErrorType.ERROR_PLUGIN_CREATE_LOADEDAPK, packageName);
             }
-        }, ProcessUtils.getCurrentProcessName(hostContext));
+        }, ProcessUtils.getCurrentProcessName(hostContext), PluginLoadScheduler.PRIORITY_FOREGROUND);
     }
 
     /**
@@ -862,6 +874,12 @@ public class PluginManager {
                                         final ServiceConnection mServiceConnection,
                                         final Intent mIntent,
                                         final String mProcessName) {
+        // 后台初始化插件的请求不阻塞前台启动
+        String action = mIntent.getAction();
+        ComponentName component = mIntent.getComponent();
+        boolean background = TextUtils.equals(action, IntentConstant.ACTION_PLUGIN_INIT)
+                || (component != null && TextUtils.equals(component.getClassName(), IntentConstant.EXTRA_VALUE_LOADTARGET_STUB));
+        int priority = background ? PluginLoadScheduler.PRIORITY_BACKGROUND : PluginLoadScheduler.PRIORITY_FOREGROUND;
         loadPluginAsync(mHostContext, packageInfo.packageName,
                 new IPluginLoadListener() {
 
@@ -887,7 +905,7 @@ public class PluginManager {
                             mPlugin.changeLaunchingIntentStatus(false);
                         }
                     }
-                }, mProcessName);
+                }, mProcessName, priority);
     }
 
     /**
@@ -897,10 +915,16 @@ public class PluginManager {
      * @param packageName 需要加载的插件包名
      * @param listener    加载结果回调
      * @param processName 进程名称
+     * @param priority    加载优先级
      */
-    private static void loadPluginAsync(Context context, String packageName,
-                                        IPluginLoadListener listener, String processName) {
-        sExecutor.execute(new LoadPluginTask(context, packageName, listener, processName));
+    private static void loadPluginAsync(final Context context, final String packageName,
+                                        IPluginLoadListener listener, final String processName, int priority) {
+        sLoadScheduler.submitLoad(packageName, listener, priority, new PluginLoadScheduler.LoadTaskFactory() {
+            @Override
+            public Runnable create(IPluginLoadListener mergedListener) {
+                return new LoadPluginTask(context, packageName, mergedListener, processName);
+            }
+        });
     }
 
     /**
@@ -927,6 +951,103 @@ public class PluginManager {
     }
 
 
+    /**
+     * 预热插件，在主线程空闲时按照指定等级提前加载插件，降低首次启动插件的耗时。
+     * 需要在插件将要运行的进程中调用，内存紧张时预热请求会被丢弃
+     *
+     * @param context     主进程的Context
+     * @param packageName 需要预热的插件包名
+     * @param level       预热等级，{@link #PREWARM_PACKAGE_INFO}, {@link #PREWARM_CLASSLOADER},
+     *                    {@link #PREWARM_RESOURCES}, {@link #PREWARM_APPLICATION}
+     */
+    public static void prewarm(Context context, String packageName, int level) {
+        if (context == null || TextUtils.isEmpty(packageName)) {
+            PluginDebugLog.runtimeLog(TAG, "prewarm context is null or packageName is null!");
+            return;
+        }
+        if (level < PREWARM_PACKAGE_INFO || level > PREWARM_APPLICATION) {
+            throw new IllegalArgumentException("invalid prewarm level " + level);
+        }
+        if (isPluginLoadedAndInit(packageName)) {
+            return;
+        }
+        getPrewarmScheduler(context).schedule(packageName, level);
+    }
+
+    /**
+     * 在插件加载线程池中以预热优先级解析框架需要的反射成员，不会抢占插件的加载任务
+     *
+     * @see ReflectionBootstrap#warmUp()
+     */
+    public static void warmUpReflection() {
+        sLoadScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                ReflectionBootstrap.warmUp();
+            }
+        }, PluginLoadScheduler.PRIORITY_PREFETCH);
+    }
+
+    /**
+     * 取消插件还未执行的预热请求
+     *
+     * @param context     主进程的Context
+     * @param packageName 插件包名
+     */
+    public static void cancelPrewarm(Context context, String packageName) {
+        if (context == null || TextUtils.isEmpty(packageName)) {
+            return;
+        }
+        getPrewarmScheduler(context).cancel(packageName);
+    }
+
+    private static synchronized PluginPrewarmScheduler getPrewarmScheduler(Context context) {
+        if (sPrewarmScheduler == null) {
+            sPrewarmScheduler = new PluginPrewarmScheduler(context, new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    sLoadScheduler.execute(command, PluginLoadScheduler.PRIORITY_PREFETCH);
+                }
+            });
+        }
+        return sPrewarmScheduler;
+    }
+
+    /**
+     * 在后台线程执行插件的预热
+     *
+     * @param context     主进程的Context
+     * @param packageName 需要预热的插件包名
+     * @param level       预热等级
+     * @return true:预热成功，false:预热失败
+     */
+    static boolean doPrewarm(Context context, String packageName, int level) {
+        PluginLoadedApk loadedApk = getPluginLoadedApkByPkgName(packageName);
+        if (loadedApk != null && (level < PREWARM_APPLICATION || loadedApk.hasPluginInit())) {
+            return true;
+        }
+        PluginPackageManagerNative packageManager = PluginPackageManagerNative.getInstance(context);
+        PluginLiteInfo liteInfo = packageManager.getPackageInfo(packageName);
+        if (liteInfo == null || !packageManager.isPackageAvailable(packageName)) {
+            PluginDebugLog.runtimeFormatLog(TAG, "prewarm %s skipped, plugin not available", packageName);
+            return false;
+        }
+        PluginPackageInfo packageInfo = packageManager.getPluginPackageInfo(context, liteInfo);
+        if (packageInfo == null) {
+            return false;
+        }
+        if (level == PREWARM_PACKAGE_INFO) {
+            return true;
+        }
+        if (level == PREWARM_CLASSLOADER) {
+            return PluginLoadedApk.prepareClassLoader(context, liteInfo, packageInfo);
+        }
+        LoadPluginTask task = new LoadPluginTask(context, packageName, null,
+                ProcessUtils.getCurrentProcessName(context), level == PREWARM_APPLICATION);
+        task.run();
+        return isPluginLoaded(packageName);
+    }
+
     /**
      * 从mIntent里面解析插件包名
      * 1. 从Intent的package获取
@@ -953,41 +1074,20 @@ public class PluginManager {
             // 显式启动插件
             return cpn.getPackageName();
         } else {
-            // 隐式启动插件
-            List<PluginLiteInfo> packageList =
-                    PluginPackageManagerNative.getInstance(mHostContext).getInstalledApps();
-            if (packageList != null) {
-                // Here, loop all installed packages to get pkgName for this intent
-                String packageName = "";
-                ActivityInfo activityInfo = null;
-                ServiceInfo serviceInfo = null;
-                for (PluginLiteInfo info : packageList) {
-                    if (info == null) {
-                        continue;
-                    }
-                    PluginPackageInfo target = PluginPackageManagerNative.getInstance(mHostContext)
-                            .getPluginPackageInfo(mHostContext, info);
-                    if (target != null && (activityInfo = target.resolveActivity(mIntent)) != null) {
-                        // 优先查找Activity, 这里转成显式Intent，后面不用二次resolve了
-                        mIntent.setComponent(new ComponentName(info.packageName, activityInfo.name));
-                        return info.packageName;
-                    }
-                    // resolve隐式Service
-                    if (!TextUtils.isEmpty(packageName) && serviceInfo != null) {
-                        continue;
-                    }
-                    if (target != null && (serviceInfo = target.resolveService(mIntent)) != null) {
-                        packageName = info.packageName;
-                    }
-                }
-                // Here, No Activity can handle this intent, we check service fallback
-                if (!TextUtils.isEmpty(packageName)) {
-                    if (serviceInfo != null) {
-                        // 插件框架后面的逻辑只支持显式Service处理，这里需要更新Intent的信息
-                        mIntent.setComponent(new ComponentName(packageName, serviceInfo.name));
-                    }
-                    return packageName;
-                }
+            // 隐式启动插件，通过全局索引在可能响应的插件中查找，优先查找Activity
+            PluginPackageManagerNative packageManager = PluginPackageManagerNative.getInstance(mHostContext);
+            ActivityInfo activityInfo = packageManager.resolveActivity(mHostContext, mIntent, null);
+            if (activityInfo != null) {
+                // 这里转成显式Intent，后面不用二次resolve了
+                mIntent.setComponent(new ComponentName(activityInfo.packageName, activityInfo.name));
+                return activityInfo.packageName;
+            }
+            // Here, No Activity can handle this intent, we check service fallback
+            ServiceInfo serviceInfo = packageManager.resolveService(mHostContext, mIntent, null);
+            if (serviceInfo != null) {
+                // 插件框架后面的逻辑只支持显式Service处理，这里需要更新Intent的信息
+                mIntent.setComponent(new ComponentName(serviceInfo.packageName, serviceInfo.name));
+                return serviceInfo.packageName;
             }
         }
 
@@ -1205,6 +1305,8 @@ public class PluginManager {
                 tmp.getValue().getActivityStackSupervisor().dump(printWriter);
             }
             printWriter.print("================end dump plugin activity stack====================");
+            printWriter.print("\n");
+            sLoadScheduler.dump(printWriter);
         } catch (Exception e) {
             e.printStackTrace();
             printWriter.print("error:" + e.getMessage());
@@ -1268,14 +1370,25 @@ public class PluginManager {
         private String mProcessName;
         private PluginLoadedApk mLoadedApk;
         private PluginLoadedApkHandler mHandler;
+        /* 是否初始化插件的Application，预热时可以只创建PluginLoadedApk */
+        private boolean mInitApplication;
 
         LoadPluginTask(Context mHostContext,
                        String mPackageName,
                        IPluginLoadListener mListener,
                        String mProcessName) {
+            this(mHostContext, mPackageName, mListener, mProcessName, true);
+        }
+
+        LoadPluginTask(Context mHostContext,
+                       String mPackageName,
+                       IPluginLoadListener mListener,
+                       String mProcessName,
+                       boolean mInitApplication) {
             this.mHostContext = mHostContext.getApplicationContext();
             this.mPackageName = mPackageName;
             this.mProcessName = mProcessName;
+            this.mInitApplication = mInitApplication;
             this.mHandler = new PluginLoadedApkHandler(mListener, mPackageName, Looper.getMainLooper());
         }
 
@@ -1289,7 +1402,7 @@ public class PluginManager {
                     PluginDebugLog.runtimeLog(TAG,
                             "doInBackground:" + mPackageName);
                     loaded = createPluginLoadedApkInstance(mHostContext, packageInfo, mProcessName);
-                    if (loaded && mLoadedApk != null) {
+                    if (loaded && mLoadedApk != null && mInitApplication) {
                         mLoadedApk.invokeApplication();
                     }
                 } else {
@@ -1316,24 +1429,26 @@ public class PluginManager {
                                                       String mProcessName) throws Exception {
             String packageName = packageInfo.packageName;
             if (!TextUtils.isEmpty(packageName)) {
-                mLoadedApk = getPluginLoadedApkByPkgName(packageName);
-                if (mLoadedApk != null) {
-                    return true;
-                }
-                PluginPackageManager.updateSrcApkPath(context, packageInfo);
-                if (!TextUtils.isEmpty(packageInfo.srcApkPath)) {
-                    File apkFile = new File(packageInfo.srcApkPath);
-                    if (!apkFile.exists()) {
-                        PluginDebugLog.runtimeLog(TAG,
-                                "Special case apkFile not exist, notify client! packageName: " + packageName);
-                        PluginPackageManager.notifyClientPluginException(context, packageName, "Apk file not exist when load plugin");
-                        return false;
+                synchronized (getLoadLock(packageName)) {
+                    mLoadedApk = getPluginLoadedApkByPkgName(packageName);
+                    if (mLoadedApk != null) {
+                        return true;
                     }
+                    PluginPackageManager.updateSrcApkPath(context, packageInfo);
+                    if (!TextUtils.isEmpty(packageInfo.srcApkPath)) {
+                        File apkFile = new File(packageInfo.srcApkPath);
+                        if (!apkFile.exists()) {
+                            PluginDebugLog.runtimeLog(TAG,
+                                    "Special case apkFile not exist, notify client! packageName: " + packageName);
+                            PluginPackageManager.notifyClientPluginException(context, packageName, "Apk file not exist when load plugin");
+                            return false;
+                        }
 
-                    mLoadedApk = new PluginLoadedApk(context, packageInfo.srcApkPath, packageName, mProcessName);
-                    addPluginLoadedApk(packageName, mLoadedApk);
-                    PluginDebugLog.runtimeLog(TAG, "plugin loaded success! packageName: " + packageName);
-                    return true;
+                        mLoadedApk = new PluginLoadedApk(context, packageInfo.srcApkPath, packageName, mProcessName);
+                        addPluginLoadedApk(packageName, mLoadedApk);
+                        PluginDebugLog.runtimeLog(TAG, "plugin loaded success! packageName: " + packageName);
+                        return true;
+                    }
                 }
             }
             PluginDebugLog.runtimeLog(TAG, "plugin loaded failed! packageName: " + packageName);
@@ -1341,6 +1456,21 @@ public class PluginManager {
         }
     }
 
+    /**
+     * 获取创建指定插件PluginLoadedApk时的锁
+     */
+    private static Object getLoadLock(String packageName) {
+        Object lock = sLoadLocks.get(packageName);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = sLoadLocks.putIfAbsent(packageName, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
     /**
      * 加载插件线程和主线程通信Handler
      */
@@ -0,0 +1,218 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.runtime;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+
+import org.qiyi.pluginlibrary.utils.PluginDebugLog;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * 插件预热调度器
+ * <p>
+ * 预热请求会先进入等待队列，在主线程空闲时逐个提交到后台线程执行，
+ * 同一时间只会有一个预热任务在执行，避免与前台的插件启动争抢资源；
+ * 系统内存不足或者收到onTrimMemory回调时，暂停并丢弃等待中的预热请求
+ */
+final class PluginPrewarmScheduler {
+    private static final String TAG = "PluginPrewarmScheduler";
+    /* Java堆使用超过该比例时不再预热 */
+    private static final float MAX_HEAP_USAGE = 0.75f;
+
+    private final Context mHostContext;
+    private final Executor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    /* 等待执行的预热请求，主线程访问 */
+    private final LinkedList<Request> mPendingRequests = new LinkedList<>();
+    /* 是否有预热任务正在执行 */
+    private boolean mRunning = false;
+    /* IdleHandler是否已经注册 */
+    private boolean mIdleHandlerAdded = false;
+
+    private final MessageQueue.IdleHandler mIdleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            mIdleHandlerAdded = false;
+            scheduleNext();
+            return false;
+        }
+    };
+
+    PluginPrewarmScheduler(Context hostContext, Executor executor) {
+        this.mHostContext = hostContext.getApplicationContext();
+        this.mExecutor = executor;
+        this.mHostContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                    cancelAll();
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                // nothing
+            }
+
+            @Override
+            public void onLowMemory() {
+                cancelAll();
+            }
+        });
+    }
+
+    /**
+     * 添加一个预热请求，同一个插件的请求会合并，保留最高的预热等级
+     */
+    void schedule(final String packageName, final int level) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Request request : mPendingRequests) {
+                    if (request.packageName.equals(packageName)) {
+                        request.level = Math.max(request.level, level);
+                        armIdleHandler();
+                        return;
+                    }
+                }
+                mPendingRequests.add(new Request(packageName, level));
+                PluginDebugLog.runtimeFormatLog(TAG, "schedule prewarm %s level %d, pending %d",
+                        packageName, level, mPendingRequests.size());
+                armIdleHandler();
+            }
+        });
+    }
+
+    /**
+     * 取消指定插件的预热请求
+     */
+    void cancel(final String packageName) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Iterator<Request> iterator = mPendingRequests.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().packageName.equals(packageName)) {
+                        iterator.remove();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 内存紧张，丢弃所有等待中的预热请求
+     */
+    private void cancelAll() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mPendingRequests.isEmpty()) {
+                    PluginDebugLog.runtimeFormatLog(TAG, "memory pressure, drop %d prewarm requests",
+                            mPendingRequests.size());
+                    mPendingRequests.clear();
+                }
+            }
+        });
+    }
+
+    /**
+     * 在主线程注册IdleHandler，等待主线程空闲
+     */
+    private void armIdleHandler() {
+        if (mIdleHandlerAdded || mRunning || mPendingRequests.isEmpty()) {
+            return;
+        }
+        mIdleHandlerAdded = true;
+        Looper.myQueue().addIdleHandler(mIdleHandler);
+    }
+
+    /**
+     * 主线程空闲时取出一个请求在后台执行
+     */
+    private void scheduleNext() {
+        if (mRunning || mPendingRequests.isEmpty()) {
+            return;
+        }
+        if (isUnderMemoryPressure()) {
+            PluginDebugLog.runtimeLog(TAG, "under memory pressure, skip prewarm");
+            mPendingRequests.clear();
+            return;
+        }
+        final Request request = mPendingRequests.poll();
+        mRunning = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                boolean result = false;
+                try {
+                    result = PluginManager.doPrewarm(mHostContext, request.packageName, request.level);
+                } finally {
+                    PluginDebugLog.runtimeFormatLog(TAG, "prewarm %s level %d result %s cost %d ms",
+                            request.packageName, request.level, String.valueOf(result),
+                            System.currentTimeMillis() - start);
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mRunning = false;
+                            armIdleHandler();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * 系统处于低内存状态或者当前进程Java堆使用过高
+     */
+    private boolean isUnderMemoryPressure() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        if (used > runtime.maxMemory() * MAX_HEAP_USAGE) {
+            return true;
+        }
+        ActivityManager am = (ActivityManager) mHostContext.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am != null) {
+            ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+            am.getMemoryInfo(memoryInfo);
+            return memoryInfo.lowMemory;
+        }
+        return false;
+    }
+
+    private static class Request {
+        final String packageName;
+        int level;
+
+        Request(String packageName, int level) {
+            this.packageName = packageName;
+            this.level = level;
+        }
+    }
+}
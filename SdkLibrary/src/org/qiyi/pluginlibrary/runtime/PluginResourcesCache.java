@@ -0,0 +1,283 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.runtime;
+
+import android.content.res.AssetManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.text.TextUtils;
+
+import org.qiyi.pluginlibrary.exception.ReflectException;
+import org.qiyi.pluginlibrary.utils.ErrorUtil;
+import org.qiyi.pluginlibrary.utils.PluginDebugLog;
+import org.qiyi.pluginlibrary.utils.ReflectionUtils;
+import org.qiyi.pluginlibrary.utils.VersionUtils;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 进程内插件AssetManager和Resources的缓存
+ * <p>
+ * Android P开始每个apk的资源表解析为一个ApkAssets，AssetManager由多个ApkAssets组成。
+ * 这里按apk路径缓存ApkAssets，合并资源时直接复用宿主AssetManager中已经加载的宿主ApkAssets，
+ * 所有插件共享同一份宿主资源表，不再为每个插件重新解析宿主apk；
+ * Android P以下系统按apk路径共享已经解析的资源表，仍然通过addAssetPath创建AssetManager。
+ * <p>
+ * Resources以资源路径集合和Configuration作为key，同一个插件重新加载时复用，Configuration变化后对应的缓存失效。
+ * 缓存只持有弱引用，插件卸载后由GC回收
+ */
+final class PluginResourcesCache {
+    private static final String TAG = "PluginResourcesCache";
+    private static final String SEPARATOR = "|";
+    /* WebView资源路径在进程内不会变化，只记录是否添加 */
+    private static final String WEBVIEW_MARKER = "webview";
+
+    /* Android P的ApkAssets类和相关方法，低版本为null */
+    private static final Class<?> APK_ASSETS_CLASS = findApkAssetsClass();
+    private static final ReflectionUtils.MethodRef LOAD_FROM_PATH;
+    private static final ReflectionUtils.MethodRef GET_ASSET_PATH;
+    private static final ReflectionUtils.MethodRef GET_APK_ASSETS;
+    private static final ReflectionUtils.MethodRef SET_APK_ASSETS;
+
+    static {
+        if (APK_ASSETS_CLASS != null) {
+            LOAD_FROM_PATH = ReflectionUtils.resolveMethod(APK_ASSETS_CLASS, "loadFromPath",
+                    String.class, boolean.class, boolean.class);
+            GET_ASSET_PATH = ReflectionUtils.resolveMethod(APK_ASSETS_CLASS, "getAssetPath");
+            GET_APK_ASSETS = ReflectionUtils.resolveMethod(AssetManager.class, "getApkAssets");
+            SET_APK_ASSETS = ReflectionUtils.resolveMethod(AssetManager.class, "setApkAssets",
+                    Array.newInstance(APK_ASSETS_CLASS, 0).getClass(), boolean.class);
+        } else {
+            LOAD_FROM_PATH = null;
+            GET_ASSET_PATH = null;
+            GET_APK_ASSETS = null;
+            SET_APK_ASSETS = null;
+        }
+    }
+
+    /* apk路径 -> ApkAssets */
+    private static final Map<String, ApkAssetsEntry> sApkAssets = new HashMap<>();
+    /* 资源路径集合和Configuration -> Resources */
+    private static final Map<ResourcesKey, WeakReference<Resources>> sResources = new HashMap<>();
+    /* 实际调用ApkAssets.loadFromPath的次数 */
+    private static int sApkLoadCount;
+
+    private PluginResourcesCache() {
+    }
+
+    /**
+     * 根据添加到AssetManager的资源路径生成key，路径顺序影响资源查找的结果
+     *
+     * @param pluginPath 插件apk路径
+     * @param hostPath   合并资源时宿主apk的路径，不合并时为null
+     * @param addWebView 是否添加WebView的资源
+     */
+    static String assetKeyOf(String pluginPath, String hostPath, boolean addWebView) {
+        StringBuilder builder = new StringBuilder(pluginPath);
+        if (!TextUtils.isEmpty(hostPath)) {
+            builder.append(SEPARATOR).append(hostPath);
+        }
+        if (addWebView) {
+            builder.append(SEPARATOR).append(WEBVIEW_MARKER);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 使用按路径缓存的ApkAssets创建插件的AssetManager，只支持Android P以上
+     *
+     * @param hostAssets  宿主的AssetManager，合并资源时复用其中宿主apk的ApkAssets
+     * @param pluginPath  插件apk路径
+     * @param hostPath    合并资源时宿主apk的路径，不合并时为null
+     * @param webViewPath WebView apk的路径，作为SharedLibrary添加，不添加时为null
+     * @return 插件的AssetManager，系统不支持或者创建失败时返回null，由调用方通过addAssetPath创建
+     */
+    static synchronized AssetManager createAssetManager(AssetManager hostAssets, String pluginPath,
+                                                        String hostPath, String webViewPath) {
+        if (!VersionUtils.hasPie() || SET_APK_ASSETS == null || !SET_APK_ASSETS.isAvailable()
+                || !LOAD_FROM_PATH.isAvailable()) {
+            return null;
+        }
+        try {
+            List<Object> layers = new ArrayList<>();
+            layers.add(getApkAssets(pluginPath, false));
+            if (!TextUtils.isEmpty(hostPath)) {
+                Object hostLayer = findLoadedApkAssets(hostAssets, hostPath);
+                layers.add(hostLayer != null ? hostLayer : getApkAssets(hostPath, false));
+            }
+            if (!TextUtils.isEmpty(webViewPath)) {
+                layers.add(getApkAssets(webViewPath, true));
+            }
+            Object apkAssets = Array.newInstance(APK_ASSETS_CLASS, layers.size());
+            for (int i = 0; i < layers.size(); i++) {
+                Array.set(apkAssets, i, layers.get(i));
+            }
+            // 新建的AssetManager包含系统资源，setApkAssets保留系统资源并追加插件的资源
+            AssetManager assetManager = AssetManager.class.newInstance();
+            SET_APK_ASSETS.invoke(assetManager, apkAssets, false);
+            return assetManager;
+        } catch (Exception e) {
+            ErrorUtil.throwErrorIfNeed(e);
+            PluginDebugLog.runtimeFormatLog(TAG, "create AssetManager from ApkAssets failed: %s", e);
+            return null;
+        }
+    }
+
+    /**
+     * 获取apk的ApkAssets，已经加载并且apk没有被覆盖时直接复用
+     */
+    private static Object getApkAssets(String path, boolean sharedLibrary) {
+        String key = sharedLibrary ? path + SEPARATOR + "shared" : path;
+        long lastModified = new File(path).lastModified();
+        ApkAssetsEntry entry = sApkAssets.get(key);
+        Object apkAssets = entry != null && entry.lastModified == lastModified ? entry.apkAssets.get() : null;
+        if (apkAssets == null) {
+            apkAssets = LOAD_FROM_PATH.invoke(null, path, false, sharedLibrary);
+            sApkLoadCount++;
+            sApkAssets.put(key, new ApkAssetsEntry(apkAssets, lastModified));
+            PluginDebugLog.runtimeFormatLog(TAG, "load ApkAssets %s, shared library: %s", path, sharedLibrary);
+        }
+        return apkAssets;
+    }
+
+    /**
+     * @return 进程内实际加载apk资源表的次数，用于统计ApkAssets的复用效果
+     */
+    static synchronized int getApkLoadCount() {
+        return sApkLoadCount;
+    }
+
+    /**
+     * 从已有的AssetManager中查找某个apk的ApkAssets
+     */
+    private static Object findLoadedApkAssets(AssetManager assetManager, String path) {
+        if (assetManager == null || !GET_APK_ASSETS.isAvailable() || !GET_ASSET_PATH.isAvailable()) {
+            return null;
+        }
+        try {
+            Object[] loaded = GET_APK_ASSETS.invoke(assetManager);
+            if (loaded != null) {
+                for (Object apkAssets : loaded) {
+                    if (path.equals(GET_ASSET_PATH.<String>invoke(apkAssets))) {
+                        return apkAssets;
+                    }
+                }
+            }
+        } catch (ReflectException e) {
+            PluginDebugLog.runtimeFormatLog(TAG, "find ApkAssets of %s failed: %s", path, e);
+        }
+        return null;
+    }
+
+    private static Class<?> findApkAssetsClass() {
+        try {
+            return Class.forName("android.content.res.ApkAssets");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 获取缓存的Resources，不存在或者已经被回收返回null
+     *
+     * @param individual 是否独立插件，独立插件使用系统的Resources，其他插件使用ResourcesProxy
+     */
+    static synchronized Resources getResources(String assetKey, Configuration config, boolean individual) {
+        ResourcesKey key = new ResourcesKey(assetKey, config, individual);
+        WeakReference<Resources> ref = sResources.get(key);
+        Resources resources = ref != null ? ref.get() : null;
+        if (ref != null && resources == null) {
+            sResources.remove(key);
+        }
+        PluginDebugLog.runtimeFormatLog(TAG, "get resources for %s, hit: %s", assetKey, resources != null);
+        return resources;
+    }
+
+    static synchronized void putResources(String assetKey, Configuration config, boolean individual,
+                                          Resources resources) {
+        if (resources != null) {
+            sResources.put(new ResourcesKey(assetKey, config, individual), new WeakReference<>(resources));
+        }
+    }
+
+    /**
+     * Resources更新Configuration之后，和缓存的key不再一致，从缓存中移除
+     */
+    static synchronized void invalidate(Resources resources) {
+        Iterator<Map.Entry<ResourcesKey, WeakReference<Resources>>> iterator = sResources.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Resources cached = iterator.next().getValue().get();
+            if (cached == null || cached == resources) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static class ApkAssetsEntry {
+        final WeakReference<Object> apkAssets;
+        /* apk被覆盖安装后需要重新加载 */
+        final long lastModified;
+
+        ApkAssetsEntry(Object apkAssets, long lastModified) {
+            this.apkAssets = new WeakReference<>(apkAssets);
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static class ResourcesKey {
+        final String assetKey;
+        final Configuration config;
+        final boolean individual;
+
+        ResourcesKey(String assetKey, Configuration config, boolean individual) {
+            this.assetKey = assetKey;
+            // Configuration是可变的，保存一份拷贝
+            this.config = new Configuration(config);
+            this.individual = individual;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ResourcesKey)) {
+                return false;
+            }
+            ResourcesKey other = (ResourcesKey) o;
+            return individual == other.individual
+                    && TextUtils.equals(assetKey, other.assetKey)
+                    && config.equals(other.config);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = assetKey.hashCode();
+            result = 31 * result + config.hashCode();
+            result = 31 * result + (individual ? 1 : 0);
+            return result;
+        }
+    }
+}
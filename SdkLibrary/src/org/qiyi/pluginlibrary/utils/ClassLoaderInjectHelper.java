@@ -26,7 +26,6 @@ import org.qiyi.pluginlibrary.install.PluginInstaller;
 import java.io.File;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -324,9 +323,7 @@ public class ClassLoaderInjectHelper {
      */
     private static void setField(Object oObj, Class<?> aCl, String aField, Object value)
             throws NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
-        Field localField = aCl.getDeclaredField(aField);
-        localField.setAccessible(true);
-        localField.set(oObj, value);
+        getFieldRef(aCl, aField).set(oObj, value);
     }
 
     /**
@@ -340,9 +337,18 @@ public class ClassLoaderInjectHelper {
      */
     private static Object getField(Object oObj, Class<?> aCl, String aField)
             throws NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
-        Field localField = aCl.getDeclaredField(aField);
-        localField.setAccessible(true);
-        return localField.get(oObj);
+        return getFieldRef(aCl, aField).get(oObj);
+    }
+
+    /**
+     * 获取预解析的字段，不存在时抛出NoSuchFieldException
+     */
+    private static ReflectionUtils.FieldRef getFieldRef(Class<?> aCl, String aField) throws NoSuchFieldException {
+        ReflectionUtils.FieldRef ref = ReflectionUtils.resolveField(aCl, aField);
+        if (!ref.isAvailable()) {
+            throw new NoSuchFieldException(aField);
+        }
+        return ref;
     }
 
     /**
@@ -18,9 +18,11 @@
 package org.qiyi.pluginlibrary.utils;
 
 
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
 import android.content.pm.ProviderInfo;
 import android.content.pm.ServiceInfo;
@@ -30,18 +32,21 @@ import android.graphics.Color;
 import android.net.Uri;
 import android.os.Build;
 import android.text.TextUtils;
+import android.util.LruCache;
 import android.util.TypedValue;
 
 import org.qiyi.pluginlibrary.component.processmgr.ProcessManager;
 import org.qiyi.pluginlibrary.constant.IntentConstant;
-import org.qiyi.pluginlibrary.pm.PluginLiteInfo;
 import org.qiyi.pluginlibrary.pm.PluginPackageInfo;
+import org.qiyi.pluginlibrary.pm.PluginPackageManager;
 import org.qiyi.pluginlibrary.pm.PluginPackageManagerNative;
 import org.qiyi.pluginlibrary.runtime.PluginLoadedApk;
 import org.qiyi.pluginlibrary.runtime.PluginManager;
 
-import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 在{@link PluginLoadedApk}代表的插件中查找能够处理{@link Intent}的组件
@@ -63,7 +68,20 @@ public class ComponentFinder {
             "org.qiyi.pluginlibrary.component.InstrActivityProxyPip";
     public static final String DEFAULT_SERVICE_PROXY_PREFIX =
             "org.qiyi.pluginlibrary.component.ServiceProxy";
-
+    /* 插件Activity选择代理时依赖的特征 */
+    public static final int PROXY_FEATURE_TRANSLUCENT = 1;
+    public static final int PROXY_FEATURE_HANDLE_CONFIG_CHANGE = 1 << 1;
+    public static final int PROXY_FEATURE_LANDSCAPE = 1 << 2;
+    public static final int PROXY_FEATURE_TASK_AFFINITY = 1 << 3;
+    public static final int PROXY_FEATURE_PIP = 1 << 4;
+    /* 隐式Activity查找结果的缓存大小 */
+    private static final int RESOLVE_CACHE_SIZE = 64;
+    /* 隐式Activity查找结果缓存，同时缓存找到和没有找到的结果 */
+    private static final LruCache<String, ResolvedActivity> sActivityResolveCache =
+            new LruCache<>(RESOLVE_CACHE_SIZE);
+    /* 插件安装或卸载时递增，用于丢弃查找过程中已经过期的结果 */
+    private static final AtomicInteger sResolveGeneration = new AtomicInteger();
+    private static volatile boolean sInvalidatorRegistered = false;
 
     /**
      * 在插件中查找可以处理mIntent的Service组件,找到之后为其分配合适的Proxy
@@ -147,27 +165,13 @@ public class ComponentFinder {
             if (targetService == null && fallback) {
                 PluginDebugLog.runtimeFormatLog(TAG, "switchToServiceProxy not find targetService in plugin %s, " +
                         "fallback to search in all installed plugins", searchPkg);
-                // 去其他插件里查找
-                List<PluginLiteInfo> packageList =
-                        PluginPackageManagerNative.getInstance(context).getInstalledApps();
-                if (packageList != null) {
-                    for (PluginLiteInfo pkgInfo : packageList) {
-                        if (pkgInfo == null || TextUtils.equals(pkgInfo.packageName, searchPkg)) {
-                            continue;
-                        }
-
-                        PluginPackageInfo target = PluginPackageManagerNative.getInstance(context)
-                                .getPluginPackageInfo(context, pkgInfo);
-                        if (target != null) {
-                            targetService = target.resolveService(mIntent);
-                            if (targetService != null) {
-                                targetPkg = pkgInfo.packageName;
-                                PluginDebugLog.runtimeFormatLog(TAG,
-                                        "switchToServiceProxy find targetService in other plugin %s!", pkgInfo.packageName);
-                                break;
-                            }
-                        }
-                    }
+                // 去其他插件里查找，通过全局索引只匹配可能处理该action的插件
+                targetService = PluginPackageManagerNative.getInstance(context)
+                        .resolveService(context, mIntent, searchPkg);
+                if (targetService != null) {
+                    targetPkg = targetService.packageName;
+                    PluginDebugLog.runtimeFormatLog(TAG,
+                            "switchToServiceProxy find targetService in other plugin %s!", targetPkg);
                 }
             }
         }
@@ -257,6 +261,7 @@ public class ComponentFinder {
         ActivityInfo targetActivity = null;
         String targetPkg = "";
         String hostPkg = context.getPackageName();
+        ResolvedActivity resolved = null;
         if (mIntent.getComponent() != null
                 && !TextUtils.isEmpty(mIntent.getComponent().getClassName())) {
             // action 为空，但是指定了包名和activity类名
@@ -287,64 +292,22 @@ public class ComponentFinder {
                 }
             }
         } else {
-            // 隐式启动，优先在当前插件中查找
-            String searchPkg = "";
-            boolean fallback = false;
-            String pkg = mIntent.getPackage();
-            if (TextUtils.isEmpty(pkg)
-                    || TextUtils.equals(pkg, mPluginPackageName)
-                    || TextUtils.equals(mIntent.getPackage(), hostPkg)) {
-                // 没有设置pkg，设置的是当前插件的包名或者宿主的包名，优先搜索当前插件
-                searchPkg = mPluginPackageName;
-                fallback = IntentUtils.isIntentToPlugin(mIntent);
-            } else if (IntentUtils.isIntentToPlugin(mIntent)) {
-                // 隐式跳转其他插件， 没有flag则认为是跳转外部独立APP
-                searchPkg = mIntent.getPackage();
-                fallback = false;
-            }
-
-            PluginDebugLog.runtimeFormatLog(TAG, "switchToActivityProxy implicit search target activity in plugin %s",
-                    searchPkg);
-            if (!TextUtils.isEmpty(searchPkg)) {
-                PluginLoadedApk mLoadedApk = PluginManager.getPluginLoadedApkByPkgName(searchPkg);
-                PluginPackageInfo mPlugin = mLoadedApk != null ? mLoadedApk.getPluginPackageInfo()
-                        : PluginPackageManagerNative.getInstance(context).getPluginPackageInfo(searchPkg);
-                if (mPlugin != null) {
-                    targetActivity = mPlugin.resolveActivity(mIntent);
-                    if (targetActivity != null) {
-                        targetPkg = searchPkg;
-                        PluginDebugLog.runtimeFormatLog(TAG,
-                                "switchToActivityProxy find targetActivity %s in plugin %s", targetActivity.name, searchPkg);
-                    }
-                }
-            }
-
-            if (targetActivity == null && fallback) {
-                PluginDebugLog.runtimeFormatLog(TAG, "switchToActivityProxy not find targetActivity in plugin %s, " +
-                        "fallback to search in all installed plugins", searchPkg);
-                // 去其他插件里查找
-                List<PluginLiteInfo> packageList =
-                        PluginPackageManagerNative.getInstance(context).getInstalledApps();
-                if (packageList != null) {
-                    for (PluginLiteInfo pkgInfo : packageList) {
-                        if (pkgInfo == null || TextUtils.equals(pkgInfo.packageName, searchPkg)) {
-                            continue;
-                        }
-
-                        PluginPackageInfo target = PluginPackageManagerNative.getInstance(context)
-                                .getPluginPackageInfo(context, pkgInfo);
-                        if (target != null) {
-                            targetActivity = target.resolveActivity(mIntent);
-                            if (targetActivity != null) {
-                                targetPkg = pkgInfo.packageName;
-                                PluginDebugLog.runtimeFormatLog(TAG,
-                                        "switchToActivityProxy find targetActivity in other plugin %s!", pkgInfo.packageName);
-                                break;
-                            }
-                        }
-                    }
+            // 隐式启动，先查找缓存的结果
+            ensureCacheInvalidator(context);
+            String cacheKey = buildResolveKey(mPluginPackageName, mIntent);
+            resolved = sActivityResolveCache.get(cacheKey);
+            if (resolved != null) {
+                PluginDebugLog.runtimeFormatLog(TAG, "switchToActivityProxy hit resolve cache: %s", cacheKey);
+            } else {
+                int generation = sResolveGeneration.get();
+                resolved = resolveImplicitActivity(mPluginPackageName, mIntent, context);
+                // 查找过程中插件发生了变化，结果可能已经过期，不缓存
+                if (resolved.cacheable && generation == sResolveGeneration.get()) {
+                    sActivityResolveCache.put(cacheKey, resolved);
                 }
             }
+            targetActivity = resolved.activityInfo;
+            targetPkg = resolved.packageName;
         }
 
         String intentInfo = mIntent.toString();
@@ -355,7 +318,12 @@ public class ComponentFinder {
         if (targetActivity != null) {
             PluginDebugLog.runtimeFormatLog(TAG, "switchToActivityProxy from plugin %s to plugin %s, "
                 + "targetActivity: %s, intent: %s", mPluginPackageName, targetPkg, targetActivity, intentInfo);
-            setActivityProxy(mIntent, targetActivity);
+            String proxyClass = setActivityProxy(mIntent, targetActivity,
+                    resolved != null ? resolved.proxyClass : null);
+            if (resolved != null) {
+                // 同一个插件Activity分配的代理不会变化，一起缓存
+                resolved.proxyClass = proxyClass;
+            }
             PluginLoadedApk mLoadedApk = PluginManager.getPluginLoadedApkByPkgName(targetPkg);
             if (mLoadedApk != null) {
                 mLoadedApk.getActivityStackSupervisor().dealLaunchMode(mIntent);
@@ -368,6 +336,157 @@ public class ComponentFinder {
         return mIntent;
     }
 
+    /**
+     * 隐式启动时在插件中查找能够响应mIntent的Activity，优先在当前插件中查找
+     *
+     * @return 查找结果，没有找到时返回{@link ResolvedActivity#MISS}
+     */
+    private static ResolvedActivity resolveImplicitActivity(String mPluginPackageName, Intent mIntent, Context context) {
+        ActivityInfo targetActivity = null;
+        String targetPkg = "";
+        String hostPkg = context.getPackageName();
+        boolean cacheable = true;
+        // 隐式启动，优先在当前插件中查找
+        String searchPkg = "";
+        boolean fallback = false;
+        String pkg = mIntent.getPackage();
+        if (TextUtils.isEmpty(pkg)
+                || TextUtils.equals(pkg, mPluginPackageName)
+                || TextUtils.equals(mIntent.getPackage(), hostPkg)) {
+            // 没有设置pkg，设置的是当前插件的包名或者宿主的包名，优先搜索当前插件
+            searchPkg = mPluginPackageName;
+            fallback = IntentUtils.isIntentToPlugin(mIntent);
+        } else if (IntentUtils.isIntentToPlugin(mIntent)) {
+            // 隐式跳转其他插件， 没有flag则认为是跳转外部独立APP
+            searchPkg = mIntent.getPackage();
+            fallback = false;
+        }
+
+        PluginDebugLog.runtimeFormatLog(TAG, "switchToActivityProxy implicit search target activity in plugin %s",
+                searchPkg);
+        if (!TextUtils.isEmpty(searchPkg)) {
+            PluginLoadedApk mLoadedApk = PluginManager.getPluginLoadedApkByPkgName(searchPkg);
+            PluginPackageInfo mPlugin = mLoadedApk != null ? mLoadedApk.getPluginPackageInfo()
+                    : PluginPackageManagerNative.getInstance(context).getPluginPackageInfo(searchPkg);
+            if (mPlugin != null) {
+                targetActivity = mPlugin.resolveActivity(mIntent);
+                if (targetActivity != null) {
+                    targetPkg = searchPkg;
+                    PluginDebugLog.runtimeFormatLog(TAG,
+                            "switchToActivityProxy find targetActivity %s in plugin %s", targetActivity.name, searchPkg);
+                }
+            } else {
+                // 没有获取到插件信息，不能确定插件无法处理
+                cacheable = false;
+            }
+        }
+
+        if (targetActivity == null && fallback) {
+            PluginDebugLog.runtimeFormatLog(TAG, "switchToActivityProxy not find targetActivity in plugin %s, " +
+                    "fallback to search in all installed plugins", searchPkg);
+            // 去其他插件里查找，通过全局索引只匹配可能处理该action的插件
+            targetActivity = PluginPackageManagerNative.getInstance(context)
+                    .resolveActivity(context, mIntent, searchPkg);
+            if (targetActivity != null) {
+                targetPkg = targetActivity.packageName;
+                PluginDebugLog.runtimeFormatLog(TAG,
+                        "switchToActivityProxy find targetActivity in other plugin %s!", targetPkg);
+            }
+        }
+
+        if (targetActivity == null) {
+            return cacheable ? ResolvedActivity.MISS : new ResolvedActivity(null, "", false);
+        }
+        return new ResolvedActivity(targetActivity, targetPkg, true);
+    }
+
+    /**
+     * 根据Intent中参与匹配的字段生成缓存的key，data只保留scheme、authority和path，
+     * query参数不参与IntentFilter的匹配
+     */
+    private static String buildResolveKey(String mPluginPackageName, Intent mIntent) {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(mPluginPackageName)
+                .append('|').append(mIntent.getPackage())
+                .append('|').append(IntentUtils.isIntentToPlugin(mIntent))
+                .append('|').append(mIntent.getAction())
+                .append('|').append(mIntent.getType());
+        Uri data = mIntent.getData();
+        if (data != null) {
+            sb.append('|').append(data.getScheme());
+            if (data.isOpaque()) {
+                sb.append(':').append(data.getEncodedSchemeSpecificPart());
+            } else {
+                sb.append("://").append(data.getEncodedAuthority()).append(data.getEncodedPath());
+            }
+        }
+        Set<String> categories = mIntent.getCategories();
+        if (categories != null) {
+            sb.append('|').append(new TreeSet<>(categories));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 注册插件安装和卸载广播，插件变化时清空查找缓存
+     */
+    private static void ensureCacheInvalidator(Context context) {
+        if (sInvalidatorRegistered) {
+            return;
+        }
+        synchronized (sActivityResolveCache) {
+            if (sInvalidatorRegistered) {
+                return;
+            }
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(PluginPackageManager.ACTION_PACKAGE_CHANGED);
+            filter.addAction(PluginPackageManager.ACTION_PACKAGE_UNINSTALL);
+            try {
+                context.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        PluginDebugLog.runtimeFormatLog(TAG, "plugin %s changed, clear resolve cache",
+                                intent.getStringExtra(IntentConstant.EXTRA_PKG_NAME));
+                        invalidateResolveCache();
+                    }
+                }, filter);
+                sInvalidatorRegistered = true;
+            } catch (Exception e) {
+                // 注册失败不影响查找，只是不使用缓存
+                ErrorUtil.throwErrorIfNeed(e);
+            }
+        }
+    }
+
+    /**
+     * 清空隐式Activity查找结果缓存
+     */
+    public static void invalidateResolveCache() {
+        sResolveGeneration.incrementAndGet();
+        sActivityResolveCache.evictAll();
+    }
+
+    /**
+     * 缓存的隐式Activity查找结果
+     */
+    private static class ResolvedActivity {
+        /* 没有插件能够处理 */
+        static final ResolvedActivity MISS = new ResolvedActivity(null, "", true);
+
+        final ActivityInfo activityInfo;
+        final String packageName;
+        /* 结果是否可以缓存 */
+        final boolean cacheable;
+        /* 分配的代理Activity */
+        volatile String proxyClass;
+
+        ResolvedActivity(ActivityInfo activityInfo, String packageName, boolean cacheable) {
+            this.activityInfo = activityInfo;
+            this.packageName = packageName;
+            this.cacheable = cacheable;
+        }
+    }
+
     /**
      * 查找能够响应这个Uri的插件
      *
@@ -403,26 +522,14 @@ public class ComponentFinder {
                 return provider;
             }
         }
-        // 没有找到，则重新查找一遍所有已安装的插件PackageInfo
-        List<PluginLiteInfo> packageList =
-                PluginPackageManagerNative.getInstance(context).getInstalledApps();
-        if (packageList != null) {
-            for (PluginLiteInfo pkgInfo : packageList) {
-                if (pkgInfo != null) {
-                    PluginPackageInfo target = PluginPackageManagerNative.getInstance(context)
-                            .getPluginPackageInfo(context, pkgInfo);
-                    if (target != null) {
-                        ProviderInfo provider = target.resolveProvider(authority);
-                        if (provider != null) {
-                            PluginDebugLog.runtimeFormatLog(TAG, "resolvePkgName find plugin %s can handle authority %s",
-                                    pkgInfo.packageName, authority);
-                            return provider;
-                        }
-                    }
-                }
-            }
+        // 没有找到，则通过全局索引查找所有已安装的插件
+        ProviderInfo provider = PluginPackageManagerNative.getInstance(context)
+                .resolveProvider(context, authority);
+        if (provider != null) {
+            PluginDebugLog.runtimeFormatLog(TAG, "resolvePkgName find plugin %s can handle authority %s",
+                    provider.packageName, authority);
         }
-        return null;
+        return provider;
     }
 
     /**
@@ -446,20 +553,24 @@ public class ComponentFinder {
      *
      * @param mIntent        需要设置代理的Activity的Intent
      * @param targetActivity 目标的ActivityInfo，包含插件包名和跳转Activity的名称
+     * @param proxyClass     之前分配的代理Activity，为空时重新分配
+     * @return 分配的代理Activity类名，插件没有加载时返回null
      */
-    private static void setActivityProxy(Intent mIntent, ActivityInfo targetActivity) {
+    private static String setActivityProxy(Intent mIntent, ActivityInfo targetActivity, String proxyClass) {
         String mPackageName = targetActivity.packageName;
         String activityName = targetActivity.name;
         PluginLoadedApk mLoadedApk = PluginManager.getPluginLoadedApkByPkgName(mPackageName);
         if (null == mLoadedApk) {
             PluginDebugLog.runtimeFormatLog(TAG,
                     "setActivityProxy failed, %s, PluginLoadedApk is null", mPackageName);
-            return;
+            return null;
         }
 
         PluginDebugLog.runtimeFormatLog(TAG, "setActivityProxy  activityInfo: " + targetActivity.toString());
-        ComponentName compName = new ComponentName(mLoadedApk.getHostPackageName(),
-                findActivityProxy(mLoadedApk, targetActivity));
+        if (TextUtils.isEmpty(proxyClass)) {
+            proxyClass = findActivityProxy(mLoadedApk, targetActivity);
+        }
+        ComponentName compName = new ComponentName(mLoadedApk.getHostPackageName(), proxyClass);
         mIntent.setExtrasClassLoader(mLoadedApk.getPluginClassLoader());
         mIntent.setComponent(compName)
                 .addCategory(activityName)
@@ -467,6 +578,7 @@ public class ComponentFinder {
                 .putExtra(IntentConstant.EXTRA_TARGET_PACKAGE_KEY, mPackageName)
                 .putExtra(IntentConstant.EXTRA_TARGET_CLASS_KEY, activityName);
         IntentUtils.setProxyInfo(mIntent, mPackageName);
+        return proxyClass;
     }
 
     /**
@@ -477,6 +589,25 @@ public class ComponentFinder {
      * @return 返回代理Activity的类名
      */
     public static String findActivityProxy(PluginLoadedApk mLoadedApk, ActivityInfo actInfo) {
+        int features = mLoadedApk.getActivityProxyFeatures(actInfo);
+        return matchActivityProxyByFeature(
+                (features & PROXY_FEATURE_PIP) != 0,
+                (features & PROXY_FEATURE_TASK_AFFINITY) != 0,
+                (features & PROXY_FEATURE_TRANSLUCENT) != 0,
+                (features & PROXY_FEATURE_LANDSCAPE) != 0,
+                (features & PROXY_FEATURE_HANDLE_CONFIG_CHANGE) != 0,
+                mLoadedApk.getProcessName());
+    }
+
+    /**
+     * 计算插件Activity选择代理时依赖的特征，与运行进程无关，可以在安装时预先计算
+     *
+     * @param mTheme      插件的主题，用于判断Activity是否透明
+     * @param actInfo     插件Activity对应的ActivityInfo
+     * @param pkgName     插件包名
+     * @return PROXY_FEATURE_*的组合
+     */
+    public static int getActivityProxyFeatures(Resources.Theme mTheme, ActivityInfo actInfo, String pkgName) {
         boolean isTranslucent = false;
         boolean isHandleConfigChange = false;
         boolean isLandscape = false;
@@ -484,7 +615,6 @@ public class ComponentFinder {
         boolean supportPip = false;
 
         //通过主题判断是否是透明的
-        Resources.Theme mTheme = mLoadedApk.getPluginTheme();
         isTranslucent = ActivityInfoUtils.isTranslucentTheme(mTheme, actInfo);
         if (!isTranslucent) {
             //兼容遗留逻辑
@@ -513,7 +643,6 @@ public class ComponentFinder {
         }
 
         if (actInfo.launchMode == ActivityInfo.LAUNCH_SINGLE_TASK) {
-            String pkgName = mLoadedApk.getPluginPackageName();
             if (TextUtils.equals(actInfo.taskAffinity, pkgName + IntentConstant.TASK_AFFINITY_CONTAINER1)) {
                 PluginDebugLog.runtimeLog(TAG, "findActivityProxy activity taskAffinity: "
                         + actInfo.taskAffinity + " hasTaskAffinity = true");
@@ -532,8 +661,23 @@ public class ComponentFinder {
             isLandscape = true;
         }
 
-        return matchActivityProxyByFeature(supportPip, hasTaskAffinity, isTranslucent, isLandscape,
-                isHandleConfigChange, mLoadedApk.getProcessName());
+        int features = 0;
+        if (isTranslucent) {
+            features |= PROXY_FEATURE_TRANSLUCENT;
+        }
+        if (isHandleConfigChange) {
+            features |= PROXY_FEATURE_HANDLE_CONFIG_CHANGE;
+        }
+        if (isLandscape) {
+            features |= PROXY_FEATURE_LANDSCAPE;
+        }
+        if (hasTaskAffinity) {
+            features |= PROXY_FEATURE_TASK_AFFINITY;
+        }
+        if (supportPip) {
+            features |= PROXY_FEATURE_PIP;
+        }
+        return features;
     }
 
     /**
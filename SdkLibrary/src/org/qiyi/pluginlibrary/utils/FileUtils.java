@@ -18,14 +18,13 @@
 package org.qiyi.pluginlibrary.utils;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.os.Build;
 import android.text.TextUtils;
 
 import org.qiyi.pluginlibrary.install.DexOptimizer;
 import org.qiyi.pluginlibrary.install.PluginInstaller;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
@@ -34,9 +33,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
-import java.util.Enumeration;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.List;
 import java.util.zip.CRC32;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
@@ -45,16 +46,14 @@ import dalvik.system.DexClassLoader;
 
 public final class FileUtils {
     private static final String TAG = PluginDebugLog.TAG;
-    /* apk 中 lib 目录的前缀标示。比如 lib/armeabi/libimagepipeline.so */
-    private static final String APK_LIB_DIR_PREFIX = "lib/";
-    /* libs目录so后缀 */
-    private static final String APK_LIB_SUFFIX = ".so";
     /* redefine those constant here because of bug 13721174 preventing to compile using the
      * constants defined in ZipFile */
     private static final int ENDHDR = 22;
     private static final int ENDSIG = 0x6054b50;
     /* Size of read buffer */
     private static final int BUFFER_SIZE = 8096;
+    /* 从非文件流拷贝时使用的缓冲区大小 */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
     /* sp name of plugin version with so*/
     private static final String SO_INFO_SP = "plugin_so_version";
 
@@ -67,39 +66,59 @@ public final class FileUtils {
     /**
      * Copy data from a source stream to destFile. Return true if succeed,
      * return false if failed.
+     * 文件流通过FileChannel直接传输，其他流使用较大的缓冲区拷贝
      *
      * @param inputStream source file inputstream
      * @param destFile    destFile
      * @return success return true
      */
     public static boolean copyToFile(InputStream inputStream, File destFile) {
+        return copyToFile(inputStream, destFile, null);
+    }
+
+    /**
+     * Copy data from a source stream to destFile. Return true if succeed,
+     * return false if failed.
+     * 需要计算摘要时数据经过用户态缓冲区，拷贝的同时更新摘要，不需要再次读取文件
+     *
+     * @param inputStream source file inputstream
+     * @param destFile    destFile
+     * @param digest      拷贝过程中同时更新的摘要，可以为null
+     * @return success return true
+     */
+    public static boolean copyToFile(InputStream inputStream, File destFile, MessageDigest digest) {
         PluginDebugLog.log(TAG, "copyToFile:" + inputStream + "," + destFile);
         if (inputStream == null || destFile == null) {
             return false;
         }
 
         FileOutputStream out = null;
-        BufferedOutputStream bos = null;
         try {
             if (destFile.exists()) {
                 destFile.delete();
-                destFile.createNewFile();
             }
             out = new FileOutputStream(destFile);
-            bos = new BufferedOutputStream(out);
-            byte[] buffer = new byte[4096];
-            int bytesRead = -1;
-            while ((bytesRead = inputStream.read(buffer)) >= 0) {
-                bos.write(buffer, 0, bytesRead);
+            if (digest == null && inputStream instanceof FileInputStream) {
+                FileChannel src = ((FileInputStream) inputStream).getChannel();
+                long position = src.position();
+                transfer(src, position, src.size() - position, out.getChannel());
+            } else {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int bytesRead;
+                while ((bytesRead = inputStream.read(buffer)) >= 0) {
+                    out.write(buffer, 0, bytesRead);
+                    if (digest != null) {
+                        digest.update(buffer, 0, bytesRead);
+                    }
+                }
             }
-            bos.flush();
+            out.flush();
             PluginDebugLog.log(TAG, "拷贝成功");
             return true;
         } catch (IOException e) {
             PluginDebugLog.log(TAG, "拷贝失败");
             return false;
         } finally {
-            closeQuietly(bos);
             closeQuietly(out);
         }
     }
@@ -113,6 +132,18 @@ public final class FileUtils {
      * @return success return true
      */
     public static boolean copyToFile(File srcFile, File destFile) {
+        return copyToFile(srcFile, destFile, null);
+    }
+
+    /**
+     * Copy data from a source file to destFile, and update the digest at the same time.
+     *
+     * @param srcFile  source file
+     * @param destFile destFile
+     * @param digest   拷贝过程中同时更新的摘要，可以为null
+     * @return success return true
+     */
+    public static boolean copyToFile(File srcFile, File destFile, MessageDigest digest) {
         PluginDebugLog.log(TAG, "copyToFile:" + srcFile + "," + destFile);
         if (srcFile == null || !srcFile.exists() || destFile == null) {
             return false;
@@ -120,26 +151,159 @@ public final class FileUtils {
 
         boolean result = false;
         InputStream inputStream = null;
-        BufferedInputStream bis = null;
         try {
             inputStream = new FileInputStream(srcFile);
-            bis = new BufferedInputStream(inputStream);
-
-            result = copyToFile(bis, destFile);
+            result = copyToFile(inputStream, destFile, digest);
         } catch (IOException e) {
             /* ignore */
         } finally {
-            closeQuietly(bis);
             closeQuietly(inputStream);
         }
         return result;
     }
 
+    /**
+     * 拷贝未压缩的asset文件，直接从宿主apk中对应的偏移量传输到目标文件
+     *
+     * @param afd      asset的文件描述符，由调用者关闭
+     * @param destFile 目标文件
+     * @return success return true
+     */
+    public static boolean copyToFile(AssetFileDescriptor afd, File destFile) {
+        return copyToFile(afd, destFile, null);
+    }
+
+    /**
+     * 拷贝未压缩的asset文件，需要计算摘要时从对应的偏移量读取并同时更新摘要
+     *
+     * @param afd      asset的文件描述符，由调用者关闭
+     * @param destFile 目标文件
+     * @param digest   拷贝过程中同时更新的摘要，可以为null
+     * @return success return true
+     */
+    public static boolean copyToFile(AssetFileDescriptor afd, File destFile, MessageDigest digest) {
+        PluginDebugLog.log(TAG, "copyToFile:" + afd + "," + destFile);
+        if (afd == null || destFile == null || afd.getLength() < 0) {
+            return false;
+        }
+
+        FileOutputStream out = null;
+        try {
+            if (destFile.exists()) {
+                destFile.delete();
+            }
+            out = new FileOutputStream(destFile);
+            // 文件描述符归afd所有，这里不能关闭输入流
+            FileChannel src = new FileInputStream(afd.getFileDescriptor()).getChannel();
+            if (digest == null) {
+                transfer(src, afd.getStartOffset(), afd.getLength(), out.getChannel());
+            } else {
+                copyWithDigest(src, afd.getStartOffset(), afd.getLength(), out.getChannel(), digest);
+            }
+            return true;
+        } catch (IOException e) {
+            PluginDebugLog.log(TAG, "拷贝失败");
+            return false;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * 通过FileChannel在内核中完成拷贝，数据不经过用户态的缓冲区
+     */
+    private static void transfer(FileChannel src, long position, long count, FileChannel dest) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long bytes = src.transferTo(position + transferred, count - transferred, dest);
+            if (bytes <= 0) {
+                throw new IOException("transfer stopped at " + transferred + " of " + count);
+            }
+            transferred += bytes;
+        }
+    }
+
+    /**
+     * 从指定偏移量读取数据写入目标文件，同时更新摘要
+     */
+    private static void copyWithDigest(FileChannel src, long position, long count, FileChannel dest,
+                                       MessageDigest digest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        long copied = 0;
+        while (copied < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - copied));
+            int bytesRead = src.read(buffer, position + copied);
+            if (bytesRead <= 0) {
+                throw new IOException("read stopped at " + copied + " of " + count);
+            }
+            digest.update(buffer.array(), 0, bytesRead);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                dest.write(buffer);
+            }
+            copied += bytesRead;
+        }
+    }
+
+    /**
+     * 读取整个文件计算摘要，用于没有经过拷贝的文件
+     *
+     * @return 十六进制的摘要，读取失败返回null
+     */
+    public static String digest(File file, MessageDigest digest) {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, bytesRead);
+            }
+            return toHexString(digest.digest());
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * 摘要转换成小写的十六进制字符串
+     */
+    public static String toHexString(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
 
     /**
      * 拷贝so库到插件libs目录
      */
     public static boolean installNativeLibrary(Context context, String apkFilePath, String libDir) {
+        return extractNativeLibrary(context, apkFilePath, libDir) >= 0;
+    }
+
+    /**
+     * 升级到新的版本槽位时，复用已安装版本lib目录中的so库和清单，之后只释放发生变化的so库
+     *
+     * @param fromLibDir 已安装版本的lib目录
+     * @param toLibDir   新版本的lib目录
+     * @return 复用的so库个数
+     */
+    public static int seedNativeLibrary(File fromLibDir, File toLibDir) {
+        return NativeLibExtractor.seed(fromLibDir, toLibDir);
+    }
+
+    /**
+     * 增量拷贝so库到插件libs目录，与已安装版本相同的so库不会重新释放
+     *
+     * @return 实际写入的字节数，失败返回-1
+     */
+    public static long extractNativeLibrary(Context context, String apkFilePath, String libDir) {
         PluginDebugLog.installFormatLog(TAG, "installNativeLibrary apkFilePath: %s, libDir: %s", apkFilePath, libDir);
         long startTime = System.currentTimeMillis();
         ZipFile zipFile = null;
@@ -151,15 +315,19 @@ public final class FileUtils {
             }
 
             String primaryCpuAbi = CpuAbiUtils.getPrimaryCpuAbi(context);
-            if (findAndCopyNativeLib(context, zipFile, primaryCpuAbi, libDir)) {
+            long bytesWritten = NativeLibExtractor.extract(zipFile, primaryCpuAbi, nativeLibDir);
+            if (bytesWritten >= 0) {
                 PluginDebugLog.installFormatLog(TAG, "installNativeLibrary copy %s libraries success", primaryCpuAbi);
-                return true;
+                return bytesWritten;
             }
 
             String compactAbi = CpuAbiUtils.getCompatCpuAbi(primaryCpuAbi);
-            if (!TextUtils.isEmpty(compactAbi) && findAndCopyNativeLib(context, zipFile, compactAbi, libDir)) {
-                PluginDebugLog.installFormatLog(TAG, "installNativeLibrary copy compact %s library success", compactAbi);
-                return true;
+            if (!TextUtils.isEmpty(compactAbi)) {
+                bytesWritten = NativeLibExtractor.extract(zipFile, compactAbi, nativeLibDir);
+                if (bytesWritten >= 0) {
+                    PluginDebugLog.installFormatLog(TAG, "installNativeLibrary copy compact %s library success", compactAbi);
+                    return bytesWritten;
+                }
             }
         } catch (IOException e) {
             /* ignore */
@@ -168,45 +336,7 @@ public final class FileUtils {
             PluginDebugLog.runtimeFormatLog(TAG, "installNativeLibrary Done! cost %s ms",
                     (System.currentTimeMillis() - startTime));
         }
-        return false;
-    }
-
-    /**
-     * 拷贝so库，每次新安装插件覆盖更新原来的so库
-     */
-    private static boolean findAndCopyNativeLib(Context context, ZipFile apk, String cpuArch, String libDir) {
-        PluginDebugLog.installFormatLog(TAG, "findAndCopyNativeLib start to extract native lib for ABI: %s", cpuArch);
-        boolean installResult = false;
-        Enumeration<? extends ZipEntry> entries = apk.entries();
-        ZipEntry entry;
-        while (entries.hasMoreElements()) {
-            entry = entries.nextElement();
-            String name = entry.getName();
-            if (!name.startsWith(APK_LIB_DIR_PREFIX + cpuArch)
-                    || !name.endsWith(APK_LIB_SUFFIX)) {
-                continue;
-            }
-
-            InputStream entryInputStream = null;
-            try {
-                entryInputStream = apk.getInputStream(entry);
-                String libName = name.substring(name.lastIndexOf("/") + 1);
-                PluginDebugLog.installFormatLog(TAG, "libDir: %s, soFileName: %s", libDir, libName);
-                File libFile = new File(libDir, libName);
-
-                if (libFile.exists()) {
-                    PluginDebugLog.installFormatLog(TAG, "soFileName: %s already exist, delete it", libName);
-                    libFile.delete();
-                }
-                // copy zip entry to lib dir
-                installResult = copyToFile(entryInputStream, libFile);
-            } catch (Exception e) {
-                // ignore
-            } finally {
-                closeQuietly(entryInputStream);
-            }
-        }
-        return installResult;
+        return -1;
     }
 
 
@@ -215,20 +345,23 @@ public final class FileUtils {
      * 有可能会导致hang住(参考类的说明)。
      * 所以在安装阶段独立进程中执行。
      *
-     * @param apkFile  插件apk文件
-     * @param packageName 插件包名
+     * @param dexFiles      插件apk文件和释放出来的secondary dex
+     * @param optimizedDirs 每个dex文件对应的dexopt目录
+     * @param callback      每个dex优化的结果回调，可能在多个线程中并发回调
+     * @return 全部优化成功返回true
      */
-    public static void installDex(final File apkFile,
-                                   String packageName,
-                                   String pkgDirPath) {
+    public static boolean installDex(List<File> dexFiles, List<File> optimizedDirs,
+                                     final DexOptimizer.ResultCallback callback) {
 
-        final File pkgDir = new File(pkgDirPath, packageName);
-        DexOptimizer.optimize(apkFile, pkgDir, VersionUtils.hasNougat(), new DexOptimizer.ResultCallback() {
+        return DexOptimizer.optimizeAll(dexFiles, optimizedDirs, VersionUtils.hasNougat(), new DexOptimizer.ResultCallback() {
             @Override
             public void onStart(File dexFile, File optimizedDir) {
                 if (dexFile != null) {
                     PluginDebugLog.installFormatLog(TAG, "DexOptimizer onStart: dexFile:%s", dexFile.getAbsolutePath());
                 }
+                if (callback != null) {
+                    callback.onStart(dexFile, optimizedDir);
+                }
             }
 
             @Override
@@ -236,16 +369,22 @@ public final class FileUtils {
                 if (dexFile != null) {
                     PluginDebugLog.installFormatLog(TAG, "DexOptimizer onSuccess: dexFile:%s", dexFile.getAbsolutePath());
                 }
+                if (callback != null) {
+                    callback.onSuccess(dexFile, optimizedDir, optimizedFile);
+                }
             }
 
             @Override
             public void onFailed(File dexFile, File optimizedDir, Throwable thr) {
                 try {
-                    new DexClassLoader(apkFile.getAbsolutePath(), pkgDir.getAbsolutePath(), null, getClass().getClassLoader());
+                    new DexClassLoader(dexFile.getAbsolutePath(), optimizedDir.getAbsolutePath(), null, getClass().getClassLoader());
                     PluginDebugLog.installFormatLog(TAG, "DexOptimizer onFail:%s", thr.getMessage());
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
+                if (callback != null) {
+                    callback.onFailed(dexFile, optimizedDir, thr);
+                }
             }
         });
     }
@@ -266,6 +405,26 @@ public final class FileUtils {
         return directory.delete() && deleted;
     }
 
+    /**
+     * 计算文件或者目录占用的字节数，不存在返回0
+     */
+    public static long sizeOf(File file) {
+        if (file == null || !file.exists()) {
+            return 0L;
+        }
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0L;
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                size += sizeOf(child);
+            }
+        }
+        return size;
+    }
+
     /**
      * Clean the content in the directory
      */
@@ -448,7 +607,7 @@ public final class FileUtils {
      * zip file. Does not support zip64 nor multidisk but it should be OK for now since ZipFile does
      * not either.
      */
-    static long getZipCrc(File apk) throws IOException {
+    public static long getZipCrc(File apk) throws IOException {
         RandomAccessFile raf = new RandomAccessFile(apk, "r");
         try {
             CentralDirectory dir = findCentralDirectory(raf);
@@ -31,11 +31,7 @@ import android.view.View;
 import android.support.coreui.R;
 
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Method;
 import java.util.Map;
-import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 /**
  * 通过给LayoutInflater设置privateFactory，用于解决多个插件使用了
@@ -45,7 +41,9 @@ import java.util.concurrent.ConcurrentMap;
  */
 public class LayoutInflaterCompat {
     private static final String TAG = "LayoutInflaterCompat";
-    private static final ConcurrentMap<String, Vector<Method>> sMethods = new ConcurrentHashMap<String, Vector<Method>>(1);
+    /* 每个Activity创建LayoutInflater时都会调用，预先解析 */
+    private static final ReflectionUtils.MethodRef SET_PRIVATE_FACTORY = ReflectionUtils.resolveMethod(
+            LayoutInflater.class, "setPrivateFactory", LayoutInflater.Factory2.class);
 
     /**
      * 给LayoutInflater设置privateFactory
@@ -55,11 +53,10 @@ public class LayoutInflaterCompat {
         LayoutInflater.Factory2 factory2 = null;
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
             // 5.0以下重复设置privateFactory没有FactoryMerger，而Activity会把自己设置成privateFactory
-            factory2 = ReflectionUtils.on(inflater).get("mPrivateFactory");
+            factory2 = ReflectionUtils.resolveField(LayoutInflater.class, "mPrivateFactory").get(inflater);
         }
         LayoutInflater.Factory2 privateFactory = new CompatPrivateFactory(factory2);
-        Class<?>[] paramTypes = new Class[]{LayoutInflater.Factory2.class};
-        ReflectionUtils.on(inflater).call("setPrivateFactory", sMethods, paramTypes, privateFactory);
+        SET_PRIVATE_FACTORY.invoke(inflater, privateFactory);
     }
 
     static class FragmentTag {
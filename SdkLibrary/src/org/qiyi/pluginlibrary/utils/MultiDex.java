@@ -30,6 +30,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.ListIterator;
@@ -66,31 +67,15 @@ public class MultiDex {
      * @param classLoader 插件ClassLoader
      */
     public static void install(PluginPackageInfo packageInfo, String apkPath, ClassLoader classLoader) {
-        if (IS_VM_MULTIDEX_CAPABLE) {
-            PluginDebugLog.runtimeLog(TAG, "VM has multidex support, MultiDex support library is disabled.");
-            return;
-        }
-
-        if (Build.VERSION.SDK_INT > MAX_SUPPORTED_SDK_VERSION) {
-            PluginDebugLog.runtimeLog(TAG, "MultiDex is not guaranteed to work in SDK version "
-                    + Build.VERSION.SDK_INT + ": SDK version higher than "
-                    + MAX_SUPPORTED_SDK_VERSION + " should be backed by "
-                    + "runtime with built-in multidex capabilty but it's not the "
-                    + "case here: java.vm.version=\""
-                    + System.getProperty("java.vm.version") + "\"");
-            return;
-        }
-
         String sourceApk = !TextUtils.isEmpty(apkPath) ? apkPath : packageInfo.getApplicationInfo().sourceDir;
-
-        if (!hasSecondaryDex(sourceApk)) {
-            PluginDebugLog.runtimeLog(TAG, sourceApk + " has only one dex.");
+        if (!needInstallSecondaryDex(sourceApk)) {
             return;
         }
 
         String pkgName = packageInfo.getPackageName();
-        File dataDir = new File(packageInfo.getDataDir());
-        File dexDir = getDexDir(dataDir, SECONDARY_DEX_FOLDER_NAME);
+        // secondary dex释放在当前版本的安装槽位中，与安装时的路径保持一致
+        File codeDir = new File(packageInfo.getCodeDir());
+        File dexDir = getSecondaryDexDir(codeDir);
 
         MultiDexExtractor extractor = new MultiDexExtractor(pkgName, new File(sourceApk), dexDir);
         try {
@@ -108,6 +93,56 @@ public class MultiDex {
         }
     }
 
+    /**
+     * 插件安装时提前释放apk里的secondary dex，运行时加载插件直接复用
+     *
+     * @param pkgName 插件包名
+     * @param apkFile 插件apk文件
+     * @param codeDir 插件当前版本的安装槽位
+     * @return 释放出来的secondary dex，不需要MultiDex时返回空列表
+     */
+    public static List<? extends File> extractSecondaryDexes(String pkgName, File apkFile, File codeDir)
+            throws IOException {
+        if (!needInstallSecondaryDex(apkFile.getAbsolutePath())) {
+            return Collections.emptyList();
+        }
+        File dexDir = getSecondaryDexDir(codeDir);
+        return new MultiDexExtractor(pkgName, apkFile, dexDir).load(false);
+    }
+
+    /**
+     * secondary dex的释放目录，也是其dexopt的输出目录
+     */
+    public static File getSecondaryDexDir(File codeDir) {
+        return getDexDir(codeDir, SECONDARY_DEX_FOLDER_NAME);
+    }
+
+    /**
+     * 当前虚拟机是否需要手动加载secondary dex
+     */
+    private static boolean needInstallSecondaryDex(String sourceApk) {
+        if (IS_VM_MULTIDEX_CAPABLE) {
+            PluginDebugLog.runtimeLog(TAG, "VM has multidex support, MultiDex support library is disabled.");
+            return false;
+        }
+
+        if (Build.VERSION.SDK_INT > MAX_SUPPORTED_SDK_VERSION) {
+            PluginDebugLog.runtimeLog(TAG, "MultiDex is not guaranteed to work in SDK version "
+                    + Build.VERSION.SDK_INT + ": SDK version higher than "
+                    + MAX_SUPPORTED_SDK_VERSION + " should be backed by "
+                    + "runtime with built-in multidex capabilty but it's not the "
+                    + "case here: java.vm.version=\""
+                    + System.getProperty("java.vm.version") + "\"");
+            return false;
+        }
+
+        if (!hasSecondaryDex(sourceApk)) {
+            PluginDebugLog.runtimeLog(TAG, sourceApk + " has only one dex.");
+            return false;
+        }
+        return true;
+    }
+
     /**
      * 检查是否包含 multi dex
      * @param apkPath apk
@@ -15,18 +15,23 @@
  */
 package org.qiyi.pluginlibrary.utils;
 
-import android.content.Context;
-import android.content.SharedPreferences;
-
-import org.qiyi.pluginlibrary.Neptune;
-
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -41,12 +46,12 @@ class MultiDexExtractor {
 
     private static final String EXTRACTED_NAME_EXT = ".classes";
     private static final int MAX_EXTRACT_ATTEMPTS = 3;
-    private static final String PREFS_FILE = "plugin.multidex.version";
-    private static final String KEY_TIME_STAMP = "timestamp";
-    private static final String KEY_CRC = "crc";
-    private static final String KEY_DEX_NUMBER = "dex.number";
-    private static final String KEY_DEX_CRC = "dex.crc.";
-    private static final String KEY_DEX_TIME = "dex.time.";
+    /* 校验信息清单，与释放出来的dex放在同一个槽位目录下，多进程共享 */
+    static final String MANIFEST_NAME = ".dex.manifest";
+    /* 清单中apk自身校验信息的key，其余每行对应一个释放出来的dex */
+    static final String KEY_APK = "apk";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
     private final String pkgName;
     private final File sourceApk;
     private final long sourceCrc;
@@ -73,15 +78,9 @@ class MultiDexExtractor {
     /**
      * 校验Zip包是否被修改
      */
-    private static boolean isModified(File archive, long currentCrc,
-                                      String prefsKeyPrefix) {
-        SharedPreferences prefs = getMultiDexPreferences();
-        return (prefs.getLong(prefsKeyPrefix + KEY_TIME_STAMP, NO_VALUE) != getTimeStamp(archive))
-                || (prefs.getLong(prefsKeyPrefix + KEY_CRC, NO_VALUE) != currentCrc);
-    }
-
-    private static SharedPreferences getMultiDexPreferences() {
-        return Neptune.getHostContext().getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
+    private static boolean isModified(File archive, long currentCrc, Map<String, long[]> manifest) {
+        long[] stamp = manifest.get(KEY_APK);
+        return stamp == null || stamp[0] != getTimeStamp(archive) || stamp[1] != currentCrc;
     }
 
     private static long getTimeStamp(File archive) {
@@ -125,23 +124,36 @@ class MultiDexExtractor {
 
     /**
      * 解压apk里的多余的Dex文件
+     * <p>
+     * 安装进程和插件进程可能同时释放同一个槽位，通过槽位目录下的文件锁互斥
      */
     List<? extends File> load(boolean forceLoad) throws IOException {
+        synchronized (MultiDexExtractor.class) {
+            FileLock lock = lock();
+            try {
+                return loadLocked(forceLoad);
+            } finally {
+                release(lock);
+            }
+        }
+    }
 
+    private List<ExtractedDex> loadLocked(boolean forceLoad) throws IOException {
         List<ExtractedDex> dexFiles;
-        String prefsKeyPrefix = pkgName + ".";
-        if (!forceLoad && !isModified(sourceApk, sourceCrc, prefsKeyPrefix)) {
+        File manifestFile = new File(dexDir, MANIFEST_NAME);
+        Map<String, long[]> manifest = readManifest(manifestFile);
+        if (!forceLoad && !isModified(sourceApk, sourceCrc, manifest)) {
             try {
-                dexFiles = loadExistingExtractions(prefsKeyPrefix);
+                dexFiles = loadExistingExtractions(manifest);
             } catch (IOException ioe) {
                 PluginDebugLog.runtimeLog(TAG, "Failed to reload existing extracted secondary dex files,"
                         + " falling back to fresh extraction" + ioe.getMessage());
                 dexFiles = performExtractions();
-                storeApkInfo(prefsKeyPrefix, getTimeStamp(sourceApk), sourceCrc, dexFiles);
+                writeManifest(manifestFile, getTimeStamp(sourceApk), sourceCrc, dexFiles);
             }
         } else {
             dexFiles = performExtractions();
-            storeApkInfo(prefsKeyPrefix, getTimeStamp(sourceApk), sourceCrc, dexFiles);
+            writeManifest(manifestFile, getTimeStamp(sourceApk), sourceCrc, dexFiles);
         }
 
         return dexFiles;
@@ -150,28 +162,32 @@ class MultiDexExtractor {
     /**
      * 加载提前释放好的Dex文件
      */
-    private List<ExtractedDex> loadExistingExtractions(String prefsKeyPrefix) throws IOException {
+    private List<ExtractedDex> loadExistingExtractions(Map<String, long[]> manifest) throws IOException {
         PluginDebugLog.runtimeLog(TAG, "loading existing secondary dex files for plugin: " + pkgName);
 
         final String extractedDexPrefix = sourceApk.getName() + EXTRACTED_NAME_EXT;
-        SharedPreferences prefs = getMultiDexPreferences();
-        int totalDexNumber = prefs.getInt(prefsKeyPrefix + KEY_DEX_NUMBER, 1);
+        // 清单中除apk自身外的每一行对应一个secondary dex
+        int totalDexNumber = manifest.size();
         final List<ExtractedDex> files = new ArrayList<>(totalDexNumber - 1);
 
         for (int secondaryNumber = 2; secondaryNumber <= totalDexNumber; secondaryNumber++) {
             // xxx.apk.classes.N.zip
             String fileName = extractedDexPrefix + secondaryNumber + EXTRACTED_SUFFIX;
             ExtractedDex dexFile = new ExtractedDex(dexDir, fileName);
+            long[] expected = manifest.get(fileName);
+            if (expected == null) {
+                throw new IOException("Missing manifest entry of secondary dex file '" + fileName + "'");
+            }
             if (dexFile.isFile() && dexFile.exists()) {
                 // find existing dexFile, verify
                 dexFile.crc = getZipCrc(dexFile);
                 long lastModified = dexFile.lastModified();
-                long expectedCrc = prefs.getLong(prefsKeyPrefix + KEY_DEX_CRC + secondaryNumber, NO_VALUE);
-                long expectedModTime = prefs.getLong(prefsKeyPrefix + KEY_DEX_TIME + secondaryNumber, NO_VALUE);
+                long expectedCrc = expected[0];
+                long expectedModTime = expected[1];
                 if ((expectedModTime != lastModified) || (expectedCrc != dexFile.crc)) {
                     PluginDebugLog.runtimeLog(TAG, "Invalid extracted dex, file has changed");
-                    throw new IOException("Invalid extracted dex: " + dexFile +
-                            " (key \"" + prefsKeyPrefix + "\"), expected modification time: "
+                    throw new IOException("Invalid extracted dex: " + dexFile
+                            + ", expected modification time: "
                             + expectedModTime + ", modification time: "
                             + lastModified + ", expected crc: "
                             + expectedCrc + ", file crc: " + dexFile.crc
@@ -290,21 +306,88 @@ class MultiDexExtractor {
     }
 
     /**
-     * 保存apk和dex相关校验信息
+     * 读取校验信息清单，每行格式为 {name}:{crc或时间戳}:{crc或修改时间}
+     * <p>
+     * apk行为 apk:{timestamp}:{crc}，dex行为 {fileName}:{crc}:{lastModified}
+     */
+    static Map<String, long[]> readManifest(File manifestFile) {
+        Map<String, long[]> result = new HashMap<>();
+        if (!manifestFile.exists()) {
+            return result;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(":");
+                if (parts.length == 3) {
+                    result.put(parts[0], new long[]{Long.parseLong(parts[1]), Long.parseLong(parts[2])});
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // 清单损坏，重新释放
+            result.clear();
+        } finally {
+            FileUtils.closeQuietly(reader);
+        }
+        return result;
+    }
+
+    /**
+     * 保存apk和dex相关校验信息，先写入临时文件再rename，其他进程不会读到写了一半的清单
      */
-    private void storeApkInfo(String keyPrefix, long timeStamp, long crc, List<ExtractedDex> dexFiles) {
-        SharedPreferences prefs = getMultiDexPreferences();
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putLong(keyPrefix + KEY_TIME_STAMP, timeStamp);
-        editor.putLong(keyPrefix + KEY_CRC, crc);
-        editor.putInt(keyPrefix + KEY_DEX_NUMBER, dexFiles.size() + 1);
-
-        int dexNumber = 2;
-        for (ExtractedDex dex : dexFiles) {
-            editor.putLong(keyPrefix + KEY_DEX_CRC + dexNumber, dex.crc);
-            editor.putLong(keyPrefix + KEY_DEX_TIME + dexNumber, dex.lastModified());
-            dexNumber++;
+    private void writeManifest(File manifestFile, long timeStamp, long crc, List<ExtractedDex> dexFiles) {
+        if (!dexDir.exists() && !dexDir.mkdirs()) {
+            PluginDebugLog.runtimeLog(TAG, "Failed to create dir " + dexDir.getAbsolutePath());
+        }
+        File tmpFile = new File(dexDir, MANIFEST_NAME + ".tmp");
+        Writer writer = null;
+        boolean success = false;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tmpFile), UTF_8);
+            writer.write(KEY_APK + ":" + timeStamp + ":" + crc + "\n");
+            for (ExtractedDex dex : dexFiles) {
+                writer.write(dex.getName() + ":" + dex.crc + ":" + dex.lastModified() + "\n");
+            }
+            writer.close();
+            writer = null;
+            success = tmpFile.renameTo(manifestFile);
+        } catch (IOException e) {
+            // 清单写入失败只影响下次复用，下次加载时重新释放
+            PluginDebugLog.runtimeLog(TAG, "Failed to write multidex manifest: " + e.getMessage());
+        } finally {
+            FileUtils.closeQuietly(writer);
+            if (!success) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * 获取槽位的跨进程文件锁，锁文件放在dex目录之外，清空dex目录时不受影响
+     */
+    private FileLock lock() throws IOException {
+        File parent = dexDir.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            PluginDebugLog.runtimeLog(TAG, "Failed to create dir " + parent.getAbsolutePath());
+        }
+        File lockFile = new File(parent, dexDir.getName() + LOCK_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+        try {
+            return raf.getChannel().lock();
+        } catch (IOException | RuntimeException e) {
+            FileUtils.closeQuietly(raf);
+            throw e;
+        }
+    }
+
+    private static void release(FileLock lock) {
+        try {
+            lock.release();
+        } catch (IOException e) {
+            // ignore
         }
-        editor.commit();
+        FileUtils.closeQuietly(lock.channel());
     }
 }
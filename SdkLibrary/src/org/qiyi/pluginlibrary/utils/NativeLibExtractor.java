@@ -0,0 +1,343 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.utils;
+
+import android.os.Build;
+import android.system.Os;
+import android.text.TextUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * 增量释放插件apk中的so库
+ * <p>
+ * lib目录下的清单文件记录了已经释放的每个so库在apk中的crc和大小，
+ * 插件升级时crc和大小都没有变化的so库直接跳过，只释放发生变化的so库；
+ * 多个so库并行解压，先写临时文件并校验crc，再rename成目标文件
+ * <p>
+ * 升级到新的版本槽位时，先通过{@link #seed}从上一个版本的lib目录复用so库和清单
+ */
+final class NativeLibExtractor {
+    private static final String TAG = "NativeLibExtractor";
+    /* apk 中 lib 目录的前缀标示。比如 lib/armeabi/libimagepipeline.so */
+    private static final String APK_LIB_DIR_PREFIX = "lib/";
+    /* libs目录so后缀 */
+    private static final String APK_LIB_SUFFIX = ".so";
+    /* 已释放so库的清单文件，每行格式为 {name}:{crc}:{size} */
+    private static final String MANIFEST_NAME = ".libs.manifest";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /* so库解压的并发数 */
+    private static final int MAX_WORKERS =
+            Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static final ThreadPoolExecutor sExtractExecutor;
+
+    static {
+        sExtractExecutor = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ExtractThreadFactory());
+        sExtractExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private NativeLibExtractor() {
+    }
+
+    /**
+     * 释放指定ABI的so库到lib目录
+     *
+     * @param apk     插件apk
+     * @param cpuArch 需要释放的ABI
+     * @param libDir  插件lib目录
+     * @return 实际写入的字节数，apk中没有该ABI的so库或者释放失败返回-1
+     */
+    static long extract(ZipFile apk, String cpuArch, File libDir) {
+        PluginDebugLog.installFormatLog(TAG, "start to extract native lib for ABI: %s", cpuArch);
+        Map<String, ZipEntry> libEntries = new LinkedHashMap<>();
+        Enumeration<? extends ZipEntry> entries = apk.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (entry.isDirectory() || !name.startsWith(APK_LIB_DIR_PREFIX + cpuArch + "/")
+                    || !name.endsWith(APK_LIB_SUFFIX) || name.contains("..")) {
+                continue;
+            }
+            libEntries.put(name.substring(name.lastIndexOf("/") + 1), entry);
+        }
+        if (libEntries.isEmpty()) {
+            return -1;
+        }
+
+        File manifestFile = new File(libDir, MANIFEST_NAME);
+        Map<String, String> installed = readManifest(manifestFile);
+        List<Map.Entry<String, ZipEntry>> changed = new ArrayList<>();
+        for (Map.Entry<String, ZipEntry> lib : libEntries.entrySet()) {
+            File libFile = new File(libDir, lib.getKey());
+            ZipEntry entry = lib.getValue();
+            if (!TextUtils.equals(installed.get(lib.getKey()), stampOf(entry))
+                    || libFile.length() != entry.getSize()) {
+                changed.add(lib);
+            }
+        }
+        // 删除新版本中已经不存在的so库
+        for (String name : installed.keySet()) {
+            if (!libEntries.containsKey(name)) {
+                new File(libDir, name).delete();
+            }
+        }
+        PluginDebugLog.installFormatLog(TAG, "%d native libs, %d changed", libEntries.size(), changed.size());
+        if (changed.isEmpty()) {
+            if (installed.size() != libEntries.size()) {
+                writeManifest(manifestFile, libEntries);
+            }
+            return 0;
+        }
+
+        // 释放过程中清单失效，中途被终止时下次安装全部重新释放
+        manifestFile.delete();
+        long bytesWritten = 0;
+        boolean success = true;
+        List<Future<Long>> futures = new ArrayList<>(changed.size());
+        for (int i = 1; i < changed.size(); i++) {
+            futures.add(sExtractExecutor.submit(new ExtractTask(apk, changed.get(i), libDir)));
+        }
+        // 第一个so库在当前线程释放
+        try {
+            bytesWritten += new ExtractTask(apk, changed.get(0), libDir).call();
+        } catch (IOException e) {
+            PluginDebugLog.installFormatLog(TAG, "extract %s failed: %s", changed.get(0).getKey(), e.getMessage());
+            success = false;
+        }
+        for (Future<Long> future : futures) {
+            try {
+                bytesWritten += future.get();
+            } catch (ExecutionException e) {
+                PluginDebugLog.installFormatLog(TAG, "extract native lib failed: %s", e.getCause());
+                success = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                success = false;
+            }
+        }
+        if (!success) {
+            return -1;
+        }
+        writeManifest(manifestFile, libEntries);
+        return bytesWritten;
+    }
+
+    /**
+     * 用已安装版本lib目录中的so库和清单初始化新版本的lib目录，之后的{@link #extract}只释放发生变化的so库
+     * <p>
+     * 优先创建硬链接，不支持时拷贝；释放so库时先写临时文件再rename，不会修改旧版本仍在使用的文件
+     *
+     * @param fromLibDir 已安装版本的lib目录
+     * @param toLibDir   新版本的lib目录，已经存在清单时不做处理
+     * @return 复用的so库个数
+     */
+    static int seed(File fromLibDir, File toLibDir) {
+        File toManifest = new File(toLibDir, MANIFEST_NAME);
+        if (toManifest.exists() || fromLibDir.equals(toLibDir)) {
+            return 0;
+        }
+        Map<String, String> installed = readManifest(new File(fromLibDir, MANIFEST_NAME));
+        if (installed.isEmpty()) {
+            return 0;
+        }
+        if (!toLibDir.exists() && !toLibDir.mkdirs()) {
+            return 0;
+        }
+        Map<String, String> seeded = new LinkedHashMap<>();
+        for (Map.Entry<String, String> lib : installed.entrySet()) {
+            String name = lib.getKey();
+            File src = new File(fromLibDir, name);
+            if (name.contains("/") || !src.isFile()) {
+                continue;
+            }
+            File dest = new File(toLibDir, name);
+            File tmpFile = new File(toLibDir, name + ".tmp");
+            tmpFile.delete();
+            boolean prepared = link(src, tmpFile) && tmpFile.length() == src.length();
+            if (!prepared) {
+                tmpFile.delete();
+                prepared = FileUtils.copyToFile(src, tmpFile);
+            }
+            if (prepared && tmpFile.renameTo(dest)) {
+                seeded.put(name, lib.getValue());
+            } else {
+                tmpFile.delete();
+            }
+        }
+        // 清单最后写入，只记录成功复用的so库，中途失败时缺少的so库会重新释放
+        writeStamps(toManifest, seeded);
+        PluginDebugLog.installFormatLog(TAG, "seed %d of %d native libs from %s",
+                seeded.size(), installed.size(), fromLibDir.getAbsolutePath());
+        return seeded.size();
+    }
+
+    private static boolean link(File src, File dest) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        try {
+            Os.link(src.getAbsolutePath(), dest.getAbsolutePath());
+            return true;
+        } catch (Exception e) {
+            // 文件系统不支持硬链接，回退到拷贝
+            PluginDebugLog.installFormatLog(TAG, "link %s failed: %s", src.getName(), e.getMessage());
+            return false;
+        }
+    }
+
+    private static String stampOf(ZipEntry entry) {
+        return entry.getCrc() + ":" + entry.getSize();
+    }
+
+    private static Map<String, String> readManifest(File manifestFile) {
+        Map<String, String> result = new HashMap<>();
+        if (!manifestFile.exists()) {
+            return result;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int index = line.indexOf(':');
+                if (index > 0) {
+                    result.put(line.substring(0, index), line.substring(index + 1));
+                }
+            }
+        } catch (IOException e) {
+            // 清单损坏，全部重新释放
+            result.clear();
+        } finally {
+            FileUtils.closeQuietly(reader);
+        }
+        return result;
+    }
+
+    private static void writeManifest(File manifestFile, Map<String, ZipEntry> libEntries) {
+        Map<String, String> stamps = new LinkedHashMap<>();
+        for (Map.Entry<String, ZipEntry> lib : libEntries.entrySet()) {
+            stamps.put(lib.getKey(), stampOf(lib.getValue()));
+        }
+        writeStamps(manifestFile, stamps);
+    }
+
+    private static void writeStamps(File manifestFile, Map<String, String> stamps) {
+        File tmpFile = new File(manifestFile.getParentFile(), MANIFEST_NAME + ".tmp");
+        Writer writer = null;
+        boolean success = false;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tmpFile), UTF_8);
+            for (Map.Entry<String, String> lib : stamps.entrySet()) {
+                writer.write(lib.getKey() + ":" + lib.getValue() + "\n");
+            }
+            writer.close();
+            writer = null;
+            success = tmpFile.renameTo(manifestFile);
+        } catch (IOException e) {
+            PluginDebugLog.installFormatLog(TAG, "write native lib manifest failed: %s", e.getMessage());
+        } finally {
+            FileUtils.closeQuietly(writer);
+            if (!success) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * 释放一个so库，先写入临时文件，crc校验通过后rename
+     */
+    private static class ExtractTask implements Callable<Long> {
+        private final ZipFile apk;
+        private final String libName;
+        private final ZipEntry entry;
+        private final File libDir;
+
+        ExtractTask(ZipFile apk, Map.Entry<String, ZipEntry> lib, File libDir) {
+            this.apk = apk;
+            this.libName = lib.getKey();
+            this.entry = lib.getValue();
+            this.libDir = libDir;
+        }
+
+        @Override
+        public Long call() throws IOException {
+            File libFile = new File(libDir, libName);
+            File tmpFile = new File(libDir, libName + ".tmp");
+            CheckedInputStream in = null;
+            try {
+                in = new CheckedInputStream(apk.getInputStream(entry), new CRC32());
+                if (!FileUtils.copyToFile(in, tmpFile)) {
+                    throw new IOException("copy " + libName + " failed");
+                }
+                if (in.getChecksum().getValue() != entry.getCrc() || tmpFile.length() != entry.getSize()) {
+                    throw new IOException("crc or size of " + libName + " not match");
+                }
+                if (!tmpFile.renameTo(libFile)) {
+                    throw new IOException("rename " + libName + " failed");
+                }
+                PluginDebugLog.installFormatLog(TAG, "extract %s success, size %d", libName, entry.getSize());
+                return entry.getSize();
+            } finally {
+                FileUtils.closeQuietly(in);
+                if (tmpFile.exists()) {
+                    tmpFile.delete();
+                }
+            }
+        }
+    }
+
+    private static class ExtractThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "NativeLibExtractor-thread-" + threadNumber.getAndIncrement());
+            t.setDaemon(false);
+            t.setPriority(Thread.NORM_PRIORITY);
+            return t;
+        }
+    }
+}
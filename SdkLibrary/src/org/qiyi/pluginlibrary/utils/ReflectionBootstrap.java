@@ -0,0 +1,233 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.utils;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.AssetManager;
+import android.os.Build;
+import android.view.LayoutInflater;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 在框架初始化时预先解析插件运行需要的系统隐藏成员
+ * <p>
+ * 解析结果保存在{@link ReflectionUtils}的句柄缓存中，插件启动时直接命中；
+ * 当前系统上找不到的成员会被记录下来，宿主可以通过{@link #getFailedMembers()}
+ * 在插件真正启动之前发现ROM的兼容性问题
+ */
+public final class ReflectionBootstrap {
+    private static final String TAG = "ReflectionBootstrap";
+    /* 当前系统上没有解析到的成员 */
+    private static final List<String> sFailedMembers = Collections.synchronizedList(new ArrayList<String>());
+    private static volatile boolean sWarmedUp = false;
+
+    private ReflectionBootstrap() {
+    }
+
+    /**
+     * 按当前系统版本解析框架会用到的反射成员，重复调用只会执行一次
+     */
+    public static void warmUp() {
+        synchronized (ReflectionBootstrap.class) {
+            if (sWarmedUp) {
+                return;
+            }
+            sWarmedUp = true;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            warmUpActivity();
+            warmUpContextImpl();
+            warmUpResources();
+            warmUpClassLoader();
+        } catch (Throwable e) {
+            // 预解析失败不影响插件运行，使用时会重新解析
+            PluginDebugLog.runtimeFormatLog(TAG, "warm up reflection failed: %s", e.getMessage());
+        }
+        PluginDebugLog.runtimeFormatLog(TAG, "warm up reflection cost %d ms, failed members: %s",
+                System.currentTimeMillis() - start, sFailedMembers);
+    }
+
+    /**
+     * @return 当前系统上没有解析到的成员，格式为类名#成员名
+     */
+    public static List<String> getFailedMembers() {
+        synchronized (sFailedMembers) {
+            return new ArrayList<String>(sFailedMembers);
+        }
+    }
+
+    /**
+     * Activity#attach()以及生命周期转发，见{@link org.qiyi.pluginlibrary.component.stackmgr.PluginActivityControl}
+     */
+    private static void warmUpActivity() {
+        checkField(Activity.class, "mMainThread");
+        checkField(Activity.class, "mToken");
+        checkField(Activity.class, "mIdent");
+        checkField(Activity.class, "mActivityInfo");
+        checkField(Activity.class, "mEmbeddedID");
+        checkField(Activity.class, "mCurrentConfig");
+        checkField(Activity.class, "mWindow");
+        checkField(Activity.class, "mWindowManager");
+        if (Build.VERSION.SDK_INT >= 21) {
+            checkField(Activity.class, "mVoiceInteractor");
+        }
+        if (Build.VERSION.SDK_INT >= 22) {
+            checkField(Activity.class, "mReferrer");
+        }
+        if (Build.VERSION.SDK_INT >= 30) {
+            checkField(Activity.class, "mAssistToken");
+        }
+        if (Build.VERSION.SDK_INT >= 31) {
+            checkField(Activity.class, "mShareableActivityToken");
+        }
+        checkMethod(Activity.class, "attach", ReflectionUtils.resolveMethod(Activity.class, "attach", getAttachParamCount()));
+
+        if (Build.VERSION.SDK_INT < 28) {
+            checkMethod(Activity.class, "performStart");
+            checkMethod(Activity.class, "performResume");
+            checkMethod(Activity.class, "performRestart");
+            if (Build.VERSION.SDK_INT >= 24) {
+                checkMethod(Activity.class, "performStop", boolean.class);
+            } else {
+                checkMethod(Activity.class, "performStop");
+            }
+        }
+        checkMethod(Activity.class, "onPostResume");
+        checkMethod(Activity.class, "onActivityResult", int.class, int.class, Intent.class);
+    }
+
+    /**
+     * 各个系统版本Activity#attach()的参数个数，和PluginActivityControl中的调用保持一致
+     */
+    static int getAttachParamCount() {
+        if (Build.VERSION.SDK_INT >= 31) {
+            // 增加IBinder shareableActivityToken
+            return 19;
+        } else if (Build.VERSION.SDK_INT >= 30) {
+            // 增加IBinder assistToken
+            return 18;
+        } else if (Build.VERSION.SDK_INT >= 26) {
+            return 17;
+        } else if (Build.VERSION.SDK_INT >= 24) {
+            return 16;
+        } else if (Build.VERSION.SDK_INT >= 22) {
+            return 15;
+        } else if (Build.VERSION.SDK_INT >= 21) {
+            return 14;
+        }
+        return 13;
+    }
+
+    /**
+     * ContextImpl和SharedPreferencesImpl，见{@link org.qiyi.pluginlibrary.context.CustomContextWrapper}
+     */
+    private static void warmUpContextImpl() {
+        Class<?> contextImpl = forName("android.app.ContextImpl");
+        if (contextImpl == null) {
+            return;
+        }
+        checkMethod(contextImpl, "setOuterContext", Context.class);
+        checkField(contextImpl, VersionUtils.hasNougat() ? "sSharedPrefsCache" : "sSharedPrefs");
+        if (VersionUtils.hasNougat() && !VersionUtils.hasPie()) {
+            checkField(contextImpl, "mSharedPrefsPaths");
+        }
+
+        if (Build.VERSION.SDK_INT >= 14) {
+            Class<?> sharedPrefsImpl = forName("android.app.SharedPreferencesImpl");
+            if (sharedPrefsImpl != null) {
+                if (!ReflectionUtils.resolveConstructor(sharedPrefsImpl, File.class, int.class).isAvailable()) {
+                    addFailedMember(sharedPrefsImpl, "<init>");
+                }
+                checkMethod(sharedPrefsImpl, "startReloadIfChangedUnexpectedly");
+            }
+        }
+    }
+
+    /**
+     * 创建插件Resources和LayoutInflater时使用的方法
+     */
+    private static void warmUpResources() {
+        checkMethod(AssetManager.class, "addAssetPath", String.class);
+        if (VersionUtils.hasNougat()) {
+            checkMethod(AssetManager.class, "addAssetPathAsSharedLibrary", String.class);
+        }
+        checkMethod(LayoutInflater.class, "setPrivateFactory", LayoutInflater.Factory2.class);
+        if (Build.VERSION.SDK_INT < 21) {
+            checkField(LayoutInflater.class, "mPrivateFactory");
+        }
+    }
+
+    /**
+     * 插件ClassLoader注入宿主时使用的字段，见{@link ClassLoaderInjectHelper}
+     */
+    private static void warmUpClassLoader() {
+        if (Build.VERSION.SDK_INT < 14) {
+            return;
+        }
+        Class<?> baseDexClassLoader = forName("dalvik.system.BaseDexClassLoader");
+        Class<?> dexPathList = forName("dalvik.system.DexPathList");
+        if (baseDexClassLoader == null || dexPathList == null) {
+            return;
+        }
+        checkField(baseDexClassLoader, "pathList");
+        checkField(dexPathList, "dexElements");
+        checkField(dexPathList, "nativeLibraryDirectories");
+        if (Build.VERSION.SDK_INT > 22) {
+            checkField(dexPathList, "nativeLibraryPathElements");
+        }
+    }
+
+    private static void checkField(Class<?> type, String name) {
+        if (!ReflectionUtils.resolveField(type, name).isAvailable()) {
+            addFailedMember(type, name);
+        }
+    }
+
+    private static void checkMethod(Class<?> type, String name, Class<?>... paramTypes) {
+        checkMethod(type, name, ReflectionUtils.resolveMethod(type, name, paramTypes));
+    }
+
+    private static void checkMethod(Class<?> type, String name, ReflectionUtils.MethodRef ref) {
+        if (!ref.isAvailable()) {
+            addFailedMember(type, name);
+        }
+    }
+
+    private static void addFailedMember(Class<?> type, String name) {
+        String member = type.getName() + "#" + name;
+        sFailedMembers.add(member);
+        PluginDebugLog.runtimeFormatLog(TAG, "reflection member %s not found", member);
+    }
+
+    private static Class<?> forName(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            PluginDebugLog.runtimeFormatLog(TAG, "class %s not found", className);
+            sFailedMembers.add(className);
+            return null;
+        }
+    }
+}
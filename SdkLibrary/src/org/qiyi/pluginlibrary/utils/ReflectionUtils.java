@@ -33,6 +33,8 @@ import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class ReflectionUtils {
     /* 被包装的对象，访问一个实例的方法和字段 */
@@ -449,8 +451,10 @@ public class ReflectionUtils {
      * @throws ReflectException
      */
     private Field field0(String name) throws ReflectException {
-        Class<?> type = type();
+        return findField(type(), name);
+    }
 
+    private static Field findField(Class<?> type, String name) throws ReflectException {
         // 尝试作为公有字段处理
         try {
             return accessible(type.getField(name));
@@ -622,8 +626,10 @@ public class ReflectionUtils {
      * 根据方法名和方法参数得到该方法。
      */
     public Method exactMethod(String name, Class<?>[] types) throws NoSuchMethodException {
-        Class<?> type = type();
+        return findExactMethod(type(), name, types);
+    }
 
+    private static Method findExactMethod(Class<?> type, String name, Class<?>[] types) throws NoSuchMethodException {
         // 先尝试直接调用
         try {
             return accessible(type.getMethod(name, types));
@@ -648,7 +654,11 @@ public class ReflectionUtils {
      * 给定方法名和参数，匹配一个最接近的方法
      */
     private Method similarMethod(String name, Class<?>[] types) throws NoSuchMethodException {
-        Class<?> type = type();
+        return findSimilarMethod(type(), name, types);
+    }
+
+    private static Method findSimilarMethod(Class<?> targetType, String name, Class<?>[] types) throws NoSuchMethodException {
+        Class<?> type = targetType;
 
         // 对于公有方法:
         try {
@@ -682,13 +692,13 @@ public class ReflectionUtils {
         } while (type != null);
 
         throw new NoSuchMethodException(
-                "No similar method " + name + " with params " + Arrays.toString(types) + " could be found on type " + type() + ".");
+                "No similar method " + name + " with params " + Arrays.toString(types) + " could be found on type " + targetType + ".");
     }
 
     /**
      * 再次确认方法签名与实际是否匹配， 将基本类型转换成对应的对象类型， 如int转换成Int
      */
-    private boolean isSimilarSignature(Method possiblyMatchingMethod, String desiredMethodName, Class<?>[] desiredParamTypes) {
+    private static boolean isSimilarSignature(Method possiblyMatchingMethod, String desiredMethodName, Class<?>[] desiredParamTypes) {
         return possiblyMatchingMethod.getName().equals(desiredMethodName)
                 && match(possiblyMatchingMethod.getParameterTypes(), desiredParamTypes);
     }
@@ -776,7 +786,7 @@ public class ReflectionUtils {
         return (P) Proxy.newProxyInstance(proxyType.getClassLoader(), new Class[]{proxyType}, handler);
     }
 
-    private boolean match(Class<?>[] declaredTypes, Class<?>[] actualTypes) {
+    private static boolean match(Class<?>[] declaredTypes, Class<?>[] actualTypes) {
         if (declaredTypes.length == actualTypes.length) {
             for (int i = 0; i < actualTypes.length; i++) {
                 if (actualTypes[i] == NULL.class)
@@ -850,6 +860,321 @@ public class ReflectionUtils {
         }
     }
 
+    // ---------------------------------------------------------------------
+    // 预解析的反射句柄
+    // ---------------------------------------------------------------------
+
+    /* 已经解析的方法句柄 */
+    private static final ConcurrentMap<MemberKey, MethodRef> sMethodRefs = new ConcurrentHashMap<MemberKey, MethodRef>();
+    /* 已经解析的字段句柄 */
+    private static final ConcurrentMap<MemberKey, FieldRef> sFieldRefs = new ConcurrentHashMap<MemberKey, FieldRef>();
+    /* 已经解析的构造函数句柄 */
+    private static final ConcurrentMap<MemberKey, ConstructorRef> sConstructorRefs = new ConcurrentHashMap<MemberKey, ConstructorRef>();
+
+    /**
+     * 解析方法句柄，结果按类、方法名和参数类型缓存，同一个方法只查找一次
+     * 先按参数类型精确查找，找不到时匹配一个参数兼容的方法，仍然找不到时返回不可用的句柄
+     *
+     * @param type       方法所在的类，私有方法会继续在父类中查找
+     * @param name       方法名
+     * @param paramTypes 参数类型
+     * @return 方法句柄，不会返回null
+     */
+    public static MethodRef resolveMethod(Class<?> type, String name, Class<?>... paramTypes) {
+        MemberKey key = new MemberKey(type, name, paramTypes);
+        MethodRef ref = sMethodRefs.get(key);
+        if (ref == null) {
+            Method method = null;
+            try {
+                method = findExactMethod(type, name, key.paramTypes);
+            } catch (NoSuchMethodException e) {
+                try {
+                    method = findSimilarMethod(type, name, key.paramTypes);
+                } catch (NoSuchMethodException ignore) {
+                    /* ignore */
+                }
+            }
+            ref = new MethodRef(type, name, method);
+            MethodRef prev = sMethodRefs.putIfAbsent(key, ref);
+            if (prev != null) {
+                ref = prev;
+            }
+        }
+        return ref;
+    }
+
+    /**
+     * 根据实际参数推导参数类型解析方法句柄，用于参数类型随系统版本变化、无法直接声明的方法
+     *
+     * @see #resolveMethod(Class, String, Class[])
+     */
+    public static MethodRef resolveMethodForArgs(Class<?> type, String name, Object... args) {
+        return resolveMethod(type, name, types(args));
+    }
+
+    /**
+     * 按方法名和参数个数解析方法句柄，用于参数类型包含隐藏类、随系统版本变化的方法
+     * 同名同参数个数的方法不止一个时无法确定，返回不可用的句柄
+     *
+     * @param type       方法所在的类，会继续在父类中查找
+     * @param name       方法名
+     * @param paramCount 参数个数
+     * @return 方法句柄，不会返回null
+     */
+    public static MethodRef resolveMethod(Class<?> type, String name, int paramCount) {
+        MemberKey key = new MemberKey(type, name + "/" + paramCount, null);
+        MethodRef ref = sMethodRefs.get(key);
+        if (ref == null) {
+            Method found = null;
+            boolean ambiguous = false;
+            Class<?> current = type;
+            do {
+                try {
+                    for (Method method : current.getDeclaredMethods()) {
+                        if (method.getName().equals(name) && method.getParameterTypes().length == paramCount) {
+                            if (found != null) {
+                                ambiguous = true;
+                            }
+                            found = method;
+                        }
+                    }
+                } catch (NoClassDefFoundError e) {
+                    ErrorUtil.throwErrorIfNeed(e);
+                }
+                current = current.getSuperclass();
+            } while (found == null && current != null);
+            ref = new MethodRef(type, name, found != null && !ambiguous ? accessible(found) : null);
+            MethodRef prev = sMethodRefs.putIfAbsent(key, ref);
+            if (prev != null) {
+                ref = prev;
+            }
+        }
+        return ref;
+    }
+
+    /**
+     * 解析构造函数句柄，结果按类和参数类型缓存
+     *
+     * @param type       构造的类
+     * @param paramTypes 参数类型
+     * @return 构造函数句柄，不会返回null
+     */
+    public static ConstructorRef resolveConstructor(Class<?> type, Class<?>... paramTypes) {
+        MemberKey key = new MemberKey(type, "<init>", paramTypes);
+        ConstructorRef ref = sConstructorRefs.get(key);
+        if (ref == null) {
+            Constructor<?> constructor = null;
+            try {
+                constructor = accessible(type.getDeclaredConstructor(key.paramTypes));
+            } catch (NoSuchMethodException ignore) {
+                /* ignore */
+            }
+            ref = new ConstructorRef(type, constructor);
+            ConstructorRef prev = sConstructorRefs.putIfAbsent(key, ref);
+            if (prev != null) {
+                ref = prev;
+            }
+        }
+        return ref;
+    }
+
+    /**
+     * 解析字段句柄，结果按类和字段名缓存
+     *
+     * @param type 字段所在的类，会继续在父类中查找
+     * @param name 字段名
+     * @return 字段句柄，不会返回null
+     */
+    public static FieldRef resolveField(Class<?> type, String name) {
+        MemberKey key = new MemberKey(type, name, null);
+        FieldRef ref = sFieldRefs.get(key);
+        if (ref == null) {
+            Field field = null;
+            try {
+                field = findField(type, name);
+            } catch (ReflectException ignore) {
+                /* ignore */
+            }
+            ref = new FieldRef(type, name, field);
+            FieldRef prev = sFieldRefs.putIfAbsent(key, ref);
+            if (prev != null) {
+                ref = prev;
+            }
+        }
+        return ref;
+    }
+
+    /**
+     * 预解析的方法，调用时直接invoke，不再查找和匹配参数
+     */
+    public static final class MethodRef {
+        private final Class<?> mType;
+        private final String mName;
+        private final Method mMethod;
+
+        private MethodRef(Class<?> type, String name, Method method) {
+            mType = type;
+            mName = name;
+            mMethod = method;
+        }
+
+        /**
+         * 当前系统上是否存在这个方法
+         */
+        public boolean isAvailable() {
+            return mMethod != null;
+        }
+
+        /**
+         * 调用方法
+         *
+         * @param receiver 调用的对象，静态方法传null
+         * @param args     方法参数
+         * @return 方法的返回值
+         * @throws ReflectException 方法不存在或者调用失败
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T invoke(Object receiver, Object... args) throws ReflectException {
+            if (mMethod == null) {
+                throw new ReflectException("No method " + mName + " could be found on type " + mType + ".");
+            }
+            try {
+                return (T) mMethod.invoke(receiver, args);
+            } catch (Exception e) {
+                throw new ReflectException(e);
+            }
+        }
+    }
+
+    /**
+     * 预解析的字段
+     */
+    public static final class FieldRef {
+        private final Class<?> mType;
+        private final String mName;
+        private final Field mField;
+
+        private FieldRef(Class<?> type, String name, Field field) {
+            mType = type;
+            mName = name;
+            mField = field;
+        }
+
+        /**
+         * 当前系统上是否存在这个字段
+         */
+        public boolean isAvailable() {
+            return mField != null;
+        }
+
+        /**
+         * 读取字段的值
+         *
+         * @param receiver 字段所在的对象，静态字段传null
+         * @throws ReflectException 字段不存在或者读取失败
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T get(Object receiver) throws ReflectException {
+            if (mField == null) {
+                throw new ReflectException("No field " + mName + " could be found on type " + mType + ".");
+            }
+            try {
+                return (T) mField.get(receiver);
+            } catch (Exception e) {
+                throw new ReflectException(e);
+            }
+        }
+
+        /**
+         * 设置字段的值
+         *
+         * @param receiver 字段所在的对象，静态字段传null
+         * @throws ReflectException 字段不存在或者设置失败
+         */
+        public void set(Object receiver, Object value) throws ReflectException {
+            if (mField == null) {
+                throw new ReflectException("No field " + mName + " could be found on type " + mType + ".");
+            }
+            try {
+                mField.set(receiver, unwrap(value));
+            } catch (Exception e) {
+                throw new ReflectException(e);
+            }
+        }
+    }
+
+    /**
+     * 预解析的构造函数
+     */
+    public static final class ConstructorRef {
+        private final Class<?> mType;
+        private final Constructor<?> mConstructor;
+
+        private ConstructorRef(Class<?> type, Constructor<?> constructor) {
+            mType = type;
+            mConstructor = constructor;
+        }
+
+        /**
+         * 当前系统上是否存在这个构造函数
+         */
+        public boolean isAvailable() {
+            return mConstructor != null;
+        }
+
+        /**
+         * 创建实例
+         *
+         * @throws ReflectException 构造函数不存在或者调用失败
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T newInstance(Object... args) throws ReflectException {
+            if (mConstructor == null) {
+                throw new ReflectException("No constructor could be found on type " + mType + ".");
+            }
+            try {
+                return (T) mConstructor.newInstance(args);
+            } catch (Exception e) {
+                throw new ReflectException(e);
+            }
+        }
+    }
+
+    /**
+     * 句柄缓存的key，由类、成员名和参数类型组成
+     */
+    private static final class MemberKey {
+        final Class<?> type;
+        final String name;
+        final Class<?>[] paramTypes;
+        final int hash;
+
+        MemberKey(Class<?> type, String name, Class<?>[] paramTypes) {
+            this.type = type;
+            this.name = name;
+            this.paramTypes = paramTypes != null ? paramTypes : new Class<?>[0];
+            this.hash = 31 * (31 * type.hashCode() + name.hashCode()) + Arrays.hashCode(this.paramTypes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MemberKey)) {
+                return false;
+            }
+            MemberKey other = (MemberKey) o;
+            return type == other.type && name.equals(other.name)
+                    && Arrays.equals(paramTypes, other.paramTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
     /**
      * 定义了一个NULL类型
      */
@@ -0,0 +1,119 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * 读取apk中resources.arsc的资源表信息
+ * <p>
+ * 资源表由chunk组成，每个chunk以type(u16)、headerSize(u16)、size(u32)开头，小端字节序；
+ * RES_TABLE_TYPE之后依次是全局字符串池和各个RES_TABLE_PACKAGE_TYPE，package chunk头部紧跟package id(u32)
+ */
+public class ResourceTableUtils {
+    private static final String TAG = "ResourceTableUtils";
+    private static final String RESOURCE_TABLE = "resources.arsc";
+    /* 资源表的chunk类型 */
+    private static final int RES_TABLE_TYPE = 0x0002;
+    private static final int RES_TABLE_PACKAGE_TYPE = 0x0200;
+    /* chunk头部的大小，type + headerSize + size */
+    private static final int CHUNK_HEADER_SIZE = 8;
+
+    /**
+     * 读取apk资源表中第一个package的id，插件资源都在这个package中
+     *
+     * @param apkFile 插件apk
+     * @return package id，没有资源表或者格式错误时返回0
+     */
+    public static int readPackageId(File apkFile) {
+        ZipFile zipFile = null;
+        InputStream in = null;
+        try {
+            zipFile = new ZipFile(apkFile);
+            ZipEntry entry = zipFile.getEntry(RESOURCE_TABLE);
+            if (entry == null) {
+                return 0;
+            }
+            in = zipFile.getInputStream(entry);
+            return readPackageId(in);
+        } catch (IOException e) {
+            PluginDebugLog.runtimeFormatLog(TAG, "read package id of %s failed: %s", apkFile.getName(), e);
+            return 0;
+        } finally {
+            FileUtils.closeQuietly(in);
+            FileUtils.closeQuietly(zipFile);
+        }
+    }
+
+    /**
+     * 从resources.arsc的数据流中读取第一个package的id，只读取到package chunk的头部为止
+     */
+    static int readPackageId(InputStream in) throws IOException {
+        int type = readUInt16(in);
+        int headerSize = readUInt16(in);
+        if (type != RES_TABLE_TYPE || headerSize < CHUNK_HEADER_SIZE) {
+            throw new IOException("not a resource table, type " + type);
+        }
+        skipFully(in, headerSize - 4);
+        while (true) {
+            type = readUInt16(in);
+            headerSize = readUInt16(in);
+            long size = readUInt32(in);
+            if (headerSize < CHUNK_HEADER_SIZE || size < headerSize) {
+                throw new IOException("malformed chunk, type " + type + ", size " + size);
+            }
+            if (type == RES_TABLE_PACKAGE_TYPE) {
+                return (int) readUInt32(in);
+            }
+            // 跳过字符串池等其他chunk
+            skipFully(in, size - CHUNK_HEADER_SIZE);
+        }
+    }
+
+    private static int readUInt16(InputStream in) throws IOException {
+        int b0 = in.read();
+        int b1 = in.read();
+        if ((b0 | b1) < 0) {
+            throw new EOFException();
+        }
+        return b0 | (b1 << 8);
+    }
+
+    private static long readUInt32(InputStream in) throws IOException {
+        return readUInt16(in) | ((long) readUInt16(in) << 16);
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                // skip不保证前进，读一个字节判断是否到达结尾
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+}
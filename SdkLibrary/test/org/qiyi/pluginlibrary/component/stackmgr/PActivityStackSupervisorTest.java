@@ -0,0 +1,255 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.component.stackmgr;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.qiyi.pluginlibrary.constant.IntentConstant;
+import org.qiyi.pluginlibrary.pm.PluginPackageInfo;
+import org.qiyi.pluginlibrary.runtime.PluginLoadedApk;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * {@link PActivityStackSupervisor}并发启动和销毁Activity的压力测试，
+ * 插件Activity只记录finish状态，不依赖系统的启动流程
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class PActivityStackSupervisorTest {
+    private static final String PKG_NAME = "com.example.plugin";
+    private static final String HOST_PKG_NAME = "com.example.host";
+    private static final int THREADS = 4;
+    private static final int ACTIVITIES_PER_THREAD = 200;
+    private static final int ROUNDS = 50;
+
+    private ExecutorService mExecutor;
+    private PluginLoadedApk mLoadedApk;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(THREADS + 1);
+        PluginPackageInfo packageInfo = mock(PluginPackageInfo.class);
+        when(packageInfo.getActivityInfo(StandardActivity.class.getName()))
+                .thenReturn(activityInfo(ActivityInfo.LAUNCH_MULTIPLE, PKG_NAME));
+        when(packageInfo.getActivityInfo(SingleTopActivity.class.getName()))
+                .thenReturn(activityInfo(ActivityInfo.LAUNCH_SINGLE_TOP, PKG_NAME));
+        when(packageInfo.getActivityInfo(SingleTaskActivity.class.getName()))
+                .thenReturn(activityInfo(ActivityInfo.LAUNCH_SINGLE_TASK, PKG_NAME + IntentConstant.TASK_AFFINITY_CONTAINER1));
+        when(packageInfo.getActivityInfo(MainTaskActivity.class.getName()))
+                .thenReturn(activityInfo(ActivityInfo.LAUNCH_SINGLE_TASK, PKG_NAME));
+        mLoadedApk = mock(PluginLoadedApk.class);
+        when(mLoadedApk.getPluginPackageName()).thenReturn(PKG_NAME);
+        when(mLoadedApk.getHostPackageName()).thenReturn(HOST_PKG_NAME);
+        when(mLoadedApk.getProcessName()).thenReturn(HOST_PKG_NAME);
+        when(mLoadedApk.getPluginPackageInfo()).thenReturn(packageInfo);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * 并发入栈、出栈，同时按singleTop和clearTop启动，结束后栈中不能残留Activity
+     */
+    @Test
+    public void testConcurrentLaunchAndFinish() throws Exception {
+        final PActivityStackSupervisor supervisor = new PActivityStackSupervisor(mLoadedApk);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            // Activity需要在有Looper的线程中创建
+            final List<Activity> activities = new ArrayList<>();
+            for (int j = 0; j < ACTIVITIES_PER_THREAD; j++) {
+                activities.add(j % 2 == 0 ? new StandardActivity() : new SingleTopActivity());
+            }
+            futures.add(mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    List<Activity> launched = new ArrayList<>();
+                    for (int j = 0; j < ACTIVITIES_PER_THREAD; j++) {
+                        Activity activity = activities.get(j);
+                        supervisor.pushActivityToStack(activity);
+                        launched.add(activity);
+                        if (j % 3 == 2) {
+                            // 按后进先出销毁一部分
+                            finish(supervisor, launched.remove(launched.size() - 1));
+                        }
+                    }
+                    for (Activity activity : launched) {
+                        finish(supervisor, activity);
+                    }
+                    return null;
+                }
+            }));
+        }
+        futures.add(mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                start.await();
+                for (int j = 0; j < ACTIVITIES_PER_THREAD; j++) {
+                    supervisor.dealLaunchMode(launchIntent(SingleTopActivity.class, 0));
+                    supervisor.dealLaunchMode(launchIntent(StandardActivity.class, Intent.FLAG_ACTIVITY_CLEAR_TOP));
+                }
+                return null;
+            }
+        }));
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        assertFalse(supervisor.hasActivityRunning());
+        assertEquals(null, supervisor.getTopActivity());
+    }
+
+    /**
+     * 从后台栈启动singleTask的Activity会合并前后台栈，合并期间入栈的Activity不能丢失
+     */
+    @Test
+    public void testMergeKeepsConcurrentlyPushedActivities() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            final PActivityStackSupervisor supervisor = new PActivityStackSupervisor(mLoadedApk);
+            Activity first = new StandardActivity();
+            supervisor.pushActivityToStack(first);
+            // singleTask的Activity放到单独的任务栈
+            supervisor.dealLaunchMode(launchIntent(SingleTaskActivity.class, 0));
+            Activity singleTask = new SingleTaskActivity();
+            supervisor.pushActivityToStack(singleTask);
+            // 切回插件默认的任务栈，singleTask所在的栈成为后台栈
+            supervisor.dealLaunchMode(launchIntent(MainTaskActivity.class, 0));
+            assertSame(first, supervisor.getTopActivity());
+
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<List<Activity>>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                final List<Activity> activities = new ArrayList<>();
+                for (int j = 0; j < ACTIVITIES_PER_THREAD / 10; j++) {
+                    activities.add(new StandardActivity());
+                }
+                futures.add(mExecutor.submit(new Callable<List<Activity>>() {
+                    @Override
+                    public List<Activity> call() throws Exception {
+                        start.await();
+                        for (Activity activity : activities) {
+                            supervisor.pushActivityToStack(activity);
+                        }
+                        return activities;
+                    }
+                }));
+            }
+            start.countDown();
+            Intent intent = launchIntent(SingleTaskActivity.class, 0);
+            supervisor.dealLaunchMode(intent);
+            assertEquals(Intent.FLAG_ACTIVITY_CLEAR_TOP, intent.getFlags() & Intent.FLAG_ACTIVITY_CLEAR_TOP);
+
+            List<Activity> expected = new ArrayList<>();
+            expected.add(first);
+            expected.add(singleTask);
+            for (Future<List<Activity>> future : futures) {
+                expected.addAll(future.get());
+            }
+            for (Activity activity : expected) {
+                assertFalse(activity.isFinishing());
+                assertTrue("activity lost after merge", supervisor.popActivityFromStack(activity));
+            }
+            // 每个Activity只出栈一次，有重复时栈中会有残留
+            assertFalse(supervisor.hasActivityRunning());
+        }
+    }
+
+    private static void finish(PActivityStackSupervisor supervisor, Activity activity) {
+        activity.finish();
+        supervisor.popActivityFromStack(activity);
+    }
+
+    private static Intent launchIntent(Class<? extends Activity> target, int flags) {
+        Intent intent = new Intent();
+        intent.putExtra(IntentConstant.EXTRA_TARGET_PACKAGE_KEY, PKG_NAME);
+        intent.putExtra(IntentConstant.EXTRA_TARGET_CLASS_KEY, target.getName());
+        intent.setFlags(flags);
+        return intent;
+    }
+
+    private static ActivityInfo activityInfo(int launchMode, String taskAffinity) {
+        ActivityInfo info = new ActivityInfo();
+        info.launchMode = launchMode;
+        info.taskAffinity = taskAffinity;
+        return info;
+    }
+
+    /**
+     * 插件Activity，只记录是否finish
+     */
+    public static class TestActivity extends Activity {
+        private volatile boolean mFinished;
+
+        TestActivity() {
+            setIntent(launchIntent(getClass(), 0));
+        }
+
+        @Override
+        public void finish() {
+            mFinished = true;
+        }
+
+        @Override
+        public boolean isFinishing() {
+            return mFinished;
+        }
+
+        @Override
+        public boolean isDestroyed() {
+            return false;
+        }
+    }
+
+    public static class StandardActivity extends TestActivity {
+    }
+
+    public static class SingleTopActivity extends TestActivity {
+    }
+
+    public static class SingleTaskActivity extends TestActivity {
+    }
+
+    public static class MainTaskActivity extends TestActivity {
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.component.wraper;
+
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link ResourcesProxy}按资源id路由的基准测试，对比package id未知时先查插件再回退到宿主，
+ * 和已知插件package id时直接路由，分别测量宿主资源、插件资源、插件和宿主中都不存在的资源，
+ * 以及插件AssetManager中命中的系统资源
+ * <p>
+ * 默认跳过，通过 -Dneptune.benchmark=true 运行
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class ResourcesProxyBenchmark {
+    private static final int HOST_STRING_ID = 0x7f0e0001;
+    private static final int MISSING_HOST_STRING_ID = 0x7f0effff;
+    /* 插件资源，测试用的插件AssetManager中不存在，查找失败时不应该再回退到宿主 */
+    private static final int PLUGIN_STRING_ID = 0x700e0001;
+    private static final int PLUGIN_PACKAGE_ID = 0x70;
+    private static final int LOOKUPS = 20000;
+    private static final int ROUNDS = 7;
+
+    private Resources mHostResources;
+    private AssetManager mPluginAssets;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("neptune.benchmark"));
+        final Resources base = RuntimeEnvironment.application.getResources();
+        mHostResources = new Resources(base.getAssets(), base.getDisplayMetrics(), base.getConfiguration()) {
+            @Override
+            public String getString(int id) throws NotFoundException {
+                if (id == HOST_STRING_ID) {
+                    return "host";
+                }
+                throw new NotFoundException("String resource ID #0x" + Integer.toHexString(id));
+            }
+        };
+        // 只包含系统资源的AssetManager，插件中找不到宿主资源
+        mPluginAssets = AssetManager.class.newInstance();
+    }
+
+    @Test
+    public void benchmarkHostLookup() {
+        report("host id, unknown package id", measure(createProxy(0), HOST_STRING_ID));
+        report("host id, plugin package id", measure(createProxy(PLUGIN_PACKAGE_ID), HOST_STRING_ID));
+    }
+
+    @Test
+    public void benchmarkPluginLookup() {
+        report("plugin id, unknown package id", measure(createProxy(0), PLUGIN_STRING_ID));
+        report("plugin id, plugin package id", measure(createProxy(PLUGIN_PACKAGE_ID), PLUGIN_STRING_ID));
+        report("system id, unknown package id", measure(createProxy(0), android.R.string.ok));
+        report("system id, plugin package id", measure(createProxy(PLUGIN_PACKAGE_ID), android.R.string.ok));
+    }
+
+    @Test
+    public void benchmarkMissingLookup() {
+        report("missing id, unknown package id", measure(createProxy(0), MISSING_HOST_STRING_ID));
+        report("missing id, plugin package id", measure(createProxy(PLUGIN_PACKAGE_ID), MISSING_HOST_STRING_ID));
+    }
+
+    private ResourcesProxy createProxy(int pluginPackageId) {
+        Resources base = RuntimeEnvironment.application.getResources();
+        return new ResourcesProxy(mPluginAssets, base.getDisplayMetrics(), base.getConfiguration(),
+                mHostResources, "com.example.plugin", pluginPackageId);
+    }
+
+    private static long[] measure(ResourcesProxy proxy, int id) {
+        // 第一轮预热，同时确认查找结果
+        int found = lookup(proxy, id);
+        assertEquals(id == PLUGIN_STRING_ID || id == MISSING_HOST_STRING_ID ? 0 : LOOKUPS, found);
+        long[] costs = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            lookup(proxy, id);
+            costs[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(costs);
+        return costs;
+    }
+
+    /**
+     * @return 找到资源的次数
+     */
+    private static int lookup(ResourcesProxy proxy, int id) {
+        int found = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            try {
+                if (proxy.getString(id) != null) {
+                    found++;
+                }
+            } catch (Resources.NotFoundException e) {
+                // 插件资源或者不存在的资源
+            }
+        }
+        return found;
+    }
+
+    private static void report(String name, long[] costs) {
+        System.out.println(String.format(Locale.US, "%-32s median=%.0f ns/lookup, min=%.0f ns/lookup",
+                name, (double) costs[costs.length / 2] / LOOKUPS, (double) costs[0] / LOOKUPS));
+    }
+}
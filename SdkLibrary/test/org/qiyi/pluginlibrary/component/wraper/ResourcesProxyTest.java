@@ -0,0 +1,141 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.component.wraper;
+
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link ResourcesProxy}按资源的package id在插件和宿主之间路由
+ * <p>
+ * 插件的AssetManager只包含系统资源，宿主Resources记录每次查找的id
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class ResourcesProxyTest {
+    private static final int HOST_STRING_ID = 0x7f0e0001;
+    private static final int MISSING_HOST_STRING_ID = 0x7f0effff;
+    private static final int PLUGIN_STRING_ID = 0x700e0001;
+    private static final int PLUGIN_PACKAGE_ID = 0x70;
+
+    private final List<Integer> mHostLookups = new ArrayList<>();
+    private Resources mHostResources;
+    private AssetManager mPluginAssets;
+
+    @Before
+    public void setUp() throws Exception {
+        final Resources base = RuntimeEnvironment.application.getResources();
+        mHostResources = new Resources(base.getAssets(), base.getDisplayMetrics(), base.getConfiguration()) {
+            @Override
+            public String getString(int id) throws NotFoundException {
+                mHostLookups.add(id);
+                if (id == HOST_STRING_ID) {
+                    return "host";
+                }
+                throw new NotFoundException("String resource ID #0x" + Integer.toHexString(id));
+            }
+        };
+        mPluginAssets = AssetManager.class.newInstance();
+    }
+
+    @Test
+    public void testHostIdGoesToHost() {
+        assertEquals("host", createProxy(PLUGIN_PACKAGE_ID).getString(HOST_STRING_ID));
+        assertEquals(1, mHostLookups.size());
+    }
+
+    /**
+     * 插件资源在插件中找不到时直接失败，不再查找宿主
+     */
+    @Test
+    public void testPluginIdDoesNotFallBackToHost() {
+        assertNotFound(createProxy(PLUGIN_PACKAGE_ID), PLUGIN_STRING_ID);
+        assertTrue(mHostLookups.isEmpty());
+    }
+
+    /**
+     * 系统资源只从插件的AssetManager中查找
+     */
+    @Test
+    public void testSystemIdStaysInPlugin() {
+        assertNotNull(createProxy(PLUGIN_PACKAGE_ID).getString(android.R.string.ok));
+        assertNotNull(createProxy(0).getString(android.R.string.ok));
+        assertTrue(mHostLookups.isEmpty());
+    }
+
+    @Test
+    public void testMissingHostIdSearchesHostOnce() {
+        assertNotFound(createProxy(PLUGIN_PACKAGE_ID), MISSING_HOST_STRING_ID);
+        assertEquals(1, mHostLookups.size());
+    }
+
+    /**
+     * package id未知时先查插件，找不到再回退到宿主
+     */
+    @Test
+    public void testUnknownPackageIdFallsBackToHost() {
+        ResourcesProxy proxy = createProxy(0);
+        assertEquals("host", proxy.getString(HOST_STRING_ID));
+        assertNotFound(proxy, PLUGIN_STRING_ID);
+        assertEquals(2, mHostLookups.size());
+    }
+
+    /**
+     * 插件和宿主都使用0x7f时无法按id区分，先查插件再回退到宿主
+     */
+    @Test
+    public void testPluginUsingHostPackageIdFallsBackToHost() {
+        ResourcesProxy proxy = createProxy(0x7f);
+        assertEquals("host", proxy.getString(HOST_STRING_ID));
+        assertNotFound(proxy, MISSING_HOST_STRING_ID);
+        assertEquals(2, mHostLookups.size());
+        // 其他package id的资源也不能认为只属于插件
+        assertNotFound(proxy, PLUGIN_STRING_ID);
+        assertEquals(3, mHostLookups.size());
+    }
+
+    private ResourcesProxy createProxy(int pluginPackageId) {
+        Resources base = RuntimeEnvironment.application.getResources();
+        return new ResourcesProxy(mPluginAssets, base.getDisplayMetrics(), base.getConfiguration(),
+                mHostResources, "com.example.plugin", pluginPackageId);
+    }
+
+    private static void assertNotFound(ResourcesProxy proxy, int id) {
+        try {
+            proxy.getString(id);
+            fail("resource 0x" + Integer.toHexString(id) + " should not be found");
+        } catch (Resources.NotFoundException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.install;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.qiyi.pluginlibrary.error.ErrorType;
+import org.qiyi.pluginlibrary.pm.PluginLiteInfo;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.qiyi.pluginlibrary.install.PluginInstallPipeline.STAGE_COMMIT;
+import static org.qiyi.pluginlibrary.install.PluginInstallPipeline.STAGE_COPY;
+import static org.qiyi.pluginlibrary.install.PluginInstallPipeline.STAGE_DEXOPT;
+import static org.qiyi.pluginlibrary.install.PluginInstallPipeline.STAGE_NATIVE_LIB;
+
+/**
+ * {@link PluginInstallPipeline}同一个插件的安装顺序、安装与卸载的互斥以及插件锁的回收
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class PluginInstallPipelineTest {
+    private static final int JOBS = 20;
+
+    /**
+     * 同一个插件的安装按提交顺序串行执行，不同插件之间不受影响
+     */
+    @Test
+    public void testJobsOfSamePackageRunInOrder() throws Exception {
+        PluginInstallPipeline pipeline = PluginInstallPipeline.getInstance();
+        final List<String> finished = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(JOBS * 2);
+        for (int i = 0; i < JOBS; i++) {
+            for (final String pkg : new String[]{"com.example.order.a", "com.example.order.b"}) {
+                final String name = pkg + "#" + i;
+                pipeline.submit(new TestJob(pkg, STAGE_COPY, STAGE_NATIVE_LIB, STAGE_DEXOPT, STAGE_COMMIT) {
+                    @Override
+                    boolean runStage(int stage) {
+                        if (pkg.endsWith("a")) {
+                            if (stage == STAGE_COPY && running.incrementAndGet() > 1) {
+                                overlapped.set(true);
+                            }
+                            sleep(1);
+                            if (stage == STAGE_COMMIT) {
+                                running.decrementAndGet();
+                            }
+                        }
+                        if (stage == STAGE_COMMIT) {
+                            finished.add(name);
+                            done.countDown();
+                        }
+                        return true;
+                    }
+                });
+            }
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertFalse("jobs of the same package overlapped", overlapped.get());
+        List<String> orderA = new ArrayList<>();
+        List<String> orderB = new ArrayList<>();
+        for (String name : finished) {
+            (name.startsWith("com.example.order.a") ? orderA : orderB).add(name);
+        }
+        for (int i = 0; i < JOBS; i++) {
+            assertEquals("com.example.order.a#" + i, orderA.get(i));
+            assertEquals("com.example.order.b#" + i, orderB.get(i));
+        }
+    }
+
+    /**
+     * 卸载等待正在执行的安装阶段结束，卸载完成之后不会再有安装阶段执行
+     */
+    @Test
+    public void testUninstallWaitsForRunningStage() throws Exception {
+        PluginInstallPipeline pipeline = PluginInstallPipeline.getInstance();
+        final String pkg = "com.example.uninstall";
+        final CountDownLatch stageEntered = new CountDownLatch(1);
+        final CountDownLatch releaseStage = new CountDownLatch(1);
+        final CountDownLatch jobFinished = new CountDownLatch(1);
+        final AtomicBoolean deleted = new AtomicBoolean();
+        final AtomicBoolean stageAfterDelete = new AtomicBoolean();
+        pipeline.submit(new TestJob(pkg, STAGE_COPY, STAGE_DEXOPT, STAGE_COMMIT) {
+            @Override
+            boolean runStage(int stage) {
+                if (deleted.get()) {
+                    stageAfterDelete.set(true);
+                }
+                if (stage == STAGE_COPY) {
+                    stageEntered.countDown();
+                    await(releaseStage);
+                } else if (stage == STAGE_COMMIT) {
+                    jobFinished.countDown();
+                }
+                return true;
+            }
+
+            @Override
+            void onAborted(int failReason) {
+                jobFinished.countDown();
+            }
+        });
+        assertTrue(stageEntered.await(10, TimeUnit.SECONDS));
+
+        final CountDownLatch deleteDone = new CountDownLatch(1);
+        Thread uninstall = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                PluginLiteInfo info = new PluginLiteInfo();
+                info.packageName = pkg;
+                PluginUninstaller.deleteInstallerPackage(RuntimeEnvironment.application, info);
+                deleted.set(true);
+                deleteDone.countDown();
+            }
+        });
+        uninstall.start();
+        assertFalse("uninstall ran during install stage", deleteDone.await(200, TimeUnit.MILLISECONDS));
+
+        releaseStage.countDown();
+        assertTrue(deleteDone.await(10, TimeUnit.SECONDS));
+        assertTrue(jobFinished.await(10, TimeUnit.SECONDS));
+        assertFalse("install stage ran after uninstall", stageAfterDelete.get());
+    }
+
+    /**
+     * 两个阶段之间插件被卸载，后续阶段被终止
+     */
+    @Test
+    public void testDeleteBetweenStagesCancelsInstall() throws Exception {
+        final PluginInstallPipeline pipeline = PluginInstallPipeline.getInstance();
+        final String pkg = "com.example.cancel";
+        final CountDownLatch aborted = new CountDownLatch(1);
+        final AtomicInteger abortReason = new AtomicInteger();
+        final List<Integer> stagesRun = Collections.synchronizedList(new ArrayList<Integer>());
+        pipeline.submit(new TestJob(pkg, STAGE_COPY, STAGE_DEXOPT, STAGE_COMMIT) {
+            @Override
+            boolean runStage(int stage) {
+                stagesRun.add(stage);
+                if (stage == STAGE_COPY) {
+                    // 与卸载相同，在插件的锁内标记删除
+                    synchronized (pipeline.getPackageLock(pkg)) {
+                        pipeline.onPackageDeleted(pkg);
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            void onAborted(int failReason) {
+                abortReason.set(failReason);
+                aborted.countDown();
+            }
+        });
+        assertTrue(aborted.await(10, TimeUnit.SECONDS));
+        assertEquals(ErrorType.INSTALL_ERROR_CANCELED, abortReason.get());
+        assertEquals(Collections.singletonList(STAGE_COPY), new ArrayList<>(stagesRun));
+    }
+
+    /**
+     * 没有线程使用的插件锁可以被回收
+     */
+    @Test
+    public void testPackageLocksAreReleased() throws Exception {
+        PluginInstallPipeline pipeline = PluginInstallPipeline.getInstance();
+        Object held = pipeline.getPackageLock("com.example.lock.held");
+        for (int i = 0; i < 1000; i++) {
+            pipeline.getPackageLock("com.example.lock." + i);
+        }
+        for (int i = 0; i < 50 && pipeline.getPackageLockCount() > 100; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertTrue("locks not released: " + pipeline.getPackageLockCount(), pipeline.getPackageLockCount() <= 100);
+        // 仍在使用的锁不会被替换
+        System.gc();
+        assertTrue(held == pipeline.getPackageLock("com.example.lock.held"));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private abstract static class TestJob extends PluginInstallPipeline.InstallJob {
+        TestJob(String packageName, int... stages) {
+            super(packageName, stages);
+        }
+
+        @Override
+        void onAborted(int failReason) {
+        }
+    }
+}
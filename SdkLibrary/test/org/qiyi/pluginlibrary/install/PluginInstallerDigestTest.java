@@ -0,0 +1,142 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.install;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.PackageManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.qiyi.pluginlibrary.error.ErrorType;
+import org.qiyi.pluginlibrary.pm.PluginLiteInfo;
+import org.qiyi.pluginlibrary.utils.FileUtils;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * 插件摘要校验，摘要不匹配的文件在解析之前失败
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class PluginInstallerDigestTest {
+    private static final String PKG_NAME = "com.example.digest";
+
+    private PackageManager mPackageManager;
+    private Context mContext;
+    private File mSourceFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mPackageManager = mock(PackageManager.class);
+        mContext = new ContextWrapper(RuntimeEnvironment.application) {
+            @Override
+            public PackageManager getPackageManager() {
+                return mPackageManager;
+            }
+        };
+        File srcDir = new File(RuntimeEnvironment.application.getCacheDir(), "digest");
+        srcDir.mkdirs();
+        mSourceFile = new File(srcDir, PKG_NAME + ".apk");
+        FileOutputStream fos = new FileOutputStream(mSourceFile);
+        try {
+            fos.write("not a real apk".getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+    }
+
+    @Test
+    public void testVerifyDigest() throws Exception {
+        String digest = FileUtils.digest(mSourceFile, MessageDigest.getInstance("SHA-256"));
+        assertTrue(PluginInstaller.verifyDigest(PKG_NAME, digest, digest));
+        // 不区分大小写
+        assertTrue(PluginInstaller.verifyDigest(PKG_NAME, digest.toUpperCase(), digest));
+        // 没有指定摘要时不校验
+        assertTrue(PluginInstaller.verifyDigest(PKG_NAME, "", null));
+        assertTrue(PluginInstaller.verifyDigest(PKG_NAME, null, digest));
+        assertFalse(PluginInstaller.verifyDigest(PKG_NAME, digest, null));
+        assertFalse(PluginInstaller.verifyDigest(PKG_NAME, digest, (digest.charAt(0) == '0' ? "1" : "0") + digest.substring(1)));
+    }
+
+    /**
+     * 本地文件的摘要不匹配时，不调用PackageManager解析
+     */
+    @Test
+    public void testDigestMismatchFailsBeforeParse() throws Exception {
+        String digest = FileUtils.digest(mSourceFile, MessageDigest.getInstance("SHA-256"));
+        String corrupted = (digest.charAt(0) == '0' ? "1" : "0") + digest.substring(1);
+        int failReason = install(corrupted);
+        assertEquals(ErrorType.INSTALL_ERROR_APK_DIGEST_NOT_MATCH, failReason);
+        verify(mPackageManager, never()).getPackageArchiveInfo(anyString(), anyInt());
+        assertTrue(mSourceFile.exists());
+    }
+
+    /**
+     * 摘要匹配时继续解析，测试文件不是合法的apk，解析失败
+     */
+    @Test
+    public void testDigestMatchContinuesToParse() throws Exception {
+        String digest = FileUtils.digest(mSourceFile, MessageDigest.getInstance("SHA-256"));
+        int failReason = install(digest);
+        assertEquals(ErrorType.INSTALL_ERROR_APK_PARSE_FAILED, failReason);
+        verify(mPackageManager).getPackageArchiveInfo(anyString(), anyInt());
+    }
+
+    private int install(String apkDigest) throws Exception {
+        PluginLiteInfo info = new PluginLiteInfo();
+        info.packageName = PKG_NAME;
+        info.pluginVersion = "1.0";
+        info.apkDigest = apkDigest;
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger failReason = new AtomicInteger(ErrorType.SUCCESS);
+        PluginInstaller.handleInstall(mContext, PluginInstaller.SCHEME_FILE + mSourceFile.getAbsolutePath(),
+                info, false, new IInstallCallBack.Stub() {
+                    @Override
+                    public void onPackageInstalled(PluginLiteInfo info) {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onPackageInstallFail(PluginLiteInfo info, int reason) {
+                        failReason.set(reason);
+                        done.countDown();
+                    }
+                }, null);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        return failReason.get();
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.install;
+
+import android.content.Intent;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.qiyi.pluginlibrary.constant.IntentConstant;
+import org.qiyi.pluginlibrary.pm.PluginLiteInfo;
+import org.qiyi.pluginlibrary.pm.PluginPackageManager;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowService;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link PluginInstallerService}批量处理排队的请求、空闲退出以及请求分发耗时的统计
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class PluginInstallerServiceTest {
+    private PluginInstallerService mService;
+
+    @Before
+    public void setUp() {
+        mService = Robolectric.buildService(PluginInstallerService.class).create().get();
+        InstallDispatchStats.reset();
+    }
+
+    @Test
+    public void testColdDispatch() {
+        assertTrue(PluginInstallerService.isColdDispatch(100L, 200L));
+        assertFalse(PluginInstallerService.isColdDispatch(300L, 200L));
+        // 没有请求时间时不统计
+        assertFalse(PluginInstallerService.isColdDispatch(0L, 200L));
+    }
+
+    @Test
+    public void testDispatchStats() {
+        InstallDispatchStats.record(true, 300L);
+        InstallDispatchStats.record(true, 500L);
+        InstallDispatchStats.record(false, 10L);
+        InstallDispatchStats.record(false, -1L);
+        assertEquals(2, InstallDispatchStats.getCount(true));
+        assertEquals(400L, InstallDispatchStats.getAverageCost(true));
+        assertEquals(500L, InstallDispatchStats.getMaxCost(true));
+        assertEquals(1, InstallDispatchStats.getCount(false));
+        assertEquals(10L, InstallDispatchStats.getAverageCost(false));
+    }
+
+    /**
+     * 处理线程忙时到达的请求在同一条消息中一起处理
+     */
+    @Test
+    public void testQueuedRequestsHandledInOneBatch() throws Exception {
+        Handler handler = new Handler(mService.mServiceLooper);
+        final CountDownLatch release = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                await(release);
+            }
+        });
+        for (int startId = 1; startId <= 3; startId++) {
+            mService.onStartCommand(warmUpIntent(), 0, startId);
+        }
+        release.countDown();
+        awaitIdle(handler);
+        assertEquals(3, mService.mLastBatchSize);
+
+        mService.onStartCommand(warmUpIntent(), 0, 4);
+        awaitIdle(handler);
+        assertEquals(1, mService.mLastBatchSize);
+    }
+
+    /**
+     * 安装结果广播带回请求的分发耗时，发起请求的进程汇总
+     */
+    @Test
+    public void testInstallResultCarriesDispatchCost() throws Exception {
+        PluginLiteInfo info = new PluginLiteInfo();
+        info.packageName = "com.example.dispatch";
+        info.pluginVersion = "1.0";
+        File missing = new File(RuntimeEnvironment.application.getCacheDir(), "missing.apk");
+        Intent intent = new Intent(PluginInstallerService.ACTION_INSTALL);
+        intent.putExtra(IntentConstant.EXTRA_SRC_FILE, PluginInstaller.SCHEME_FILE + missing.getAbsolutePath());
+        intent.putExtra(IntentConstant.EXTRA_PLUGIN_INFO, info);
+        intent.putExtra(IntentConstant.EXTRA_REQUEST_TIME, SystemClock.elapsedRealtime());
+        mService.onStartCommand(intent, 0, 1);
+
+        Intent result = null;
+        for (int i = 0; i < 100 && result == null; i++) {
+            Thread.sleep(50);
+            result = findBroadcast(PluginPackageManager.ACTION_PACKAGE_INSTALLFAIL);
+        }
+        assertTrue("no install result broadcast", result != null);
+        assertTrue(result.getLongExtra(IntentConstant.EXTRA_DISPATCH_COST, -1L) >= 0);
+        assertTrue(result.hasExtra(IntentConstant.EXTRA_DISPATCH_COLD));
+    }
+
+    /**
+     * 空闲超时之后以最近一次的startId退出，Robolectric的时钟不会自动前进，由测试推进
+     */
+    @Test
+    public void testQuitWhenIdle() throws Exception {
+        Handler handler = new Handler(mService.mServiceLooper);
+        Intent intent = warmUpIntent();
+        intent.putExtra(IntentConstant.EXTRA_IDLE_TIMEOUT, 100L);
+        mService.onStartCommand(intent, 0, 1);
+        mService.onStartCommand(intent, 0, 2);
+        awaitIdle(handler);
+        assertFalse(shadow().isStoppedBySelf());
+
+        advanceClock(handler, 150);
+        assertTrue(shadow().isStoppedBySelf());
+        assertEquals(2, shadow().getStopSelfResultId());
+    }
+
+    /**
+     * 等待退出期间收到新的请求，重新计算空闲时间
+     */
+    @Test
+    public void testNewRequestPostponesQuit() throws Exception {
+        Handler handler = new Handler(mService.mServiceLooper);
+        Intent intent = warmUpIntent();
+        intent.putExtra(IntentConstant.EXTRA_IDLE_TIMEOUT, 600L);
+        mService.onStartCommand(intent, 0, 1);
+        awaitIdle(handler);
+        advanceClock(handler, 300);
+        mService.onStartCommand(intent, 0, 2);
+        awaitIdle(handler);
+        // 超过第一次请求的空闲时间，但还没有超过第二次的
+        advanceClock(handler, 450);
+        assertFalse(shadow().isStoppedBySelf());
+
+        advanceClock(handler, 200);
+        assertTrue(shadow().isStoppedBySelf());
+        assertEquals(2, shadow().getStopSelfResultId());
+    }
+
+    /**
+     * 常驻待命时空闲也不退出
+     */
+    @Test
+    public void testWarmStandbyKeepsRunning() throws Exception {
+        Handler handler = new Handler(mService.mServiceLooper);
+        Intent intent = warmUpIntent();
+        intent.putExtra(IntentConstant.EXTRA_IDLE_TIMEOUT, 100L);
+        intent.putExtra(IntentConstant.EXTRA_WARM_STANDBY, true);
+        mService.onStartCommand(intent, 0, 1);
+        awaitIdle(handler);
+        advanceClock(handler, 1000);
+        assertFalse(shadow().isStoppedBySelf());
+    }
+
+    private ShadowService shadow() {
+        return Shadow.extract(mService);
+    }
+
+    private static Intent warmUpIntent() {
+        return new Intent(PluginInstallerService.ACTION_WARM_UP);
+    }
+
+    /**
+     * 推进时钟并等待处理线程处理到期的消息
+     */
+    private static void advanceClock(Handler handler, long millis) throws InterruptedException {
+        ShadowSystemClock.advanceBy(millis, TimeUnit.MILLISECONDS);
+        awaitIdle(handler);
+    }
+
+    private static Intent findBroadcast(String action) {
+        ShadowApplication application = Shadow.extract(RuntimeEnvironment.application);
+        List<Intent> intents = application.getBroadcastIntents();
+        for (Intent intent : intents) {
+            if (action.equals(intent.getAction())) {
+                return intent;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 等待处理线程处理完已经提交的消息
+     */
+    private static void awaitIdle(Handler handler) throws InterruptedException {
+        final CountDownLatch idle = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                idle.countDown();
+            }
+        });
+        assertTrue(idle.await(10, TimeUnit.SECONDS));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
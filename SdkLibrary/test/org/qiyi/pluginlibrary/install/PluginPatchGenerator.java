@@ -0,0 +1,192 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.install;
+
+import org.qiyi.pluginlibrary.utils.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.qiyi.pluginlibrary.install.PluginPatcher.BUFFER_SIZE;
+import static org.qiyi.pluginlibrary.install.PluginPatcher.FORMAT_VERSION;
+import static org.qiyi.pluginlibrary.install.PluginPatcher.MAGIC;
+import static org.qiyi.pluginlibrary.install.PluginPatcher.OP_COPY;
+import static org.qiyi.pluginlibrary.install.PluginPatcher.OP_END;
+import static org.qiyi.pluginlibrary.install.PluginPatcher.OP_INSERT;
+
+/**
+ * 生成{@link PluginPatcher}格式的插件差分包，用于测试差分包的合成
+ * <p>
+ * 基础版本apk按固定大小分块建立滚动哈希索引，顺序扫描新版本apk，命中的块向前后扩展成最长的相同区间，
+ * 输出为OP_COPY；没有命中的数据输出为OP_INSERT。apk中未变化的zip entry字节完全一致，都会被识别为拷贝。
+ * 生成时两个apk都完整读入内存，只在测试中使用，不打包到SDK中
+ */
+final class PluginPatchGenerator {
+    /* 基础版本apk索引的块大小，越小能识别的相同区间越短，索引越大 */
+    static final int BLOCK_SIZE = 256;
+    /* 滚动哈希的乘数 */
+    private static final int PRIME = 31;
+
+    private PluginPatchGenerator() {
+    }
+
+    /**
+     * 生成差分包
+     *
+     * @param baseApk   已安装的基础版本apk
+     * @param targetApk 新版本apk
+     * @param patchFile 输出的差分包
+     * @throws IOException 读写失败
+     */
+    static void generate(File baseApk, File targetApk, File patchFile) throws IOException {
+        byte[] base = readAll(baseApk);
+        byte[] target = readAll(targetApk);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(patchFile), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(base.length);
+            out.writeLong(target.length);
+            out.flush();
+            // 头部之后的指令流是压缩的
+            DataOutputStream ops = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(out, deflater), BUFFER_SIZE));
+            out = ops;
+            writeOps(base, target, ops);
+            ops.writeByte(OP_END);
+            ops.close();
+            out = null;
+        } finally {
+            FileUtils.closeQuietly(out);
+            deflater.end();
+        }
+    }
+
+    private static void writeOps(byte[] base, byte[] target, DataOutputStream ops) throws IOException {
+        Map<Integer, Integer> index = indexBlocks(base);
+        int highPower = power(BLOCK_SIZE - 1);
+        int insertStart = 0;
+        int pos = 0;
+        int hash = target.length >= BLOCK_SIZE ? hash(target, 0) : 0;
+        while (pos + BLOCK_SIZE <= target.length) {
+            Integer offset = index.get(hash);
+            if (offset != null && regionEquals(base, offset, target, pos, BLOCK_SIZE)) {
+                // 向前扩展到未输出的插入数据中，向后扩展到不再相同为止
+                int start = pos;
+                int baseStart = offset;
+                while (start > insertStart && baseStart > 0 && base[baseStart - 1] == target[start - 1]) {
+                    start--;
+                    baseStart--;
+                }
+                int end = pos + BLOCK_SIZE;
+                int baseEnd = offset + BLOCK_SIZE;
+                while (end < target.length && baseEnd < base.length && base[baseEnd] == target[end]) {
+                    end++;
+                    baseEnd++;
+                }
+                writeInsert(ops, target, insertStart, start);
+                ops.writeByte(OP_COPY);
+                ops.writeLong(baseStart);
+                ops.writeInt(end - start);
+                insertStart = end;
+                pos = end;
+                if (pos + BLOCK_SIZE <= target.length) {
+                    hash = hash(target, pos);
+                }
+                continue;
+            }
+            if (pos + BLOCK_SIZE < target.length) {
+                hash = (hash - target[pos] * highPower) * PRIME + target[pos + BLOCK_SIZE];
+            }
+            pos++;
+        }
+        writeInsert(ops, target, insertStart, target.length);
+    }
+
+    /**
+     * 基础版本apk按块对齐建立索引，哈希相同时保留第一个块，命中后会再逐字节比较
+     */
+    private static Map<Integer, Integer> indexBlocks(byte[] base) {
+        Map<Integer, Integer> index = new HashMap<>();
+        for (int offset = 0; offset + BLOCK_SIZE <= base.length; offset += BLOCK_SIZE) {
+            int hash = hash(base, offset);
+            if (!index.containsKey(hash)) {
+                index.put(hash, offset);
+            }
+        }
+        return index;
+    }
+
+    private static void writeInsert(DataOutputStream ops, byte[] target, int start, int end) throws IOException {
+        if (end > start) {
+            ops.writeByte(OP_INSERT);
+            ops.writeInt(end - start);
+            ops.write(target, start, end - start);
+        }
+    }
+
+    private static int hash(byte[] data, int offset) {
+        int hash = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            hash = hash * PRIME + data[offset + i];
+        }
+        return hash;
+    }
+
+    private static int power(int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= PRIME;
+        }
+        return result;
+    }
+
+    private static boolean regionEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("file too large: " + file.getName());
+            }
+            byte[] data = new byte[(int) length];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+}
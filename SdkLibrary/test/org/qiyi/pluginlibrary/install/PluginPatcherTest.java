@@ -0,0 +1,242 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.install;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link PluginPatchGenerator}生成和{@link PluginPatcher}合成差分包的往返测试
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class PluginPatcherTest {
+    /* 头部：MAGIC, FORMAT_VERSION, 基础版本长度, 新版本长度 */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    @Test
+    public void testRoundTripWithEdits() throws Exception {
+        byte[] base = randomBytes(1, 512 * 1024);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        // 修改、删除、插入、移动和追加数据
+        target.write(base, 0, 100 * 1024);
+        target.write(randomBytes(2, 3000));
+        target.write(base, 110 * 1024, 200 * 1024);
+        byte[] changed = Arrays.copyOfRange(base, 310 * 1024, 400 * 1024);
+        changed[1234] ^= 0x5a;
+        target.write(changed);
+        target.write(base, 450 * 1024, 62 * 1024);
+        target.write(base, 0, 10 * 1024);
+        target.write(randomBytes(3, 777));
+
+        File patch = assertRoundTrip(base, target.toByteArray());
+        // 只有变化的数据内嵌在差分包里
+        assertTrue("patch size " + patch.length(), patch.length() < 16 * 1024);
+    }
+
+    @Test
+    public void testRoundTripOfChangedZipEntry() throws Exception {
+        byte[] lib = randomBytes(4, 200 * 1024);
+        byte[] dex = randomBytes(5, 300 * 1024);
+        byte[] newDex = dex.clone();
+        newDex[1000] ^= 0x11;
+        newDex[200000] ^= 0x22;
+        byte[] base = zip(lib, dex);
+        byte[] target = zip(lib, newDex);
+
+        File patch = assertRoundTrip(base, target);
+        assertTrue("patch size " + patch.length(), patch.length() < target.length / 2);
+    }
+
+    @Test
+    public void testRoundTripOfIdenticalFiles() throws Exception {
+        byte[] base = randomBytes(6, 100 * 1024 + 3);
+        File patch = assertRoundTrip(base, base.clone());
+        assertTrue("patch size " + patch.length(), patch.length() < HEADER_SIZE + 64);
+    }
+
+    @Test
+    public void testRoundTripOfUnrelatedAndSmallFiles() throws Exception {
+        assertRoundTrip(randomBytes(7, 64 * 1024), randomBytes(8, 50 * 1024));
+        assertRoundTrip(randomBytes(9, 100), randomBytes(10, 10));
+        assertRoundTrip(randomBytes(11, 4096), new byte[0]);
+        assertRoundTrip(new byte[0], randomBytes(12, 4096));
+    }
+
+    @Test
+    public void testHeaderFormat() throws Exception {
+        byte[] base = randomBytes(13, 1000);
+        byte[] target = randomBytes(14, 2000);
+        File patch = generate(base, target);
+        DataInputStream in = new DataInputStream(new FileInputStream(patch));
+        try {
+            assertEquals(0x4E504454, in.readInt());
+            assertEquals(1, in.readInt());
+            assertEquals(base.length, in.readLong());
+            assertEquals(target.length, in.readLong());
+        } finally {
+            in.close();
+        }
+        // 合成之前只读取头部检查剩余空间
+        assertEquals(target.length, PluginPatcher.readTargetLength(patch));
+    }
+
+    @Test
+    public void testWrongBaseIsRejected() throws Exception {
+        byte[] base = randomBytes(15, 64 * 1024);
+        File patch = generate(base, randomBytes(16, 1024));
+        File otherBase = write("other.apk", Arrays.copyOf(base, base.length - 1));
+        assertApplyFails(otherBase, patch);
+    }
+
+    @Test
+    public void testCorruptedPatchIsRejected() throws Exception {
+        byte[] base = randomBytes(17, 64 * 1024);
+        byte[] target = base.clone();
+        target[100] ^= 1;
+        File baseApk = write("base.apk", base);
+        File patch = generate(base, target);
+
+        // 截断的指令流
+        RandomAccessFile raf = new RandomAccessFile(patch, "rw");
+        try {
+            raf.setLength(HEADER_SIZE + (patch.length() - HEADER_SIZE) / 2);
+        } finally {
+            raf.close();
+        }
+        assertApplyFails(baseApk, patch);
+
+        // 未知的格式版本
+        patch = generate(base, target);
+        raf = new RandomAccessFile(patch, "rw");
+        try {
+            raf.seek(4);
+            raf.writeInt(2);
+        } finally {
+            raf.close();
+        }
+        assertApplyFails(baseApk, patch);
+    }
+
+    private File assertRoundTrip(byte[] base, byte[] target) throws Exception {
+        File baseApk = write("base.apk", base);
+        File patch = generate(base, target);
+        File dest = new File(mTemp.getRoot(), "dest.apk");
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+        assertEquals(target.length, PluginPatcher.apply(baseApk, patch, dest, digest));
+        assertArrayEquals(target, read(dest));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(target), digest.digest());
+        return patch;
+    }
+
+    private void assertApplyFails(File baseApk, File patch) {
+        try {
+            PluginPatcher.apply(baseApk, patch, new File(mTemp.getRoot(), "dest.apk"), null);
+            fail("patch should be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private File generate(byte[] base, byte[] target) throws IOException {
+        File patch = new File(mTemp.getRoot(), "update.patch");
+        PluginPatchGenerator.generate(write("base.apk", base), write("target.apk", target), patch);
+        return patch;
+    }
+
+    private static byte[] zip(byte[] lib, byte[] dex) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        try {
+            ZipEntry libEntry = new ZipEntry("lib/armeabi-v7a/liba.so");
+            libEntry.setTime(0);
+            out.putNextEntry(libEntry);
+            out.write(lib);
+            out.closeEntry();
+            ZipEntry dexEntry = new ZipEntry("classes.dex");
+            dexEntry.setTime(0);
+            out.putNextEntry(dexEntry);
+            out.write(dex);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] randomBytes(long seed, int size) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(mTemp.getRoot(), name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
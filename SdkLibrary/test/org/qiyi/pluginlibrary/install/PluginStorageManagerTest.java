@@ -0,0 +1,299 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.install;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.qiyi.pluginlibrary.pm.PluginLiteInfo;
+import org.qiyi.pluginlibrary.utils.FileUtils;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link PluginStorageManager}和{@link PluginUninstaller}按插件精确匹配文件的测试，
+ * 包名互为前缀、版本号不以数字开头时不能误删其他插件或者当前版本
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class PluginStorageManagerTest {
+    private static final String FOO = "com.foo";
+    private static final String FOO_BAR = "com.foo.bar";
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private Context mContext;
+    private File mRootDir;
+    private FileLock mInUseLock;
+    /* 回收过程中查询到的安装状态 */
+    private final Set<String> mInstalling = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Map<String, PluginLiteInfo> mInstalled = new ConcurrentHashMap<>();
+    private final PluginStorageManager.PackageStateProvider mProvider = new PluginStorageManager.PackageStateProvider() {
+        @Override
+        public boolean isPackageInstalling(String packageName) {
+            return mInstalling.contains(packageName);
+        }
+
+        @Override
+        public PluginLiteInfo getInstalledPackage(String packageName) {
+            return mInstalled.get(packageName);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mRootDir = PluginInstaller.getPluginappRootPath(mContext);
+        FileUtils.cleanDirectoryContent(mRootDir);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mInUseLock != null) {
+            mInUseLock.release();
+            mInUseLock.channel().close();
+        }
+    }
+
+    @Test
+    public void testResolvePackageName() {
+        Map<String, String> known = new HashMap<>();
+        known.put(FOO, "v1");
+        known.put(FOO_BAR, "2.0");
+
+        assertEquals(FOO, PluginStorageManager.resolvePackageName("com.foo.apk", known));
+        assertEquals(FOO, PluginStorageManager.resolvePackageName("com.foo.1.0.apk", known));
+        assertEquals(FOO, PluginStorageManager.resolvePackageName("com.foo.v1.apk", known));
+        assertEquals(FOO_BAR, PluginStorageManager.resolvePackageName("com.foo.bar.apk", known));
+        assertEquals(FOO_BAR, PluginStorageManager.resolvePackageName("com.foo.bar.1.0.apk", known));
+        // 未知插件按文件名解析
+        assertEquals("com.foo.baz", PluginStorageManager.resolvePackageName("com.foo.baz.3.apk", known));
+        assertEquals("com.foo.v2", PluginStorageManager.resolvePackageName("com.foo.v2.apk", known));
+    }
+
+    @Test
+    public void testFindPackagesWithNonNumericVersion() throws IOException {
+        createFile(FOO + ".v1.apk", 0);
+        createFile(FOO_BAR + ".2.0.apk", 0);
+        assertTrue(new File(mRootDir, FOO_BAR).mkdirs());
+        Map<String, String> known = new HashMap<>();
+        known.put(FOO, "v1");
+
+        assertEquals(new HashSet<>(Arrays.asList(FOO, FOO_BAR)), PluginStorageManager.findPackages(mRootDir, known));
+    }
+
+    @Test
+    public void testCollectKeepsNestedPackages() throws IOException {
+        File fooCurrent = createFile(FOO + ".3.0.apk", 3 * DAY);
+        File fooPrevious = createFile(FOO + ".2.0.apk", 2 * DAY);
+        File fooStale = createFile(FOO + ".1.0.apk", DAY);
+        File barCurrent = createFile(FOO_BAR + ".2.0.apk", 2 * DAY);
+        File barPrevious = createFile(FOO_BAR + ".1.0.apk", DAY);
+        File barLegacy = createFile(FOO_BAR + ".apk", 0);
+
+        PluginStorageManager.collect(mContext,
+                Arrays.asList(installed(FOO, "3.0", fooCurrent), installed(FOO_BAR, "2.0", barCurrent)),
+                Collections.<String>emptyList(), 0, mProvider);
+
+        assertTrue(fooCurrent.exists());
+        assertTrue(fooPrevious.exists());
+        assertFalse(fooStale.exists());
+        assertTrue(barCurrent.exists());
+        assertTrue(barPrevious.exists());
+        assertFalse(barLegacy.exists());
+    }
+
+    @Test
+    public void testCollectKeepsNonNumericVersion() throws IOException {
+        File current = createFile(FOO + ".v1.apk", DAY);
+        File launch = createFile(FOO + ".v1.apk.launch", DAY);
+
+        PluginStorageManager.collect(mContext, Collections.singletonList(installed(FOO, "v1", null)),
+                Collections.<String>emptyList(), 0, mProvider);
+
+        // 不能被当成已卸载的插件com.foo.v1
+        assertTrue(current.exists());
+        assertTrue(launch.exists());
+    }
+
+    @Test
+    public void testUninstallMatchesExactFiles() throws IOException {
+        File fooApk = createFile(FOO + ".1.0.apk", 0);
+        File fooOldApk = createFile(FOO + ".0.9.apk", 0);
+        File fooLaunch = createFile(FOO + ".1.0.apk.launch", 0);
+        File fooDex = createFile("dex/" + FOO + ".dex", 0);
+        File barApk = createFile(FOO_BAR + ".1.0.apk", 0);
+        File barLaunch = createFile(FOO_BAR + ".1.0.apk.launch", 0);
+        File barDex = createFile("dex/" + FOO_BAR + ".dex", 0);
+        File barSlot = new File(mRootDir, FOO_BAR + "/1.0/lib");
+        assertTrue(barSlot.mkdirs());
+
+        PluginUninstaller.deleteInstallerPackage(mContext, installed(FOO, "1.0", fooApk), true);
+
+        assertFalse(fooApk.exists());
+        assertFalse(fooOldApk.exists());
+        assertFalse(fooLaunch.exists());
+        assertFalse(fooDex.exists());
+        assertTrue(barApk.exists());
+        assertTrue(barLaunch.exists());
+        assertTrue(barDex.exists());
+        assertTrue(barSlot.exists());
+    }
+
+    @Test
+    public void testCollectSkipsInstallStartedAfterSnapshot() throws Exception {
+        final File apk = createFile(FOO + ".1.0.apk", DAY);
+        File slot = new File(mRootDir, FOO + "/1.0/lib");
+        assertTrue(slot.mkdirs());
+        // 快照中插件既没有安装也不在安装中
+        Thread collector = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                PluginStorageManager.collect(mContext, Collections.<PluginLiteInfo>emptyList(),
+                        Collections.<String>emptyList(), 0, mProvider);
+            }
+        });
+        // 安装流水线正在执行拷贝阶段，持有插件的锁
+        synchronized (PluginInstallPipeline.getInstance().getPackageLock(FOO)) {
+            collector.start();
+            awaitBlocked(collector);
+            mInstalling.add(FOO);
+        }
+        collector.join();
+
+        assertTrue(apk.exists());
+        assertTrue(slot.exists());
+
+        // 快照之后安装完成的插件同样不能被当成已卸载
+        mInstalling.remove(FOO);
+        installed(FOO, "1.0", apk);
+        PluginStorageManager.collect(mContext, Collections.<PluginLiteInfo>emptyList(),
+                Collections.<String>emptyList(), 0, mProvider);
+        assertTrue(apk.exists());
+        assertTrue(slot.exists());
+
+        // 确实已经卸载的插件正常回收
+        mInstalled.clear();
+        PluginStorageManager.collect(mContext, Collections.<PluginLiteInfo>emptyList(),
+                Collections.<String>emptyList(), 0, mProvider);
+        assertFalse(apk.exists());
+        assertFalse(slot.exists());
+    }
+
+    @Test
+    public void testCollectKeepsVersionInstalledAfterSnapshot() throws IOException {
+        File previous = createFile(FOO + ".1.0.apk", DAY);
+        File current = createFile(FOO + ".2.0.apk", 2 * DAY);
+        File upgraded = createFile(FOO + ".3.0.apk", 3 * DAY);
+        PluginLiteInfo snapshot = installed(FOO, "1.0", previous);
+        // 快照之后升级到了3.0，按快照回收会删除新版本
+        installed(FOO, "3.0", upgraded);
+
+        PluginStorageManager.collect(mContext, Collections.singletonList(snapshot),
+                Collections.<String>emptyList(), 0, mProvider);
+
+        assertTrue(previous.exists());
+        assertTrue(current.exists());
+        assertTrue(upgraded.exists());
+    }
+
+    @Test
+    public void testTrimToQuotaSkipsVersionInUse() throws IOException {
+        File current = createFile(FOO + ".2.0.apk", 2 * DAY);
+        File previous = createFile(FOO + ".1.0.apk", DAY);
+        File previousSlot = new File(mRootDir, FOO + "/1.0/lib");
+        assertTrue(previousSlot.mkdirs());
+        // 后台升级后插件进程仍在运行上一个版本
+        mInUseLock = PluginStorageManager.markInUse(previous);
+        assertNotNull(mInUseLock);
+        assertNull(PluginStorageManager.lockForDelete(previous));
+
+        PluginStorageManager.collect(mContext, Collections.singletonList(installed(FOO, "2.0", current)),
+                Collections.<String>emptyList(), 1, mProvider);
+        assertTrue(current.exists());
+        assertTrue(previous.exists());
+        assertTrue(previousSlot.exists());
+
+        // 进程退出后可以回收
+        mInUseLock.release();
+        mInUseLock.channel().close();
+        mInUseLock = null;
+        PluginStorageManager.collect(mContext, Collections.singletonList(installed(FOO, "2.0", current)),
+                Collections.<String>emptyList(), 1, mProvider);
+        assertTrue(current.exists());
+        assertFalse(previous.exists());
+        assertFalse(previousSlot.exists());
+        assertFalse(PluginStorageManager.getInUseLockFile(previous).exists());
+    }
+
+    private PluginLiteInfo installed(String packageName, String version, File apk) {
+        PluginLiteInfo info = new PluginLiteInfo();
+        info.packageName = packageName;
+        info.pluginVersion = version;
+        if (apk != null) {
+            info.srcApkPath = apk.getAbsolutePath();
+        }
+        mInstalled.put(packageName, info);
+        return info;
+    }
+
+    /**
+     * 等待线程阻塞在插件的锁上
+     */
+    private static void awaitBlocked(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (thread.getState() != Thread.State.BLOCKED) {
+            assertTrue("thread not blocked on package lock", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private File createFile(String name, long modified) throws IOException {
+        File file = new File(mRootDir, name);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(name.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertTrue(file.setLastModified(System.currentTimeMillis() - 10 * DAY + modified));
+        return file;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.install;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.qiyi.pluginlibrary.pm.PluginLiteInfo;
+import org.qiyi.pluginlibrary.utils.FileUtils;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 插件升级到独立版本槽位的测试，包括能否后台升级的判断和过期版本的清理
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class PluginUpgradeTest {
+    private static final String PKG_NAME = "com.foo";
+
+    private Context mContext;
+    private File mRootDir;
+    private File mDataDir;
+    private FileLock mInUseLock;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mRootDir = PluginInstaller.getPluginappRootPath(mContext);
+        FileUtils.cleanDirectoryContent(mRootDir);
+        mDataDir = new File(mRootDir, PKG_NAME);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mInUseLock != null) {
+            mInUseLock.release();
+            mInUseLock.channel().close();
+        }
+    }
+
+    @Test
+    public void testSlotDir() {
+        File apk = new File(mRootDir, PKG_NAME + ".2.0.apk");
+        assertEquals(new File(mDataDir, "2.0"), PluginInstaller.getPluginSlotDir(mContext, PKG_NAME, apk));
+        // 槽位还没有创建时沿用插件目录
+        assertEquals(mDataDir, PluginInstaller.getPluginCodeDir(mContext, PKG_NAME, apk));
+        assertTrue(new File(mDataDir, "2.0").mkdirs());
+        assertEquals(new File(mDataDir, "2.0"), PluginInstaller.getPluginCodeDir(mContext, PKG_NAME, apk));
+
+        // 无法解析版本号或者版本号不以数字开头时，不能和插件的数据目录重名
+        assertEquals(mDataDir, PluginInstaller.getPluginSlotDir(mContext, PKG_NAME,
+                new File(mRootDir, PKG_NAME + ".apk")));
+        assertEquals(mDataDir, PluginInstaller.getPluginSlotDir(mContext, PKG_NAME,
+                new File(mRootDir, PKG_NAME + ".files.apk")));
+    }
+
+    @Test
+    public void testCanUpgradeInBackground() throws IOException {
+        File installedApk = createFile(PKG_NAME + ".1.0.apk");
+        PluginLiteInfo installed = info("1.0", installedApk.getAbsolutePath(), null);
+
+        assertTrue(PluginInstaller.canUpgradeInBackground(installed, info("2.0", null, "/sdcard/foo.apk")));
+        assertTrue(PluginInstaller.canUpgradeInBackground(installed, info("2.0", null, null)));
+
+        // 没有已安装版本或者版本相同时原地安装
+        assertFalse(PluginInstaller.canUpgradeInBackground(null, info("2.0", null, null)));
+        assertFalse(PluginInstaller.canUpgradeInBackground(installed, info("1.0", null, null)));
+        // so插件和dex插件的文件在插件目录下，不支持槽位
+        assertFalse(PluginInstaller.canUpgradeInBackground(installed,
+                info("2.0", null, PluginInstaller.SCHEME_SO + "/sdcard/foo.zip")));
+        assertFalse(PluginInstaller.canUpgradeInBackground(installed,
+                info("2.0", null, PluginInstaller.SCHEME_DEX + "/sdcard/foo.zip")));
+        // 版本号不能作为槽位名
+        assertFalse(PluginInstaller.canUpgradeInBackground(installed, info("beta", null, null)));
+        // 已安装版本的apk不存在，没有需要继续运行的旧版本
+        assertTrue(installedApk.delete());
+        assertFalse(PluginInstaller.canUpgradeInBackground(installed, info("2.0", null, null)));
+        assertFalse(PluginInstaller.canUpgradeInBackground(info("1.0", null, null), info("2.0", null, null)));
+    }
+
+    @Test
+    public void testDeleteStaleVersionsKeepsCurrentAndPrevious() throws IOException {
+        File v1 = createVersion("1.0");
+        File v2 = createVersion("2.0");
+        File v3 = createVersion("3.0");
+        File launch = createFile(PKG_NAME + ".1.0.apk.launch");
+        File legacyLib = createFile(PKG_NAME + "/lib/libfoo.so");
+        File orphanSlot = new File(mDataDir, "0.9/lib");
+        assertTrue(orphanSlot.mkdirs());
+        File dataFile = createFile(PKG_NAME + "/files/data");
+
+        PluginUninstaller.deleteStaleVersions(mContext, PKG_NAME,
+                Arrays.asList(v3.getAbsolutePath(), v2.getAbsolutePath()));
+
+        assertFalse(v1.exists());
+        assertFalse(launch.exists());
+        assertFalse(new File(mDataDir, "1.0").exists());
+        assertFalse(new File(mDataDir, "0.9").exists());
+        assertTrue(v2.exists());
+        assertTrue(new File(mDataDir, "2.0/lib/libfoo.so").exists());
+        assertTrue(v3.exists());
+        assertTrue(new File(mDataDir, "3.0/lib/libfoo.so").exists());
+        // 保留的版本都使用槽位，插件目录下旧的so库不再需要，数据目录不受影响
+        assertFalse(legacyLib.exists());
+        assertTrue(dataFile.exists());
+    }
+
+    @Test
+    public void testDeleteStaleVersionsSkipsVersionInUse() throws IOException {
+        File v1 = createVersion("1.0");
+        File v2 = createVersion("2.0");
+        File v3 = createVersion("3.0");
+        // 后台升级之后插件进程仍在运行1.0
+        mInUseLock = PluginStorageManager.markInUse(v1);
+        assertNotNull(mInUseLock);
+
+        PluginUninstaller.deleteStaleVersions(mContext, PKG_NAME, Arrays.asList(v3.getAbsolutePath()));
+
+        assertTrue(v1.exists());
+        assertTrue(new File(mDataDir, "1.0/lib/libfoo.so").exists());
+        assertFalse(v2.exists());
+        assertFalse(new File(mDataDir, "2.0").exists());
+        assertTrue(v3.exists());
+    }
+
+    @Test
+    public void testDeleteStaleVersionsKeepsLegacyLayoutInUse() throws IOException {
+        // 引入槽位之前安装的版本，so库直接在插件目录下
+        File legacy = createFile(PKG_NAME + ".apk");
+        File legacyLib = createFile(PKG_NAME + "/lib/libfoo.so");
+        File v2 = createVersion("2.0");
+
+        PluginUninstaller.deleteStaleVersions(mContext, PKG_NAME,
+                Arrays.asList(v2.getAbsolutePath(), legacy.getAbsolutePath()));
+
+        assertTrue(legacy.exists());
+        assertTrue(legacyLib.exists());
+        assertTrue(v2.exists());
+    }
+
+    private File createVersion(String version) throws IOException {
+        createFile(PKG_NAME + "/" + version + "/lib/libfoo.so");
+        return createFile(PKG_NAME + "." + version + PluginInstaller.APK_SUFFIX);
+    }
+
+    private File createFile(String name) throws IOException {
+        File file = new File(mRootDir, name);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(name.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static PluginLiteInfo info(String version, String srcApkPath, String path) {
+        PluginLiteInfo info = new PluginLiteInfo();
+        info.packageName = PKG_NAME;
+        info.pluginVersion = version;
+        info.srcApkPath = srcApkPath;
+        info.mPath = path;
+        return info;
+    }
+}
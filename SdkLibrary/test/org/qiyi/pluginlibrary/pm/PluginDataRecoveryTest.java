@@ -0,0 +1,151 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.pm;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link PluginDataRecovery}的超时降级测试
+ */
+public class PluginDataRecoveryTest {
+    private static final long TIMEOUT_MS = 50;
+
+    @Test
+    public void testTimeoutRestoresWhenNotStarted() {
+        CountingRestore restore = new CountingRestore(null);
+        PluginDataRecovery recovery = new PluginDataRecovery(restore);
+
+        long start = System.nanoTime();
+        assertTrue(recovery.await(TIMEOUT_MS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= TIMEOUT_MS);
+        assertTrue(recovery.isOver());
+        assertEquals(1, restore.count.get());
+
+        // 后台线程晚于超时开始，不再重复恢复
+        assertFalse(recovery.run());
+        assertFalse(recovery.await(TIMEOUT_MS));
+        assertEquals(1, restore.count.get());
+    }
+
+    @Test
+    public void testTimeoutWaitsForRunningRestore() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        CountingRestore restore = new CountingRestore(release);
+        final PluginDataRecovery recovery = new PluginDataRecovery(restore);
+
+        Thread background = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                recovery.run();
+            }
+        });
+        background.start();
+        assertTrue(restore.started.await(5, TimeUnit.SECONDS));
+
+        final AtomicBoolean restoredByCaller = new AtomicBoolean(true);
+        final CountDownLatch awaited = new CountDownLatch(1);
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                restoredByCaller.set(recovery.await(TIMEOUT_MS));
+                awaited.countDown();
+            }
+        });
+        caller.start();
+
+        // 超时之后调用线程继续等待正在进行的恢复，而不是再执行一次
+        assertFalse(awaited.await(TIMEOUT_MS * 4, TimeUnit.MILLISECONDS));
+        assertEquals(1, restore.count.get());
+        assertFalse(recovery.isOver());
+
+        release.countDown();
+        assertTrue(awaited.await(5, TimeUnit.SECONDS));
+        assertFalse(restoredByCaller.get());
+        assertTrue(recovery.isOver());
+        assertEquals(1, restore.count.get());
+        background.join();
+        caller.join();
+    }
+
+    @Test
+    public void testAwaitReturnsWhenRestoredInBackground() throws Exception {
+        CountingRestore restore = new CountingRestore(null);
+        final PluginDataRecovery recovery = new PluginDataRecovery(restore);
+        Thread background = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                recovery.run();
+            }
+        });
+        background.start();
+        background.join();
+
+        assertTrue(recovery.isOver());
+        assertFalse(recovery.await(TIMEOUT_MS));
+        assertEquals(1, restore.count.get());
+    }
+
+    @Test
+    public void testFailedRestoreStillReleasesWaiters() throws Exception {
+        final PluginDataRecovery recovery = new PluginDataRecovery(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("broken journal");
+            }
+        });
+        try {
+            recovery.run();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(recovery.isOver());
+        assertFalse(recovery.await(TIMEOUT_MS));
+    }
+
+    private static final class CountingRestore implements Runnable {
+        final AtomicInteger count = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch mRelease;
+
+        CountingRestore(CountDownLatch release) {
+            mRelease = release;
+        }
+
+        @Override
+        public void run() {
+            count.incrementAndGet();
+            started.countDown();
+            if (mRelease != null) {
+                try {
+                    mRelease.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
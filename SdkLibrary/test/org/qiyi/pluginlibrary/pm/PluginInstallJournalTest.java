@@ -0,0 +1,275 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.pm;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.qiyi.pluginlibrary.install.PluginInstaller;
+import org.qiyi.pluginlibrary.utils.FileUtils;
+import org.qiyi.pluginlibrary.utils.PreferUtils;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * {@link PluginInstallJournal}的追加、重放、截断、压缩以及从旧数据迁移和损坏恢复
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class PluginInstallJournalTest {
+    private static final String PKG_A = "com.example.a";
+    private static final String PKG_B = "com.example.b";
+    private static final String PKG_C = "com.example.c";
+
+    private Context mContext;
+    private File mRootDir;
+    private File mJournalFile;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mRootDir = PluginInstaller.getPluginappRootPath(mContext);
+        FileUtils.deleteDirectory(mRootDir);
+        mRootDir.mkdirs();
+        mJournalFile = new File(mRootDir, "install.journal");
+        PreferUtils.save(mContext, "plugin_install", "install_status", "");
+    }
+
+    @Test
+    public void testAppendAndReplayAcrossInstances() {
+        PluginInstallJournal writer = new PluginInstallJournal(mContext);
+        writer.restore();
+        writer.put(info(PKG_A, "1.0"));
+        writer.put(info(PKG_B, "1.0"));
+        writer.put(info(PKG_A, "2.0"));
+        writer.remove(PKG_B);
+
+        Map<String, PluginLiteInfo> restored = new PluginInstallJournal(mContext).restore();
+        assertEquals(1, restored.size());
+        assertEquals("2.0", restored.get(PKG_A).pluginVersion);
+
+        // 另一个实例追加之后，原来的实例需要看到新的记录再写入
+        PluginInstallJournal other = new PluginInstallJournal(mContext);
+        other.restore();
+        other.put(info(PKG_C, "1.0"));
+        writer.put(info(PKG_B, "3.0"));
+        restored = new PluginInstallJournal(mContext).restore();
+        assertEquals(3, restored.size());
+        assertEquals("1.0", restored.get(PKG_C).pluginVersion);
+        assertEquals("3.0", restored.get(PKG_B).pluginVersion);
+    }
+
+    @Test
+    public void testTornTailIsDropped() throws Exception {
+        PluginInstallJournal journal = new PluginInstallJournal(mContext);
+        journal.restore();
+        journal.put(info(PKG_A, "1.0"));
+        journal.put(info(PKG_B, "1.0"));
+        truncate(mJournalFile, mJournalFile.length() - 3);
+
+        Map<String, PluginLiteInfo> restored = new PluginInstallJournal(mContext).restore();
+        assertEquals(1, restored.size());
+        assertTrue(restored.containsKey(PKG_A));
+
+        // 新的记录写在不完整的记录之前的位置
+        PluginInstallJournal next = new PluginInstallJournal(mContext);
+        next.restore();
+        next.put(info(PKG_C, "1.0"));
+        restored = new PluginInstallJournal(mContext).restore();
+        assertEquals(2, restored.size());
+        assertTrue(restored.containsKey(PKG_A));
+        assertTrue(restored.containsKey(PKG_C));
+    }
+
+    @Test
+    public void testBadCrcStopsReplay() throws Exception {
+        PluginInstallJournal journal = new PluginInstallJournal(mContext);
+        journal.restore();
+        journal.put(info(PKG_A, "1.0"));
+        journal.put(info(PKG_B, "1.0"));
+        // 改写最后一条记录的校验值
+        flipByte(mJournalFile, mJournalFile.length() - 1);
+
+        Map<String, PluginLiteInfo> restored = new PluginInstallJournal(mContext).restore();
+        assertEquals(1, restored.size());
+        assertTrue(restored.containsKey(PKG_A));
+    }
+
+    @Test
+    public void testCompaction() {
+        PluginInstallJournal journal = new PluginInstallJournal(mContext);
+        journal.restore();
+        journal.put(info(PKG_B, "1.0"));
+        for (int i = 0; i < 1000; i++) {
+            journal.put(info(PKG_A, "1." + i));
+        }
+        // 被覆盖的记录超过一半之后重写为快照，文件大小不随安装次数增长
+        assertTrue("journal size " + mJournalFile.length(), mJournalFile.length() < 33 * 1024);
+        Map<String, PluginLiteInfo> restored = new PluginInstallJournal(mContext).restore();
+        assertEquals(2, restored.size());
+        assertEquals("1.999", restored.get(PKG_A).pluginVersion);
+        assertEquals("1.0", restored.get(PKG_B).pluginVersion);
+    }
+
+    @Test
+    public void testMigrateLegacyData() throws Exception {
+        JSONArray array = new JSONArray();
+        for (PluginLiteInfo info : new PluginLiteInfo[]{info(PKG_A, "1.0"), info(PKG_B, "2.0")}) {
+            JSONObject obj = new JSONObject();
+            obj.put("pkgName", info.packageName);
+            obj.put("info", info.toJson());
+            array.put(obj);
+        }
+        PreferUtils.save(mContext, "plugin_install", "install_status", array.toString());
+
+        Map<String, PluginLiteInfo> restored = new PluginInstallJournal(mContext).restore();
+        assertEquals(2, restored.size());
+        assertEquals("2.0", restored.get(PKG_B).pluginVersion);
+        assertTrue(mJournalFile.exists());
+        assertEquals("", PreferUtils.get(mContext, "plugin_install", "install_status", ""));
+
+        restored = new PluginInstallJournal(mContext).restore();
+        assertEquals(2, restored.size());
+    }
+
+    /**
+     * 头部损坏时保留原文件，从安装目录中的apk重建，之后的写入不能把已安装列表清空
+     */
+    @Test
+    public void testCorruptedHeaderRebuildsFromApks() throws Exception {
+        PluginInstallJournal journal = new PluginInstallJournal(mContext);
+        journal.restore();
+        journal.put(info(PKG_A, "1.0"));
+        journal.put(info(PKG_B, "1.0"));
+        flipByte(mJournalFile, 0);
+        long corruptedLength = mJournalFile.length();
+
+        final PackageManager pm = mock(PackageManager.class);
+        File apkA = new File(mRootDir, PKG_A + ".1.0.apk");
+        File apkB = new File(mRootDir, PKG_B + ".1.0.apk");
+        apkA.createNewFile();
+        apkB.createNewFile();
+        when(pm.getPackageArchiveInfo(eq(apkA.getAbsolutePath()), anyInt())).thenReturn(packageInfo(PKG_A, "1.0"));
+        when(pm.getPackageArchiveInfo(eq(apkB.getAbsolutePath()), anyInt())).thenReturn(packageInfo(PKG_B, "1.0"));
+        Context context = new ContextWrapper(mContext) {
+            @Override
+            public PackageManager getPackageManager() {
+                return pm;
+            }
+        };
+
+        PluginInstallJournal recovered = new PluginInstallJournal(context);
+        Map<String, PluginLiteInfo> restored = recovered.restore();
+        File corruptFile = new File(mRootDir, "install.journal.corrupt");
+        assertTrue(corruptFile.exists());
+        assertEquals(corruptedLength, corruptFile.length());
+        assertEquals(2, restored.size());
+        PluginLiteInfo infoA = restored.get(PKG_A);
+        assertEquals("1.0", infoA.pluginVersion);
+        assertEquals(apkA.getAbsolutePath(), infoA.srcApkPath);
+        assertEquals(PluginLiteInfo.PLUGIN_INSTALLED, infoA.installStatus);
+
+        recovered.put(info(PKG_C, "1.0"));
+        restored = new PluginInstallJournal(mContext).restore();
+        assertEquals(3, restored.size());
+    }
+
+    /**
+     * 其他实例追加时发现头部损坏，用重建的列表写入快照而不是空快照
+     */
+    @Test
+    public void testCorruptedHeaderOnAppendKeepsRecords() throws Exception {
+        JSONArray array = new JSONArray();
+        JSONObject obj = new JSONObject();
+        obj.put("pkgName", PKG_A);
+        obj.put("info", info(PKG_A, "1.0").toJson());
+        array.put(obj);
+
+        PluginInstallJournal journal = new PluginInstallJournal(mContext);
+        journal.restore();
+        journal.put(info(PKG_A, "1.0"));
+        journal.put(info(PKG_B, "1.0"));
+        flipByte(mJournalFile, 0);
+        // 旧数据中有记录时优先使用
+        PreferUtils.save(mContext, "plugin_install", "install_status", array.toString());
+
+        PluginInstallJournal other = new PluginInstallJournal(mContext);
+        other.put(info(PKG_C, "1.0"));
+        assertTrue(new File(mRootDir, "install.journal.corrupt").exists());
+        Map<String, PluginLiteInfo> restored = new PluginInstallJournal(mContext).restore();
+        assertEquals(2, restored.size());
+        assertTrue(restored.containsKey(PKG_A));
+        assertTrue(restored.containsKey(PKG_C));
+    }
+
+    private static PluginLiteInfo info(String pkg, String version) {
+        PluginLiteInfo info = new PluginLiteInfo();
+        info.packageName = pkg;
+        info.pluginVersion = version;
+        info.installStatus = PluginLiteInfo.PLUGIN_INSTALLED;
+        info.srcApkPath = "/data/plugin/" + pkg + "." + version + ".apk";
+        return info;
+    }
+
+    private static PackageInfo packageInfo(String pkg, String versionName) {
+        PackageInfo info = new PackageInfo();
+        info.packageName = pkg;
+        info.versionName = versionName;
+        return info;
+    }
+
+    private static void truncate(File file, long length) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void flipByte(File file, long pos) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.pm;
+
+import android.content.Context;
+import android.content.IntentFilter;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.os.Build;
+import android.os.Parcel;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.qiyi.pluginlibrary.utils.FileUtils;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link PluginLaunchArtifacts}的文件格式、key失效以及文件缺失或过期时的回退
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class PluginLaunchArtifactsTest {
+    private static final String PKG = "com.example.launch";
+    private static final String MAIN_ACTIVITY = PKG + ".MainActivity";
+    private static final String DIALOG_ACTIVITY = PKG + ".DialogActivity";
+    private static final String BOOT_RECEIVER = PKG + ".BootReceiver";
+    private static final String INNER_RECEIVER = PKG + ".InnerReceiver";
+
+    private Context mContext;
+    private File mApkFile;
+    private File mArtifactsFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        File dir = new File(mContext.getCacheDir(), "launch");
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+        mApkFile = new File(dir, PKG + ".1.0.apk");
+        FileOutputStream fos = new FileOutputStream(mApkFile);
+        try {
+            fos.write(new byte[1024]);
+        } finally {
+            fos.close();
+        }
+        mArtifactsFile = new File(dir, PKG + ".1.0.apk" + PluginLaunchArtifacts.FILE_SUFFIX);
+    }
+
+    /**
+     * sidecar文件{apk}.launch的布局：key之后依次是Activity特征和静态Receiver
+     */
+    @Test
+    public void testFileFormat() throws Exception {
+        writeArtifacts();
+        assertEquals(mArtifactsFile, PluginLaunchArtifacts.getArtifactsFile(mApkFile));
+        assertTrue(mArtifactsFile.exists());
+        assertFalse(new File(mArtifactsFile.getPath() + ".tmp").exists());
+
+        DataInputStream in = new DataInputStream(new FileInputStream(mArtifactsFile));
+        try {
+            assertEquals(0x4E504C41, in.readInt());
+            assertEquals(1, in.readInt());
+            assertEquals(Build.VERSION.SDK_INT, in.readInt());
+            assertEquals(String.valueOf(Build.FINGERPRINT), in.readUTF());
+            assertEquals(PluginPackageInfoCache.getHostApkStamp(mContext), in.readLong());
+            assertEquals(mApkFile.length(), in.readLong());
+            assertEquals(mApkFile.lastModified(), in.readLong());
+            assertEquals(2, in.readInt());
+            assertEquals(MAIN_ACTIVITY, in.readUTF());
+            assertEquals(0, in.readInt());
+            assertEquals(DIALOG_ACTIVITY, in.readUTF());
+            assertEquals(3, in.readInt());
+            assertEquals(1, in.readInt());
+            assertEquals(BOOT_RECEIVER, in.readUTF());
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        writeArtifacts();
+        PluginLaunchArtifacts artifacts = PluginLaunchArtifacts.load(mContext, mApkFile);
+        assertNotNull(artifacts);
+        assertEquals(0, artifacts.getActivityProxyFeatures(MAIN_ACTIVITY));
+        assertEquals(3, artifacts.getActivityProxyFeatures(DIALOG_ACTIVITY));
+        // 没有预先计算的Activity返回-1，运行时重新计算
+        assertEquals(-1, artifacts.getActivityProxyFeatures(PKG + ".UnknownActivity"));
+        assertEquals(Collections.singletonList(BOOT_RECEIVER), artifacts.getStaticReceivers());
+        // 读取之后文件保留，其他进程还可以使用
+        assertTrue(mArtifactsFile.exists());
+    }
+
+    /**
+     * apk大小或者修改时间变化后，sidecar文件失效并被删除
+     */
+    @Test
+    public void testApkChangeInvalidatesKey() throws Exception {
+        writeArtifacts();
+        RandomAccessFile raf = new RandomAccessFile(mApkFile, "rw");
+        try {
+            raf.setLength(2048);
+        } finally {
+            raf.close();
+        }
+        assertNull(PluginLaunchArtifacts.load(mContext, mApkFile));
+        assertFalse(mArtifactsFile.exists());
+
+        writeArtifacts();
+        assertTrue(mApkFile.setLastModified(mApkFile.lastModified() - 10000));
+        assertNull(PluginLaunchArtifacts.load(mContext, mApkFile));
+        assertFalse(mArtifactsFile.exists());
+    }
+
+    /**
+     * 格式版本或者宿主apk不匹配时忽略
+     */
+    @Test
+    public void testHeaderMismatchInvalidatesKey() throws Exception {
+        writeHeader(2, PluginPackageInfoCache.getHostApkStamp(mContext));
+        assertNull(PluginLaunchArtifacts.load(mContext, mApkFile));
+        assertFalse(mArtifactsFile.exists());
+
+        writeHeader(1, PluginPackageInfoCache.getHostApkStamp(mContext) + 1);
+        assertNull(PluginLaunchArtifacts.load(mContext, mApkFile));
+        assertFalse(mArtifactsFile.exists());
+
+        writeHeader(1, PluginPackageInfoCache.getHostApkStamp(mContext));
+        assertNotNull(PluginLaunchArtifacts.load(mContext, mApkFile));
+    }
+
+    /**
+     * 文件缺失、不完整或者apk不存在时返回null，由调用方在运行时计算
+     */
+    @Test
+    public void testMissingOrCorruptedSidecar() throws Exception {
+        assertNull(PluginLaunchArtifacts.load(mContext, mApkFile));
+
+        writeArtifacts();
+        RandomAccessFile raf = new RandomAccessFile(mArtifactsFile, "rw");
+        try {
+            raf.setLength(raf.length() - 4);
+        } finally {
+            raf.close();
+        }
+        assertNull(PluginLaunchArtifacts.load(mContext, mApkFile));
+        assertFalse(mArtifactsFile.exists());
+
+        writeArtifacts();
+        assertTrue(mApkFile.delete());
+        assertNull(PluginLaunchArtifacts.load(mContext, mApkFile));
+
+        PluginLaunchArtifacts.delete(mApkFile);
+        assertFalse(mArtifactsFile.exists());
+    }
+
+    /**
+     * 只有声明了IntentFilter的Receiver需要在启动时注册
+     */
+    @Test
+    public void testPrepareStaticReceivers() {
+        PluginPackageInfo info = newPackageInfo();
+        PluginPackageInfo.ReceiverIntentInfo boot =
+                new PluginPackageInfo.ReceiverIntentInfo(info.getPackageInfo().receivers[0]);
+        boot.setFilter(Collections.singletonList(new IntentFilter("android.intent.action.BOOT_COMPLETED")));
+        info.addReceiver(boot);
+        info.addReceiver(new PluginPackageInfo.ReceiverIntentInfo(info.getPackageInfo().receivers[1]));
+
+        PluginLaunchArtifacts.prepare(mContext, mApkFile, info);
+        PluginLaunchArtifacts artifacts = PluginLaunchArtifacts.load(mContext, mApkFile);
+        assertNotNull(artifacts);
+        assertEquals(Collections.singletonList(BOOT_RECEIVER), artifacts.getStaticReceivers());
+        assertEquals(-1, artifacts.getActivityProxyFeatures(MAIN_ACTIVITY));
+    }
+
+    private void writeArtifacts() {
+        Map<String, Integer> features = new LinkedHashMap<>();
+        features.put(MAIN_ACTIVITY, 0);
+        features.put(DIALOG_ACTIVITY, 3);
+        List<String> receivers = Arrays.asList(BOOT_RECEIVER);
+        PluginLaunchArtifacts.write(mContext, mApkFile, features, receivers);
+    }
+
+    /**
+     * 按照sidecar文件格式写入指定的格式版本和宿主apk标识，不包含组件
+     */
+    private void writeHeader(int version, long hostStamp) throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mArtifactsFile));
+        try {
+            out.writeInt(0x4E504C41);
+            out.writeInt(version);
+            out.writeInt(Build.VERSION.SDK_INT);
+            out.writeUTF(String.valueOf(Build.FINGERPRINT));
+            out.writeLong(hostStamp);
+            out.writeLong(mApkFile.length());
+            out.writeLong(mApkFile.lastModified());
+            out.writeInt(0);
+            out.writeInt(0);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 通过序列化格式构造只有Receiver的PluginPackageInfo，避免解析apk
+     */
+    private static PluginPackageInfo newPackageInfo() {
+        ApplicationInfo appInfo = new ApplicationInfo();
+        appInfo.packageName = PKG;
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = PKG;
+        packageInfo.applicationInfo = appInfo;
+        packageInfo.receivers = new ActivityInfo[]{newReceiver(BOOT_RECEIVER, appInfo),
+                newReceiver(INNER_RECEIVER, appInfo)};
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(PluginPackageInfo.PARCEL_VERSION);
+            parcel.writeString(PKG);
+            parcel.writeString(PKG);
+            parcel.writeString(null);
+            parcel.writeString(null);
+            parcel.writeString(null);
+            parcel.writeString(null);
+            parcel.writeString(null);
+            parcel.writeInt(0);
+            parcel.writeInt(0);
+            parcel.writeParcelable(packageInfo, 0);
+            parcel.writeByteArray(null);
+            parcel.setDataPosition(0);
+            return PluginPackageInfo.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static ActivityInfo newReceiver(String name, ApplicationInfo appInfo) {
+        ActivityInfo info = new ActivityInfo();
+        info.name = name;
+        info.packageName = PKG;
+        info.applicationInfo = appInfo;
+        return info;
+    }
+}
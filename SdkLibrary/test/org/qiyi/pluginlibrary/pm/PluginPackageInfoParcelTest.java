@@ -0,0 +1,427 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.pm;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PermissionInfo;
+import android.content.pm.ProviderInfo;
+import android.content.pm.ServiceInfo;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link PluginPackageInfo}、{@link PluginLiteInfo}和{@link PluginPackageSnapshot}的序列化格式测试
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class PluginPackageInfoParcelTest {
+    /* 格式变化时测试需要同步修改 */
+    private static final int PARCEL_VERSION = 4;
+    private static final int FLAG_MERGE_RESOURCE = 1 << 1;
+    private static final int FLAG_INDIVIDUAL_MODE = 1 << 4;
+    private static final int RESOURCE_PACKAGE_ID = 0x70;
+
+    private static final String PKG = "com.foo.bar";
+    private static final String MAIN_ACTIVITY = PKG + ".MainActivity";
+    private static final String SHARE_ACTIVITY = PKG + ".ShareActivity";
+    private static final String SYNC_SERVICE = PKG + ".SyncService";
+    private static final String BOOT_RECEIVER = PKG + ".BootReceiver";
+    private static final String DATA_PROVIDER = PKG + ".DataProvider";
+    private static final String ACTION_SHARE = "com.foo.action.SHARE";
+
+    @Test
+    public void testParcelVersion() {
+        assertEquals(PARCEL_VERSION, PluginPackageInfo.PARCEL_VERSION);
+    }
+
+    @Test
+    public void testComponentsRoundTrip() {
+        PluginPackageInfo info = readPackageInfo(writeHeader(PARCEL_VERSION, newPackageInfo()));
+        PackageInfo packageInfo = info.getPackageInfo();
+        info.addActivity(new PluginPackageInfo.ActivityIntentInfo(packageInfo.activities[0]));
+        PluginPackageInfo.ActivityIntentInfo share =
+                new PluginPackageInfo.ActivityIntentInfo(packageInfo.activities[1]);
+        share.setFilter(Collections.singletonList(new IntentFilter(ACTION_SHARE)));
+        info.addActivity(share);
+        info.addService(new PluginPackageInfo.ServiceIntentInfo(packageInfo.services[0]));
+        info.addReceiver(new PluginPackageInfo.ReceiverIntentInfo(packageInfo.receivers[0]));
+        info.addProvider(new PluginPackageInfo.ProviderIntentInfo(packageInfo.providers[0]));
+        // 不在PackageInfo数组中的组件需要完整写入
+        ActivityInfo inline = newActivity(PKG + ".InlineActivity", packageInfo.applicationInfo);
+        info.addActivity(new PluginPackageInfo.ActivityIntentInfo(inline));
+
+        PluginPackageInfo copy = readPackageInfo(marshall(info));
+
+        assertEquals(PKG, copy.getPackageName());
+        assertEquals(PKG + ":plugin", copy.getProcessName());
+        assertEquals(PKG + ".PluginApp", copy.getApplicationClassName());
+        assertEquals("/data/pluginapp/" + PKG, copy.getDataDir());
+        assertEquals("/data/pluginapp/" + PKG + "/1.0", copy.getCodeDir());
+        assertEquals(RESOURCE_PACKAGE_ID, copy.getResourcePackageId());
+        assertEquals("/data/pluginapp/" + PKG + "/1.0/lib", copy.getNativeLibraryDir());
+        assertTrue(copy.isResourceNeedMerge());
+        assertTrue(copy.isIndividualMode());
+        assertFalse(copy.isClassNeedInject());
+        assertEquals(1, copy.getPermissions().length);
+        assertEquals(PKG + ".permission.SHARE", copy.getPermissions()[0].name);
+        assertSame(copy.getPackageInfo().applicationInfo, copy.getApplicationInfo());
+        assertTrue(copy.getApplicationInfo().metaData.getBoolean("pluginapp_res_merge"));
+
+        // 组件信息引用PackageInfo中的同一个对象
+        PackageInfo copyPackageInfo = copy.getPackageInfo();
+        assertSame(copyPackageInfo.activities[0], copy.getActivityInfo(MAIN_ACTIVITY));
+        assertSame(copyPackageInfo.activities[1], copy.resolveActivity(new Intent(ACTION_SHARE)));
+        assertSame(copyPackageInfo.services[0], copy.getServiceInfo(SYNC_SERVICE));
+        assertSame(copyPackageInfo.receivers[0], copy.getReceiverIntentInfos().get(BOOT_RECEIVER).mInfo);
+        assertSame(copyPackageInfo.providers[0], copy.getProviderIntentInfos().get(DATA_PROVIDER).mInfo);
+        ActivityInfo inlineCopy = copy.getActivityInfo(inline.name);
+        assertNotNull(inlineCopy);
+        assertEquals(PKG, inlineCopy.packageName);
+        assertNull(copy.resolveActivity(new Intent("com.foo.action.UNKNOWN")));
+    }
+
+    @Test
+    public void testForwardWithoutDecoding() {
+        PluginPackageInfo info = readPackageInfo(writeHeader(PARCEL_VERSION, newPackageInfo()));
+        PackageInfo packageInfo = info.getPackageInfo();
+        PluginPackageInfo.ActivityIntentInfo share =
+                new PluginPackageInfo.ActivityIntentInfo(packageInfo.activities[1]);
+        share.setFilter(Collections.singletonList(new IntentFilter(ACTION_SHARE)));
+        info.addActivity(share);
+        byte[] first = marshall(info);
+
+        // 没有访问过组件信息的对象原样转发
+        byte[] second = marshall(readPackageInfo(first));
+        assertArrayEquals(first, second);
+
+        PluginPackageInfo decoded = readPackageInfo(second);
+        assertNotNull(decoded.resolveActivity(new Intent(ACTION_SHARE)));
+        assertArrayEquals(first, marshall(decoded));
+    }
+
+    /**
+     * 从Parcel读取和写入时记录序列化大小，组件变化后重新计算
+     */
+    @Test
+    public void testParcelSize() {
+        PluginPackageInfo info = readPackageInfo(marshall(
+                readPackageInfo(writeHeader(PARCEL_VERSION, newPackageInfo()))));
+        int readSize = info.getParcelSize();
+        assertEquals(dataSize(info), readSize);
+
+        info.addActivity(new PluginPackageInfo.ActivityIntentInfo(info.getPackageInfo().activities[0]));
+        int size = info.getParcelSize();
+        assertEquals(dataSize(info), size);
+        assertTrue(size > readSize);
+        assertEquals(size, readPackageInfo(marshall(info)).getParcelSize());
+    }
+
+    @Test
+    public void testEmptyComponents() {
+        PluginPackageInfo copy = readPackageInfo(marshall(
+                readPackageInfo(writeHeader(PARCEL_VERSION, newPackageInfo()))));
+        assertNull(copy.getActivityInfo(MAIN_ACTIVITY));
+        assertTrue(copy.getReceiverIntentInfos().isEmpty());
+        assertTrue(copy.getProviderIntentInfos().isEmpty());
+    }
+
+    @Test
+    public void testRejectUnknownVersion() {
+        byte[] data = writeHeader(PARCEL_VERSION - 1, newPackageInfo());
+        try {
+            readPackageInfo(data);
+            fail("parcel of an old version should be rejected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * 与旧的序列化格式对比：组件信息不再重复写入，数据更小
+     */
+    @Test
+    public void testSmallerThanLegacyFormat() {
+        PluginPackageInfo info = readPackageInfo(writeHeader(PARCEL_VERSION, newPackageInfo()));
+        PackageInfo packageInfo = info.getPackageInfo();
+        Map<String, Parcelable> activities = new LinkedHashMap<>();
+        Map<String, Parcelable> services = new LinkedHashMap<>();
+        Map<String, Parcelable> receivers = new LinkedHashMap<>();
+        Map<String, Parcelable> providers = new LinkedHashMap<>();
+        for (ActivityInfo activity : packageInfo.activities) {
+            PluginPackageInfo.ActivityIntentInfo intentInfo = new PluginPackageInfo.ActivityIntentInfo(activity);
+            intentInfo.setFilter(Collections.singletonList(new IntentFilter(ACTION_SHARE)));
+            info.addActivity(intentInfo);
+            activities.put(activity.name, intentInfo);
+        }
+        PluginPackageInfo.ServiceIntentInfo service = new PluginPackageInfo.ServiceIntentInfo(packageInfo.services[0]);
+        info.addService(service);
+        services.put(SYNC_SERVICE, service);
+        PluginPackageInfo.ReceiverIntentInfo receiver = new PluginPackageInfo.ReceiverIntentInfo(packageInfo.receivers[0]);
+        info.addReceiver(receiver);
+        receivers.put(BOOT_RECEIVER, receiver);
+        PluginPackageInfo.ProviderIntentInfo provider = new PluginPackageInfo.ProviderIntentInfo(packageInfo.providers[0]);
+        info.addProvider(provider);
+        providers.put(DATA_PROVIDER, provider);
+
+        byte[] current = marshall(info);
+        byte[] legacy = writeLegacy(info, activities, services, receivers, providers);
+        assertTrue("current " + current.length + " bytes, legacy " + legacy.length + " bytes",
+                current.length < legacy.length);
+        // 旧格式的数据解析出的组件与新格式一致
+        assertEquals(activities.keySet(), readLegacyActivities(legacy).keySet());
+        PluginPackageInfo copy = readPackageInfo(current);
+        for (String name : activities.keySet()) {
+            assertNotNull(copy.getActivityInfo(name));
+        }
+    }
+
+    @Test
+    public void testLiteInfoRoundTrip() {
+        PluginLiteInfo info = newLiteInfo();
+        PluginLiteInfo copy = unmarshall(marshall(info), PluginLiteInfo.CREATOR);
+        assertEquals(info.toJson(), copy.toJson());
+
+        PluginLiteInfo clone = new PluginLiteInfo(info);
+        assertEquals(info.toJson(), clone.toJson());
+        clone.srcApkPath = "/data/pluginapp/" + PKG + ".2.0.apk";
+        assertEquals("/data/pluginapp/" + PKG + ".1.0.apk", info.srcApkPath);
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() {
+        PluginPackageInfo packageInfo = readPackageInfo(writeHeader(PARCEL_VERSION, newPackageInfo()));
+        PluginPackageSnapshot snapshot = new PluginPackageSnapshot(newLiteInfo(), packageInfo,
+                Arrays.asList("com.foo.base", "com.foo.common"));
+        PluginPackageSnapshot copy = unmarshall(marshall(snapshot), PluginPackageSnapshot.CREATOR);
+        assertEquals(snapshot.liteInfo.toJson(), copy.liteInfo.toJson());
+        assertNotNull(copy.packageInfo);
+        assertEquals(PKG, copy.packageInfo.getPackageName());
+        assertEquals(snapshot.refs, copy.refs);
+
+        PluginPackageSnapshot partial = unmarshall(marshall(
+                new PluginPackageSnapshot(newLiteInfo(), null, null)), PluginPackageSnapshot.CREATOR);
+        assertNull(partial.packageInfo);
+        assertTrue(partial.refs.isEmpty());
+    }
+
+    /**
+     * 按照序列化格式写入头部和PackageInfo，组件部分为空
+     */
+    private static byte[] writeHeader(int version, PackageInfo packageInfo) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(version);
+            parcel.writeString(PKG);
+            parcel.writeString(PKG + ":plugin");
+            parcel.writeString(PKG + ".PluginApp");
+            parcel.writeString(MAIN_ACTIVITY);
+            parcel.writeString("/data/pluginapp/" + PKG);
+            parcel.writeString("/data/pluginapp/" + PKG + "/1.0");
+            parcel.writeString("/data/pluginapp/" + PKG + "/1.0/lib");
+            parcel.writeInt(FLAG_MERGE_RESOURCE | FLAG_INDIVIDUAL_MODE);
+            parcel.writeInt(RESOURCE_PACKAGE_ID);
+            parcel.writeParcelable(packageInfo, 0);
+            parcel.writeByteArray(null);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * 按照加入版本号之前的格式写入：permissions、metaData与PackageInfo中的重复，组件信息按类名写入Bundle
+     */
+    private static byte[] writeLegacy(PluginPackageInfo info, Map<String, Parcelable> activities,
+                                      Map<String, Parcelable> services, Map<String, Parcelable> receivers,
+                                      Map<String, Parcelable> providers) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeString(info.getPackageName());
+            parcel.writeString(info.getProcessName());
+            parcel.writeString(info.getApplicationClassName());
+            parcel.writeString(info.getDefaultActivityName());
+            parcel.writeTypedArray(info.getPermissions(), 0);
+            parcel.writeParcelable(info.getPackageInfo(), 0);
+            parcel.writeBundle(info.getApplicationInfo().metaData);
+            parcel.writeString(info.getDataDir());
+            parcel.writeString(info.getNativeLibraryDir());
+            parcel.writeByte((byte) (info.isClassNeedInject() ? 1 : 0));
+            parcel.writeByte((byte) (info.isResourceNeedMerge() ? 1 : 0));
+            parcel.writeByte((byte) (info.isNeedAddWebviewResource() ? 1 : 0));
+            parcel.writeByte((byte) (info.isSupportProvider() ? 1 : 0));
+            parcel.writeByte((byte) (info.isIndividualMode() ? 1 : 0));
+            parcel.writeByte((byte) (info.isUsePluginAppInfo() ? 1 : 0));
+            parcel.writeByte((byte) (info.isUsePluginCodePath() ? 1 : 0));
+            for (Map<String, Parcelable> components : Arrays.asList(activities, services, receivers, providers)) {
+                Bundle bundle = new Bundle();
+                for (Map.Entry<String, Parcelable> entry : components.entrySet()) {
+                    bundle.putParcelable(entry.getKey(), entry.getValue());
+                }
+                parcel.writeBundle(bundle);
+            }
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * 按照旧格式读取到Activity组件的Bundle
+     */
+    private static Map<String, Parcelable> readLegacyActivities(byte[] data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            for (int i = 0; i < 4; i++) {
+                parcel.readString();
+            }
+            parcel.createTypedArray(PermissionInfo.CREATOR);
+            parcel.readParcelable(PackageInfo.class.getClassLoader());
+            parcel.readBundle();
+            parcel.readString();
+            parcel.readString();
+            for (int i = 0; i < 7; i++) {
+                parcel.readByte();
+            }
+            Bundle bundle = parcel.readBundle(PluginPackageInfo.ActivityIntentInfo.class.getClassLoader());
+            Map<String, Parcelable> activities = new LinkedHashMap<>();
+            for (String key : bundle.keySet()) {
+                activities.put(key, bundle.<Parcelable>getParcelable(key));
+            }
+            return activities;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static PackageInfo newPackageInfo() {
+        ApplicationInfo appInfo = new ApplicationInfo();
+        appInfo.packageName = PKG;
+        appInfo.className = PKG + ".PluginApp";
+        appInfo.processName = PKG + ":plugin";
+        appInfo.metaData = new Bundle();
+        appInfo.metaData.putBoolean("pluginapp_res_merge", true);
+        appInfo.metaData.putBoolean("pluginapp_individual", true);
+
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = PKG;
+        packageInfo.versionName = "1.0";
+        packageInfo.versionCode = 1;
+        packageInfo.applicationInfo = appInfo;
+        PermissionInfo permission = new PermissionInfo();
+        permission.name = PKG + ".permission.SHARE";
+        permission.packageName = PKG;
+        packageInfo.permissions = new PermissionInfo[]{permission};
+        packageInfo.activities = new ActivityInfo[]{
+                newActivity(MAIN_ACTIVITY, appInfo), newActivity(SHARE_ACTIVITY, appInfo)};
+        ServiceInfo service = new ServiceInfo();
+        service.name = SYNC_SERVICE;
+        service.packageName = PKG;
+        service.applicationInfo = appInfo;
+        packageInfo.services = new ServiceInfo[]{service};
+        packageInfo.receivers = new ActivityInfo[]{newActivity(BOOT_RECEIVER, appInfo)};
+        ProviderInfo provider = new ProviderInfo();
+        provider.name = DATA_PROVIDER;
+        provider.packageName = PKG;
+        provider.authority = PKG + ".data";
+        provider.applicationInfo = appInfo;
+        packageInfo.providers = new ProviderInfo[]{provider};
+        return packageInfo;
+    }
+
+    private static ActivityInfo newActivity(String name, ApplicationInfo appInfo) {
+        ActivityInfo info = new ActivityInfo();
+        info.name = name;
+        info.packageName = PKG;
+        info.applicationInfo = appInfo;
+        return info;
+    }
+
+    private static PluginLiteInfo newLiteInfo() {
+        PluginLiteInfo info = new PluginLiteInfo();
+        info.packageName = PKG;
+        info.pluginVersion = "1.0";
+        info.srcApkPath = "/data/pluginapp/" + PKG + ".1.0.apk";
+        info.installStatus = PluginLiteInfo.PLUGIN_INSTALLED;
+        info.plugin_refs = "com.foo.base,com.foo.common";
+        info.apkDigest = "0123abcd";
+        info.patchBaseVersion = "0.9";
+        info.enableRecovery = true;
+        return info;
+    }
+
+    private static PluginPackageInfo readPackageInfo(byte[] data) {
+        return unmarshall(data, PluginPackageInfo.CREATOR);
+    }
+
+    private static byte[] marshall(Parcelable value) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            value.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static int dataSize(Parcelable value) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            value.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static <T> T unmarshall(byte[] data, Parcelable.Creator<T> creator) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            return creator.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.runtime;
+
+import android.content.res.AssetManager;
+import android.os.Debug;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.qiyi.pluginlibrary.utils.FileUtils;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 合并宿主资源的插件AssetManager创建基准测试，对比每次重新加载宿主和插件apk(addAssetPath的行为)
+ * 和{@link PluginResourcesCache}复用宿主ApkAssets、按路径缓存插件ApkAssets
+ * <p>
+ * 除了耗时，还统计每轮实际调用loadFromPath的次数，以及同时持有所有插件AssetManager时
+ * Java堆和native堆的增量；Robolectric的资源表保存在JVM堆中，内存数据需要在设备上运行才有参考意义
+ * <p>
+ * 默认跳过，通过 -Dneptune.benchmark=true 运行
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class PluginResourcesCacheBenchmark {
+    private static final int PLUGINS = 8;
+    private static final int ROUNDS = 21;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+    private File mHostApk;
+    private File[] mPluginApks;
+    private AssetManager mHostAssets;
+    /* 基线实现调用loadFromPath的次数 */
+    private int mBaselineLoads;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("neptune.benchmark"));
+        mHostApk = new File(mTemp.getRoot(), "host.apk");
+        assertTrue(FileUtils.copyToFile(new File(PluginResourcesCacheTest.SAMPLE_APK), mHostApk));
+        mPluginApks = new File[PLUGINS];
+        for (int i = 0; i < PLUGINS; i++) {
+            mPluginApks[i] = new File(mTemp.getRoot(), "plugin" + i + ".apk");
+            assertTrue(FileUtils.copyToFile(mHostApk, mPluginApks[i]));
+        }
+        mHostAssets = PluginResourcesCacheTest.newHostAssets(mHostApk);
+    }
+
+    @Test
+    public void benchmarkCreateAssetManager() throws Exception {
+        final Class<?> apkAssetsClass = Class.forName("android.content.res.ApkAssets");
+        final Method loadFromPath = apkAssetsClass.getMethod("loadFromPath", String.class);
+        final Method setApkAssets = AssetManager.class.getDeclaredMethod("setApkAssets",
+                Array.newInstance(apkAssetsClass, 0).getClass(), boolean.class);
+        setApkAssets.setAccessible(true);
+        Create baseline = new Create() {
+            @Override
+            public AssetManager run(File pluginApk) throws Exception {
+                // Android P上addAssetPath每次都重新加载apk
+                Object layers = Array.newInstance(apkAssetsClass, 2);
+                Array.set(layers, 0, loadFromPath.invoke(null, pluginApk.getAbsolutePath()));
+                Array.set(layers, 1, loadFromPath.invoke(null, mHostApk.getAbsolutePath()));
+                mBaselineLoads += 2;
+                AssetManager assetManager = AssetManager.class.newInstance();
+                setApkAssets.invoke(assetManager, layers, false);
+                return assetManager;
+            }
+        };
+        Create shared = new Create() {
+            @Override
+            public AssetManager run(File pluginApk) {
+                return PluginResourcesCache.createAssetManager(mHostAssets, pluginApk.getAbsolutePath(),
+                        mHostApk.getAbsolutePath(), null);
+            }
+        };
+
+        int loads = mBaselineLoads;
+        long[] costs = measure(baseline);
+        report("addAssetPath (reload host)", costs, (mBaselineLoads - loads) / ROUNDS, measureMemory(baseline));
+
+        loads = PluginResourcesCache.getApkLoadCount();
+        costs = measure(shared);
+        report("shared ApkAssets", costs, (PluginResourcesCache.getApkLoadCount() - loads) / ROUNDS,
+                measureMemory(shared));
+    }
+
+    /**
+     * 测量多轮创建所有插件AssetManager的耗时，预热轮次不计入
+     */
+    private long[] measure(Create create) throws Exception {
+        // 第一轮预热，同时加载插件的ApkAssets
+        for (File pluginApk : mPluginApks) {
+            create.run(pluginApk);
+        }
+        long[] costs = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            for (File pluginApk : mPluginApks) {
+                create.run(pluginApk);
+            }
+            costs[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(costs);
+        return costs;
+    }
+
+    /**
+     * 同时持有所有插件的AssetManager，统计GC之后Java堆和native堆的增量
+     *
+     * @return {Java堆增量, native堆增量}，单位字节
+     */
+    private long[] measureMemory(Create create) throws Exception {
+        gc();
+        long heapBefore = usedHeap();
+        long nativeBefore = Debug.getNativeHeapAllocatedSize();
+        List<AssetManager> loaded = new ArrayList<>();
+        for (File pluginApk : mPluginApks) {
+            loaded.add(create.run(pluginApk));
+        }
+        gc();
+        long[] deltas = {usedHeap() - heapBefore, Debug.getNativeHeapAllocatedSize() - nativeBefore};
+        assertTrue(loaded.size() == PLUGINS);
+        return deltas;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void gc() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+    }
+
+    private static void report(String name, long[] costs, int apkLoads, long[] memory) {
+        System.out.println(String.format(Locale.US,
+                "%-28s %d plugins, apk loads per round=%d, median=%.2f ms, min=%.2f ms, "
+                        + "heap delta=%d KB, native delta=%d KB",
+                name, PLUGINS, apkLoads, costs[costs.length / 2] / 1e6, costs[0] / 1e6,
+                memory[0] / 1024, memory[1] / 1024));
+    }
+
+    private interface Create {
+        AssetManager run(File pluginApk) throws Exception;
+    }
+}
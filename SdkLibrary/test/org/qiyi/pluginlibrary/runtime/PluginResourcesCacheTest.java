@@ -0,0 +1,131 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.runtime;
+
+import android.content.res.AssetManager;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.qiyi.pluginlibrary.utils.FileUtils;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link PluginResourcesCache}按apk路径共享ApkAssets的测试，需要Android P
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class PluginResourcesCacheTest {
+    /* 示例插件apk，单元测试的工作目录是SdkLibrary */
+    static final String SAMPLE_APK = "../samples/HostApp/src/main/assets/pluginapp/com.iqiyi.plugin.sample.apk";
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+    private File mHostApk;
+    private File mPluginApk;
+    private AssetManager mHostAssets;
+
+    @Before
+    public void setUp() throws Exception {
+        mHostApk = copySample("host.apk");
+        mPluginApk = copySample("plugin.apk");
+        mHostAssets = newHostAssets(mHostApk);
+    }
+
+    @Test
+    public void testHostLayerIsShared() throws Exception {
+        AssetManager first = PluginResourcesCache.createAssetManager(mHostAssets,
+                mPluginApk.getAbsolutePath(), mHostApk.getAbsolutePath(), null);
+        AssetManager second = PluginResourcesCache.createAssetManager(mHostAssets,
+                mPluginApk.getAbsolutePath(), mHostApk.getAbsolutePath(), null);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNotSame(first, second);
+
+        Object hostLayer = findLayer(mHostAssets, mHostApk);
+        assertNotNull(hostLayer);
+        // 宿主资源表直接复用宿主AssetManager中的，插件资源表只加载一次
+        assertSame(hostLayer, findLayer(first, mHostApk));
+        assertSame(hostLayer, findLayer(second, mHostApk));
+        assertSame(findLayer(first, mPluginApk), findLayer(second, mPluginApk));
+    }
+
+    @Test
+    public void testReplacedApkIsLoadedAgain() throws Exception {
+        AssetManager first = PluginResourcesCache.createAssetManager(mHostAssets,
+                mPluginApk.getAbsolutePath(), null, null);
+        Object pluginLayer = findLayer(first, mPluginApk);
+        assertNotNull(pluginLayer);
+        assertEquals(null, findLayer(first, mHostApk));
+
+        // 覆盖安装同一个版本
+        assertTrue(mPluginApk.setLastModified(mPluginApk.lastModified() - 10000L));
+        AssetManager second = PluginResourcesCache.createAssetManager(mHostAssets,
+                mPluginApk.getAbsolutePath(), null, null);
+        assertNotSame(pluginLayer, findLayer(second, mPluginApk));
+    }
+
+    /**
+     * 与系统为宿主创建的AssetManager一样，由宿主apk的ApkAssets组成
+     */
+    static AssetManager newHostAssets(File hostApk) throws Exception {
+        Class<?> apkAssetsClass = Class.forName("android.content.res.ApkAssets");
+        Object hostLayer = apkAssetsClass.getMethod("loadFromPath", String.class)
+                .invoke(null, hostApk.getAbsolutePath());
+        Object layers = Array.newInstance(apkAssetsClass, 1);
+        Array.set(layers, 0, hostLayer);
+        AssetManager hostAssets = AssetManager.class.newInstance();
+        Method setApkAssets = AssetManager.class.getDeclaredMethod("setApkAssets", layers.getClass(), boolean.class);
+        setApkAssets.setAccessible(true);
+        setApkAssets.invoke(hostAssets, layers, false);
+        return hostAssets;
+    }
+
+    static Object findLayer(AssetManager assetManager, File apk) throws Exception {
+        Method getApkAssets = AssetManager.class.getDeclaredMethod("getApkAssets");
+        getApkAssets.setAccessible(true);
+        for (Object layer : (Object[]) getApkAssets.invoke(assetManager)) {
+            Method getAssetPath = layer.getClass().getDeclaredMethod("getAssetPath");
+            getAssetPath.setAccessible(true);
+            if (apk.getAbsolutePath().equals(getAssetPath.invoke(layer))) {
+                return layer;
+            }
+        }
+        return null;
+    }
+
+    private File copySample(String name) throws IOException {
+        File apk = new File(mTemp.getRoot(), name);
+        assertTrue(FileUtils.copyToFile(new File(SAMPLE_APK), apk));
+        return apk;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.utils;
+
+import android.content.res.AssetFileDescriptor;
+import android.os.ParcelFileDescriptor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link FileUtils}拷贝路径的正确性测试：FileChannel传输、流拷贝和asset偏移量拷贝
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class FileUtilsCopyTest {
+    /* 大于拷贝缓冲区，覆盖多次读写 */
+    private static final int SIZE = 200 * 1024 + 17;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    @Test
+    public void testCopyFile() throws Exception {
+        byte[] data = randomBytes(SIZE);
+        File src = write("src.apk", data);
+        File dest = new File(mTemp.getRoot(), "dest.apk");
+        write("dest.apk", new byte[]{1, 2, 3});
+
+        assertTrue(FileUtils.copyToFile(src, dest));
+        assertArrayEquals(data, read(dest));
+    }
+
+    @Test
+    public void testCopyFileStreamFromPosition() throws Exception {
+        byte[] data = randomBytes(SIZE);
+        File src = write("src.apk", data);
+        File dest = new File(mTemp.getRoot(), "dest.apk");
+        FileInputStream in = new FileInputStream(src);
+        try {
+            // 文件流已经读过的部分不会被拷贝
+            assertTrue(in.skip(1000) == 1000);
+            assertTrue(FileUtils.copyToFile(in, dest));
+        } finally {
+            in.close();
+        }
+        assertArrayEquals(Arrays.copyOfRange(data, 1000, data.length), read(dest));
+    }
+
+    @Test
+    public void testCopyStreamWithDigest() throws Exception {
+        byte[] data = randomBytes(SIZE);
+        File dest = new File(mTemp.getRoot(), "dest.apk");
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+        assertTrue(FileUtils.copyToFile(new ByteArrayInputStream(data), dest, digest));
+        assertArrayEquals(data, read(dest));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), digest.digest());
+    }
+
+    @Test
+    public void testCopyFileWithDigest() throws Exception {
+        byte[] data = randomBytes(SIZE);
+        File src = write("src.apk", data);
+        File dest = new File(mTemp.getRoot(), "dest.apk");
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+        assertTrue(FileUtils.copyToFile(src, dest, digest));
+        assertArrayEquals(data, read(dest));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), digest.digest());
+    }
+
+    @Test
+    public void testCopyAssetRange() throws Exception {
+        // 模拟宿主apk中未压缩存储的asset，只拷贝[start, start + length)区间
+        byte[] host = randomBytes(SIZE * 2);
+        int start = 4099;
+        File hostApk = write("host.apk", host);
+        byte[] expected = Arrays.copyOfRange(host, start, start + SIZE);
+
+        File dest = new File(mTemp.getRoot(), "dest.apk");
+        AssetFileDescriptor afd = openAsset(hostApk, start, SIZE);
+        try {
+            assertTrue(FileUtils.copyToFile(afd, dest));
+        } finally {
+            afd.close();
+        }
+        assertArrayEquals(expected, read(dest));
+
+        File digestDest = new File(mTemp.getRoot(), "digest.apk");
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        afd = openAsset(hostApk, start, SIZE);
+        try {
+            assertTrue(FileUtils.copyToFile(afd, digestDest, digest));
+        } finally {
+            afd.close();
+        }
+        assertArrayEquals(expected, read(digestDest));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(expected), digest.digest());
+    }
+
+    @Test
+    public void testCopyMissingSource() {
+        File dest = new File(mTemp.getRoot(), "dest.apk");
+        assertFalse(FileUtils.copyToFile(new File(mTemp.getRoot(), "missing.apk"), dest));
+        assertFalse(dest.exists());
+    }
+
+    private static AssetFileDescriptor openAsset(File file, long start, long length) throws IOException {
+        ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        return new AssetFileDescriptor(pfd, start, length);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(mTemp.getRoot(), name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
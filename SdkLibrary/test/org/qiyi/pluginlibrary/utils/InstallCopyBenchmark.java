@@ -0,0 +1,189 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.utils;
+
+import android.content.res.AssetFileDescriptor;
+import android.os.ParcelFileDescriptor;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * 插件apk安装拷贝的基准测试，对比原来4K缓冲区的流拷贝和FileChannel/AssetFileDescriptor传输
+ * <p>
+ * 默认跳过，通过 -Dneptune.benchmark=true 运行
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class InstallCopyBenchmark {
+    private static final int APK_SIZE = 32 * 1024 * 1024;
+    private static final int ASSET_OFFSET = 1024 * 1024;
+    private static final int ROUNDS = 7;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.getBoolean("neptune.benchmark"));
+    }
+
+    @Test
+    public void benchmarkFileSource() throws Exception {
+        final File src = createFile("plugin.apk", 0, APK_SIZE);
+        final File dest = new File(mTemp.getRoot(), "dest.apk");
+        final long[] bufferBytes = new long[1];
+        report("file:// legacy 4K stream", measure(new Copy() {
+            @Override
+            public void run() throws IOException {
+                InputStream in = new BufferedInputStream(new FileInputStream(src));
+                try {
+                    bufferBytes[0] = legacyCopy(in, dest);
+                } finally {
+                    in.close();
+                }
+            }
+        }), dest.length(), bufferBytes[0]);
+        report("file:// FileChannel", measure(new Copy() {
+            @Override
+            public void run() throws IOException {
+                if (!FileUtils.copyToFile(src, dest)) {
+                    throw new IOException("copy failed");
+                }
+            }
+        }), dest.length(), 0);
+    }
+
+    @Test
+    public void benchmarkUncompressedAsset() throws Exception {
+        final File hostApk = createFile("host.apk", ASSET_OFFSET, APK_SIZE);
+        final File dest = new File(mTemp.getRoot(), "dest.apk");
+        final long[] bufferBytes = new long[1];
+        report("assets:// legacy 4K stream", measure(new Copy() {
+            @Override
+            public void run() throws IOException {
+                // AssetManager.open返回的流，对应宿主apk中的一段数据
+                AssetFileDescriptor afd = openAsset(hostApk);
+                InputStream in = afd.createInputStream();
+                try {
+                    bufferBytes[0] = legacyCopy(in, dest);
+                } finally {
+                    in.close();
+                }
+            }
+        }), dest.length(), bufferBytes[0]);
+        report("assets:// AssetFileDescriptor", measure(new Copy() {
+            @Override
+            public void run() throws IOException {
+                AssetFileDescriptor afd = openAsset(hostApk);
+                try {
+                    if (!FileUtils.copyToFile(afd, dest)) {
+                        throw new IOException("copy failed");
+                    }
+                } finally {
+                    afd.close();
+                }
+            }
+        }), dest.length(), 0);
+    }
+
+    /**
+     * 原来FileUtils.copyToFile(InputStream, File)的实现
+     *
+     * @return 经过用户态缓冲区的字节数
+     */
+    private static long legacyCopy(InputStream inputStream, File destFile) throws IOException {
+        if (destFile.exists()) {
+            destFile.delete();
+        }
+        long copied = 0;
+        BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(destFile));
+        try {
+            byte[] buffer = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) >= 0) {
+                bos.write(buffer, 0, bytesRead);
+                copied += bytesRead;
+            }
+            bos.flush();
+        } finally {
+            bos.close();
+        }
+        return copied;
+    }
+
+    private AssetFileDescriptor openAsset(File hostApk) throws IOException {
+        ParcelFileDescriptor pfd = ParcelFileDescriptor.open(hostApk, ParcelFileDescriptor.MODE_READ_ONLY);
+        return new AssetFileDescriptor(pfd, ASSET_OFFSET, APK_SIZE);
+    }
+
+    private File createFile(String name, int padding, int size) throws IOException {
+        File file = new File(mTemp.getRoot(), name);
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(size).nextBytes(chunk);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (int written = 0; written < padding + size; written += chunk.length) {
+                out.write(chunk, 0, Math.min(chunk.length, padding + size - written));
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static long[] measure(Copy copy) throws IOException {
+        // 第一轮预热
+        copy.run();
+        long[] costs = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            copy.run();
+            costs[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(costs);
+        return costs;
+    }
+
+    private static void report(String name, long[] costs, long written, long bufferBytes) {
+        System.out.println(String.format(Locale.US,
+                "%-30s written=%d bytes, through user-space buffer=%d bytes, median=%.1f ms, min=%.1f ms",
+                name, written, bufferBytes, costs[costs.length / 2] / 1e6, costs[0] / 1e6));
+    }
+
+    private interface Copy {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.utils;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link MultiDexExtractor}的校验清单测试，校验信息保存在槽位目录下，多个进程共享
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class MultiDexExtractorTest {
+    private static final String PKG = "com.example.plugin";
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+    private File mDexDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDexDir = new File(mTemp.newFolder("slot"), "secondary-dexes");
+    }
+
+    @Test
+    public void testFirstLoadWritesManifest() throws Exception {
+        List<byte[]> dexes = randomDexes(1, 3);
+        File apk = createApk("plugin.apk", dexes);
+
+        List<? extends File> files = new MultiDexExtractor(PKG, apk, mDexDir).load(false);
+
+        assertEquals(2, files.size());
+        assertExtracted(files, dexes);
+        Map<String, long[]> manifest = MultiDexExtractor.readManifest(manifestFile());
+        // apk一行，每个secondary dex一行
+        assertEquals(3, manifest.size());
+        long[] apkStamp = manifest.get(MultiDexExtractor.KEY_APK);
+        assertNotNull(apkStamp);
+        assertEquals(FileUtils.getZipCrc(apk), apkStamp[1]);
+        for (File file : files) {
+            long[] stamp = manifest.get(file.getName());
+            assertNotNull(file.getName(), stamp);
+            assertEquals(FileUtils.getZipCrc(file), stamp[0]);
+            assertEquals(file.lastModified(), stamp[1]);
+        }
+        assertFalse(new File(mDexDir, MultiDexExtractor.MANIFEST_NAME + ".tmp").exists());
+    }
+
+    @Test
+    public void testOtherExtractorReusesExtraction() throws Exception {
+        List<byte[]> dexes = randomDexes(2, 3);
+        File apk = createApk("plugin.apk", dexes);
+        new MultiDexExtractor(PKG, apk, mDexDir).load(false);
+        File marker = createMarker();
+
+        // 新的实例只能通过槽位下的清单得知已经释放过，模拟另一个进程
+        List<? extends File> second = new MultiDexExtractor(PKG, apk, mDexDir).load(false);
+
+        assertTrue(marker.exists());
+        assertExtracted(second, dexes);
+    }
+
+    @Test
+    public void testChangedDexIsExtractedAgain() throws Exception {
+        List<byte[]> dexes = randomDexes(3, 3);
+        File apk = createApk("plugin.apk", dexes);
+        List<? extends File> files = new MultiDexExtractor(PKG, apk, mDexDir).load(false);
+
+        File damaged = files.get(1);
+        assertTrue(damaged.delete());
+        writeZip(damaged, new byte[]{1, 2, 3});
+
+        List<? extends File> reloaded = new MultiDexExtractor(PKG, apk, mDexDir).load(false);
+        assertExtracted(reloaded, dexes);
+    }
+
+    @Test
+    public void testUpgradedApkIsExtractedAgain() throws Exception {
+        File apk = createApk("plugin.apk", randomDexes(4, 3));
+        new MultiDexExtractor(PKG, apk, mDexDir).load(false);
+
+        List<byte[]> upgraded = randomDexes(5, 4);
+        assertTrue(apk.delete());
+        createApk("plugin.apk", upgraded);
+        List<? extends File> files = new MultiDexExtractor(PKG, apk, mDexDir).load(false);
+
+        assertEquals(3, files.size());
+        assertExtracted(files, upgraded);
+        assertEquals(4, MultiDexExtractor.readManifest(manifestFile()).size());
+    }
+
+    @Test
+    public void testMissingOrMalformedManifestExtractsAll() throws Exception {
+        List<byte[]> dexes = randomDexes(6, 3);
+        File apk = createApk("plugin.apk", dexes);
+        new MultiDexExtractor(PKG, apk, mDexDir).load(false);
+
+        // 释放过程中被终止时清单已经随dex目录一起删除
+        assertTrue(manifestFile().delete());
+        File marker = createMarker();
+        List<? extends File> files = new MultiDexExtractor(PKG, apk, mDexDir).load(false);
+        assertFalse(marker.exists());
+        assertExtracted(files, dexes);
+
+        marker = createMarker();
+        FileOutputStream out = new FileOutputStream(manifestFile());
+        try {
+            out.write("apk:garbage\n".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        files = new MultiDexExtractor(PKG, apk, mDexDir).load(false);
+        assertFalse(marker.exists());
+        assertExtracted(files, dexes);
+        assertEquals(3, MultiDexExtractor.readManifest(manifestFile()).size());
+    }
+
+    @Test
+    public void testForceLoadExtractsAgain() throws Exception {
+        List<byte[]> dexes = randomDexes(7, 2);
+        File apk = createApk("plugin.apk", dexes);
+        new MultiDexExtractor(PKG, apk, mDexDir).load(false);
+        File marker = createMarker();
+
+        List<? extends File> files = new MultiDexExtractor(PKG, apk, mDexDir).load(true);
+        assertFalse(marker.exists());
+        assertExtracted(files, dexes);
+    }
+
+    @Test
+    public void testApkWithoutSecondaryDex() throws Exception {
+        File apk = createApk("plugin.apk", randomDexes(8, 1));
+
+        assertTrue(new MultiDexExtractor(PKG, apk, mDexDir).load(false).isEmpty());
+        assertEquals(1, MultiDexExtractor.readManifest(manifestFile()).size());
+        assertTrue(new MultiDexExtractor(PKG, apk, mDexDir).load(false).isEmpty());
+    }
+
+    private File manifestFile() {
+        return new File(mDexDir, MultiDexExtractor.MANIFEST_NAME);
+    }
+
+    /**
+     * 重新释放时会清空dex目录，标记文件还在说明复用了已经释放的dex
+     */
+    private File createMarker() throws IOException {
+        File marker = new File(mDexDir, "marker");
+        assertTrue(marker.createNewFile());
+        return marker;
+    }
+
+    private static void assertExtracted(List<? extends File> files, List<byte[]> dexes) throws IOException {
+        assertEquals(dexes.size() - 1, files.size());
+        for (int i = 0; i < files.size(); i++) {
+            ZipFile zipFile = new ZipFile(files.get(i));
+            try {
+                ZipEntry entry = zipFile.getEntry("classes.dex");
+                assertNotNull(entry);
+                assertArrayEquals(dexes.get(i + 1), readAll(zipFile.getInputStream(entry)));
+            } finally {
+                zipFile.close();
+            }
+        }
+    }
+
+    private File createApk(String name, List<byte[]> dexes) throws IOException {
+        File apk = new File(mTemp.getRoot(), name);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk));
+        try {
+            for (int i = 0; i < dexes.size(); i++) {
+                out.putNextEntry(new ZipEntry(i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex"));
+                out.write(dexes.get(i));
+                out.closeEntry();
+            }
+            out.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            out.write(new byte[]{0});
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        return apk;
+    }
+
+    private static void writeZip(File file, byte[] dex) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            out.putNextEntry(new ZipEntry("classes.dex"));
+            out.write(dex);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static List<byte[]> randomDexes(long seed, int count) {
+        Random random = new Random(seed);
+        List<byte[]> dexes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] dex = new byte[4096 + random.nextInt(4096)];
+            random.nextBytes(dex);
+            dexes.add(dex);
+        }
+        return dexes;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+}
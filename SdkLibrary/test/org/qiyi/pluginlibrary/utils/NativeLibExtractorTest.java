@@ -0,0 +1,318 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.utils;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link NativeLibExtractor}的增量释放和清单文件格式测试
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class NativeLibExtractorTest {
+    private static final String ABI = "armeabi-v7a";
+    private static final String MANIFEST_NAME = ".libs.manifest";
+    /* 用于判断文件是否被重写 */
+    private static final long OLD_MODIFIED = 1000000000000L;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+    private File mLibDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mLibDir = mTemp.newFolder("lib");
+    }
+
+    @Test
+    public void testFirstExtractWritesManifest() throws Exception {
+        Map<String, byte[]> libs = new LinkedHashMap<>();
+        libs.put("liba.so", randomBytes(1, 70 * 1024));
+        libs.put("libb.so", randomBytes(2, 10 * 1024));
+        File apk = createApk("v1.apk", libs, true);
+
+        assertEquals(80 * 1024, extract(apk));
+        assertLibs(libs);
+        // 每行格式为 {name}:{crc}:{size}
+        List<String> expected = new ArrayList<>();
+        for (Map.Entry<String, byte[]> lib : libs.entrySet()) {
+            expected.add(lib.getKey() + ":" + crcOf(lib.getValue()) + ":" + lib.getValue().length);
+        }
+        assertEquals(expected, readLines(new File(mLibDir, MANIFEST_NAME)));
+        assertFalse(new File(mLibDir, MANIFEST_NAME + ".tmp").exists());
+    }
+
+    @Test
+    public void testUnchangedLibsAreSkipped() throws Exception {
+        Map<String, byte[]> libs = new LinkedHashMap<>();
+        libs.put("liba.so", randomBytes(1, 4096));
+        libs.put("libb.so", randomBytes(2, 8192));
+        File apk = createApk("v1.apk", libs, false);
+        extract(apk);
+        markOld();
+
+        assertEquals(0, extract(createApk("v2.apk", libs, true)));
+        assertLibs(libs);
+        for (String name : libs.keySet()) {
+            assertEquals(OLD_MODIFIED, new File(mLibDir, name).lastModified());
+        }
+    }
+
+    @Test
+    public void testUpgradeExtractsOnlyChangedLibs() throws Exception {
+        Map<String, byte[]> v1 = new LinkedHashMap<>();
+        v1.put("liba.so", randomBytes(1, 4096));
+        v1.put("libb.so", randomBytes(2, 8192));
+        v1.put("libc.so", randomBytes(3, 2048));
+        extract(createApk("v1.apk", v1, true));
+        markOld();
+
+        Map<String, byte[]> v2 = new LinkedHashMap<>();
+        v2.put("liba.so", randomBytes(11, 5000));
+        v2.put("libb.so", v1.get("libb.so"));
+        v2.put("libd.so", randomBytes(4, 3000));
+        assertEquals(5000 + 3000, extract(createApk("v2.apk", v2, true)));
+
+        assertLibs(v2);
+        assertFalse(new File(mLibDir, "libc.so").exists());
+        assertEquals(OLD_MODIFIED, new File(mLibDir, "libb.so").lastModified());
+        List<String> lines = readLines(new File(mLibDir, MANIFEST_NAME));
+        assertEquals(3, lines.size());
+        assertTrue(lines.contains("liba.so:" + crcOf(v2.get("liba.so")) + ":5000"));
+        assertTrue(lines.contains("libd.so:" + crcOf(v2.get("libd.so")) + ":3000"));
+    }
+
+    @Test
+    public void testUpgradeIntoNewSlotReusesUnchangedLibs() throws Exception {
+        Map<String, byte[]> v1 = new LinkedHashMap<>();
+        v1.put("liba.so", randomBytes(1, 4096));
+        v1.put("libb.so", randomBytes(2, 8192));
+        extract(createApk("v1.apk", v1, true));
+        File previousLibDir = mLibDir;
+
+        // 新版本安装到独立的槽位，先复用上一个版本的so库和清单
+        mLibDir = new File(mTemp.getRoot(), "2.0/lib");
+        assertEquals(2, NativeLibExtractor.seed(previousLibDir, mLibDir));
+        assertTrue(new File(mLibDir, MANIFEST_NAME).exists());
+        Map<String, byte[]> v2 = new LinkedHashMap<>();
+        v2.put("liba.so", randomBytes(11, 5000));
+        v2.put("libb.so", v1.get("libb.so"));
+        assertEquals(5000, extract(createApk("v2.apk", v2, true)));
+        assertLibs(v2);
+        // 已经释放过的槽位不再复用
+        assertEquals(0, NativeLibExtractor.seed(previousLibDir, mLibDir));
+
+        // 上一个版本可能仍在运行，它的lib目录不受影响
+        mLibDir = previousLibDir;
+        assertLibs(v1);
+        assertEquals(0, extract(createApk("v1.apk", v1, true)));
+    }
+
+    @Test
+    public void testDamagedLibIsExtractedAgain() throws Exception {
+        Map<String, byte[]> libs = new LinkedHashMap<>();
+        libs.put("liba.so", randomBytes(1, 4096));
+        libs.put("libb.so", randomBytes(2, 8192));
+        File apk = createApk("v1.apk", libs, true);
+        extract(apk);
+
+        // 清单完好，但文件被截断
+        RandomAccessFile raf = new RandomAccessFile(new File(mLibDir, "libb.so"), "rw");
+        try {
+            raf.setLength(100);
+        } finally {
+            raf.close();
+        }
+        assertEquals(8192, extract(apk));
+        assertLibs(libs);
+    }
+
+    @Test
+    public void testMissingManifestExtractsAll() throws Exception {
+        Map<String, byte[]> libs = new LinkedHashMap<>();
+        libs.put("liba.so", randomBytes(1, 4096));
+        libs.put("libb.so", randomBytes(2, 8192));
+        File apk = createApk("v1.apk", libs, true);
+        extract(apk);
+
+        // 释放过程中被终止时清单已经删除
+        assertTrue(new File(mLibDir, MANIFEST_NAME).delete());
+        assertEquals(4096 + 8192, extract(apk));
+        assertTrue(new File(mLibDir, MANIFEST_NAME).exists());
+    }
+
+    @Test
+    public void testMalformedManifestLinesAreIgnored() throws Exception {
+        Map<String, byte[]> libs = new LinkedHashMap<>();
+        libs.put("liba.so", randomBytes(1, 4096));
+        File apk = createApk("v1.apk", libs, true);
+        writeLines(new File(mLibDir, MANIFEST_NAME), Collections.singletonList("garbage"));
+
+        assertEquals(4096, extract(apk));
+        assertLibs(libs);
+        assertEquals(Collections.singletonList("liba.so:" + crcOf(libs.get("liba.so")) + ":4096"),
+                readLines(new File(mLibDir, MANIFEST_NAME)));
+    }
+
+    @Test
+    public void testOtherAbiIsNotExtracted() throws Exception {
+        Map<String, byte[]> libs = new LinkedHashMap<>();
+        libs.put("liba.so", randomBytes(1, 4096));
+        File apk = createApk("v1.apk", libs, true);
+        ZipFile zipFile = new ZipFile(apk);
+        try {
+            assertEquals(-1, NativeLibExtractor.extract(zipFile, "x86", mLibDir));
+        } finally {
+            zipFile.close();
+        }
+        assertFalse(new File(mLibDir, "liba.so").exists());
+        assertFalse(new File(mLibDir, MANIFEST_NAME).exists());
+    }
+
+    private long extract(File apk) throws IOException {
+        ZipFile zipFile = new ZipFile(apk);
+        try {
+            return NativeLibExtractor.extract(zipFile, ABI, mLibDir);
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private void markOld() {
+        File[] files = mLibDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.setLastModified(OLD_MODIFIED));
+            }
+        }
+    }
+
+    private void assertLibs(Map<String, byte[]> libs) throws IOException {
+        for (Map.Entry<String, byte[]> lib : libs.entrySet()) {
+            assertArrayEquals(lib.getKey(), lib.getValue(), readBytes(new File(mLibDir, lib.getKey())));
+        }
+    }
+
+    private File createApk(String name, Map<String, byte[]> libs, boolean compressed) throws IOException {
+        File apk = new File(mTemp.getRoot(), name);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk));
+        try {
+            out.putNextEntry(new ZipEntry("classes.dex"));
+            out.write(new byte[]{'d', 'e', 'x'});
+            out.closeEntry();
+            for (Map.Entry<String, byte[]> lib : libs.entrySet()) {
+                ZipEntry entry = new ZipEntry("lib/" + ABI + "/" + lib.getKey());
+                byte[] data = lib.getValue();
+                if (!compressed) {
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data.length);
+                    entry.setCompressedSize(data.length);
+                    entry.setCrc(crcOf(data));
+                }
+                out.putNextEntry(entry);
+                out.write(data);
+                out.closeEntry();
+            }
+            // 其他ABI的so库不应该被释放
+            out.putNextEntry(new ZipEntry("lib/x86_64/libother.so"));
+            out.write(new byte[]{1});
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        return apk;
+    }
+
+    private static long crcOf(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static byte[] randomBytes(long seed, int size) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String line : new String(readBytes(file), "UTF-8").split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static void writeLines(File file, List<String> lines) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (String line : lines) {
+                out.write((line + "\n").getBytes("UTF-8"));
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.utils;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 反射调用的基准测试，对比原来带Vector方法缓存的{@link ReflectionUtils#call(String, java.util.Map, Class[], Object...)}、
+ * 每次查找的字段和构造函数，和预解析的{@link ReflectionUtils.MethodRef}、{@link ReflectionUtils.FieldRef}、
+ * {@link ReflectionUtils.ConstructorRef}，以直接调用作为基线
+ * <p>
+ * 按JMH的方式先预热再测量多轮，结果写入sink避免被优化掉，输出每次操作的耗时
+ * <p>
+ * 默认跳过，通过 -Dneptune.benchmark=true 运行
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class ReflectionBenchmark {
+    private static final int OPS = 200000;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 11;
+
+    private final ConcurrentMap<String, Vector<Method>> mMethods = new ConcurrentHashMap<String, Vector<Method>>();
+    private final Target mTarget = new Target(0);
+    /* 保存每次操作的结果，避免被JIT当作无用代码消除 */
+    private long mSink;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.getBoolean("neptune.benchmark"));
+    }
+
+    @Test
+    public void benchmarkMethod() {
+        final Class<?>[] paramTypes = new Class[]{int.class, String.class};
+        final ReflectionUtils.MethodRef ref = ReflectionUtils.resolveMethod(Target.class, "onEvent", paramTypes);
+        assertTrue(ref.isAvailable());
+        report("method: direct call", measure(new Op() {
+            @Override
+            public long run(int i) {
+                return mTarget.onEvent(i, "event");
+            }
+        }));
+        report("method: call() + Vector cache", measure(new Op() {
+            @Override
+            public long run(int i) {
+                return ReflectionUtils.on(mTarget).call("onEvent", mMethods, paramTypes, i, "event").<Integer>get();
+            }
+        }));
+        report("method: MethodRef", measure(new Op() {
+            @Override
+            public long run(int i) {
+                return ref.<Integer>invoke(mTarget, i, "event");
+            }
+        }));
+    }
+
+    @Test
+    public void benchmarkField() {
+        final ReflectionUtils.FieldRef ref = ReflectionUtils.resolveField(Target.class, "mToken");
+        assertTrue(ref.isAvailable());
+        report("field: direct read", measure(new Op() {
+            @Override
+            public long run(int i) {
+                return mTarget.mToken.hashCode();
+            }
+        }));
+        report("field: getFieldValue()", measure(new Op() {
+            @Override
+            public long run(int i) throws Exception {
+                return ReflectionUtils.getFieldValue(mTarget, "mToken").hashCode();
+            }
+        }));
+        report("field: FieldRef", measure(new Op() {
+            @Override
+            public long run(int i) {
+                return ref.get(mTarget).hashCode();
+            }
+        }));
+    }
+
+    @Test
+    public void benchmarkConstructor() {
+        final ReflectionUtils.ConstructorRef ref = ReflectionUtils.resolveConstructor(Target.class, int.class);
+        assertTrue(ref.isAvailable());
+        report("constructor: new", measure(new Op() {
+            @Override
+            public long run(int i) {
+                return new Target(i).mValue;
+            }
+        }));
+        report("constructor: lookup + newInstance", measure(new Op() {
+            @Override
+            public long run(int i) throws Exception {
+                Constructor<?> constructor = Target.class.getDeclaredConstructor(int.class);
+                constructor.setAccessible(true);
+                return ((Target) constructor.newInstance(i)).mValue;
+            }
+        }));
+        report("constructor: ConstructorRef", measure(new Op() {
+            @Override
+            public long run(int i) {
+                return ref.<Target>newInstance(i).mValue;
+            }
+        }));
+    }
+
+    private long[] measure(Op op) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runRound(op);
+        }
+        long[] costs = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            runRound(op);
+            costs[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(costs);
+        return costs;
+    }
+
+    private void runRound(Op op) {
+        try {
+            for (int i = 0; i < OPS; i++) {
+                mSink += op.run(i);
+            }
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void report(String name, long[] costs) {
+        System.out.println(String.format(Locale.US, "%-36s median=%.1f ns/op, min=%.1f ns/op",
+                name, (double) costs[costs.length / 2] / OPS, (double) costs[0] / OPS));
+    }
+
+    private interface Op {
+        long run(int i) throws Exception;
+    }
+
+    /**
+     * 模拟被反射的系统类，方法和字段都是私有的
+     */
+    private static class Target {
+        private final Object mToken = new Object();
+        private final int mValue;
+
+        private Target(int value) {
+            mValue = value;
+        }
+
+        private int onEvent(int code, String name) {
+            return code + name.length();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.utils;
+
+import android.app.Activity;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ReflectionBootstrap}按系统版本预解析反射成员的测试
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {27, 28}, manifest = Config.NONE)
+public class ReflectionBootstrapTest {
+
+    @Test
+    public void testAttachParamCountMatchesPlatform() {
+        int count = 0;
+        for (Method method : Activity.class.getDeclaredMethods()) {
+            if (method.getName().equals("attach")) {
+                count = method.getParameterTypes().length;
+            }
+        }
+        assertEquals(count, ReflectionBootstrap.getAttachParamCount());
+        assertTrue(ReflectionUtils.resolveMethod(Activity.class, "attach",
+                ReflectionBootstrap.getAttachParamCount()).isAvailable());
+    }
+
+    @Test
+    public void testWarmUpResolvesAttach() {
+        ReflectionBootstrap.warmUp();
+        assertFalse(ReflectionBootstrap.getFailedMembers().contains(Activity.class.getName() + "#attach"));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *
+ * Copyright 2018 iQIYI.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qiyi.pluginlibrary.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link ResourceTableUtils}从resources.arsc读取package id的测试
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class ResourceTableUtilsTest {
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    @Test
+    public void testReadPackageId() throws IOException {
+        assertEquals(0x70, ResourceTableUtils.readPackageId(createApk(resourceTable(0x70, 1000), true)));
+        assertEquals(0x7f, ResourceTableUtils.readPackageId(createApk(resourceTable(0x7f, 0), false)));
+    }
+
+    @Test
+    public void testApkWithoutResourceTable() throws IOException {
+        assertEquals(0, ResourceTableUtils.readPackageId(createApk(null, true)));
+        assertEquals(0, ResourceTableUtils.readPackageId(new File(mTemp.getRoot(), "missing.apk")));
+    }
+
+    @Test
+    public void testMalformedResourceTable() throws IOException {
+        byte[] table = resourceTable(0x70, 1000);
+        // 在字符串池中截断
+        assertEquals(0, ResourceTableUtils.readPackageId(createApk(Arrays.copyOf(table, 100), true)));
+        // 不是资源表
+        table[0] = 0x03;
+        assertEquals(0, ResourceTableUtils.readPackageId(createApk(table, true)));
+    }
+
+    /**
+     * 资源表头部、字符串池和一个package chunk，package chunk只包含头部
+     */
+    private static byte[] resourceTable(int packageId, int stringPoolPayload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int stringPoolSize = 0x1c + stringPoolPayload;
+        int packageSize = 0x120;
+        writeChunkHeader(out, 0x0002, 0x0c, 0x0c + stringPoolSize + packageSize);
+        writeInt(out, 1);
+        writeChunkHeader(out, 0x0001, 0x1c, stringPoolSize);
+        out.write(new byte[0x1c - 8 + stringPoolPayload], 0, 0x1c - 8 + stringPoolPayload);
+        writeChunkHeader(out, 0x0200, packageSize, packageSize);
+        writeInt(out, packageId);
+        out.write(new byte[packageSize - 12], 0, packageSize - 12);
+        return out.toByteArray();
+    }
+
+    private static void writeChunkHeader(ByteArrayOutputStream out, int type, int headerSize, int size) {
+        writeShort(out, type);
+        writeShort(out, headerSize);
+        writeInt(out, size);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value & 0xffff);
+        writeShort(out, (value >>> 16) & 0xffff);
+    }
+
+    private File createApk(byte[] resourceTable, boolean compressed) throws IOException {
+        File apk = mTemp.newFile();
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk));
+        try {
+            out.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            out.write(new byte[]{0});
+            out.closeEntry();
+            if (resourceTable != null) {
+                ZipEntry entry = new ZipEntry("resources.arsc");
+                if (!compressed) {
+                    // aapt默认不压缩资源表
+                    CRC32 crc = new CRC32();
+                    crc.update(resourceTable);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(resourceTable.length);
+                    entry.setCompressedSize(resourceTable.length);
+                    entry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(entry);
+                out.write(resourceTable);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return apk;
+    }
+}